@@ -826,6 +826,11 @@ public class BrokerController {
     }
 
 
+    public ExecutorService getSendMessageExecutor() {
+        return sendMessageExecutor;
+    }
+
+
     public void setPullMessageExecutor(ExecutorService pullMessageExecutor) {
         this.pullMessageExecutor = pullMessageExecutor;
     }
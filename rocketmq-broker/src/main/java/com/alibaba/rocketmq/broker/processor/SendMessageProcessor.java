@@ -48,6 +48,8 @@ import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
 import com.alibaba.rocketmq.remoting.netty.NettyRequestProcessor;
 import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
 import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageCallback;
+import com.alibaba.rocketmq.store.PutMessageFuture;
 import com.alibaba.rocketmq.store.PutMessageResult;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import io.netty.channel.ChannelFuture;
@@ -63,6 +65,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /**
@@ -119,8 +122,8 @@ public class SendMessageProcessor implements NettyRequestProcessor {
 
                 final RemotingCommand response = this.sendMessage(ctx, request, mqTraceContext, requestHeader, rpcContext);
 
-                // 消息轨迹：记录发送成功的消息
-                if (this.hasSendMessageHook()) {
+                // 消息轨迹：记录发送成功的消息，存储未完成时由存储回调记录
+                if (response != null && this.hasSendMessageHook()) {
                     this.executeSendMessageHookAfter(response, mqTraceContext);
                 }
                 return response;
@@ -430,7 +433,7 @@ public class SendMessageProcessor implements NettyRequestProcessor {
             sysFlag |= MessageSysFlag.MultiTagsFlag;
         }
 
-        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        final MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
         msgInner.setTopic(requestHeader.getTopic());
         msgInner.setBody(body);
         msgInner.setFlag(requestHeader.getFlag());
@@ -467,7 +470,88 @@ public class SendMessageProcessor implements NettyRequestProcessor {
             }
         }
 
-        PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
+        final int tranType = MessageSysFlag.getTransactionValue(msgInner.getSysFlag());
+        if (!brokerController.getBrokerConfig().isRejectTransactionMessage()
+                && null != brokerController.getTransactionStore()
+                && tranType == MessageSysFlag.TransactionPreparedType) {
+            // 存储成功后还要写事务存储，不适合在刷盘线程中回调，仍然同步等待
+            PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
+            RemotingCommand responseCommand = this.handlePutMessageResult(putMessageResult, response, request,
+                    msgInner, ctx, mqtraceContext, requestHeader, queueIdInt, rpcContext);
+            // 成功时应答已经写回，返回null，消息轨迹在这里记录
+            if (null == responseCommand && this.hasSendMessageHook()) {
+                this.executeSendMessageHookAfter(null, mqtraceContext);
+            }
+            return responseCommand;
+        }
+
+        // 同步刷盘或同步双写时不阻塞发送线程，由刷盘或同步双写确认后在回调中写回应答
+        final PutMessageFuture putMessageFuture = this.brokerController.getMessageStore().putMessageAsync(msgInner);
+        final int queueId = queueIdInt;
+        final Runnable writeResponse = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RemotingCommand responseCommand = SendMessageProcessor.this.handlePutMessageResult(
+                            putMessageFuture.getPutMessageResult(), response, request, msgInner, ctx, mqtraceContext,
+                            requestHeader, queueId, rpcContext);
+                    if (responseCommand != null) {
+                        SendMessageProcessor.this.executeSendMessageHookAfter(responseCommand, mqtraceContext);
+                        if (!request.isOnewayRPC()) {
+                            try {
+                                ctx.writeAndFlush(responseCommand);
+                            } catch (Throwable e) {
+                                log.error("SendMessageProcessor process request over, but response failed", e);
+                                log.error(request.toString());
+                                log.error(responseCommand.toString());
+                            }
+                        }
+                    } else {
+                        SendMessageProcessor.this.executeSendMessageHookAfter(null, mqtraceContext);
+                    }
+                } catch (Throwable e) {
+                    log.error("SendMessageProcessor handle put message result exception", e);
+                }
+            }
+        };
+
+        // 异步刷盘时已经完成，直接在发送线程中写回应答
+        if (putMessageFuture.isDone()) {
+            writeResponse.run();
+            return null;
+        }
+
+        putMessageFuture.addCallback(new PutMessageCallback() {
+            @Override
+            public void operationComplete(PutMessageResult putMessageResult) {
+                // 回调在GroupCommitService或GroupTransferService线程中执行，交给发送线程池处理，
+                // 钩子或网络写阻塞时不影响其他请求的刷盘及同步双写确认
+                try {
+                    SendMessageProcessor.this.brokerController.getSendMessageExecutor().execute(writeResponse);
+                } catch (RejectedExecutionException e) {
+                    log.warn("send message thread pool busy, write response in store thread");
+                    writeResponse.run();
+                }
+            }
+        });
+
+        return null;
+    }
+
+
+    /**
+     * 根据存储结果构造应答，成功时直接写回应答并返回null
+     */
+    private RemotingCommand handlePutMessageResult(final PutMessageResult putMessageResult, //
+                                                   final RemotingCommand response, //
+                                                   final RemotingCommand request, //
+                                                   final MessageExtBrokerInner msgInner, //
+                                                   final ChannelHandlerContext ctx, //
+                                                   final SendMessageContext mqtraceContext, //
+                                                   final SendMessageRequestHeader requestHeader, //
+                                                   final int queueIdInt, //
+                                                   final RpcContext rpcContext) {
+        final SendMessageResponseHeader responseHeader = (SendMessageResponseHeader) response.readCustomHeader();
         if (putMessageResult != null) {
             boolean sendOK = false;
 
@@ -46,6 +46,14 @@ public class UtilAll {
     public static final String yyyy_MM_dd_HH_mm_ss = "yyyy-MM-dd HH:mm:ss";
     public static final String yyyy_MM_dd_HH_mm_ss_SSS = "yyyy-MM-dd#HH:mm:ss:SSS";
     public static final String yyyyMMddHHmmss = "yyyyMMddHHmmss";
+    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+    // 每个线程复用一个CRC32，写消息时不再逐条创建
+    private static final ThreadLocal<CRC32> CRC32_CACHE = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
 
 
     public static int getPid() {
@@ -225,7 +233,7 @@ public class UtilAll {
         double ret = 1.0;
         for (String storePath : paths) {
             try {
-                File file = new File(storePath);
+                File file = new File(storePath.trim());
                 if (!file.exists()) {
                     boolean result = file.mkdirs();
                     if (!result) {
@@ -258,7 +266,8 @@ public class UtilAll {
 
 
     public static final int crc32(byte[] array, int offset, int length) {
-        CRC32 crc32 = new CRC32();
+        CRC32 crc32 = CRC32_CACHE.get();
+        crc32.reset();
         crc32.update(array, offset, length);
         return (int) (crc32.getValue() & 0x7FFFFFFF);
     }
@@ -268,19 +277,16 @@ public class UtilAll {
      * 字节数组转化成16进制形式
      */
     public static String bytes2string(byte[] src) {
-        StringBuilder sb = new StringBuilder();
         if (src == null || src.length <= 0) {
             return null;
         }
+        char[] hexChars = new char[src.length * 2];
         for (int i = 0; i < src.length; i++) {
             int v = src[i] & 0xFF;
-            String hv = Integer.toHexString(v);
-            if (hv.length() < 2) {
-                sb.append(0);
-            }
-            sb.append(hv.toUpperCase());
+            hexChars[i * 2] = HEX_ARRAY[v >>> 4];
+            hexChars[i * 2 + 1] = HEX_ARRAY[v & 0x0F];
         }
-        return sb.toString();
+        return new String(hexChars);
     }
 
 
@@ -482,7 +488,7 @@ public class UtilAll {
         String[] paths = pathCSV.split(",");
 
         if (paths.length == 1) {
-            return paths[0];
+            return paths[0].trim();
         }
 
         List<Pair<String, Long>> pathList = new ArrayList<Pair<String, Long>>();
@@ -492,7 +498,7 @@ public class UtilAll {
                 continue;
             }
 
-            Pair<String, Long> pair = new Pair<>(path, new File(path).getUsableSpace());
+            Pair<String, Long> pair = new Pair<>(path.trim(), new File(path.trim()).getUsableSpace());
             pathList.add(pair);
         }
 
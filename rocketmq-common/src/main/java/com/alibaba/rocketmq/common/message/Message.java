@@ -198,6 +198,14 @@ public class Message implements Serializable {
     }
 
 
+    /**
+     * 指定投递时间点，与延时级别同时设置时以延时级别为准
+     */
+    public void setDeliverTimeMs(long deliverTimeMs) {
+        this.putProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS, String.valueOf(deliverTimeMs));
+    }
+
+
     public boolean isWaitStoreMsgOK() {
         String result = this.getProperty(MessageConst.PROPERTY_WAIT_STORE_MSG_OK);
         if (null == result)
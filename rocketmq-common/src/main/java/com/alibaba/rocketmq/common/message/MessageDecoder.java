@@ -49,6 +49,7 @@ public class MessageDecoder {
     public final static int MESSAGE_FLAG_POSITION = 16;
     public final static int MESSAGE_PHYSIC_OFFSET_POSITION = 28;
     public final static int MESSAGE_STORE_TIMESTAMP_POSITION = 56;
+    public final static int MESSAGE_BODY_SIZE_POSITION = 84;
 
 
     public static String createMessageId(final ByteBuffer input, final ByteBuffer addr, final long offset) {
@@ -218,6 +219,40 @@ public class MessageDecoder {
     }
 
 
+    /**
+     * 只解析存储记录中的消息属性，按绝对位置读取，不改变byteBuffer的position
+     *
+     * @return 记录不完整时返回null
+     */
+    public static Map<String, String> decodeProperties(final java.nio.ByteBuffer byteBuffer) {
+        try {
+            final int base = byteBuffer.position();
+            final int bodySizePosition = base + MESSAGE_BODY_SIZE_POSITION;
+            final int topicLengthPosition = bodySizePosition + 4 + byteBuffer.getInt(bodySizePosition);
+            final int propertiesLengthPosition = topicLengthPosition + 1 + byteBuffer.get(topicLengthPosition);
+            final short propertiesLength = byteBuffer.getShort(propertiesLengthPosition);
+            if (propertiesLength <= 0) {
+                return new HashMap<String, String>();
+            }
+
+            byte[] properties = new byte[propertiesLength];
+            java.nio.ByteBuffer duplicate = byteBuffer.duplicate();
+            duplicate.position(propertiesLengthPosition + 2);
+            duplicate.get(properties);
+            return string2messageProperties(new String(properties, Charset.forName("UTF-8")));
+        }
+        catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+        catch (BufferUnderflowException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+
     public static List<MessageExt> decodes(java.nio.ByteBuffer byteBuffer) {
         return decodes(byteBuffer, true);
     }
@@ -3,7 +3,9 @@
  */
 package com.alibaba.rocketmq.common.protocol.heartbeat;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -17,6 +19,8 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
     private String subString;
     private Set<String> tagsSet = new HashSet<String>();
     private Set<Integer> codeSet = new HashSet<Integer>();
+    // 按消息属性过滤，所有属性值都相等才匹配
+    private Map<String, String> propertyFilter = new HashMap<String, String>();
     private long subVersion = System.currentTimeMillis();
 
 
@@ -82,6 +86,16 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
     }
 
 
+    public Map<String, String> getPropertyFilter() {
+        return propertyFilter;
+    }
+
+
+    public void setPropertyFilter(Map<String, String> propertyFilter) {
+        this.propertyFilter = propertyFilter;
+    }
+
+
     public boolean isClassFilterMode() {
         return classFilterMode;
     }
@@ -98,6 +112,7 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
         int result = 1;
         result = prime * result + (classFilterMode ? 1231 : 1237);
         result = prime * result + ((codeSet == null) ? 0 : codeSet.hashCode());
+        result = prime * result + ((propertyFilter == null) ? 0 : propertyFilter.hashCode());
         result = prime * result + ((subString == null) ? 0 : subString.hashCode());
         result = prime * result + ((tagsSet == null) ? 0 : tagsSet.hashCode());
         result = prime * result + ((topic == null) ? 0 : topic.hashCode());
@@ -122,6 +137,12 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
         }
         else if (!codeSet.equals(other.codeSet))
             return false;
+        if (propertyFilter == null) {
+            if (other.propertyFilter != null)
+                return false;
+        }
+        else if (!propertyFilter.equals(other.propertyFilter))
+            return false;
         if (subString == null) {
             if (other.subString != null)
                 return false;
@@ -149,8 +170,8 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
     @Override
     public String toString() {
         return "SubscriptionData [classFilterMode=" + classFilterMode + ", topic=" + topic + ", subString="
-                + subString + ", tagsSet=" + tagsSet + ", codeSet=" + codeSet + ", subVersion=" + subVersion
-                + "]";
+                + subString + ", tagsSet=" + tagsSet + ", codeSet=" + codeSet + ", propertyFilter=" + propertyFilter
+                + ", subVersion=" + subVersion + "]";
     }
 
 
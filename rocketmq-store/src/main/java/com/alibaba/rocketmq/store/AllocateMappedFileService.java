@@ -21,11 +21,18 @@ import com.alibaba.rocketmq.common.constant.LoggerName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -37,32 +44,41 @@ import java.util.concurrent.TimeUnit;
 public class AllocateMappedFileService extends ServiceThread {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
     private static final int WAIT_TIME_OUT = 1000 * 5;
+    // 每次预缺页的字节数
+    private static final int PREFAULT_CHUNK_SIZE = 1024 * 1024;
     private ConcurrentHashMap<String, AllocateRequest> requestTable = new ConcurrentHashMap<String, AllocateRequest>();
     private PriorityBlockingQueue<AllocateRequest> requestQueue = new PriorityBlockingQueue<AllocateRequest>();
     private volatile boolean hasException = false;
     private final DefaultMessageStore messageStore;
+    private final PrefaultService prefaultService = new PrefaultService();
+    // 各存储路径的IO统计
+    private final StorePathStats storePathStats;
+    // 已取消但还被预缺页线程引用、删除失败的文件，下次创建文件及停止时重试
+    private final LinkedBlockingQueue<MappedFile> cancelledFiles = new LinkedBlockingQueue<MappedFile>();
 
     public AllocateMappedFileService(DefaultMessageStore messageStore) {
         this.messageStore = messageStore;
+        this.storePathStats = new StorePathStats(messageStore.getMessageStoreConfig());
     }
 
     public MappedFile putRequestAndReturnMappedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
-        AllocateRequest nextReq = new AllocateRequest(nextFilePath, fileSize);
-        AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
-        boolean nextPutOK = (this.requestTable.putIfAbsent(nextFilePath, nextReq) == null);
-        boolean nextNextPutOK = (this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null);
-
-        if (nextPutOK) {
-            boolean offerOK = this.requestQueue.offer(nextReq);
-            if (!offerOK) {
-                log.warn("add a request to preallocate queue failed");
-            }
-        }
+        return this.putRequestAndReturnMappedFile(new String[] { nextFilePath, nextNextFilePath }, fileSize);
+    }
 
-        if (nextNextPutOK) {
-            boolean offerOK = this.requestQueue.offer(nextNextReq);
-            if (!offerOK) {
-                log.warn("add a request to preallocate queue failed");
+
+    /**
+     * @param filePaths
+     *            需要预创建的文件，第一个是马上要使用的文件
+     */
+    public MappedFile putRequestAndReturnMappedFile(String[] filePaths, int fileSize) {
+        final String nextFilePath = filePaths[0];
+        for (String filePath : filePaths) {
+            AllocateRequest req = new AllocateRequest(filePath, fileSize);
+            if (this.requestTable.putIfAbsent(filePath, req) == null) {
+                boolean offerOK = this.requestQueue.offer(req);
+                if (!offerOK) {
+                    log.warn("add a request to preallocate queue failed");
+                }
             }
         }
 
@@ -92,13 +108,109 @@ public class AllocateMappedFileService extends ServiceThread {
     }
 
 
+    /**
+     * 预创建的文件在发起请求时就确定了存储路径，之后切换文件时可能选择了其他路径，
+     * 删除其他路径下与filePaths同名、尚未使用的预创建文件，避免重启后同一Offset加载出两个文件
+     *
+     * @param storePaths
+     *            队列的所有存储路径，逗号分隔
+     * @param filePaths
+     *            本次选定路径下需要预创建的文件
+     */
+    public void cancelRequestsOnOtherPaths(final String storePaths, final String[] filePaths) {
+        final Set<String> selected = new HashSet<String>(Arrays.asList(filePaths));
+        for (String storePath : storePaths.split(",")) {
+            for (String filePath : filePaths) {
+                String otherPath = storePath.trim() + File.separator + new File(filePath).getName();
+                if (selected.contains(otherPath)) {
+                    continue;
+                }
+
+                AllocateRequest req = this.requestTable.remove(otherPath);
+                if (req != null) {
+                    MappedFile mappedFile;
+                    synchronized (req) {
+                        req.cancelled = true;
+                        mappedFile = req.getMappedFile();
+                    }
+
+                    // 还在创建中的文件由创建线程删除
+                    if (mappedFile != null) {
+                        log.info("delete pre allocated mapped file on unselected path, {}", otherPath);
+                        this.destroyCancelledFile(mappedFile);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 取消的文件不会再写入，先归还写缓冲区，避免TransientStorePool被耗尽
+     */
+    private void destroyCancelledFile(final MappedFile mappedFile) {
+        mappedFile.returnWriteBuffer();
+        if (!mappedFile.destroy(1000)) {
+            log.warn("delete cancelled mapped file {} failed, retry later", mappedFile.getFileName());
+            this.cancelledFiles.offer(mappedFile);
+        }
+    }
+
+
+    /**
+     * 预缺页线程释放引用后才能删除
+     */
+    private void retryDestroyCancelledFiles() {
+        for (int i = this.cancelledFiles.size(); i > 0; i--) {
+            MappedFile mappedFile = this.cancelledFiles.poll();
+            if (null == mappedFile) {
+                break;
+            }
+
+            if (mappedFile.destroy(1000)) {
+                log.info("delete cancelled mapped file {} OK", mappedFile.getFileName());
+            }
+            else {
+                this.cancelledFiles.offer(mappedFile);
+            }
+        }
+    }
+
+
     @Override
     public String getServiceName() {
         return AllocateMappedFileService.class.getSimpleName();
     }
 
 
+    /**
+     * @return 预创建的CommitLog文件数，不小于2
+     */
+    public int getPreallocateFileNums() {
+        return Math.max(2, this.messageStore.getMessageStoreConfig().getMappedFilePoolSize());
+    }
+
+
+    private boolean isMappedFilePoolEnable() {
+        return this.messageStore.getMessageStoreConfig().getMappedFilePoolSize() > 0;
+    }
+
+
+    @Override
+    public void start() {
+        super.start();
+
+        if (this.isMappedFilePoolEnable()) {
+            this.prefaultService.start();
+        }
+    }
+
+
     public void shutdown() {
+        if (this.isMappedFilePoolEnable()) {
+            this.prefaultService.shutdown();
+        }
+
         this.stopped = true;
         this.thread.interrupt();
 
@@ -115,6 +227,8 @@ public class AllocateMappedFileService extends ServiceThread {
                 req.mappedFile.destroy(1000);
             }
         }
+
+        this.retryDestroyCancelledFiles();
     }
 
 
@@ -135,6 +249,7 @@ public class AllocateMappedFileService extends ServiceThread {
         AllocateRequest req = null;
         try {
             req = this.requestQueue.take();
+            this.retryDestroyCancelledFiles();
             if (null == this.requestTable.get(req.getFilePath())) {
                 log.warn("this mmap request expired, maybe cause timeout " + req.getFilePath() + " "
                         + req.getFileSize());
@@ -143,7 +258,16 @@ public class AllocateMappedFileService extends ServiceThread {
 
             if (req.getMappedFile() == null) {
                 long beginTime = System.currentTimeMillis();
-                MappedFile mappedFile = new MappedFile(req.getFilePath(), req.getFileSize());
+                long beginNanos = System.nanoTime();
+                MappedFile mappedFile;
+                if (this.messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+                    mappedFile = new MappedFile(req.getFilePath(), req.getFileSize(),
+                            this.messageStore.getTransientStorePool());
+                } else {
+                    mappedFile = new MappedFile(req.getFilePath(), req.getFileSize());
+                    // 消息直接写入内存映射，只能以创建文件的耗时作为路径的写入延迟，启用写缓冲区时统计转移的耗时
+                    this.storePathStats.recordWrite(req.getFilePath(), (System.nanoTime() - beginNanos) / 1000);
+                }
                 long eclipseTime = UtilAll.computeEclipseTimeMilliseconds(beginTime);
                 // 记录大于10ms的
                 if (eclipseTime > 10) {
@@ -159,8 +283,23 @@ public class AllocateMappedFileService extends ServiceThread {
                             this.messageStore.getMessageStoreConfig().getFlushLeastPagesWhenWarmMappedFile());
                     mappedFile.mlock();
                 }
+                // 文件池中的文件先分配磁盘块，再交给低优先级线程预缺页，不阻塞后续文件的创建
+                else if (this.isMappedFilePoolEnable()) {
+                    if (!mappedFile.fallocate()) {
+                        log.warn("fallocate " + req.getFilePath() + " failed, the file is still sparse");
+                    }
+                    this.prefaultService.putMappedFile(mappedFile);
+                }
 
-                req.setMappedFile(mappedFile);
+                boolean cancelled;
+                synchronized (req) {
+                    req.setMappedFile(mappedFile);
+                    cancelled = req.cancelled;
+                }
+                if (cancelled) {
+                    log.info("delete cancelled pre allocated mapped file, {}", req.getFilePath());
+                    this.destroyCancelledFile(mappedFile);
+                }
                 this.hasException = false;
             }
 
@@ -184,6 +323,95 @@ public class AllocateMappedFileService extends ServiceThread {
         return true;
     }
 
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("preallocatedMappedFiles", String.valueOf(this.requestTable.size()));
+        stats.put("prefaultMappedFileBytes", String.valueOf(this.prefaultService.prefaultBytes.get()));
+    }
+
+
+    public StorePathStats getStorePathStats() {
+        return storePathStats;
+    }
+
+
+    public long getPrefaultBytes() {
+        return this.prefaultService.prefaultBytes.get();
+    }
+
+    /**
+     * 在低优先级线程中对预创建的文件限速预缺页，避免与刷盘争抢IO
+     */
+    class PrefaultService extends ServiceThread {
+        private final LinkedBlockingQueue<MappedFile> prefaultQueue = new LinkedBlockingQueue<MappedFile>();
+        private final AtomicLong prefaultBytes = new AtomicLong(0);
+
+
+        PrefaultService() {
+            this.thread.setPriority(Thread.MIN_PRIORITY);
+        }
+
+
+        void putMappedFile(final MappedFile mappedFile) {
+            this.prefaultQueue.offer(mappedFile);
+            this.wakeUp();
+        }
+
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(1000);
+                    MappedFile mappedFile;
+                    while (!this.isStopped() && (mappedFile = this.prefaultQueue.poll()) != null) {
+                        this.prefault(mappedFile);
+                    }
+                }
+                catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        private void prefault(final MappedFile mappedFile) throws InterruptedException {
+            final long beginTime = System.currentTimeMillis();
+            final long bytesPerSecond =
+                    AllocateMappedFileService.this.messageStore.getMessageStoreConfig()
+                        .getPrefaultMappedFileBytesPerSecond();
+            for (int pos = 0; pos < mappedFile.getFileSize() && !this.isStopped(); pos += PREFAULT_CHUNK_SIZE) {
+                final int size = Math.min(PREFAULT_CHUNK_SIZE, mappedFile.getFileSize() - pos);
+                // 已经写过的部分不再需要
+                if (mappedFile.getWrotePosition() >= pos + size) {
+                    continue;
+                }
+
+                // 文件已被销毁
+                if (!mappedFile.prefault(pos, size)) {
+                    return;
+                }
+
+                this.prefaultBytes.addAndGet(size);
+                if (bytesPerSecond > 0) {
+                    Thread.sleep(size * 1000L / bytesPerSecond);
+                }
+            }
+
+            log.info("prefault mappedFile " + mappedFile.getFileName() + " done, "
+                    + UtilAll.computeEclipseTimeMilliseconds(beginTime));
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return PrefaultService.class.getSimpleName();
+        }
+    }
+
     class AllocateRequest implements Comparable<AllocateRequest> {
         // 文件全路径
         private String filePath;
@@ -193,6 +421,8 @@ public class AllocateMappedFileService extends ServiceThread {
         private CountDownLatch countDownLatch = new CountDownLatch(1);
         // MappedFile
         private volatile MappedFile mappedFile = null;
+        // 选择了其他存储路径，不再使用
+        private boolean cancelled = false;
 
 
         public AllocateRequest(String filePath, int fileSize) {
@@ -242,7 +472,12 @@ public class AllocateMappedFileService extends ServiceThread {
 
 
         public int compareTo(AllocateRequest other) {
-            return this.fileSize < other.fileSize ? 1 : this.fileSize > other.fileSize ? -1 : 0;
+            if (this.fileSize != other.fileSize) {
+                return this.fileSize < other.fileSize ? 1 : -1;
+            }
+
+            // 同样大小的文件按Offset先后创建，马上要用的文件不会排在文件池后面
+            return this.filePath.compareTo(other.filePath);
         }
     }
 }
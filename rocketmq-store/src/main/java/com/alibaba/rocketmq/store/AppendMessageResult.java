@@ -34,6 +34,8 @@ public class AppendMessageResult {
     private long storeTimestamp;
     // 写入逻辑队列的offset（递进1）
     private long logicOffset;
+    // 批量写入时的消息条数
+    private int msgNum = 1;
 
 
     public AppendMessageResult(AppendMessageStatus status) {
@@ -117,11 +119,21 @@ public class AppendMessageResult {
     }
 
 
+    public int getMsgNum() {
+        return msgNum;
+    }
+
+
+    public void setMsgNum(int msgNum) {
+        this.msgNum = msgNum;
+    }
+
+
     @Override
     public String toString() {
         return "AppendMessageResult [status=" + status + ", wroteOffset=" + wroteOffset + ", wroteBytes="
                 + wroteBytes + ", msgId=" + msgId + ", storeTimestamp=" + storeTimestamp + ", logicOffset="
-                + logicOffset + "]";
+                + logicOffset + ", msgNum=" + msgNum + "]";
     }
 
 }
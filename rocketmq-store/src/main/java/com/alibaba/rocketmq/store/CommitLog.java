@@ -27,15 +27,20 @@ import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
 import com.alibaba.rocketmq.store.ha.HAService;
 import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.timer.TimerMessageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -58,6 +63,18 @@ public class CommitLog {
     // 文件末尾空洞对应的MAGIC CODE cbd43194
     private final static int BlankMagicCode = 0xBBCCDDEE ^ 1880681586 + 8;
 
+    // 多分区模式下最多支持的分区数
+    public final static int MaxPartitionNums = 128;
+
+    // 主机地址编码缓存的最大条数
+    private final static int MaxCachedHostNums = 1024 * 16;
+
+    // 消息体长度字段在消息中的位置，其后紧跟消息体
+    private final static int MessageBodyLengthPosition = 84;
+
+    // 分区编号，物理offset的高位区间标识所属分区
+    private final int partitionId;
+
     // 存储消息的队列
     private final MappedFileQueue mappedFileQueue;
 
@@ -67,11 +84,14 @@ public class CommitLog {
     // CommitLog刷盘服务
     private final FlushCommitLogService flushCommitLogService;
 
+    // 写缓冲区转移服务，仅在启用TransientStorePool时运行
+    private final FlushCommitLogService transferCommitLogService;
+
     // 存储消息时的回调接口
     private final AppendMessageCallback appendMessageCallback;
 
     // 用来保存每个ConsumeQueue的当前最大Offset信息
-    private HashMap<String/* topic-queueId */, Long/* offset */> topicQueueTable = new HashMap<String, Long>(1024);
+    private TopicQueueTable topicQueueTable;
 
     //true: Can lock, false : in lock.
     private AtomicBoolean putMessageSpinLock = new AtomicBoolean(true);
@@ -80,14 +100,32 @@ public class CommitLog {
 
     private final ThreadLocal<ByteBuffer> encodedMsgByteBuffer = new ThreadLocal<>();
 
+    // 主机地址 -> 编码后的8个字节，同一个连接的地址不变，多个生产者交替发送时各自命中
+    private final ConcurrentHashMap<SocketAddress, Long> hostBytesTable = new ConcurrentHashMap<SocketAddress, Long>();
+
+    // 最近一次刷盘时最后一条消息的存储时间
+    private volatile long flushedStoreTimestamp = 0;
+
     /**
      * 构造函数
      */
     public CommitLog(final DefaultMessageStore defaultMessageStore) {
-        this.mappedFileQueue = new MappedFileQueue(defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog(),
-                defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog(),
-                defaultMessageStore.getAllocateMappedFileService());
+        this(defaultMessageStore, 0, defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog());
+    }
+
+
+    /**
+     * 多分区模式下的构造函数，每个分区使用独立的存储目录，文件offset从partitionOffsetSpan * partitionId开始
+     */
+    public CommitLog(final DefaultMessageStore defaultMessageStore, final int partitionId, final String storePath) {
+        final int mappedFileSize = defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
+        this.partitionId = partitionId;
+        this.mappedFileQueue = new MappedFileQueue(storePath, mappedFileSize,
+                defaultMessageStore.getAllocateMappedFileService(),
+                partitionId * partitionOffsetSpan(mappedFileSize));
         this.defaultMessageStore = defaultMessageStore;
+        this.topicQueueTable =
+                new TopicQueueTable(1024, defaultMessageStore.getMessageStoreConfig().getMaxQueueNumsPerTopic());
 
         if (FlushDiskType.SYNC_FLUSH == defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
             this.flushCommitLogService = new GroupCommitService();
@@ -95,6 +133,8 @@ public class CommitLog {
             this.flushCommitLogService = new FlushRealTimeService();
         }
 
+        this.transferCommitLogService = new TransferRealTimeService();
+
         this.appendMessageCallback = new DefaultAppendMessageCallback(defaultMessageStore.getMessageStoreConfig()
                 .getMaxMessageSize());
     }
@@ -109,11 +149,44 @@ public class CommitLog {
 
     public void start() {
         this.flushCommitLogService.start();
+
+        if (defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+            this.transferCommitLogService.start();
+        }
     }
 
 
     public void shutdown() {
+        // 先将写缓冲区数据全部转移到文件，再停止刷盘服务
+        if (defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+            this.transferCommitLogService.shutdown();
+        }
+
         this.flushCommitLogService.shutdown();
+        this.updatePhysicVerifiedOffset(this.mappedFileQueue.getCommittedWhere());
+    }
+
+
+    /**
+     * 每个分区独占的物理offset区间大小，为文件大小的整数倍
+     */
+    public static long partitionOffsetSpan(final int mappedFileSize) {
+        return Long.MAX_VALUE / MaxPartitionNums / mappedFileSize * mappedFileSize;
+    }
+
+
+    public int getPartitionId() {
+        return partitionId;
+    }
+
+
+    public long getPartitionBaseOffset() {
+        return this.mappedFileQueue.getBaseOffset();
+    }
+
+
+    public long getFlushedStoreTimestamp() {
+        return flushedStoreTimestamp;
     }
 
 
@@ -148,11 +221,28 @@ public class CommitLog {
                                  final long intervalForcibly,//
                                  final boolean cleanImmediately//
     ) {
+        FileReclaimService fileReclaimService = this.defaultMessageStore.getFileReclaimService();
+        if (fileReclaimService != null) {
+            // 增量删除，每次只摘下一个文件，磁盘空间不足时加快
+            List<MappedFile> files =
+                    this.mappedFileQueue.removeExpiredFileByTime(expiredTime, cleanImmediately, cleanImmediately ? 10 : 1);
+            fileReclaimService.reclaim(files);
+            return files.size();
+        }
+
         return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval,
                 intervalForcibly, cleanImmediately);
     }
 
 
+    /**
+     * @return 是否有已过期但还未删除的文件
+     */
+    public boolean hasExpiredFile(final long expiredTime) {
+        return this.mappedFileQueue.hasExpiredFile(expiredTime);
+    }
+
+
     /**
      * 读取CommitLog数据，数据复制时使用
      */
@@ -223,6 +313,7 @@ public class CommitLog {
 
             processOffset += mappedFileOffset;
             this.mappedFileQueue.setCommittedWhere(processOffset);
+            this.mappedFileQueue.setTransferredWhere(processOffset);
             this.mappedFileQueue.truncateDirtyFiles(processOffset);
         }
     }
@@ -324,13 +415,14 @@ public class CommitLog {
 
             long tagsCode = 0;
             String keys = "";
+            Map<String, String> propertiesMap = null;
 
             // 17 properties
             short propertiesLength = byteBuffer.getShort();
             if (propertiesLength > 0) {
                 byteBuffer.get(bytesContent, 0, propertiesLength);
                 String properties = new String(bytesContent, 0, propertiesLength);
-                Map<String, String> propertiesMap = MessageDecoder.string2messageProperties(properties);
+                propertiesMap = MessageDecoder.string2messageProperties(properties);
 
                 keys = propertiesMap.get(MessageConst.PROPERTY_KEYS);
                 String tags = propertiesMap.get(MessageConst.PROPERTY_TAGS);
@@ -356,10 +448,16 @@ public class CommitLog {
                                     .computeDeliverTimestamp(delayLevel, storeTimestamp);
                         }
                     }
+
+                    // 队列里存储投递时间
+                    String deliverTimestamp = propertiesMap.get(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+                    if (TimerMessageService.TIMER_TOPIC.equals(topic) && deliverTimestamp != null) {
+                        tagsCode = TimerMessageService.getDeliverTimestamp(deliverTimestamp);
+                    }
                 }
             }
 
-            return new DispatchRequest(//
+            DispatchRequest dispatchRequest = new DispatchRequest(//
                     topic,// 1
                     queueId,// 2
                     physicOffset,// 3
@@ -371,6 +469,8 @@ public class CommitLog {
                     sysFlag,// 9
                     preparedTransactionOffset// 10
             );
+            dispatchRequest.setPropertiesMap(propertiesMap);
+            return dispatchRequest;
         } catch (BufferUnderflowException e) {
             byteBuffer.position(byteBuffer.limit());
         } catch (Exception e) {
@@ -387,26 +487,19 @@ public class CommitLog {
         final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
         if (!mappedFiles.isEmpty()) {
             // 寻找从哪个文件开始恢复
-            int index = mappedFiles.size() - 1;
-            MappedFile mappedFile = null;
-            for (; index >= 0; index--) {
-                mappedFile = mappedFiles.get(index);
-                if (this.isMappedFileMatchedRecover(mappedFile)) {
-                    LOGGER.info("recover from this mapped file " + mappedFile.getFileName());
-                    break;
-                }
-            }
+            int index = this.findRecoverIndex(mappedFiles);
+            MappedFile mappedFile = mappedFiles.get(index);
+            LOGGER.info("recover from this mapped file " + mappedFile.getFileName());
 
-            if (index < 0) {
-                index = 0;
-                mappedFile = mappedFiles.get(index);
-            }
+            // 已封闭的文件先并行校验CRC，顺序恢复时只对未通过校验的文件及最后一个文件校验CRC
+            final int crcFromIndex = checkCRCOnRecover ? this.verifySealedMappedFiles(mappedFiles, index) : mappedFiles.size();
 
             ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
             long processOffset = mappedFile.getFileFromOffset();
             long mappedFileOffset = 0;
             while (true) {
-                DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover);
+                DispatchRequest dispatchRequest =
+                        this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover && index >= crcFromIndex);
                 int size = dispatchRequest.getMsgSize();
                 // 正常数据
                 if (size > 0) {
@@ -438,20 +531,165 @@ public class CommitLog {
 
             processOffset += mappedFileOffset;
             this.mappedFileQueue.setCommittedWhere(processOffset);
+            this.mappedFileQueue.setTransferredWhere(processOffset);
             this.mappedFileQueue.truncateDirtyFiles(processOffset);
+            this.updatePhysicVerifiedOffset(processOffset);
 
-            // 清除ConsumeQueue的多余数据
+            // 清除ConsumeQueue的多余数据，须等恢复过程中分发的消息全部写入，否则与分发线程并发修改逻辑队列
+            this.defaultMessageStore.waitDispatchOver();
             this.defaultMessageStore.truncateDirtyLogicFiles(processOffset);
         }
         // 物理文件都被删除情况下
         else {
-            this.mappedFileQueue.setCommittedWhere(0);
-            this.defaultMessageStore.destroyLogics();
+            this.mappedFileQueue.setCommittedWhere(this.getPartitionBaseOffset());
+            this.mappedFileQueue.setTransferredWhere(this.getPartitionBaseOffset());
+            this.defaultMessageStore.destroyLogics(this);
         }
     }
 
 
-    private boolean isMappedFileMatchedRecover(final MappedFile mappedFile) {
+    /**
+     * 并行校验[fromIndex, 最后一个文件)之间已封闭文件的CRC，检查点中记录为完整的文件直接跳过
+     *
+     * @return 顺序恢复时需要开始校验CRC的文件下标
+     */
+    private int verifySealedMappedFiles(final List<MappedFile> mappedFiles, final int fromIndex) {
+        final long beginTime = System.currentTimeMillis();
+        final int lastIndex = mappedFiles.size() - 1;
+        final long verifiedOffset =
+                this.defaultMessageStore.getStoreCheckpoint().getPhysicVerifiedOffset(this.partitionId);
+
+        List<Integer> taskIndexes = new ArrayList<Integer>();
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (int i = fromIndex; i < lastIndex; i++) {
+            final MappedFile mappedFile = mappedFiles.get(i);
+            if (mappedFile.getFileFromOffset() + mappedFile.getFileSize() <= verifiedOffset) {
+                continue;
+            }
+
+            taskIndexes.add(i);
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return CommitLog.this.verifyMappedFile(mappedFile);
+                }
+            });
+        }
+
+        int crcFromIndex = lastIndex;
+        List<Boolean> results = this.defaultMessageStore.invokeRecoverTasks(tasks);
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.get(i)) {
+                crcFromIndex = taskIndexes.get(i);
+                LOGGER.warn("verify sealed commit log file failed, " + mappedFiles.get(crcFromIndex).getFileName());
+                break;
+            }
+        }
+
+        LOGGER.info("verify {} sealed commit log files of partition {}, skip {} verified files, cost {} ms",
+                tasks.size(), this.partitionId, Math.max(0, lastIndex - fromIndex - tasks.size()),
+                System.currentTimeMillis() - beginTime);
+        return crcFromIndex;
+    }
+
+
+    /**
+     * 校验单个已封闭文件内所有消息的CRC，可在多个线程中并发调用
+     *
+     * @return 文件以空洞结尾且所有消息校验通过返回true
+     */
+    private boolean verifyMappedFile(final MappedFile mappedFile) {
+        final ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        final int fileSize = mappedFile.getFileSize();
+        byte[] bodyContent = new byte[1024];
+        int pos = 0;
+        while (pos + 8 <= fileSize) {
+            final int totalSize = byteBuffer.getInt(pos);
+            final int magicCode = byteBuffer.getInt(pos + MessageDecoder.MESSAGE_MAGIC_CODE_POSITION);
+            if (BlankMagicCode == magicCode) {
+                return true;
+            }
+
+            if (magicCode != MessageMagicCode || totalSize <= MessageBodyLengthPosition
+                    || pos + totalSize > fileSize) {
+                return false;
+            }
+
+            final long physicOffset = byteBuffer.getLong(pos + MessageDecoder.MESSAGE_PHYSIC_OFFSET_POSITION);
+            if (physicOffset != mappedFile.getFileFromOffset() + pos) {
+                return false;
+            }
+
+            final int bodyLen = byteBuffer.getInt(pos + MessageBodyLengthPosition);
+            if (bodyLen < 0 || MessageBodyLengthPosition + 4 + bodyLen > totalSize) {
+                return false;
+            }
+
+            if (bodyLen > 0) {
+                if (bodyContent.length < bodyLen) {
+                    bodyContent = new byte[bodyLen];
+                }
+                byteBuffer.position(pos + MessageBodyLengthPosition + 4);
+                byteBuffer.get(bodyContent, 0, bodyLen);
+                if (UtilAll.crc32(bodyContent, 0, bodyLen) != byteBuffer.getInt(pos + 8)) {
+                    return false;
+                }
+            }
+
+            pos += totalSize;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 记录offset所在文件之前的文件都已完整写入磁盘
+     */
+    private void updatePhysicVerifiedOffset(final long offset) {
+        final int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
+        this.defaultMessageStore.getStoreCheckpoint().setPhysicVerifiedOffset(this.partitionId,
+                offset - offset % mappedFileSize);
+    }
+
+
+    /**
+     * 寻找异常恢复开始的文件<br>
+     * 本分区检查点offset之前的文件都已完整刷盘，CommitLog只需从该offset所在文件重新扫描，
+     * 不再受其他分区刷盘进度的影响；消费队列及索引的刷盘进度仍按时间戳判断，取两者中较早的文件。
+     * 检查点中没有本分区的offset时（例如旧版本的检查点），按原来的时间戳方式查找
+     */
+    private int findRecoverIndex(final List<MappedFile> mappedFiles) {
+        final StoreCheckpoint storeCheckpoint = this.defaultMessageStore.getStoreCheckpoint();
+        final boolean indexSafe = this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable()
+                && this.defaultMessageStore.getMessageStoreConfig().isMessageIndexSafe();
+        final long verifiedOffset = storeCheckpoint.getPhysicVerifiedOffset(this.partitionId);
+
+        int index = mappedFiles.size() - 1;
+        long minTimestamp;
+        if (verifiedOffset > mappedFiles.get(0).getFileFromOffset()) {
+            // 检查点offset所在的文件
+            while (index > 0 && mappedFiles.get(index).getFileFromOffset() > verifiedOffset) {
+                index--;
+            }
+            LOGGER.info("partition {} verified offset {}, file {}", this.partitionId, verifiedOffset,
+                    mappedFiles.get(index).getFileName());
+            minTimestamp = storeCheckpoint.getMinLogicsTimestamp(indexSafe);
+        } else {
+            minTimestamp = indexSafe ? storeCheckpoint.getMinTimestampIndex() : storeCheckpoint.getMinTimestamp();
+        }
+
+        for (; index >= 0; index--) {
+            if (this.isMappedFileMatchedRecover(mappedFiles.get(index), minTimestamp)) {
+                return index;
+            }
+        }
+
+        return 0;
+    }
+
+
+    private boolean isMappedFileMatchedRecover(final MappedFile mappedFile, final long minTimestamp) {
         ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
 
         int magicCode = byteBuffer.getInt(MessageDecoder.MESSAGE_MAGIC_CODE_POSITION);
@@ -464,21 +702,11 @@ public class CommitLog {
             return false;
         }
 
-        if (this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable()//
-                && this.defaultMessageStore.getMessageStoreConfig().isMessageIndexSafe()) {
-            if (storeTimestamp <= this.defaultMessageStore.getStoreCheckpoint().getMinTimestampIndex()) {
-                LOGGER.info("find check timestamp, {} {}", //
-                        storeTimestamp,//
-                        UtilAll.timeMillisToHumanString(storeTimestamp));
-                return true;
-            }
-        } else {
-            if (storeTimestamp <= this.defaultMessageStore.getStoreCheckpoint().getMinTimestamp()) {
-                LOGGER.info("find check timestamp, {} {}", //
-                        storeTimestamp,//
-                        UtilAll.timeMillisToHumanString(storeTimestamp));
-                return true;
-            }
+        if (storeTimestamp <= minTimestamp) {
+            LOGGER.info("find check timestamp, {} {}", //
+                    storeTimestamp,//
+                    UtilAll.timeMillisToHumanString(storeTimestamp));
+            return true;
         }
 
         return false;
@@ -486,6 +714,54 @@ public class CommitLog {
 
 
     public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
+        PutMessageResult putMessageResult = this.appendMessage(msg);
+        if (putMessageResult.isOk()) {
+            final AppendMessageResult result = putMessageResult.getAppendMessageResult();
+            this.waitForStore(result.getWroteOffset() + result.getWroteBytes(), msg.isWaitStoreMsgOK(),
+                    putMessageResult, msg);
+        }
+
+        // 向发送方返回结果
+        return putMessageResult;
+    }
+
+
+    /**
+     * 异步写入消息，调用线程不等待刷盘及同步双写，由GroupCommitService或GroupTransferService确认后完成Future
+     */
+    public PutMessageFuture putMessageAsync(final MessageExtBrokerInner msg) {
+        PutMessageResult putMessageResult = this.appendMessage(msg);
+        PutMessageFuture putMessageFuture = new PutMessageFuture();
+        if (putMessageResult.isOk()) {
+            final AppendMessageResult result = putMessageResult.getAppendMessageResult();
+            this.waitForStoreAsync(result.getWroteOffset() + result.getWroteBytes(), msg.isWaitStoreMsgOK(),
+                    putMessageResult, msg, putMessageFuture);
+        } else {
+            putMessageFuture.complete(putMessageResult);
+        }
+
+        return putMessageFuture;
+    }
+
+
+    /**
+     * 只在出错打印日志时才拼接描述，写消息时不产生额外的字符串
+     */
+    private static String describe(final Object msgDesc) {
+        if (msgDesc instanceof MessageExtBrokerInner) {
+            MessageExtBrokerInner msg = (MessageExtBrokerInner) msgDesc;
+            return "topic: " + msg.getTopic() + " tags: " + msg.getTags() + " client address: "
+                    + msg.getBornHostString();
+        }
+
+        return String.valueOf(msgDesc);
+    }
+
+
+    /**
+     * 写入消息，不包含刷盘及同步双写等待
+     */
+    private PutMessageResult appendMessage(final MessageExtBrokerInner msg) {
         // 设置消息体BODY CRC（考虑在客户端设置最合适）
         msg.setBodyCRC(UtilAll.crc32(msg.getBody()));
         // 返回结果
@@ -493,37 +769,13 @@ public class CommitLog {
 
         StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
 
+        // 延时消息改写topic，queueId
+        this.rewriteDelayMessage(msg);
+
         String topic = msg.getTopic();
         int queueId = msg.getQueueId();
         long tagsCode = msg.getTagsCode();
 
-        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
-        if (tranType == MessageSysFlag.TransactionNotType//
-                || tranType == MessageSysFlag.TransactionCommitType) {
-            // 延时投递
-            if (msg.getDelayTimeLevel() > 0) {
-                if (msg.getDelayTimeLevel() > this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel()) {
-                    msg.setDelayTimeLevel(this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel());
-                }
-
-                topic = ScheduleMessageService.SCHEDULE_TOPIC;
-                queueId = ScheduleMessageService.delayLevel2QueueId(msg.getDelayTimeLevel());
-                tagsCode = this.defaultMessageStore.getScheduleMessageService().computeDeliverTimestamp(
-                        msg.getDelayTimeLevel(), msg.getStoreTimestamp());
-
-                /*
-                 * 备份真实的topic，queueId
-                 */
-                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
-                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID,
-                        String.valueOf(msg.getQueueId()));
-                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
-
-                msg.setTopic(topic);
-                msg.setQueueId(queueId);
-            }
-        }
-
         int msgLength = computeMsgLength(msg);
         if (msgLength > defaultMessageStore.getMessageStoreConfig().getMaxMessageSize()) {
             LOGGER.warn("message size exceeded, msg total size: {}", msgLength);
@@ -531,7 +783,7 @@ public class CommitLog {
             return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
         }
 
-        final ByteBuffer encodedMsg = encode(msg);
+        final ByteBuffer encodedMsg = encode(msg, msgLength);
 
         // 写文件要加锁
         long eclipseTimeInLock = 0;
@@ -586,6 +838,7 @@ public class CommitLog {
                      */
                     msg.getSysFlag(),// 9
                     msg.getPreparedTransactionOffset());// 10
+            dispatchRequest.setPropertiesMap(msg.getProperties());
 
             this.defaultMessageStore.putDispatchRequest(dispatchRequest);
 
@@ -609,19 +862,27 @@ public class CommitLog {
         // 统计消息SIZE
         storeStatsService.getSinglePutMessageTopicSizeTotal(topic).addAndGet(result.getWroteBytes());
 
+        return putMessageResult;
+    }
+
+
+    /**
+     * 根据刷盘方式及Broker角色，等待nextOffset之前的数据刷盘或同步到Slave，失败时修改返回状态
+     */
+    private void waitForStore(final long nextOffset, final boolean waitStoreMsgOK,
+            final PutMessageResult putMessageResult, final Object msgDesc) {
         GroupCommitRequest request = null;
 
         // 同步刷盘
         if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
             GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
-            if (msg.isWaitStoreMsgOK()) {
-                request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+            if (waitStoreMsgOK) {
+                request = new GroupCommitRequest(nextOffset);
                 service.putRequest(request);
                 boolean flushOK = request.waitForFlush(this.defaultMessageStore.getMessageStoreConfig()
                         .getSyncFlushTimeout());
                 if (!flushOK) {
-                    LOGGER.error("do group commit, wait for flush failed, topic: " + msg.getTopic() + " tags: "
-                            + msg.getTags() + " client address: " + msg.getBornHostString());
+                    LOGGER.error("do group commit, wait for flush failed, " + describe(msgDesc));
                     putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
                 }
             } else {
@@ -630,17 +891,21 @@ public class CommitLog {
         }
         // 异步刷盘
         else {
-            this.flushCommitLogService.wakeUp();
+            if (this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+                this.transferCommitLogService.wakeUp();
+            } else {
+                this.flushCommitLogService.wakeUp();
+            }
         }
 
         // 同步双写
         if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()) {
             HAService service = this.defaultMessageStore.getHaService();
-            if (msg.isWaitStoreMsgOK()) {
+            if (waitStoreMsgOK) {
                 // 判断是否要等待
-                if (service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
+                if (service.isSlaveOK(nextOffset)) {
                     if (null == request) {
-                        request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+                        request = new GroupCommitRequest(nextOffset);
                     }
                     service.putRequest(request);
 
@@ -650,9 +915,7 @@ public class CommitLog {
                             // TODO 此处参数与刷盘公用是否合适
                             request.waitForFlush(this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout());
                     if (!flushOK) {
-                        LOGGER.error("do sync transfer other node, wait return, but failed, topic: "
-                                + msg.getTopic() + " tags: " + msg.getTags() + " client address: "
-                                + msg.getBornHostString());
+                        LOGGER.error("do sync transfer other node, wait return, but failed, " + describe(msgDesc));
                         putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
                     }
                 }
@@ -663,8 +926,289 @@ public class CommitLog {
                 }
             }
         }
+    }
+
+
+    /**
+     * waitForStore的异步版本：刷盘确认后再发起同步双写，全部确认后完成putMessageFuture
+     */
+    private void waitForStoreAsync(final long nextOffset, final boolean waitStoreMsgOK,
+            final PutMessageResult putMessageResult, final Object msgDesc, final PutMessageFuture putMessageFuture) {
+        // 同步刷盘
+        if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
+            GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
+            if (waitStoreMsgOK) {
+                GroupCommitRequest request = new GroupCommitRequest(nextOffset) {
+                    @Override
+                    public void wakeupCustomer(final boolean flushOK) {
+                        super.wakeupCustomer(flushOK);
+                        if (!flushOK) {
+                            LOGGER.error("do group commit, wait for flush failed, " + describe(msgDesc));
+                            putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+                        }
+
+                        CommitLog.this.replicateAsync(nextOffset, waitStoreMsgOK, putMessageResult, msgDesc,
+                                putMessageFuture);
+                    }
+                };
+                service.putRequest(request);
+                return;
+            } else {
+                service.wakeUp();
+            }
+        }
+        // 异步刷盘
+        else {
+            if (this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+                this.transferCommitLogService.wakeUp();
+            } else {
+                this.flushCommitLogService.wakeUp();
+            }
+        }
+
+        this.replicateAsync(nextOffset, waitStoreMsgOK, putMessageResult, msgDesc, putMessageFuture);
+    }
+
+
+    /**
+     * 异步同步双写，Slave确认或超时后由GroupTransferService完成putMessageFuture
+     */
+    private void replicateAsync(final long nextOffset, final boolean waitStoreMsgOK,
+            final PutMessageResult putMessageResult, final Object msgDesc, final PutMessageFuture putMessageFuture) {
+        if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()
+                && waitStoreMsgOK) {
+            HAService service = this.defaultMessageStore.getHaService();
+            // 判断是否要等待
+            if (service.isSlaveOK(nextOffset)) {
+                GroupCommitRequest request = new GroupCommitRequest(nextOffset) {
+                    @Override
+                    public void wakeupCustomer(final boolean transferOK) {
+                        super.wakeupCustomer(transferOK);
+                        if (!transferOK) {
+                            LOGGER.error("do sync transfer other node, wait return, but failed, " + describe(msgDesc));
+                            putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
+                        }
+
+                        putMessageFuture.complete(putMessageResult);
+                    }
+                };
+                service.putRequest(request);
+                service.getWaitNotifyObject().wakeUpAll();
+                return;
+            }
+            // Slave异常
+            else {
+                // 告诉发送方，Slave异常
+                putMessageResult.setPutMessageStatus(PutMessageStatus.SLAVE_NOT_AVAILABLE);
+            }
+        }
+
+        putMessageFuture.complete(putMessageResult);
+    }
+
+
+    /**
+     * 延时投递的消息改写为定时Topic，并备份真实的topic，queueId
+     */
+    private void rewriteDelayMessage(final MessageExtBrokerInner msg) {
+        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+        if (tranType == MessageSysFlag.TransactionNotType//
+                || tranType == MessageSysFlag.TransactionCommitType) {
+            // 延时投递
+            if (msg.getDelayTimeLevel() > 0) {
+                if (msg.getDelayTimeLevel() > this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel()) {
+                    msg.setDelayTimeLevel(this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel());
+                }
+
+                String topic = ScheduleMessageService.SCHEDULE_TOPIC;
+                int queueId = ScheduleMessageService.delayLevel2QueueId(msg.getDelayTimeLevel());
+                long tagsCode = this.defaultMessageStore.getScheduleMessageService().computeDeliverTimestamp(
+                        msg.getDelayTimeLevel(), msg.getStoreTimestamp());
+
+                /*
+                 * 备份真实的topic，queueId
+                 */
+                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
+                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID,
+                        String.valueOf(msg.getQueueId()));
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+
+                msg.setTopic(topic);
+                msg.setQueueId(queueId);
+                msg.setTagsCode(tagsCode);
+            }
+            // 指定投递时间
+            else if (this.defaultMessageStore.getTimerMessageService() != null) {
+                // 已过期的也经过时间轮，由入队线程立即投递，与DefaultMessageStore选择分区的条件保持一致
+                long deliverTimestamp = TimerMessageService.getDeliverTimestamp(msg);
+                if (deliverTimestamp > 0) {
+                    MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
+                    MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID,
+                            String.valueOf(msg.getQueueId()));
+                    msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+
+                    msg.setTopic(TimerMessageService.TIMER_TOPIC);
+                    msg.setQueueId(0);
+                    msg.setTagsCode(deliverTimestamp);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 批量写入消息，整批只加一次锁，只做一次刷盘及同步双写等待<br>
+     * 整批消息写入同一个文件，要么全部写入，要么一条都不写入，失败时Producer重试不会产生重复消息
+     */
+    public PutMessageResult putMessages(final List<MessageExtBrokerInner> msgs) {
+        StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+        final int maxMessageSize = this.defaultMessageStore.getMessageStoreConfig().getMaxMessageSize();
+
+        // 在锁外完成校验与序列化，所有消息编码到一块连续内存
+        int[] msgLengths = new int[msgs.size()];
+        int totalLength = 0;
+        boolean waitStoreMsgOK = false;
+        for (int i = 0; i < msgs.size(); i++) {
+            MessageExtBrokerInner msg = msgs.get(i);
+            msg.setBodyCRC(UtilAll.crc32(msg.getBody()));
+            this.rewriteDelayMessage(msg);
+
+            msgLengths[i] = computeMsgLength(msg);
+            if (msgLengths[i] > maxMessageSize) {
+                LOGGER.warn("message size exceeded, msg total size: {}", msgLengths[i]);
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(
+                    AppendMessageStatus.MESSAGE_SIZE_EXCEEDED));
+            }
+
+            totalLength += msgLengths[i];
+            waitStoreMsgOK |= msg.isWaitStoreMsgOK();
+        }
+
+        // 整批必须能放进一个文件
+        if (totalLength + MappedFile.END_FILE_MIN_BLANK_LENGTH > this.mappedFileQueue.getMappedFileSize()) {
+            LOGGER.warn("message batch size exceeded, batch total size: {}", totalLength);
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(
+                AppendMessageStatus.MESSAGE_SIZE_EXCEEDED));
+        }
+
+        final ByteBuffer batchBuffer = ByteBuffer.allocate(totalLength);
+        final List<ByteBuffer> encodedMsgs = new ArrayList<ByteBuffer>(msgs.size());
+        for (int i = 0; i < msgs.size(); i++) {
+            final int begin = batchBuffer.position();
+            encode(msgs.get(i), msgLengths[i], batchBuffer);
+            ByteBuffer encodedMsg = batchBuffer.duplicate();
+            encodedMsg.position(begin);
+            encodedMsg.limit(begin + msgLengths[i]);
+            encodedMsgs.add(encodedMsg.slice());
+        }
+
+        AppendMessageResult result = null;
+        AppendMessageResult firstResult = null;
+        long wroteBytes = 0;
+        StringBuilder msgIds = new StringBuilder();
+
+        // 写文件要加锁，整批消息在一次加锁内连续写入
+        long eclipseTimeInLock = 0;
+        List<MappedFile> mappedFilesToUnlock = null;
+        lockForPutMessage();
+        try {
+            long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+
+            MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+            if (null == mappedFile) {
+                LOGGER.error("create mapped file1 error, batch size: " + msgs.size());
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPPED_FILE_FAILED, null);
+            }
+
+            // 当前文件放不下整批时，先写入文件末尾空洞并切换到新文件，写入任何消息之前完成，不会只写入一部分
+            if (mappedFile.getWrotePosition() + totalLength + MappedFile.END_FILE_MIN_BLANK_LENGTH > mappedFile
+                .getFileSize()) {
+                // 以整批的长度追加，回调判断放不下，只写入空洞
+                ByteBuffer wholeBatch = batchBuffer.duplicate();
+                wholeBatch.flip();
+                result = mappedFile.appendMessage(msgs.get(0), wholeBatch, this.appendMessageCallback);
+                if (result.getStatus() != AppendMessageStatus.END_OF_FILE) {
+                    LOGGER.error("roll mapped file error, batch size: " + msgs.size() + " result: " + result.getStatus());
+                    return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+                }
+
+                mappedFilesToUnlock = new ArrayList<MappedFile>(1);
+                mappedFilesToUnlock.add(mappedFile);
+                mappedFile = this.mappedFileQueue.getLastMappedFile();
+                if (null == mappedFile) {
+                    LOGGER.error("create mapped file2 error, batch size: " + msgs.size());
+                    return new PutMessageResult(PutMessageStatus.CREATE_MAPPED_FILE_FAILED, result);
+                }
+            }
+
+            for (int i = 0; i < msgs.size(); i++) {
+                final MessageExtBrokerInner msg = msgs.get(i);
+                final ByteBuffer encodedMsg = encodedMsgs.get(i);
+
+                // 空间已预先检查，只有第一条消息可能失败
+                result = mappedFile.appendMessage(msg, encodedMsg, this.appendMessageCallback);
+                if (!result.isOk()) {
+                    LOGGER.error("putMessages append error, stored " + i + " of " + msgs.size() + " result: "
+                            + result.getStatus());
+                    result.setMsgNum(i);
+                    return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+                }
+
+                DispatchRequest dispatchRequest = new DispatchRequest(//
+                        msg.getTopic(),// 1
+                        msg.getQueueId(),// 2
+                        result.getWroteOffset(),// 3
+                        result.getWroteBytes(),// 4
+                        msg.getTagsCode(),// 5
+                        msg.getStoreTimestamp(),// 6
+                        result.getLogicOffset(),// 7
+                        msg.getKeys(),// 8
+                        /*
+                         * 事务部分
+                         */
+                        msg.getSysFlag(),// 9
+                        msg.getPreparedTransactionOffset());// 10
+                dispatchRequest.setPropertiesMap(msg.getProperties());
+
+                this.defaultMessageStore.putDispatchRequest(dispatchRequest);
+
+                if (null == firstResult) {
+                    firstResult = result;
+                } else {
+                    msgIds.append(',');
+                }
+                msgIds.append(result.getMsgId());
+                wroteBytes += result.getWroteBytes();
+                storeStatsService.getSinglePutMessageTopicSizeTotal(msg.getTopic()).addAndGet(
+                    result.getWroteBytes());
+            }
+
+            eclipseTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+        } finally {
+            releasePutMessageLock();
+
+            if (null != mappedFilesToUnlock) {
+                for (MappedFile mappedFileToUnlock : mappedFilesToUnlock) {
+                    this.defaultMessageStore.unlockMappedFile(mappedFileToUnlock);
+                }
+            }
+        }
+
+        if (eclipseTimeInLock > 1000) {
+            LOGGER.warn("putMessages in lock eclipse time(ms) " + eclipseTimeInLock + " batch size: " + msgs.size());
+        }
+
+        // 汇总整批结果，offset取第一条消息，字节数为整批之和
+        AppendMessageResult batchResult = new AppendMessageResult(AppendMessageStatus.PUT_OK,
+                firstResult.getWroteOffset(), (int) wroteBytes, msgIds.toString(), result.getStoreTimestamp(),
+                firstResult.getLogicOffset());
+        batchResult.setMsgNum(msgs.size());
+        PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, batchResult);
+
+        // 整批只需等待最后一条消息落盘或同步到Slave
+        final long nextOffset = result.getWroteOffset() + result.getWroteBytes();
+        this.waitForStore(nextOffset, waitStoreMsgOK, putMessageResult, "batch size: " + msgs.size());
 
-        // 向发送方返回结果
         return putMessageResult;
     }
 
@@ -673,7 +1217,7 @@ public class CommitLog {
      * 根据offset获取特定消息的存储时间 如果出错，则返回-1
      */
     public long pickupStoreTimestamp(final long offset, final int size) {
-        if (offset > this.getMinOffset()) {
+        if (offset >= this.getMinOffset()) {
             SelectMappedBufferResult result = this.getMessage(offset, size);
             if (null != result) {
                 try {
@@ -688,6 +1232,27 @@ public class CommitLog {
     }
 
 
+    /**
+     * 最早一条消息的存储时间，没有消息时返回-1
+     */
+    public long getEarliestStoreTimestamp() {
+        long minOffset = this.getMinOffset();
+        if (minOffset >= 0) {
+            SelectMappedBufferResult result =
+                    this.getMessage(minOffset, MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSITION + 8);
+            if (null != result) {
+                try {
+                    return result.getByteBuffer().getLong(MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSITION);
+                } finally {
+                    result.release();
+                }
+            }
+        }
+
+        return -1;
+    }
+
+
     /**
      * 读取消息
      */
@@ -704,12 +1269,75 @@ public class CommitLog {
     }
 
 
-    public HashMap<String, Long> getTopicQueueTable() {
+    /**
+     * 按最近一次mincore采样判断消息是否在Pagecache中
+     *
+     * @return 1表示在，0表示不在，-1表示没有采样数据
+     */
+    public int checkResident(final long offset, final int size) {
+        int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+        if (mappedFile != null) {
+            return mappedFile.checkResident((int) (offset % mappedFileSize), size);
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * 预读[offset, offset + size)，可以跨文件
+     *
+     * @return 实际通知预读的字节数
+     */
+    public long willNeed(final long offset, final long size) {
+        final int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
+        final long end = Math.min(offset + size, this.getMaxOffset());
+        long current = offset;
+        while (current < end) {
+            MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(current);
+            if (null == mappedFile) {
+                break;
+            }
+
+            int pos = (int) (current % mappedFileSize);
+            int length = (int) Math.min(end - current, mappedFileSize - pos);
+            if (!mappedFile.willNeed(pos, length)) {
+                break;
+            }
+            current += length;
+        }
+
+        return current - offset;
+    }
+
+
+    public MappedFileQueue getMappedFileQueue() {
+        return mappedFileQueue;
+    }
+
+
+    /**
+     * 通过FileChannel把消息读到堆内存，返回结果不持有文件引用，用于读取冷数据
+     */
+    public SelectMappedBufferResult readMessage(final long offset, final int size) {
+        int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, (0 == offset));
+        if (mappedFile != null) {
+            int pos = (int) (offset % mappedFileSize);
+            return mappedFile.readByFileChannel(pos, size);
+        }
+
+        return null;
+    }
+
+
+    public TopicQueueTable getTopicQueueTable() {
         return topicQueueTable;
     }
 
 
-    public void setTopicQueueTable(HashMap<String, Long> topicQueueTable) {
+    public void setTopicQueueTable(TopicQueueTable topicQueueTable) {
         this.topicQueueTable = topicQueueTable;
     }
 
@@ -768,6 +1396,10 @@ public class CommitLog {
                         CommitLog.this.defaultMessageStore.getMessageStoreConfig()
                                 .getFlushCommitLogThoroughInterval();
 
+                boolean syncFileRangeEnable =
+                        CommitLog.this.defaultMessageStore.getMessageStoreConfig()
+                                .isFlushCommitLogSyncFileRangeEnable();
+
                 boolean printFlushProgress = false;
 
                 // 定时刷盘，定时打印刷盘进度
@@ -792,11 +1424,21 @@ public class CommitLog {
                         this.printFlushProgress();
                     }
 
+                    // 持续发起小窗口的异步回写，脏页不再堆积到fsync时集中写出
+                    if (syncFileRangeEnable && MappedFile.isSyncFileRangeAvailable()) {
+                        CommitLog.this.mappedFileQueue.writeback(CommitLog.this.defaultMessageStore
+                            .getMessageStoreConfig().getWritebackCommitLogLeastPages());
+                        // 只在彻底刷盘时间到达或文件写满时fsync，sync_file_range不可用时按原来的方式刷盘
+                        if (flushPhysicQueueLeastPages > 0 && MappedFile.isSyncFileRangeAvailable()) {
+                            flushPhysicQueueLeastPages = Integer.MAX_VALUE;
+                        }
+                    }
+
                     CommitLog.this.mappedFileQueue.commit(flushPhysicQueueLeastPages);
+                    CommitLog.this.updatePhysicVerifiedOffset(CommitLog.this.mappedFileQueue.getCommittedWhere());
                     long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
                     if (storeTimestamp > 0) {
-                        CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(
-                                storeTimestamp);
+                        CommitLog.this.updateFlushedStoreTimestamp(storeTimestamp);
                     }
                 } catch (Exception e) {
                     CommitLog.LOGGER.warn(this.getServiceName() + " service has exception. ", e);
@@ -837,6 +1479,80 @@ public class CommitLog {
         }
     }
 
+    /**
+     * 写缓冲区转移服务：将TransientStorePool中的数据批量写入FileChannel，完成后唤醒刷盘服务
+     */
+    class TransferRealTimeService extends FlushCommitLogService {
+        private static final int RetryTimesOver = 10;
+        private long lastTransferTimestamp = 0;
+
+
+        public void run() {
+            CommitLog.LOGGER.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                int interval =
+                        CommitLog.this.defaultMessageStore.getMessageStoreConfig().getTransferIntervalCommitLog();
+                int transferLeastPages =
+                        CommitLog.this.defaultMessageStore.getMessageStoreConfig().getTransferCommitLogLeastPages();
+                int transferThoroughInterval =
+                        CommitLog.this.defaultMessageStore.getMessageStoreConfig()
+                                .getTransferCommitLogThoroughInterval();
+
+                long currentTimeMillis = System.currentTimeMillis();
+                if (currentTimeMillis >= (this.lastTransferTimestamp + transferThoroughInterval)) {
+                    this.lastTransferTimestamp = currentTimeMillis;
+                    transferLeastPages = 0;
+                }
+
+                try {
+                    boolean result = CommitLog.this.mappedFileQueue.transfer(transferLeastPages);
+                    if (!result) {
+                        // 有新数据写入文件，通知刷盘
+                        this.lastTransferTimestamp = currentTimeMillis;
+                        CommitLog.this.flushCommitLogService.wakeUp();
+                    }
+
+                    this.waitForRunning(interval);
+                } catch (Exception e) {
+                    CommitLog.LOGGER.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            // 正常shutdown时，要保证全部转移才退出
+            boolean result = false;
+            for (int i = 0; i < RetryTimesOver && !result; i++) {
+                result = CommitLog.this.mappedFileQueue.transfer(0);
+                CommitLog.LOGGER.info(this.getServiceName() + " service shutdown, retry " + (i + 1) + " times "
+                        + (result ? "OK" : "Not OK"));
+            }
+
+            CommitLog.LOGGER.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return TransferRealTimeService.class.getSimpleName();
+        }
+
+
+        @Override
+        public long getJoinTime() {
+            // 由于CommitLog数据量较大，所以回收时间要更长
+            return 1000 * 60 * 5;
+        }
+    }
+
+    /**
+     * 记录本分区的刷盘进度，Checkpoint取所有分区中最小的时间戳，保证异常恢复时各分区都从足够早的文件开始
+     */
+    private void updateFlushedStoreTimestamp(final long storeTimestamp) {
+        this.flushedStoreTimestamp = storeTimestamp;
+        this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(
+                this.defaultMessageStore.getMinFlushedStoreTimestamp());
+    }
+
     /**
      * Spin util acquired the lock.
      */
@@ -940,7 +1656,7 @@ public class CommitLog {
 
                     long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
                     if (storeTimestamp > 0) {
-                        CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
+                        CommitLog.this.updateFlushedStoreTimestamp(storeTimestamp);
                     }
 
                     this.requestsRead.clear();
@@ -949,6 +1665,8 @@ public class CommitLog {
                 // 由于个别消息设置为不同步刷盘，所以会走到此流程
                 CommitLog.this.mappedFileQueue.commit(0);
             }
+
+            CommitLog.this.updatePhysicVerifiedOffset(CommitLog.this.mappedFileQueue.getCommittedWhere());
         }
 
 
@@ -1001,13 +1719,16 @@ public class CommitLog {
     }
 
     private int computeMsgLength(MessageExtBrokerInner msgInner) {
-        final byte[] propertiesData = msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes();
-        final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
-        final byte[] topicData = msgInner.getTopic().getBytes();
-        final int topicLength = topicData.length;
+        final int propertiesLength = utf8Length(msgInner.getPropertiesString());
+        final int topicLength = utf8Length(msgInner.getTopic());
 
         final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
 
+        return calMsgLength(bodyLength, topicLength, propertiesLength);
+    }
+
+
+    private static int calMsgLength(final int bodyLength, final int topicLength, final int propertiesLength) {
         final int msgLen = 4 // 1 TOTALSIZE
                 + 4 // 2 MAGICCODE
                 + 4 // 3 BODYCRC
@@ -1029,18 +1750,16 @@ public class CommitLog {
         return msgLen;
     }
 
-    private ByteBuffer encode(MessageExtBrokerInner msgInner) {
-
-        final byte[] propertiesData = msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes();
-        final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
-
-        final byte[] topicData = msgInner.getTopic().getBytes();
-        final int topicLength = topicData.length;
-
-        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+    ByteBuffer encode(MessageExtBrokerInner msgInner) {
+        return this.encode(msgInner, computeMsgLength(msgInner));
+    }
 
-        final int msgLen = computeMsgLength(msgInner);
 
+    /**
+     * @param msgLen
+     *            调用方已经计算好的消息总长度
+     */
+    ByteBuffer encode(MessageExtBrokerInner msgInner, final int msgLen) {
         // Note, we are using
         ByteBuffer msgStoreItemMemory = encodedMsgByteBuffer.get();
         if (msgStoreItemMemory == null) {
@@ -1051,6 +1770,22 @@ public class CommitLog {
         // set position to 0, limit to capacity.
         msgStoreItemMemory.clear();
 
+        encode(msgInner, msgLen, msgStoreItemMemory);
+
+        msgStoreItemMemory.flip();
+
+        return msgStoreItemMemory;
+    }
+
+    /**
+     * 将消息序列化到msgStoreItemMemory的当前位置
+     */
+    private void encode(MessageExtBrokerInner msgInner, final int msgLen, final ByteBuffer msgStoreItemMemory) {
+        // topic与属性直接按UTF-8写入，不生成中间的字节数组；属性长度由总长度推出，不再扫描一遍属性
+        final int topicLength = utf8Length(msgInner.getTopic());
+        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+        final int propertiesLength = msgLen - calMsgLength(bodyLength, topicLength, 0);
+
         // 1 TOTALSIZE
         msgStoreItemMemory.putInt(msgLen);
         // 2 MAGICCODE
@@ -1070,11 +1805,11 @@ public class CommitLog {
         // 9 BORNTIMESTAMP
         msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
         // 10 BORNHOST
-        msgStoreItemMemory.put(msgInner.getBornHostBytes());
+        this.putHost(msgStoreItemMemory, msgInner.getBornHost());
         // 11 STORETIMESTAMP, will be overridden in synchronized block.
         msgStoreItemMemory.putLong(msgInner.getStoreTimestamp());
         // 12 STOREHOSTADDRESS
-        msgStoreItemMemory.put(msgInner.getStoreHostBytes());
+        this.putHost(msgStoreItemMemory, msgInner.getStoreHost());
         // 13 RECONSUMETIMES
         msgStoreItemMemory.putInt(msgInner.getReconsumeTimes());
         // 14 Prepared Transaction Offset
@@ -1085,16 +1820,106 @@ public class CommitLog {
             msgStoreItemMemory.put(msgInner.getBody());
         // 16 TOPIC
         msgStoreItemMemory.put((byte) topicLength);
-        msgStoreItemMemory.put(topicData);
+        putUtf8(msgStoreItemMemory, msgInner.getTopic());
         // 17 PROPERTIES
         msgStoreItemMemory.putShort((short) propertiesLength);
         if (propertiesLength > 0) {
-            msgStoreItemMemory.put(propertiesData);
+            putUtf8(msgStoreItemMemory, msgInner.getPropertiesString());
         }
+    }
 
-        msgStoreItemMemory.flip();
 
-        return msgStoreItemMemory;
+    /**
+     * 与String.getBytes(UTF-8)的长度一致，不分配内存
+     */
+    static int utf8Length(final String str) {
+        if (null == str) {
+            return 0;
+        }
+
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符编码为'?'
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+
+    /**
+     * 按UTF-8写入，结果与String.getBytes(UTF-8)一致
+     */
+    static void putUtf8(final ByteBuffer buffer, final String str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+
+    /**
+     * 消息格式中主机地址只有8个字节 IP + PORT，只能存放IPv4地址
+     */
+    public static boolean isHostSupported(final SocketAddress address) {
+        return address instanceof InetSocketAddress
+                && ((InetSocketAddress) address).getAddress() instanceof Inet4Address;
+    }
+
+
+    /**
+     * 写入8个字节的主机地址 IP + PORT，按地址缓存转换结果，非IPv4地址的消息在写入前已被拒绝
+     */
+    private void putHost(final ByteBuffer buffer, final SocketAddress address) {
+        Long hostBytes = this.hostBytesTable.get(address);
+        if (null == hostBytes) {
+            if (!isHostSupported(address)) {
+                throw new IllegalArgumentException("unsupported host address " + address);
+            }
+
+            InetSocketAddress inetSocketAddress = (InetSocketAddress) address;
+            ByteBuffer addr = ByteBuffer.wrap(inetSocketAddress.getAddress().getAddress());
+            // 高4字节为IP，低4字节为PORT
+            hostBytes = ((long) addr.getInt() << 32) | (inetSocketAddress.getPort() & 0xFFFFFFFFL);
+            // 连接不断变化时避免缓存无限增长
+            if (this.hostBytesTable.size() >= MaxCachedHostNums) {
+                this.hostBytesTable.clear();
+            }
+            this.hostBytesTable.put(address, hostBytes);
+        }
+
+        buffer.putLong(hostBytes);
     }
 
     class DefaultAppendMessageCallback implements AppendMessageCallback {
@@ -1125,17 +1950,16 @@ public class CommitLog {
             MessageExtBrokerInner msgInner = (MessageExtBrokerInner) msg;
             // PHY OFFSET
             long wroteOffset = fileFromOffset + byteBuffer.position();
-            String msgId = MessageDecoder.createMessageId(this.msgIdMemory, msgInner.getStoreHostBytes(), wroteOffset);
+            // 存储主机地址直接取编码后的STOREHOSTADDRESS
+            this.msgIdMemory.clear();
+            this.msgIdMemory.putLong(encodedMsg.getLong(64));
+            this.msgIdMemory.putLong(wroteOffset);
+            String msgId = UtilAll.bytes2string(this.msgIdMemory.array());
 
             /*
              * 记录ConsumeQueue信息
              */
-            String key = msgInner.getTopic() + "-" + msgInner.getQueueId();
-            Long queueOffset = CommitLog.this.topicQueueTable.get(key);
-            if (null == queueOffset) {
-                queueOffset = 0L;
-                CommitLog.this.topicQueueTable.put(key, queueOffset);
-            }
+            long queueOffset = CommitLog.this.topicQueueTable.get(msgInner.getTopic(), msgInner.getQueueId());
 
             /*
              * 事务消息需要特殊处理
@@ -1145,7 +1969,7 @@ public class CommitLog {
                 // Prepared和Rollback都是不可以消费的消息，不会进入消费队列
                 case MessageSysFlag.TransactionPreparedType:
                 case MessageSysFlag.TransactionRollbackType:
-                    queueOffset = 0L;
+                    queueOffset = 0;
                     break;
                 case MessageSysFlag.TransactionNotType:
                 case MessageSysFlag.TransactionCommitType:
@@ -1176,7 +2000,9 @@ public class CommitLog {
             encodedMsg.putLong(queueOffset);
             encodedMsg.putLong(fileFromOffset + byteBuffer.position());
             encodedMsg.position(56);
-            encodedMsg.putLong(defaultMessageStore.getSystemClock().now());
+            // 存储时间以写入CommitLog的为准，分发到消费队列及索引时保持一致
+            msgInner.setStoreTimestamp(defaultMessageStore.getSystemClock().now());
+            encodedMsg.putLong(msgInner.getStoreTimestamp());
             encodedMsg.rewind();
 
             // 向队列缓冲区写入消息
@@ -1192,7 +2018,7 @@ public class CommitLog {
                 case MessageSysFlag.TransactionNotType:
                 case MessageSysFlag.TransactionCommitType:
                     // 更新下一次的ConsumeQueue信息
-                    CommitLog.this.topicQueueTable.put(key, ++queueOffset);
+                    CommitLog.this.topicQueueTable.put(msgInner.getTopic(), msgInner.getQueueId(), ++queueOffset);
                     break;
                 default:
                     break;
@@ -1211,9 +2037,8 @@ public class CommitLog {
 
 
     public void removeQueueFromTopicQueueTable(final String topic, final int queueId) {
-        String key = topic + "-" + queueId;
         synchronized (this) {
-            this.topicQueueTable.remove(key);
+            this.topicQueueTable.remove(topic, queueId);
         }
 
         LOGGER.info("removeQueueFromTopicQueueTable OK Topic: {} QueueId: {}", topic, queueId);
@@ -16,12 +16,17 @@
 package com.alibaba.rocketmq.store;
 
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.util.BloomFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -34,6 +39,8 @@ public class ConsumeQueue {
 
     // 存储单元大小, physical Offset(long, 8) + message size(int, 4) + tag hash code(long, 8)
     public static final int CQStoreUnitSize = 20;
+    // 单次拉消息最多重建的Tag过滤块个数
+    private static final int MaxBuildTagFilterBlocks = 4;
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
     private static final Logger logError = LoggerFactory.getLogger(LoggerName.StoreErrorLoggerName);
     // 存储顶层对象
@@ -54,6 +61,12 @@ public class ConsumeQueue {
     // 逻辑队列的最小Offset，删除物理文件时，计算出来的最小Offset
     // 实际使用需要除以 StoreUnitSize
     private volatile long minLogicOffset = 0;
+    // 稀疏时间索引，用于按时间查询Offset
+    private final ConsumeQueueTimeIndex timeIndex;
+    // 分块Tag过滤器，用于拉消息时跳过整块不匹配的消息
+    private final ConsumeQueueTagFilter tagFilter;
+    // 扩展文件，记录消息的部分属性，用于按属性过滤
+    private final ConsumeQueueExt consumeQueueExt;
 
 
     public ConsumeQueue(//
@@ -76,12 +89,68 @@ public class ConsumeQueue {
         this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize, null);
 
         this.byteBufferIndex = ByteBuffer.allocate(CQStoreUnitSize);
+
+        int timeIndexInterval = defaultMessageStore.getMessageStoreConfig().getConsumeQueueTimeIndexInterval();
+        if (timeIndexInterval > 0) {
+            this.timeIndex = new ConsumeQueueTimeIndex(topic, queueId,
+                StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(defaultMessageStore.getMessageStoreConfig()
+                    .getStorePathRootDir()), timeIndexInterval);
+        }
+        else {
+            this.timeIndex = null;
+        }
+
+        int tagFilterBlockSize = defaultMessageStore.getMessageStoreConfig().getConsumeQueueTagFilterBlockSize();
+        if (tagFilterBlockSize > 0) {
+            this.tagFilter = new ConsumeQueueTagFilter(tagFilterBlockSize);
+        }
+        else {
+            this.tagFilter = null;
+        }
+
+        List<String> extProperties =
+                parseExtProperties(defaultMessageStore.getMessageStoreConfig().getConsumeQueueExtProperties());
+        if (!extProperties.isEmpty()) {
+            this.consumeQueueExt = new ConsumeQueueExt(topic, queueId,
+                StorePathConfigHelper.getStorePathConsumeQueueExt(defaultMessageStore.getMessageStoreConfig()
+                    .getStorePathRootDir()), mappedFileSize / CQStoreUnitSize, extProperties);
+        }
+        else {
+            this.consumeQueueExt = null;
+        }
+    }
+
+
+    private static List<String> parseExtProperties(final String extProperties) {
+        List<String> result = new ArrayList<String>();
+        if (extProperties != null) {
+            for (String name : extProperties.split(",")) {
+                name = name.trim();
+                if (name.length() > 0 && !result.contains(name)) {
+                    if (result.size() >= ConsumeQueueExt.MaxPropertyNums) {
+                        log.warn("consume queue ext properties more than " + ConsumeQueueExt.MaxPropertyNums
+                                + ", ignore " + name);
+                        continue;
+                    }
+                    result.add(name);
+                }
+            }
+        }
+        return result;
     }
 
 
     public boolean load() {
-        boolean result = this.mappedFileQueue.load();
+        boolean result =
+                this.mappedFileQueue.load(this.defaultMessageStore.getMessageStoreConfig()
+                    .isConsumeQueueLazyMapEnable());
         log.info("load consume queue " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        if (result && this.timeIndex != null) {
+            result = this.timeIndex.load();
+        }
+        if (result && this.consumeQueueExt != null) {
+            result = this.consumeQueueExt.load();
+        }
         return result;
     }
 
@@ -145,13 +214,185 @@ public class ConsumeQueue {
             processOffset += mappedFileOffset;
             this.mappedFileQueue.truncateDirtyFiles(processOffset);
         }
+
+        if (this.timeIndex != null) {
+            this.timeIndex.recover();
+            this.timeIndex.truncateDirty(this.getMaxOffsetInQueue());
+        }
+
+        if (this.tagFilter != null) {
+            this.tagFilter.truncateDirty(this.getMaxOffsetInQueue());
+        }
+
+        if (this.consumeQueueExt != null) {
+            this.consumeQueueExt.recover(this.getMaxOffsetInQueue());
+        }
     }
 
 
     /**
-     * 二分查找查找消息发送时间最接近timestamp逻辑队列的offset
+     * 从offset开始跳过过滤器确定不含订阅Tag的整块消息，只检查已写满的块
+     *
+     * @param codeSet
+     *            订阅的Tag哈希值
+     * @return 跳过之后的逻辑Offset，没有可跳过的块时返回offset
+     */
+    public long skipUnmatchedBlocks(final long offset, final Set<Integer> codeSet) {
+        if (null == this.tagFilter) {
+            return offset;
+        }
+
+        final int blockSize = this.tagFilter.getBlockSize();
+        final long maxOffset = this.getMaxOffsetInQueue();
+        long current = offset;
+        int buildTimes = 0;
+        while (current < maxOffset) {
+            final long blockIndex = current / blockSize;
+            final long blockEnd = (blockIndex + 1) * blockSize;
+            if (blockEnd > maxOffset) {
+                break;
+            }
+
+            BloomFilter filter = this.tagFilter.getSealedFilter(blockIndex);
+            if (null == filter) {
+                // 限制单次拉消息重建的块数，避免拉消息耗时过长
+                if (buildTimes >= MaxBuildTagFilterBlocks) {
+                    break;
+                }
+                buildTimes++;
+
+                filter = this.buildTagFilter(blockIndex, blockSize);
+                if (null == filter) {
+                    break;
+                }
+            }
+
+            if (ConsumeQueueTagFilter.mightContainAny(filter, codeSet)) {
+                break;
+            }
+
+            current = blockEnd;
+        }
+
+        return current;
+    }
+
+
+    /**
+     * 读取块内所有消息的tagsCode重建过滤器，块内消息已被删除时返回null
+     */
+    private BloomFilter buildTagFilter(final long blockIndex, final int blockSize) {
+        final BloomFilter filter = ConsumeQueueTagFilter.newFilter();
+        final long blockEnd = (blockIndex + 1) * blockSize;
+        long index = blockIndex * blockSize;
+        while (index < blockEnd) {
+            SelectMappedBufferResult result = this.getIndexBuffer(index);
+            if (null == result) {
+                return null;
+            }
+
+            try {
+                if (result.getSize() < CQStoreUnitSize) {
+                    return null;
+                }
+
+                ByteBuffer byteBuffer = result.getByteBuffer();
+                for (int i = 0; i < result.getSize() && index < blockEnd; i += CQStoreUnitSize) {
+                    byteBuffer.getLong();
+                    byteBuffer.getInt();
+                    long tagsCode = byteBuffer.getLong();
+                    filter.put(ConsumeQueueTagFilter.hash(tagsCode));
+                    index++;
+                }
+            }
+            finally {
+                result.release();
+            }
+        }
+
+        this.tagFilter.putSealedFilter(blockIndex, filter);
+        return filter;
+    }
+
+
+    /**
+     * 查找消息存储时间最接近timestamp的逻辑队列offset，有时间索引时只在采样点之间的区间内二分查找
      */
     public long getOffsetInQueueByTime(final long timestamp) {
+        if (null == this.timeIndex) {
+            return this.getOffsetInQueueByTimeInFile(timestamp);
+        }
+
+        final long minOffset = Math.max(this.getMinOffsetInQueue(), this.mappedFileQueue.getMinOffset()
+                / CQStoreUnitSize);
+        final long maxOffset = this.getMaxOffsetInQueue() - 1;
+        if (maxOffset < minOffset) {
+            return 0;
+        }
+
+        long[] range = this.timeIndex.findRange(timestamp, minOffset, maxOffset);
+        long low = range[0];
+        long high = range[1];
+        long leftOffset = -1, rightOffset = -1;
+        long leftIndexValue = -1L, rightIndexValue = -1L;
+        while (high >= low) {
+            long midOffset = (low + high) >>> 1;
+            SelectMappedBufferResult sbr = this.getIndexBuffer(midOffset);
+            if (null == sbr) {
+                // 二分过程中文件被删除，退回到按文件时间查找
+                return this.getOffsetInQueueByTimeInFile(timestamp);
+            }
+
+            long storeTime;
+            try {
+                long phyOffset = sbr.getByteBuffer().getLong();
+                int size = sbr.getByteBuffer().getInt();
+                storeTime = this.defaultMessageStore.pickupStoreTimestamp(phyOffset, size);
+            }
+            finally {
+                sbr.release();
+            }
+
+            // 比较时间, 折半
+            if (storeTime < 0) {
+                // 没有从物理文件找到消息，此时直接返回0
+                return 0;
+            }
+            else if (storeTime == timestamp) {
+                return midOffset;
+            }
+            else if (storeTime > timestamp) {
+                high = midOffset - 1;
+                rightOffset = midOffset;
+                rightIndexValue = storeTime;
+            }
+            else {
+                low = midOffset + 1;
+                leftOffset = midOffset;
+                leftIndexValue = storeTime;
+            }
+        }
+
+        if (leftIndexValue == -1) {
+            // timestamp 时间小于区间内第一条记录的时间
+            return rightOffset;
+        }
+        else if (rightIndexValue == -1) {
+            // timestamp 时间大于区间内最后一条记录的时间
+            return leftOffset;
+        }
+        else {
+            // 取最接近timestamp的offset
+            return Math.abs(timestamp - leftIndexValue) > Math.abs(timestamp - rightIndexValue) ? rightOffset
+                    : leftOffset;
+        }
+    }
+
+
+    /**
+     * 二分查找查找消息发送时间最接近timestamp逻辑队列的offset
+     */
+    private long getOffsetInQueueByTimeInFile(final long timestamp) {
         MappedFile mappedFile = this.mappedFileQueue.getMappedFileByTime(timestamp);
         if (mappedFile != null) {
             long offset = 0;
@@ -181,7 +422,7 @@ public class ConsumeQueue {
 
                         // 比较时间, 折半
                         long storeTime =
-                                this.defaultMessageStore.getCommitLog().pickupStoreTimestamp(phyOffset, size);
+                                this.defaultMessageStore.pickupStoreTimestamp(phyOffset, size);
                         if (storeTime < 0) {
                             // 没有从物理文件找到消息，此时直接返回0
                             return 0;
@@ -240,6 +481,23 @@ public class ConsumeQueue {
      * 根据物理Offset删除无效逻辑文件
      */
     public void truncateDirtyLogicFiles(long phyOffset) {
+        this.truncateDirtyLogicFilesByPhyOffset(phyOffset);
+
+        if (this.timeIndex != null) {
+            this.timeIndex.truncateDirty(this.getMaxOffsetInQueue());
+        }
+
+        if (this.tagFilter != null) {
+            this.tagFilter.truncateDirty(this.getMaxOffsetInQueue());
+        }
+
+        if (this.consumeQueueExt != null) {
+            this.consumeQueueExt.truncateDirty(this.getMaxOffsetInQueue());
+        }
+    }
+
+
+    private void truncateDirtyLogicFilesByPhyOffset(long phyOffset) {
         // 逻辑队列每个文件大小
         int logicFileSize = this.mappedFileSize;
 
@@ -342,6 +600,12 @@ public class ConsumeQueue {
 
 
     public boolean commit(final int flushLeastPages) {
+        if (this.timeIndex != null) {
+            this.timeIndex.commit(flushLeastPages);
+        }
+        if (this.consumeQueueExt != null) {
+            this.consumeQueueExt.commit(flushLeastPages);
+        }
         return this.mappedFileQueue.commit(flushLeastPages);
     }
 
@@ -351,6 +615,15 @@ public class ConsumeQueue {
         // 无论是否删除文件，都需要纠正下最小值，因为有可能物理文件删除了，
         // 但是逻辑文件一个也删除不了
         this.correctMinOffset(offset);
+        if (this.timeIndex != null) {
+            this.timeIndex.deleteExpiredFile(this.getMinOffsetInQueue());
+        }
+        if (this.tagFilter != null) {
+            this.tagFilter.deleteExpiredBlock(this.getMinOffsetInQueue());
+        }
+        if (this.consumeQueueExt != null) {
+            this.consumeQueueExt.deleteExpiredFile(this.getMinOffsetInQueue());
+        }
         return cnt;
     }
 
@@ -395,13 +668,23 @@ public class ConsumeQueue {
 
 
     public void putMessagePositionInfoWrapper(long offset, int size, long tagsCode, long storeTimestamp,
-                                              long logicOffset) {
+                                              long logicOffset, Map<String, String> propertiesMap) {
         final int MaxRetries = 5;
         boolean canWrite = this.defaultMessageStore.getRunningFlags().isWritable();
+        // 先写扩展单元，保证拉消息线程读到消费队列单元时扩展单元已经可读
+        if (canWrite && this.consumeQueueExt != null && offset > this.maxPhysicOffset) {
+            this.consumeQueueExt.put(logicOffset, propertiesMap);
+        }
         for (int i = 0; i < MaxRetries && canWrite; i++) {
             boolean result = this.putMessagePositionInfo(offset, size, tagsCode, logicOffset);
             if (result) {
-                this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(storeTimestamp);
+                if (this.timeIndex != null) {
+                    this.timeIndex.putSample(logicOffset, storeTimestamp);
+                }
+                if (this.tagFilter != null) {
+                    this.tagFilter.putTagsCode(logicOffset, tagsCode);
+                }
+                // checkpoint中的逻辑队列时间由DispatchMessageService按所有分发线程的进度统一更新
                 return;
             }
             // 只有一种情况会失败，创建新的MappedFile时报错或者超时
@@ -546,10 +829,32 @@ public class ConsumeQueue {
     }
 
 
+    /**
+     * 收集可以解除映射的消费队列文件，不包括正在写入的最后一个文件
+     */
+    public void collectUnmapCandidates(final List<MappedFile> candidates) {
+        this.mappedFileQueue.collectUnmapCandidates(candidates);
+    }
+
+
+    public long getMappedVirtualMemory() {
+        return this.mappedFileQueue.getMappedVirtualMemory();
+    }
+
+
     public void destroy() {
         this.maxPhysicOffset = -1;
         this.minLogicOffset = 0;
         this.mappedFileQueue.destroy();
+        if (this.timeIndex != null) {
+            this.timeIndex.destroy();
+        }
+        if (this.tagFilter != null) {
+            this.tagFilter.destroy();
+        }
+        if (this.consumeQueueExt != null) {
+            this.consumeQueueExt.destroy();
+        }
     }
 
 
@@ -571,6 +876,21 @@ public class ConsumeQueue {
     }
 
 
+    /**
+     * 读取消息的扩展单元
+     *
+     * @return 是否读到扩展单元，没有扩展文件或者该消息没有扩展单元时返回false
+     */
+    public boolean getExt(final long cqOffset, final ConsumeQueueExt.CqExtUnit cqExtUnit) {
+        return this.consumeQueueExt != null && this.consumeQueueExt.get(cqOffset, cqExtUnit);
+    }
+
+
+    public ConsumeQueueExt getConsumeQueueExt() {
+        return consumeQueueExt;
+    }
+
+
     public long getMaxOffsetInQueue() {
         return this.mappedFileQueue.getMaxOffset() / CQStoreUnitSize;
     }
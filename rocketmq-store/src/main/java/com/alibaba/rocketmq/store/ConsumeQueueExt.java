@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * 消费队列扩展文件，与消费队列一一对应，记录每条消息指定属性值的哈希<br>
+ * 拉消息时可以直接按属性过滤，不需要读取CommitLog
+ */
+public class ConsumeQueueExt {
+    // 最多记录的属性个数
+    public static final int MaxPropertyNums = 4;
+    // 存储单元大小, consume queue offset(long, 8) + property bitmap(int, 4) + property hash(long, 8) * 4
+    public static final int CQExtUnitSize = 8 + 4 + 8 * MaxPropertyNums;
+    // bitmap最高位表示该单元由分发线程写入，低位表示对应属性是否存在
+    private static final int ValidFlag = 1 << 31;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final String topic;
+    private final int queueId;
+    // 需要记录的属性名，下标即属性在存储单元中的位置
+    private final List<String> propertyNames;
+    private final MappedFileQueue mappedFileQueue;
+    // 写扩展单元时用到的ByteBuffer
+    private final ByteBuffer byteBufferUnit = ByteBuffer.allocate(CQExtUnitSize);
+
+
+    /**
+     * @param unitsPerFile
+     *            与消费队列每个文件存放的单元个数一致，保证两者按文件对齐
+     */
+    public ConsumeQueueExt(final String topic, final int queueId, final String storePath,
+            final int unitsPerFile, final List<String> propertyNames) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.propertyNames = propertyNames;
+
+        String queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mappedFileQueue = new MappedFileQueue(queueDir, CQExtUnitSize * unitsPerFile, null);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mappedFileQueue.load();
+        log.info("load consume queue ext " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 扩展单元在消费队列单元之前写入，异常退出后扩展文件可能多出消费队列中没有的单元，以消费队列恢复后的最大Offset为准截断<br>
+     * 扩展单元写入失败时不再补写，读取时按缺失处理
+     */
+    public void recover(final long maxCqOffset) {
+        if (this.mappedFileQueue.getMappedFiles().isEmpty()) {
+            return;
+        }
+
+        this.mappedFileQueue.truncateDirtyFiles(maxCqOffset * CQExtUnitSize);
+    }
+
+
+    /**
+     * 消息写入消费队列之前由分发线程调用，拉消息线程读到消费队列单元时扩展单元已经可读，同一队列只有一个线程写入
+     */
+    public void put(final long cqOffset, final Map<String, String> properties) {
+        final long expectOffset = cqOffset * CQExtUnitSize;
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(expectOffset);
+        if (null == mappedFile) {
+            log.error("create consume queue ext mapped file failed, " + this.topic + "-" + this.queueId);
+            return;
+        }
+
+        long currentOffset = mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+        if (expectOffset < currentOffset) {
+            // 恢复时重复分发
+            return;
+        }
+
+        // 中间缺失的单元写成无效单元，保证按Offset定位
+        while (currentOffset < expectOffset) {
+            this.fillUnit(currentOffset / CQExtUnitSize, null, false);
+            mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+            if (null == mappedFile) {
+                return;
+            }
+            currentOffset = mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+        }
+
+        this.fillUnit(cqOffset, properties, true);
+    }
+
+
+    private void fillUnit(final long cqOffset, final Map<String, String> properties, final boolean valid) {
+        int bitmap = valid ? ValidFlag : 0;
+        this.byteBufferUnit.clear();
+        this.byteBufferUnit.putLong(cqOffset);
+        this.byteBufferUnit.putInt(0);
+        for (int i = 0; i < MaxPropertyNums; i++) {
+            long hash = 0;
+            if (properties != null && i < this.propertyNames.size()) {
+                String value = properties.get(this.propertyNames.get(i));
+                if (value != null) {
+                    bitmap |= 1 << i;
+                    hash = hashPropertyValue(value);
+                }
+            }
+            this.byteBufferUnit.putLong(hash);
+        }
+        this.byteBufferUnit.putInt(8, bitmap);
+
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(cqOffset * CQExtUnitSize);
+        if (null == mappedFile || !mappedFile.appendMessage(this.byteBufferUnit.array())) {
+            log.warn("put consume queue ext unit failed, " + this.topic + "-" + this.queueId + " " + cqOffset);
+        }
+    }
+
+
+    /**
+     * 读取扩展单元
+     *
+     * @return 是否读到有效的扩展单元，消息没有扩展单元时返回false
+     */
+    public boolean get(final long cqOffset, final CqExtUnit cqExtUnit) {
+        final long offset = cqOffset * CQExtUnitSize;
+        if (offset < this.mappedFileQueue.getMinOffset()
+                || offset + CQExtUnitSize > this.mappedFileQueue.getMaxOffset()) {
+            return false;
+        }
+
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+        if (null == mappedFile) {
+            return false;
+        }
+
+        SelectMappedBufferResult result =
+                mappedFile.selectMappedBuffer((int) (offset % this.mappedFileQueue.getMappedFileSize()),
+                    CQExtUnitSize);
+        if (null == result) {
+            return false;
+        }
+
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            long storedCqOffset = byteBuffer.getLong();
+            int bitmap = byteBuffer.getInt();
+            if (storedCqOffset != cqOffset || (bitmap & ValidFlag) == 0) {
+                return false;
+            }
+
+            cqExtUnit.bitmap = bitmap;
+            for (int i = 0; i < MaxPropertyNums; i++) {
+                cqExtUnit.propertyHashes[i] = byteBuffer.getLong();
+            }
+            return true;
+        }
+        finally {
+            result.release();
+        }
+    }
+
+
+    /**
+     * 消费队列截断后，删除逻辑Offset不小于maxCqOffset的扩展单元
+     */
+    public void truncateDirty(final long maxCqOffset) {
+        if (this.mappedFileQueue.getMaxOffset() > maxCqOffset * CQExtUnitSize) {
+            this.mappedFileQueue.truncateDirtyFiles(maxCqOffset * CQExtUnitSize);
+            log.info("truncate consume queue ext " + this.topic + "-" + this.queueId + ", max offset "
+                    + maxCqOffset);
+        }
+    }
+
+
+    /**
+     * 删除所有单元均小于minCqOffset的文件
+     */
+    public int deleteExpiredFile(final long minCqOffset) {
+        return this.mappedFileQueue.deleteExpiredFileByOffset(minCqOffset, CQExtUnitSize);
+    }
+
+
+    public boolean commit(final int flushLeastPages) {
+        return this.mappedFileQueue.commit(flushLeastPages);
+    }
+
+
+    public void destroy() {
+        this.mappedFileQueue.destroy();
+    }
+
+
+    public CqExtUnit newCqExtUnit() {
+        return new CqExtUnit(this.propertyNames);
+    }
+
+
+    /**
+     * 64位FNV-1a哈希，冲突概率远低于String.hashCode，按哈希相等视为属性值相等
+     */
+    public static long hashPropertyValue(final String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 扩展单元，可在同一次拉消息中复用
+     */
+    public static class CqExtUnit {
+        private final List<String> propertyNames;
+        private final long[] propertyHashes = new long[MaxPropertyNums];
+        private int bitmap;
+
+
+        CqExtUnit(final List<String> propertyNames) {
+            this.propertyNames = propertyNames;
+        }
+
+
+        /**
+         * @return 属性是否记录在扩展文件中，没有记录的属性无法在消费队列层面判断
+         */
+        public boolean isPropertyRecorded(final String name) {
+            return this.propertyNames.indexOf(name) >= 0;
+        }
+
+
+        /**
+         * @return 消息中属性值是否等于value，调用前需确认属性已记录
+         */
+        public boolean isPropertyEquals(final String name, final String value) {
+            int index = this.propertyNames.indexOf(name);
+            if (index < 0 || (this.bitmap & (1 << index)) == 0) {
+                return false;
+            }
+
+            return this.propertyHashes[index] == hashPropertyValue(value);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.store.util.BloomFilter;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * 消费队列的分块Tag过滤器，每blockSize条消息一个块，块内所有tagsCode写入一个布隆过滤器<br>
+ * 只在内存中维护，由分发线程顺序写入，重启后旧数据的块在拉消息时按需从消费队列重建
+ */
+public class ConsumeQueueTagFilter {
+    // 每个块预计的不同Tag个数，超过后误判率升高，但不影响正确性
+    private static final int ExpectedTagsPerBlock = 16;
+    private static final int BitsPerTag = 8;
+    private final int blockSize;
+    // 块序号 -> 块
+    private final ConcurrentHashMap<Long, TagBlock> blockTable = new ConcurrentHashMap<Long, TagBlock>();
+
+
+    public ConsumeQueueTagFilter(final int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+
+    /**
+     * 消息写入消费队列后由分发线程调用，同一队列只有一个线程写入
+     */
+    public void putTagsCode(final long cqOffset, final long tagsCode) {
+        final long blockIndex = cqOffset / this.blockSize;
+        TagBlock block;
+        if (cqOffset % this.blockSize == 0) {
+            block = new TagBlock(newFilter(), cqOffset);
+            this.blockTable.put(blockIndex, block);
+        }
+        else {
+            block = this.blockTable.get(blockIndex);
+            if (null == block) {
+                // 从块中间开始分发（例如重启后），该块留给拉消息时重建
+                return;
+            }
+
+            if (block.isSealed() || cqOffset > block.nextCqOffset) {
+                // 块内数据不连续，已有的过滤器不再可信
+                this.blockTable.remove(blockIndex, block);
+                return;
+            }
+
+            if (cqOffset < block.nextCqOffset) {
+                // 恢复时重复分发
+                return;
+            }
+        }
+
+        block.filter.put(hash(tagsCode));
+        block.nextCqOffset = cqOffset + 1;
+        if (block.nextCqOffset % this.blockSize == 0) {
+            block.sealed = true;
+        }
+    }
+
+
+    /**
+     * @return 已写满块的过滤器，块不存在或者未写满时返回null
+     */
+    public BloomFilter getSealedFilter(final long blockIndex) {
+        TagBlock block = this.blockTable.get(blockIndex);
+        if (block != null && block.isSealed()) {
+            return block.filter;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 按需重建的块由拉消息线程放入，分发线程已经建好的块优先
+     */
+    public void putSealedFilter(final long blockIndex, final BloomFilter filter) {
+        TagBlock block = new TagBlock(filter, (blockIndex + 1) * this.blockSize);
+        block.sealed = true;
+        this.blockTable.putIfAbsent(blockIndex, block);
+    }
+
+
+    /**
+     * 消费队列截断后，删除包含逻辑Offset不小于maxCqOffset的块
+     */
+    public void truncateDirty(final long maxCqOffset) {
+        final long maxBlockIndex = maxCqOffset / this.blockSize;
+        for (Iterator<Long> it = this.blockTable.keySet().iterator(); it.hasNext();) {
+            if (it.next() >= maxBlockIndex) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * 删除所有消息均小于minCqOffset的块
+     */
+    public void deleteExpiredBlock(final long minCqOffset) {
+        final long minBlockIndex = minCqOffset / this.blockSize;
+        for (Iterator<Long> it = this.blockTable.keySet().iterator(); it.hasNext();) {
+            if (it.next() < minBlockIndex) {
+                it.remove();
+            }
+        }
+    }
+
+
+    public void destroy() {
+        this.blockTable.clear();
+    }
+
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+
+    public int getBlockNums() {
+        return this.blockTable.size();
+    }
+
+
+    public static BloomFilter newFilter() {
+        return new BloomFilter(ExpectedTagsPerBlock, BitsPerTag);
+    }
+
+
+    public static int hash(final long tagsCode) {
+        // 与DefaultMessageFilter中的比较方式保持一致
+        return (int) tagsCode;
+    }
+
+
+    /**
+     * @return false表示块内一定没有订阅的Tag
+     */
+    public static boolean mightContainAny(final BloomFilter filter, final Set<Integer> codeSet) {
+        for (Integer code : codeSet) {
+            if (filter.mightContain(code)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static class TagBlock {
+        private final BloomFilter filter;
+        // 下一条待写入的逻辑Offset，只有分发线程访问
+        private long nextCqOffset;
+        // 写满后置位，保证读线程看到完整的过滤器
+        private volatile boolean sealed = false;
+
+
+        TagBlock(final BloomFilter filter, final long nextCqOffset) {
+            this.filter = filter;
+            this.nextCqOffset = nextCqOffset;
+        }
+
+
+        boolean isSealed() {
+            return sealed;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * 消费队列的稀疏时间索引，每隔若干条消息记录一次(逻辑Offset, 存储时间)<br>
+ * 按时间查询Offset时先在采样点中定位区间，只需在区间内的少量消息上读取CommitLog
+ */
+public class ConsumeQueueTimeIndex {
+    // 存储单元大小, consume queue offset(long, 8) + store timestamp(long, 8)
+    public static final int TimeIndexUnitSize = 16;
+    // 每个文件存放的采样点个数
+    private static final int UnitsPerFile = 4096;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final String topic;
+    private final int queueId;
+    // 采样间隔，单位为消息条数
+    private final int sampleInterval;
+    private final MappedFileQueue mappedFileQueue;
+    // 写采样点时用到的ByteBuffer
+    private final ByteBuffer byteBufferUnit = ByteBuffer.allocate(TimeIndexUnitSize);
+    // 最后一个采样点的逻辑Offset，-1表示没有采样点
+    private long lastSampleOffset = -1;
+
+
+    public ConsumeQueueTimeIndex(final String topic, final int queueId, final String storePath,
+            final int sampleInterval) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.sampleInterval = sampleInterval;
+
+        String queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mappedFileQueue = new MappedFileQueue(queueDir, TimeIndexUnitSize * UnitsPerFile, null);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mappedFileQueue.load();
+        log.info("load consume queue time index " + this.topic + "-" + this.queueId + " "
+                + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 从倒数第二个文件开始，找到最后一个有效采样点
+     */
+    public void recover() {
+        final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        if (mappedFiles.isEmpty()) {
+            return;
+        }
+
+        int index = mappedFiles.size() - 2;
+        if (index < 0)
+            index = 0;
+
+        final int mappedFileSize = this.mappedFileQueue.getMappedFileSize();
+        long processOffset = mappedFiles.get(index).getFileFromOffset();
+        for (; index < mappedFiles.size(); index++) {
+            MappedFile mappedFile = mappedFiles.get(index);
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            int mappedFileOffset = 0;
+            while (mappedFileOffset < mappedFileSize) {
+                long cqOffset = byteBuffer.getLong(mappedFileOffset);
+                long storeTimestamp = byteBuffer.getLong(mappedFileOffset + 8);
+                if (storeTimestamp <= 0) {
+                    break;
+                }
+
+                this.lastSampleOffset = cqOffset;
+                mappedFileOffset += TimeIndexUnitSize;
+            }
+
+            processOffset = mappedFile.getFileFromOffset() + mappedFileOffset;
+            if (mappedFileOffset < mappedFileSize) {
+                break;
+            }
+        }
+
+        this.mappedFileQueue.truncateDirtyFiles(processOffset);
+    }
+
+
+    /**
+     * 消息写入消费队列后调用，距上个采样点达到采样间隔时记录一个采样点
+     */
+    public void putSample(final long cqOffset, final long storeTimestamp) {
+        if (storeTimestamp <= 0) {
+            return;
+        }
+
+        if (this.lastSampleOffset >= 0 && cqOffset < this.lastSampleOffset + this.sampleInterval) {
+            return;
+        }
+
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+        if (null == mappedFile) {
+            log.error("create consume queue time index mapped file failed, " + this.topic + "-" + this.queueId);
+            return;
+        }
+
+        this.byteBufferUnit.clear();
+        this.byteBufferUnit.putLong(cqOffset);
+        this.byteBufferUnit.putLong(storeTimestamp);
+        if (mappedFile.appendMessage(this.byteBufferUnit.array())) {
+            this.lastSampleOffset = cqOffset;
+        }
+    }
+
+
+    /**
+     * 根据时间定位消费队列中的查找区间
+     *
+     * @return [low, high]，消息存储时间单调时，最接近timestamp的消息一定在区间内
+     */
+    public long[] findRange(final long timestamp, final long minCqOffset, final long maxCqOffset) {
+        long low = minCqOffset;
+        long high = maxCqOffset;
+
+        final long sampleTotal = (this.mappedFileQueue.getMaxOffset() - this.mappedFileQueue.getMinOffset())
+                / TimeIndexUnitSize;
+        if (sampleTotal > 0) {
+            // 第一个时间不小于timestamp的采样点，其前一个采样点为下界
+            long lower = this.searchSample(timestamp, false, sampleTotal);
+            if (lower > 0) {
+                long[] sample = this.getSample(lower - 1);
+                if (sample != null) {
+                    low = Math.max(low, sample[0]);
+                }
+            }
+
+            // 第一个时间大于timestamp的采样点为上界
+            long upper = this.searchSample(timestamp, true, sampleTotal);
+            if (upper < sampleTotal) {
+                long[] sample = this.getSample(upper);
+                if (sample != null) {
+                    high = Math.min(high, sample[0]);
+                }
+            }
+        }
+
+        if (low > high) {
+            low = minCqOffset;
+            high = maxCqOffset;
+        }
+
+        return new long[] { low, high };
+    }
+
+
+    /**
+     * @param afterTimestamp true查找第一个时间大于timestamp的采样点，false查找第一个时间不小于timestamp的采样点
+     * @return 采样点序号，找不到或者采样点已被删除时返回sampleTotal
+     */
+    private long searchSample(final long timestamp, final boolean afterTimestamp, final long sampleTotal) {
+        long low = 0;
+        long high = sampleTotal;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long[] sample = this.getSample(mid);
+            if (null == sample) {
+                return sampleTotal;
+            }
+
+            if (afterTimestamp ? sample[1] <= timestamp : sample[1] < timestamp) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * @return [逻辑Offset, 存储时间]，采样点不存在时返回null
+     */
+    private long[] getSample(final long index) {
+        long offset = this.mappedFileQueue.getMinOffset() + index * TimeIndexUnitSize;
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+        if (mappedFile != null) {
+            SelectMappedBufferResult result =
+                    mappedFile.selectMappedBuffer((int) (offset % this.mappedFileQueue.getMappedFileSize()));
+            if (result != null) {
+                try {
+                    if (result.getSize() >= TimeIndexUnitSize) {
+                        ByteBuffer byteBuffer = result.getByteBuffer();
+                        return new long[] { byteBuffer.getLong(), byteBuffer.getLong() };
+                    }
+                }
+                finally {
+                    result.release();
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 消费队列截断后，删除逻辑Offset不小于maxCqOffset的采样点
+     */
+    public void truncateDirty(final long maxCqOffset) {
+        final long sampleTotal = (this.mappedFileQueue.getMaxOffset() - this.mappedFileQueue.getMinOffset())
+                / TimeIndexUnitSize;
+        long low = 0;
+        long high = sampleTotal;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long[] sample = this.getSample(mid);
+            if (sample != null && sample[0] < maxCqOffset) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        if (low < sampleTotal) {
+            final long truncateOffset = this.mappedFileQueue.getMinOffset() + low * TimeIndexUnitSize;
+            this.mappedFileQueue.truncateDirtyFiles(truncateOffset);
+
+            // 清空截断位置之后的数据，防止再次恢复时被当作有效采样点
+            MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(truncateOffset);
+            if (mappedFile != null) {
+                ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+                final int mappedFileSize = this.mappedFileQueue.getMappedFileSize();
+                for (int pos = (int) (truncateOffset % mappedFileSize); pos < mappedFileSize; pos += 8) {
+                    byteBuffer.putLong(pos, 0);
+                }
+            }
+
+            long[] last = low > 0 ? this.getSample(low - 1) : null;
+            this.lastSampleOffset = last != null ? last[0] : -1;
+            log.info("truncate consume queue time index " + this.topic + "-" + this.queueId + ", max offset "
+                    + maxCqOffset);
+        }
+    }
+
+
+    /**
+     * 删除所有采样点均小于minCqOffset的文件
+     */
+    public int deleteExpiredFile(final long minCqOffset) {
+        return this.mappedFileQueue.deleteExpiredFileByOffset(minCqOffset, TimeIndexUnitSize);
+    }
+
+
+    public boolean commit(final int flushLeastPages) {
+        return this.mappedFileQueue.commit(flushLeastPages);
+    }
+
+
+    public void destroy() {
+        this.lastSampleOffset = -1;
+        this.mappedFileQueue.destroy();
+    }
+}
@@ -17,6 +17,8 @@ package com.alibaba.rocketmq.store;
 
 import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
 
+import java.util.Map;
+
 
 /**
  * 消息过滤规则实现
@@ -42,4 +44,50 @@ public class DefaultMessageFilter implements MessageFilter {
         return subscriptionData.getCodeSet().contains((int) tagsCode);
     }
 
+
+    @Override
+    public boolean isMessageMatched(SubscriptionData subscriptionData, long tagsCode,
+            ConsumeQueueExt.CqExtUnit cqExtUnit) {
+        if (!this.isMessageMatched(subscriptionData, tagsCode)) {
+            return false;
+        }
+
+        // 没有扩展单元，或者属性未记录在扩展文件中，无法判断，留给isPropertiesMatched确认
+        if (null == subscriptionData || null == cqExtUnit || null == subscriptionData.getPropertyFilter()) {
+            return true;
+        }
+
+        // 哈希不同一定不匹配，哈希相同可能是冲突
+        for (Map.Entry<String, String> entry : subscriptionData.getPropertyFilter().entrySet()) {
+            if (cqExtUnit.isPropertyRecorded(entry.getKey())
+                    && !cqExtUnit.isPropertyEquals(entry.getKey(), entry.getValue())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    @Override
+    public boolean isPropertiesMatched(SubscriptionData subscriptionData, Map<String, String> properties) {
+        if (null == subscriptionData || null == subscriptionData.getPropertyFilter()
+                || subscriptionData.getPropertyFilter().isEmpty()) {
+            return true;
+        }
+
+        if (null == properties) {
+            return false;
+        }
+
+        for (Map.Entry<String, String> entry : subscriptionData.getPropertyFilter().entrySet()) {
+            String value = properties.get(entry.getKey());
+            if (null == value || !value.equals(entry.getValue())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
 }
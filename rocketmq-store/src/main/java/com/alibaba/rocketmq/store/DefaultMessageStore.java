@@ -15,6 +15,7 @@
  */
 package com.alibaba.rocketmq.store;
 
+import com.alibaba.rocketmq.common.MixAll;
 import com.alibaba.rocketmq.common.ServiceThread;
 import com.alibaba.rocketmq.common.SystemClock;
 import com.alibaba.rocketmq.common.ThreadFactoryImpl;
@@ -26,6 +27,7 @@ import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
 import com.alibaba.rocketmq.common.running.RunningStats;
 import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
+import com.alibaba.rocketmq.store.compaction.CompactionService;
 import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
@@ -33,7 +35,9 @@ import com.alibaba.rocketmq.store.ha.HAService;
 import com.alibaba.rocketmq.store.index.IndexService;
 import com.alibaba.rocketmq.store.index.QueryOffsetResult;
 import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.timer.TimerMessageService;
 import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import com.alibaba.rocketmq.store.util.MPSCRingBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,14 +47,19 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -72,6 +81,8 @@ public class DefaultMessageStore implements MessageStore {
     private final MessageStoreConfig messageStoreConfig;
     // CommitLog
     private final CommitLog commitLog;
+    // CommitLog分区，未开启多分区时只有commitLog一个
+    private final CommitLog[] commitLogPartitions;
     // ConsumeQueue集合
     private final ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, ConsumeQueue>> consumeQueueTable;
     // 逻辑队列刷盘服务
@@ -80,18 +91,32 @@ public class DefaultMessageStore implements MessageStore {
     private final CleanCommitLogService cleanCommitLogService;
     // 清理逻辑文件服务
     private final CleanConsumeQueueService cleanConsumeQueueService;
+    // 解除空闲逻辑文件映射服务
+    private final UnmapIdleConsumeQueueService unmapIdleConsumeQueueService;
     // 分发消息索引服务
     private final DispatchMessageService dispatchMessageService;
     // 消息索引服务
     private final IndexService indexService;
     // 预分配MappedFile对象服务
     private final AllocateMappedFileService allocateMappedFileService;
+    // CommitLog写缓冲区池
+    private final TransientStorePool transientStorePool;
     // 从物理队列解析消息重新发送到逻辑队列
     private final ReputMessageService reputMessageService;
     // HA服务
     private final HAService haService;
     // 定时服务
     private final ScheduleMessageService scheduleMessageService;
+    // 任意投递时间的定时消息服务，未开启时为null
+    private final TimerMessageService timerMessageService;
+    // 按KEYS压缩Topic的服务
+    private final CompactionService compactionService;
+    // Pagecache驻留跟踪服务，未开启时为null
+    private final PageCacheResidencyTracker pageCacheResidencyTracker;
+    // 消费落后时的CommitLog预读服务，未开启时为null
+    private final ReadAheadService readAheadService;
+    // CommitLog文件增量回收服务，未开启增量删除时为null
+    private final FileReclaimService fileReclaimService;
     // 运行时数据统计
     private final StoreStatsService storeStatsService;
     // 运行过程标志位
@@ -102,6 +127,10 @@ public class DefaultMessageStore implements MessageStore {
     private volatile boolean shutdown = true;
     // 存储检查点
     private StoreCheckpoint storeCheckpoint;
+    // 启动加载、恢复各阶段耗时
+    private final StoreRecoverStats storeRecoverStats = new StoreRecoverStats();
+    // 并行恢复线程池，仅在load过程中存在
+    private volatile ForkJoinPool recoverPool;
     // 权限控制后，打印间隔次数
     private AtomicLong printTimes = new AtomicLong(0);
     // 存储层的定时线程
@@ -117,13 +146,30 @@ public class DefaultMessageStore implements MessageStore {
                                final BrokerStatsManager brokerStatsManager) throws IOException {
         this.messageStoreConfig = messageStoreConfig;
         this.brokerStatsManager = brokerStatsManager;
+        this.transientStorePool = new TransientStorePool(messageStoreConfig);
         this.allocateMappedFileService = new AllocateMappedFileService(this);
-        this.commitLog = new CommitLog(this);
+        if (messageStoreConfig.isCommitLogPartitionEnable()) {
+            String[] paths = commitLogPartitionPaths(messageStoreConfig);
+            int partitionNums = paths.length;
+            this.commitLogPartitions = new CommitLog[partitionNums];
+            for (int i = 0; i < partitionNums; i++) {
+                this.commitLogPartitions[i] = new CommitLog(this, i, paths[i]);
+            }
+            this.commitLog = this.commitLogPartitions[0];
+            log.info("commit log partition enabled, partition nums: {}", partitionNums);
+            if (partitionNums > 1) {
+                log.warn("commit log partition enabled, slave connections will be rejected");
+            }
+        } else {
+            this.commitLog = new CommitLog(this);
+            this.commitLogPartitions = new CommitLog[] { this.commitLog };
+        }
         this.consumeQueueTable = new ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, ConsumeQueue>>(32);
 
         this.flushConsumeQueueService = new FlushConsumeQueueService();
         this.cleanCommitLogService = new CleanCommitLogService();
         this.cleanConsumeQueueService = new CleanConsumeQueueService();
+        this.unmapIdleConsumeQueueService = new UnmapIdleConsumeQueueService();
         this.dispatchMessageService = new DispatchMessageService(this.messageStoreConfig.getPutMsgIndexHighWater());
         this.storeStatsService = new StoreStatsService();
         this.indexService = new IndexService(this);
@@ -145,6 +191,40 @@ public class DefaultMessageStore implements MessageStore {
                 this.scheduleMessageService = null;
         }
 
+        if (this.messageStoreConfig.isTimerWheelEnable()) {
+            this.timerMessageService = new TimerMessageService(this);
+        } else {
+            this.timerMessageService = null;
+        }
+
+        if (this.messageStoreConfig.getCompactedTopics().trim().length() > 0) {
+            this.compactionService = new CompactionService(this);
+        } else {
+            this.compactionService = null;
+        }
+
+        if (this.messageStoreConfig.getPageCacheResidencySampleInterval() > 0) {
+            this.pageCacheResidencyTracker = new PageCacheResidencyTracker(this);
+        } else {
+            this.pageCacheResidencyTracker = null;
+        }
+
+        if (this.messageStoreConfig.getReadAheadBytesOnMessageInDisk() > 0) {
+            this.readAheadService = new ReadAheadService(this);
+        } else {
+            this.readAheadService = null;
+        }
+
+        if (this.messageStoreConfig.isCommitLogIncrementalDeleteEnable()) {
+            this.fileReclaimService = new FileReclaimService(this.messageStoreConfig);
+        } else {
+            this.fileReclaimService = null;
+        }
+
+        if (messageStoreConfig.isTransientStorePoolEnable()) {
+            this.transientStorePool.init();
+        }
+
         // load过程依赖此服务，所以提前启动
         this.allocateMappedFileService.start();
         this.dispatchMessageService.start();
@@ -157,9 +237,17 @@ public class DefaultMessageStore implements MessageStore {
         ConcurrentHashMap<String, ConcurrentHashMap<Integer, ConsumeQueue>> tables =
                 DefaultMessageStore.this.consumeQueueTable;
 
+        // 多分区时只截断写入该分区的队列
+        final CommitLog partition = this.getCommitLog(phyOffset);
+        if (null == partition) {
+            return;
+        }
+
         for (ConcurrentHashMap<Integer, ConsumeQueue> maps : tables.values()) {
             for (ConsumeQueue logic : maps.values()) {
-                logic.truncateDirtyLogicFiles(phyOffset);
+                if (this.getCommitLog(logic.getTopic(), logic.getQueueId()) == partition) {
+                    logic.truncateDirtyLogicFiles(phyOffset);
+                }
             }
         }
     }
@@ -173,6 +261,11 @@ public class DefaultMessageStore implements MessageStore {
     public boolean load() {
         boolean result = true;
 
+        this.storeRecoverStats.begin();
+        if (this.messageStoreConfig.isRecoverConcurrently()) {
+            this.recoverPool = new ForkJoinPool(Math.max(1, this.messageStoreConfig.getRecoverThreadPoolNums()));
+        }
+
         try {
             boolean lastExitOK = !this.isTempFileExist();
             log.info("last shutdown {}", (lastExitOK ? "normally" : "abnormally"));
@@ -184,25 +277,47 @@ public class DefaultMessageStore implements MessageStore {
                 result = result && this.scheduleMessageService.load();
             }
 
+            if (null != this.timerMessageService) {
+                result = result && this.timerMessageService.load();
+            }
+
+            if (null != this.compactionService) {
+                result = result && this.compactionService.load();
+            }
+
             // load Commit Log
-            result = result && this.commitLog.load();
+            result = result && this.checkCommitLogPartitions();
+            for (CommitLog partition : this.commitLogPartitions) {
+                result = result && partition.load();
+            }
+            this.storeRecoverStats.phaseEnd("loadCommitLog");
 
             // load Consume Queue
             result = result && this.loadConsumeQueue();
+            this.storeRecoverStats.phaseEnd("loadConsumeQueue");
 
             if (result) {
                 this.storeCheckpoint = new StoreCheckpoint(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
 
-                this.indexService.load(lastExitOK);
+                result = this.indexService.load(lastExitOK);
+                this.storeRecoverStats.phaseEnd("loadIndex");
+            }
 
+            if (result) {
                 // 尝试恢复数据
                 this.recover(lastExitOK);
 
                 log.info("load over, and the max phy offset = {}", this.getMaxPhyOffset());
+                log.info("load and recover cost {} ms, {}", this.storeRecoverStats.getTotalCost(), this.storeRecoverStats);
             }
         } catch (Exception e) {
             log.error("load exception", e);
             result = false;
+        } finally {
+            if (this.recoverPool != null) {
+                this.recoverPool.shutdown();
+                this.recoverPool = null;
+            }
         }
 
         if (!result) {
@@ -222,6 +337,17 @@ public class DefaultMessageStore implements MessageStore {
             }
         }, 1000 * 60, this.messageStoreConfig.getCleanResourceInterval(), TimeUnit.MILLISECONDS);
 
+        // 映射内存超过上限时解除空闲逻辑文件的映射
+        if (this.messageStoreConfig.getMaxMappedVirtualMemory() > 0) {
+            this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    DefaultMessageStore.this.unmapIdleConsumeQueueService.run();
+                }
+            }, this.messageStoreConfig.getUnmapIdleConsumeQueueInterval(),
+                this.messageStoreConfig.getUnmapIdleConsumeQueueInterval(), TimeUnit.MILLISECONDS);
+        }
+
         // 定时清理完全不使用的队列
         /*
          this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
@@ -242,20 +368,20 @@ public class DefaultMessageStore implements MessageStore {
 
 
     public void cleanExpiredConsumerQueue() {
-        // CommitLog的最小Offset
-        long minCommitLogOffset = this.commitLog.getMinOffset();
-
         Iterator<Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>>> it =
                 this.consumeQueueTable.entrySet().iterator();
         while (it.hasNext()) {
             Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>> next = it.next();
             String topic = next.getKey();
-            if (!topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)) {
+            if (!topic.equals(ScheduleMessageService.SCHEDULE_TOPIC) && !topic.equals(TimerMessageService.TIMER_TOPIC)) {
                 ConcurrentHashMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 Iterator<Entry<Integer, ConsumeQueue>> itQT = queueTable.entrySet().iterator();
                 while (itQT.hasNext()) {
                     Entry<Integer, ConsumeQueue> nextQT = itQT.next();
                     long maxCLOffsetInConsumeQueue = nextQT.getValue().getLastOffset();
+                    // 队列所在CommitLog分区的最小Offset
+                    final CommitLog partition = this.getCommitLog(topic, nextQT.getKey());
+                    long minCommitLogOffset = partition.getMinOffset();
 
                     // maxCLOffsetInConsumeQueue==-1有可能正好是索引文件刚好创建的那一时刻,此时不清除数据
                     if (maxCLOffsetInConsumeQueue == -1) {
@@ -273,8 +399,8 @@ public class DefaultMessageStore implements MessageStore {
                                 minCommitLogOffset,//
                                 maxCLOffsetInConsumeQueue);
 
-                        DefaultMessageStore.this.commitLog.removeQueueFromTopicQueueTable(nextQT.getValue()
-                                .getTopic(), nextQT.getValue().getQueueId());
+                        partition.removeQueueFromTopicQueueTable(nextQT.getValue().getTopic(),
+                                nextQT.getValue().getQueueId());
 
                         nextQT.getValue().destroy();
                         itQT.remove();
@@ -301,7 +427,9 @@ public class DefaultMessageStore implements MessageStore {
         // 在构造函数已经start了。
         // this.dispatchMessageService.start();
         this.flushConsumeQueueService.start();
-        this.commitLog.start();
+        for (CommitLog partition : this.commitLogPartitions) {
+            partition.start();
+        }
         this.storeStatsService.start();
 
         // slave不启动scheduleMessageService避免对消费队列的并发操作
@@ -309,6 +437,26 @@ public class DefaultMessageStore implements MessageStore {
             this.scheduleMessageService.start();
         }
 
+        if (this.timerMessageService != null && SLAVE != messageStoreConfig.getBrokerRole()) {
+            this.timerMessageService.start();
+        }
+
+        if (this.compactionService != null && SLAVE != messageStoreConfig.getBrokerRole()) {
+            this.compactionService.start();
+        }
+
+        if (this.pageCacheResidencyTracker != null) {
+            this.pageCacheResidencyTracker.start();
+        }
+
+        if (this.readAheadService != null) {
+            this.readAheadService.start();
+        }
+
+        if (this.fileReclaimService != null) {
+            this.fileReclaimService.start();
+        }
+
         if (this.reputMessageService != null) {
             this.reputMessageService.setReputFromOffset(this.commitLog.getMaxOffset());
             this.reputMessageService.start();
@@ -342,14 +490,39 @@ public class DefaultMessageStore implements MessageStore {
                 this.scheduleMessageService.shutdown();
             }
 
+            if (this.timerMessageService != null) {
+                this.timerMessageService.shutdown();
+            }
+
+            if (this.compactionService != null) {
+                this.compactionService.shutdown();
+            }
+
+            if (this.pageCacheResidencyTracker != null) {
+                this.pageCacheResidencyTracker.shutdown();
+            }
+
+            if (this.readAheadService != null) {
+                this.readAheadService.shutdown();
+            }
+
+            if (this.fileReclaimService != null) {
+                this.fileReclaimService.shutdown();
+            }
+
             this.haService.shutdown();
 
             this.storeStatsService.shutdown();
             this.dispatchMessageService.shutdown();
             this.indexService.shutdown();
             this.flushConsumeQueueService.shutdown();
-            this.commitLog.shutdown();
+            for (CommitLog partition : this.commitLogPartitions) {
+                partition.shutdown();
+            }
             this.allocateMappedFileService.shutdown();
+            if (this.messageStoreConfig.isTransientStorePoolEnable()) {
+                this.transientStorePool.destroy();
+            }
             if (this.reputMessageService != null) {
                 this.reputMessageService.shutdown();
             }
@@ -363,10 +536,20 @@ public class DefaultMessageStore implements MessageStore {
 
     public void destroy() {
         this.destroyLogics();
-        this.commitLog.destroy();
+        for (CommitLog partition : this.commitLogPartitions) {
+            partition.destroy();
+        }
         this.indexService.destroy();
+        if (this.timerMessageService != null) {
+            this.timerMessageService.destroy();
+        }
+        if (this.compactionService != null) {
+            this.compactionService.destroy();
+        }
         this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
         this.deleteFile(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
+        this.deleteFile(
+            StorePathConfigHelper.getCommitLogPartitionsPath(this.messageStoreConfig.getStorePathRootDir()));
         this.deleteFile(messageStoreConfig.getStorePathRootDir());
     }
 
@@ -380,10 +563,136 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * 销毁写入指定CommitLog分区的逻辑队列
+     */
+    public void destroyLogics(final CommitLog partition) {
+        for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+            for (ConsumeQueue logic : maps.values()) {
+                if (this.getCommitLog(logic.getTopic(), logic.getQueueId()) == partition) {
+                    logic.destroy();
+                }
+            }
+        }
+    }
+
+
     public PutMessageResult putMessage(MessageExtBrokerInner msg) {
+        PutMessageStatus checkStatus = this.checkStoreStatus();
+        if (checkStatus != null) {
+            return new PutMessageResult(checkStatus, null);
+        }
+
+        checkStatus = this.checkMessage(msg);
+        if (checkStatus != null) {
+            return new PutMessageResult(checkStatus, null);
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageResult result = this.selectCommitLog(msg).putMessage(msg);
+        // 性能数据统计
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 1000) {
+            log.warn("putMessage not in lock eclipse time(ms) " + eclipseTime);
+        }
+        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+        this.storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
+
+        if (null == result || !result.isOk()) {
+            this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+        }
+
+        return result;
+    }
+
+
+    public PutMessageFuture putMessageAsync(final MessageExtBrokerInner msg) {
+        PutMessageStatus checkStatus = this.checkStoreStatus();
+        if (checkStatus != null) {
+            return new PutMessageFuture(new PutMessageResult(checkStatus, null));
+        }
+
+        checkStatus = this.checkMessage(msg);
+        if (checkStatus != null) {
+            return new PutMessageFuture(new PutMessageResult(checkStatus, null));
+        }
+
+        final long beginTime = this.getSystemClock().now();
+        PutMessageFuture putMessageFuture = this.selectCommitLog(msg).putMessageAsync(msg);
+        // 性能数据统计，包含等待刷盘及同步双写的时间
+        putMessageFuture.addCallback(new PutMessageCallback() {
+            @Override
+            public void operationComplete(PutMessageResult result) {
+                long eclipseTime = DefaultMessageStore.this.getSystemClock().now() - beginTime;
+                if (eclipseTime > 1000) {
+                    log.warn("putMessageAsync not in lock eclipse time(ms) " + eclipseTime);
+                }
+                DefaultMessageStore.this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+                DefaultMessageStore.this.storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic())
+                        .incrementAndGet();
+
+                if (null == result || !result.isOk()) {
+                    DefaultMessageStore.this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+                }
+            }
+        });
+
+        return putMessageFuture;
+    }
+
+
+    public PutMessageResult putMessages(List<MessageExtBrokerInner> msgs) {
+        PutMessageStatus checkStatus = this.checkStoreStatus();
+        if (checkStatus != null) {
+            return new PutMessageResult(checkStatus, null);
+        }
+
+        if (null == msgs || msgs.isEmpty()) {
+            log.warn("putMessages message batch is empty");
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+
+        final CommitLog partition = this.selectCommitLog(msgs.get(0));
+        for (MessageExtBrokerInner msg : msgs) {
+            checkStatus = this.checkMessage(msg);
+            if (checkStatus != null) {
+                return new PutMessageResult(checkStatus, null);
+            }
+
+            // 整批消息只能写入同一个CommitLog分区
+            if (this.selectCommitLog(msg) != partition) {
+                log.warn("putMessages messages in one batch must belong to the same commit log partition");
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageResult result = partition.putMessages(msgs);
+        // 性能数据统计
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 1000) {
+            log.warn("putMessages not in lock eclipse time(ms) " + eclipseTime + " batch size: " + msgs.size());
+        }
+        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+        for (MessageExtBrokerInner msg : msgs) {
+            this.storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
+        }
+
+        if (null == result || !result.isOk()) {
+            this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+        }
+
+        return result;
+    }
+
+
+    /**
+     * 检查存储是否可写，可写返回null
+     */
+    private PutMessageStatus checkStoreStatus() {
         if (this.shutdown) {
             log.warn("message store has shutdown, so putMessage is forbidden");
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         }
 
         if (BrokerRole.SLAVE == this.messageStoreConfig.getBrokerRole()) {
@@ -392,7 +701,7 @@ public class DefaultMessageStore implements MessageStore {
                 log.warn("message store is slave mode, so putMessage is forbidden ");
             }
 
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         }
 
         if (!this.runningFlags.isWritable()) {
@@ -402,38 +711,45 @@ public class DefaultMessageStore implements MessageStore {
                         + this.runningFlags.getFlagBits());
             }
 
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         } else {
             this.printTimes.set(0);
         }
 
+        return null;
+    }
+
+
+    /**
+     * 校验消息格式，合法返回null
+     */
+    private PutMessageStatus checkMessage(MessageExtBrokerInner msg) {
+        // 在写锁外拒绝，避免写入时按queueId访问队列Offset表越界，或者分配过大的Offset表
+        if (msg.getQueueId() < 0 || msg.getQueueId() >= this.messageStoreConfig.getMaxQueueNumsPerTopic()) {
+            log.warn("putMessage message queueId illegal " + msg.getQueueId());
+            return PutMessageStatus.MESSAGE_ILLEGAL;
+        }
+
+        // 消息中的主机地址只能存放IPv4地址
+        if (!CommitLog.isHostSupported(msg.getBornHost()) || !CommitLog.isHostSupported(msg.getStoreHost())) {
+            log.warn("putMessage message host not IPv4, born host " + msg.getBornHost() + ", store host "
+                    + msg.getStoreHost());
+            return PutMessageStatus.MESSAGE_ILLEGAL;
+        }
+
         // message topic长度校验
         if (msg.getTopic().length() > Byte.MAX_VALUE) {
             log.warn("putMessage message topic length too long " + msg.getTopic().length());
-            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            return PutMessageStatus.MESSAGE_ILLEGAL;
         }
 
         // message properties长度校验
         if (msg.getPropertiesString() != null && msg.getPropertiesString().length() > Short.MAX_VALUE) {
             log.warn("putMessage message properties length too long " + msg.getPropertiesString().length());
-            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
-        }
-
-        long beginTime = this.getSystemClock().now();
-        PutMessageResult result = this.commitLog.putMessage(msg);
-        // 性能数据统计
-        long eclipseTime = this.getSystemClock().now() - beginTime;
-        if (eclipseTime > 1000) {
-            log.warn("putMessage not in lock eclipse time(ms) " + eclipseTime);
-        }
-        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
-        this.storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
-
-        if (null == result || !result.isOk()) {
-            this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+            return PutMessageStatus.MESSAGE_ILLEGAL;
         }
 
-        return result;
+        return null;
     }
 
 
@@ -441,6 +757,28 @@ public class DefaultMessageStore implements MessageStore {
         return systemClock;
     }
 
+
+    /**
+     * 按Tag订阅时，利用消费队列的Tag过滤器跳过一定不匹配的消息块
+     *
+     * @return 跳过之后的逻辑Offset
+     */
+    private long skipUnmatchedBlocks(final ConsumeQueue consumeQueue, final long offset,
+            final SubscriptionData subscriptionData) {
+        // 与DefaultMessageFilter的规则保持一致，只有按Tag过滤时才可以跳过
+        if (null == subscriptionData || subscriptionData.isClassFilterMode()
+                || SubscriptionData.SUB_ALL.equals(subscriptionData.getSubString())) {
+            return offset;
+        }
+
+        long beginOffset = consumeQueue.skipUnmatchedBlocks(offset, subscriptionData.getCodeSet());
+        if (beginOffset > offset) {
+            this.storeStatsService.getGetMessageSkippedByTagFilter().addAndGet(beginOffset - offset);
+        }
+
+        return beginOffset;
+    }
+
     public GetMessageResult getMessage(final String group, final String topic, final int queueId,
                                        final long offset, final int maxMsgNums, final SubscriptionData subscriptionData) {
         if (this.shutdown) {
@@ -467,10 +805,30 @@ public class DefaultMessageStore implements MessageStore {
 
         GetMessageResult getResult = new GetMessageResult();
 
+        // 队列固定写入一个CommitLog分区
+        final CommitLog commitLog = this.getCommitLog(topic, queueId);
+
         // 有个读写锁，所以只访问一次，避免锁开销影响性能
-        final long maxOffsetPy = this.commitLog.getMaxOffset();
+        final long maxOffsetPy = commitLog.getMaxOffset();
 
         ConsumeQueue consumeQueue = findConsumeQueue(topic, queueId);
+        // 压缩Topic已压缩的部分从压缩视图读取
+        if (consumeQueue != null && this.compactionService != null && this.compactionService.isCompactedTopic(topic)) {
+            GetMessageResult compactedResult = this.compactionService.getMessage(topic, queueId, offset, maxMsgNums,
+                    subscriptionData, this.messageFilter);
+            if (compactedResult != null) {
+                if (GetMessageStatus.FOUND == compactedResult.getStatus()) {
+                    this.storeStatsService.getGetMessageTimesTotalFound().incrementAndGet();
+                    this.storeStatsService.getGetMessageTransferredMsgCount().addAndGet(compactedResult.getMessageCount());
+                } else {
+                    this.storeStatsService.getGetMessageTimesTotalMiss().incrementAndGet();
+                }
+                compactedResult.setMinOffset(this.getMinOffsetInQueue(topic, queueId));
+                compactedResult.setMaxOffset(consumeQueue.getMaxOffsetInQueue());
+                return compactedResult;
+            }
+        }
+
         if (consumeQueue != null) {
             minOffset = consumeQueue.getMinOffsetInQueue();
             maxOffset = consumeQueue.getMaxOffsetInQueue();
@@ -508,13 +866,26 @@ public class DefaultMessageStore implements MessageStore {
                     }
                 }
             } else {
-                SelectMappedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
+                // 先按Tag过滤器跳过整块不匹配的消息
+                final long beginOffset = this.skipUnmatchedBlocks(consumeQueue, offset, subscriptionData);
+                SelectMappedBufferResult bufferConsumeQueue =
+                        beginOffset < maxOffset ? consumeQueue.getIndexBuffer(beginOffset) : null;
                 if (bufferConsumeQueue != null) {
                     try {
                         status = GetMessageStatus.NO_MATCHED_MESSAGE;
 
                         long nextPhyFileStartOffset = Long.MIN_VALUE;
                         long maxPhyOffsetPulling = 0;
+                        // 本次拉到的磁盘中的消息之后的CommitLog位置，用于预读
+                        long nextPhyOffsetInDisk = -1;
+
+                        // 按属性订阅时先用扩展单元排除一定不匹配的消息，剩下的再按CommitLog中的属性值确认
+                        final boolean filterByProperty = subscriptionData != null
+                                && subscriptionData.getPropertyFilter() != null
+                                && !subscriptionData.getPropertyFilter().isEmpty();
+                        final boolean filterByExt = filterByProperty && consumeQueue.getConsumeQueueExt() != null;
+                        final ConsumeQueueExt.CqExtUnit cqExtUnit =
+                                filterByExt ? consumeQueue.getConsumeQueueExt().newCqExtUnit() : null;
 
                         int i = 0;
                         final int MaxFilterMessageCount = 16000;
@@ -526,6 +897,11 @@ public class DefaultMessageStore implements MessageStore {
 
                             maxPhyOffsetPulling = offsetPy;
 
+                            // 消息尚未从写缓冲区转移到文件，暂不可读
+                            if (offsetPy + sizePy > maxOffsetPy) {
+                                break;
+                            }
+
                             // 说明物理文件正在被删除
                             if (nextPhyFileStartOffset != Long.MIN_VALUE) {
                                 if (offsetPy < nextPhyFileStartOffset)
@@ -533,7 +909,7 @@ public class DefaultMessageStore implements MessageStore {
                             }
 
                             // 判断是否拉磁盘数据
-                            boolean isInDisk = checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
+                            boolean isInDisk = this.checkInDisk(topic, commitLog, offsetPy, sizePy, maxOffsetPy);
                             // 此批消息达到上限了
                             if (this.isTheBatchFull(sizePy, maxMsgNums, getResult.getBufferTotalSize(),
                                     getResult.getMessageCount(), isInDisk)) {
@@ -541,14 +917,46 @@ public class DefaultMessageStore implements MessageStore {
                             }
 
                             // 消息过滤
-                            if (this.messageFilter.isMessageMatched(subscriptionData, tagsCode)) {
-                                SelectMappedBufferResult selectResult = this.commitLog.getMessage(offsetPy, sizePy);
+                            boolean matched;
+                            if (filterByExt) {
+                                boolean hasExt =
+                                        consumeQueue.getExt(beginOffset + i / ConsumeQueue.CQStoreUnitSize, cqExtUnit);
+                                matched = this.messageFilter.isMessageMatched(subscriptionData, tagsCode,
+                                    hasExt ? cqExtUnit : null);
+                            } else {
+                                matched = this.messageFilter.isMessageMatched(subscriptionData, tagsCode);
+                            }
+
+                            if (matched) {
+                                // 冷数据通过FileChannel读取，不在拉消息线程中触发缺页，也不阻塞文件删除
+                                final boolean coldRead =
+                                        isInDisk && this.messageStoreConfig.isColdReadByFileChannelEnable();
+                                SelectMappedBufferResult selectResult =
+                                        coldRead ? commitLog.readMessage(offsetPy, sizePy) : commitLog.getMessage(
+                                            offsetPy, sizePy);
+                                if (selectResult != null && filterByProperty
+                                        && !this.messageFilter.isPropertiesMatched(subscriptionData,
+                                            MessageDecoder.decodeProperties(selectResult.getByteBuffer()))) {
+                                    selectResult.release();
+                                    if (getResult.getBufferTotalSize() == 0) {
+                                        status = GetMessageStatus.NO_MATCHED_MESSAGE;
+                                    }
+                                    continue;
+                                }
+
                                 if (selectResult != null) {
                                     this.storeStatsService.getGetMessageTransferredMsgCount().incrementAndGet();
+                                    if (coldRead) {
+                                        this.storeStatsService.getGetMessageColdReadCount().incrementAndGet();
+                                    }
                                     getResult.addMessage(selectResult);
                                     status = GetMessageStatus.FOUND;
                                     nextPhyFileStartOffset = Long.MIN_VALUE;
 
+                                    if (isInDisk) {
+                                        nextPhyOffsetInDisk = offsetPy + sizePy;
+                                    }
+
                                     // 统计读取磁盘落后情况
                                     if (isInDisk && null != brokerStatsManager) {
                                         long fallBehind = consumeQueue.getMaxPhysicOffset() - offsetPy;
@@ -560,7 +968,7 @@ public class DefaultMessageStore implements MessageStore {
                                     }
 
                                     // 物理文件正在被删除，尝试跳过
-                                    nextPhyFileStartOffset = this.commitLog.rollNextFile(offsetPy);
+                                    nextPhyFileStartOffset = commitLog.rollNextFile(offsetPy);
                                 }
                             } else {
                                 if (getResult.getBufferTotalSize() == 0) {
@@ -573,19 +981,33 @@ public class DefaultMessageStore implements MessageStore {
                             }
                         }
 
-                        nextBeginOffset = offset + (i / ConsumeQueue.CQStoreUnitSize);
+                        nextBeginOffset = beginOffset + (i / ConsumeQueue.CQStoreUnitSize);
+
+                        if (nextPhyOffsetInDisk >= 0 && this.readAheadService != null) {
+                            this.readAheadService.updateCursor(group, topic, queueId, commitLog, nextPhyOffsetInDisk);
+                        }
 
                         // TODO 是否会影响性能，需要测试
-                        long diff = this.getMaxPhyOffset() - maxPhyOffsetPulling;
-                        long memory = (long) (StoreUtil.TotalPhysicalMemorySize * (this.messageStoreConfig.getAccessMessageInMemoryMaxRatio() / 100.0));
-                        getResult.setSuggestPullingFromSlave(diff > memory);
+                        // 有采样数据时按最后一条消息是否在Pagecache中判断
+                        int resident = this.pageCacheResidencyTracker != null
+                                ? this.pageCacheResidencyTracker.checkResident(null, commitLog, maxPhyOffsetPulling, 1) : -1;
+                        if (resident >= 0) {
+                            getResult.setSuggestPullingFromSlave(0 == resident);
+                        } else {
+                            long diff = commitLog.getMaxOffset() - maxPhyOffsetPulling;
+                            long memory = (long) (StoreUtil.TotalPhysicalMemorySize * (this.messageStoreConfig.getAccessMessageInMemoryMaxRatio() / 100.0));
+                            getResult.setSuggestPullingFromSlave(diff > memory);
+                        }
                     } finally {
                         // 必须释放资源
                         bufferConsumeQueue.release();
                     }
+                } else if (beginOffset >= maxOffset) {
+                    status = GetMessageStatus.NO_MATCHED_MESSAGE;
+                    nextBeginOffset = beginOffset;
                 } else {
                     status = GetMessageStatus.OFFSET_FOUND_NULL;
-                    nextBeginOffset = consumeQueue.rollNextFile(offset);
+                    nextBeginOffset = consumeQueue.rollNextFile(beginOffset);
                     log.warn("consumer request topic: " + topic + "offset: " + offset + " minOffset: "
                             + minOffset + " maxOffset: " + maxOffset + ", but access logic queue failed.");
                 }
@@ -638,6 +1060,13 @@ public class DefaultMessageStore implements MessageStore {
     public long getMinOffsetInQueue(String topic, int queueId) {
         ConsumeQueue logic = this.findConsumeQueue(topic, queueId);
         if (logic != null) {
+            // 压缩Topic从压缩视图的第一条消息开始消费，已压缩的部分不再从消费队列读取
+            if (this.compactionService != null && this.compactionService.isCompactedTopic(topic)) {
+                long compactedMinOffset = this.compactionService.getMinOffset(topic, queueId);
+                if (compactedMinOffset >= 0) {
+                    return compactedMinOffset;
+                }
+            }
             return logic.getMinOffsetInQueue();
         }
 
@@ -656,7 +1085,7 @@ public class DefaultMessageStore implements MessageStore {
 
 
     public MessageExt lookMessageByOffset(long commitLogOffset) {
-        SelectMappedBufferResult sbr = this.commitLog.getMessage(commitLogOffset, 4);
+        SelectMappedBufferResult sbr = this.selectOneMessageByOffset(commitLogOffset, 4);
         if (null != sbr) {
             try {
                 // 1 TOTALSIZE
@@ -673,12 +1102,17 @@ public class DefaultMessageStore implements MessageStore {
 
     @Override
     public SelectMappedBufferResult selectOneMessageByOffset(long commitLogOffset) {
-        SelectMappedBufferResult sbr = this.commitLog.getMessage(commitLogOffset, 4);
+        final CommitLog commitLog = this.getCommitLog(commitLogOffset);
+        if (null == commitLog) {
+            return null;
+        }
+
+        SelectMappedBufferResult sbr = commitLog.getMessage(commitLogOffset, 4);
         if (null != sbr) {
             try {
                 // 1 TOTALSIZE
                 int size = sbr.getByteBuffer().getInt();
-                return this.commitLog.getMessage(commitLogOffset, size);
+                return commitLog.getMessage(commitLogOffset, size);
             } finally {
                 sbr.release();
             }
@@ -690,7 +1124,25 @@ public class DefaultMessageStore implements MessageStore {
 
     @Override
     public SelectMappedBufferResult selectOneMessageByOffset(long commitLogOffset, int msgSize) {
-        return this.commitLog.getMessage(commitLogOffset, msgSize);
+        final CommitLog commitLog = this.getCommitLog(commitLogOffset);
+        if (null == commitLog) {
+            return null;
+        }
+
+        return commitLog.getMessage(commitLogOffset, msgSize);
+    }
+
+
+    /**
+     * 消息的存储时间，offset不属于任何分区或者消息不存在时返回-1
+     */
+    public long pickupStoreTimestamp(final long offset, final int size) {
+        final CommitLog commitLog = this.getCommitLog(offset);
+        if (null == commitLog) {
+            return -1;
+        }
+
+        return commitLog.pickupStoreTimestamp(offset, size);
     }
 
 
@@ -725,20 +1177,83 @@ public class DefaultMessageStore implements MessageStore {
             if (this.scheduleMessageService != null) {
                 this.scheduleMessageService.buildRunningStats(result);
             }
+
+            if (this.timerMessageService != null) {
+                this.timerMessageService.buildRunningStats(result);
+            }
+        }
+
+        if (this.compactionService != null) {
+            this.compactionService.buildRunningStats(result);
+        }
+
+        if (this.pageCacheResidencyTracker != null) {
+            this.pageCacheResidencyTracker.buildRunningStats(result);
+        }
+
+        if (this.readAheadService != null) {
+            this.readAheadService.buildRunningStats(result);
+        }
+
+        if (this.fileReclaimService != null) {
+            this.fileReclaimService.buildRunningStats(result);
+        }
+
+        if (this.messageStoreConfig.getMappedFilePoolSize() > 0) {
+            this.allocateMappedFileService.buildRunningStats(result);
         }
 
+        // CommitLog各存储路径的IO统计
+        this.allocateMappedFileService.getStorePathStats().buildRunningStats(result,
+            this.messageStoreConfig.getStorePathCommitLog());
+
+        result.put("totalMappedVirtualMemory", String.valueOf(MappedFile.getTotalMappedVirtualMemory()));
+        result.put("totalMappedFiles", String.valueOf(MappedFile.getTotalMappedFiles()));
+        result.put("unmappedConsumeQueueFiles", String.valueOf(this.unmapIdleConsumeQueueService.getUnmappedFiles()));
+
         result.put(RunningStats.commitLogMinOffset.name(),
                 String.valueOf(DefaultMessageStore.this.getMinPhyOffset()));
+
+        if (this.messageStoreConfig.isTransientStorePoolEnable()) {
+            result.put("transientStorePoolRemain", String.valueOf(this.transientStorePool.remainBufferNumbs()));
+        }
         result.put(RunningStats.commitLogMaxOffset.name(),
                 String.valueOf(DefaultMessageStore.this.getMaxPhyOffset()));
 
+        if (this.commitLogPartitions.length > 1) {
+            for (CommitLog partition : this.commitLogPartitions) {
+                result.put("commitLogPartitionMaxOffset_" + partition.getPartitionId(),
+                        String.valueOf(partition.getMaxOffset()));
+            }
+        }
+
+        this.storeRecoverStats.buildRunningStats(result);
+
+        if (this.reputMessageService != null) {
+            result.put("reputBehindBytes", String.valueOf(this.reputMessageService.behindBytes()));
+            result.put("reputBehindMillis", String.valueOf(this.reputMessageService.behindMillis()));
+        }
+
+        if (this.haService != null && BrokerRole.SLAVE != this.messageStoreConfig.getBrokerRole()) {
+            this.haService.buildRunningStats(result);
+        }
+
         return result;
     }
 
 
+    /**
+     * 所有分区中最大的offset，不分区时即CommitLog的最大offset<br>
+     * HA只同步分区0，因此多分区时Master拒绝Slave接入
+     */
     @Override
     public long getMaxPhyOffset() {
-        return this.commitLog.getMaxOffset();
+        long max = this.commitLog.getMaxOffset();
+        for (CommitLog partition : this.commitLogPartitions) {
+            max = Math.max(max, partition.getMaxOffset());
+        }
+
+        return max;
     }
 
 
@@ -754,7 +1269,7 @@ public class DefaultMessageStore implements MessageStore {
                 try {
                     final long phyOffset = result.getByteBuffer().getLong();
                     final int size = result.getByteBuffer().getInt();
-                    long storeTime = this.getCommitLog().pickupStoreTimestamp(phyOffset, size);
+                    long storeTime = this.pickupStoreTimestamp(phyOffset, size);
                     return storeTime;
                 } catch (Exception e) {
                 } finally {
@@ -776,7 +1291,7 @@ public class DefaultMessageStore implements MessageStore {
                 try {
                     final long phyOffset = result.getByteBuffer().getLong();
                     final int size = result.getByteBuffer().getInt();
-                    long storeTime = this.getCommitLog().pickupStoreTimestamp(phyOffset, size);
+                    long storeTime = this.pickupStoreTimestamp(phyOffset, size);
                     return storeTime;
                 } catch (Exception e) {
                 } finally {
@@ -800,6 +1315,9 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * HA同步读取分区0的数据，多分区时Master拒绝Slave接入
+     */
     @Override
     public SelectMappedBufferResult getCommitLogData(final long offset) {
         if (this.shutdown) {
@@ -876,7 +1394,8 @@ public class DefaultMessageStore implements MessageStore {
                     }
 
                     if (match) {
-                        SelectMappedBufferResult result = this.commitLog.getData(offset, false);
+                        final CommitLog partition = this.getCommitLog(offset);
+                        SelectMappedBufferResult result = partition != null ? partition.getData(offset, false) : null;
                         if (result != null) {
                             int size = result.getByteBuffer().getInt(0);
                             result.getByteBuffer().limit(size);
@@ -918,13 +1437,175 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
-    public CommitLog getCommitLog() {
-        return commitLog;
+    public CommitLog getCommitLog() {
+        return commitLog;
+    }
+
+
+    /**
+     * 根据物理offset找到所属的CommitLog分区
+     */
+    public CommitLog getCommitLog(final long phyOffset) {
+        if (this.commitLogPartitions.length == 1 || phyOffset < 0) {
+            return this.commitLog;
+        }
+
+        long span = CommitLog.partitionOffsetSpan(this.messageStoreConfig.getMappedFileSizeCommitLog());
+        int index = (int) (phyOffset / span);
+        if (index >= this.commitLogPartitions.length) {
+            log.error("phy offset " + phyOffset + " belongs to partition " + index + ", but partition nums is "
+                    + this.commitLogPartitions.length);
+            return null;
+        }
+
+        return this.commitLogPartitions[index];
+    }
+
+
+    /**
+     * 多分区时每个分区的存储目录
+     */
+    private static String[] commitLogPartitionPaths(final MessageStoreConfig messageStoreConfig) {
+        String[] paths = messageStoreConfig.getStorePathCommitLog().trim().split(",");
+        String[] result = new String[Math.min(paths.length, CommitLog.MaxPartitionNums)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = paths[i].trim();
+        }
+
+        return result;
+    }
+
+
+    /**
+     * 分区数及各分区目录决定物理offset属于哪个分区，修改后已有消息无法正确定位，拒绝启动<br>
+     * 文件第一行为分区数，第二行为逗号分隔的各分区目录
+     */
+    private boolean checkCommitLogPartitions() {
+        final String layoutPath =
+                StorePathConfigHelper.getCommitLogPartitionsPath(this.messageStoreConfig.getStorePathRootDir());
+        final String[] paths = this.messageStoreConfig.isCommitLogPartitionEnable()
+                ? commitLogPartitionPaths(this.messageStoreConfig) : new String[0];
+        StringBuilder sb = new StringBuilder();
+        for (String path : paths) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(path);
+        }
+        final String layout = paths.length + "\n" + sb.toString();
+
+        String content = MixAll.file2String(layoutPath);
+        if (content != null && content.trim().length() > 0) {
+            String[] lines = content.trim().split("\n");
+            int storedPartitionNums;
+            try {
+                storedPartitionNums = Integer.parseInt(lines[0].trim());
+            }
+            catch (NumberFormatException e) {
+                log.error("invalid commit log partitions file " + layoutPath + ", content: " + content);
+                return false;
+            }
+
+            // 关闭分区时只能读取分区0，其他分区的消息会丢失
+            if (!this.messageStoreConfig.isCommitLogPartitionEnable()) {
+                if (storedPartitionNums > 1) {
+                    log.error("commit log was written by " + storedPartitionNums
+                            + " partitions, but commit log partition is disabled");
+                    return false;
+                }
+
+                return true;
+            }
+
+            String storedPaths = lines.length > 1 ? lines[1].trim() : "";
+            if (storedPartitionNums != paths.length || !storedPaths.equals(sb.toString())) {
+                log.error("commit log partitions changed from [" + storedPartitionNums + ": " + storedPaths
+                        + "] to [" + paths.length + ": " + sb + "], restore the config " + layoutPath);
+                return false;
+            }
+
+            return true;
+        }
+
+        if (!this.messageStoreConfig.isCommitLogPartitionEnable()) {
+            return true;
+        }
+
+        try {
+            MixAll.string2File(layout, layoutPath);
+        }
+        catch (IOException e) {
+            log.error("write commit log partitions file exception", e);
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 队列固定写入的CommitLog分区
+     */
+    public CommitLog getCommitLog(final String topic, final int queueId) {
+        if (this.commitLogPartitions.length == 1) {
+            return this.commitLog;
+        }
+
+        int hash = (topic.hashCode() & Integer.MAX_VALUE) + queueId;
+        return this.commitLogPartitions[(hash & Integer.MAX_VALUE) % this.commitLogPartitions.length];
+    }
+
+
+    public CommitLog[] getCommitLogPartitions() {
+        return commitLogPartitions;
+    }
+
+
+    /**
+     * 选择消息写入的CommitLog分区，定时消息按照改写后的定时Topic选择
+     */
+    private CommitLog selectCommitLog(final MessageExtBrokerInner msg) {
+        if (this.commitLogPartitions.length == 1) {
+            return this.commitLog;
+        }
+
+        String topic = msg.getTopic();
+        int queueId = msg.getQueueId();
+        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+        if ((tranType == MessageSysFlag.TransactionNotType || tranType == MessageSysFlag.TransactionCommitType)
+                && msg.getDelayTimeLevel() > 0 && this.scheduleMessageService != null) {
+            int delayLevel = Math.min(msg.getDelayTimeLevel(), this.scheduleMessageService.getMaxDelayLevel());
+            topic = ScheduleMessageService.SCHEDULE_TOPIC;
+            queueId = ScheduleMessageService.delayLevel2QueueId(delayLevel);
+        } else if ((tranType == MessageSysFlag.TransactionNotType || tranType == MessageSysFlag.TransactionCommitType)
+                && this.timerMessageService != null
+                && TimerMessageService.getDeliverTimestamp(msg) > 0) {
+            topic = TimerMessageService.TIMER_TOPIC;
+            queueId = 0;
+        }
+
+        return this.getCommitLog(topic, queueId);
+    }
+
+
+    /**
+     * 所有分区中已刷盘的最小消息存储时间，未写入过消息的分区不参与计算
+     */
+    public long getMinFlushedStoreTimestamp() {
+        long min = 0;
+        for (CommitLog partition : this.commitLogPartitions) {
+            long timestamp = partition.getFlushedStoreTimestamp();
+            if (timestamp > 0 && (min == 0 || timestamp < min)) {
+                min = timestamp;
+            }
+        }
+
+        return min;
     }
 
 
     public MessageExt lookMessageByOffset(long commitLogOffset, int size) {
-        SelectMappedBufferResult sbr = this.commitLog.getMessage(commitLogOffset, size);
+        SelectMappedBufferResult sbr = this.selectOneMessageByOffset(commitLogOffset, size);
         if (null != sbr) {
             try {
                 return MessageDecoder.decode(sbr.getByteBuffer(), true, false);
@@ -1048,6 +1729,7 @@ public class DefaultMessageStore implements MessageStore {
                 new File(StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig
                         .getStorePathRootDir()));
         File[] fileTopicList = dirLogic.listFiles();
+        List<ConsumeQueue> logics = new ArrayList<ConsumeQueue>();
         if (fileTopicList != null) {
             // TOPIC 遍历
             for (File fileTopic : fileTopicList) {
@@ -1066,15 +1748,29 @@ public class DefaultMessageStore implements MessageStore {
                                         this.getMessageStoreConfig().getMappedFileSizeConsumeQueue(),//
                                         this);
                         this.putConsumeQueue(topic, queueId, logic);
-                        if (!logic.load()) {
-                            return false;
-                        }
+                        logics.add(logic);
                     }
                 }
             }
         }
 
-        log.info("load logics queue all over, OK");
+        // 各队列文件相互独立，可以并行加载
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(logics.size());
+        for (final ConsumeQueue logic : logics) {
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return logic.load();
+                }
+            });
+        }
+        for (Boolean loadOK : this.invokeRecoverTasks(tasks)) {
+            if (!loadOK) {
+                return false;
+            }
+        }
+
+        log.info("load logics queue all over, OK, queue nums: {}", logics.size());
 
         return true;
     }
@@ -1100,17 +1796,32 @@ public class DefaultMessageStore implements MessageStore {
     private void recover(final boolean lastExitOK) {
         // 先按照正常流程恢复Consume Queue
         this.recoverConsumeQueue();
+        this.storeRecoverStats.phaseEnd("recoverConsumeQueue");
 
-        // 正常数据恢复
-        if (lastExitOK) {
-            this.commitLog.recoverNormally();
-        }
-        // 异常数据恢复，OS CRASH或者JVM CRASH或者机器掉电
-        else {
-            this.commitLog.recoverAbnormally();
+        for (CommitLog partition : this.commitLogPartitions) {
+            // 正常数据恢复
+            if (lastExitOK) {
+                partition.recoverNormally();
+            }
+            // 异常数据恢复，OS CRASH或者JVM CRASH或者机器掉电
+            else {
+                partition.recoverAbnormally();
+            }
         }
 
         // 保证消息都能从DispatchService缓冲队列进入到真正的队列
+        this.waitDispatchOver();
+        this.storeRecoverStats.phaseEnd(lastExitOK ? "recoverCommitLogNormally" : "recoverCommitLogAbnormally");
+
+        this.recoverTopicQueueTable();
+        this.storeRecoverStats.phaseEnd("recoverTopicQueueTable");
+    }
+
+
+    /**
+     * 等待DispatchService缓冲队列中的消息全部进入逻辑队列
+     */
+    void waitDispatchOver() {
         while (this.dispatchMessageService.hasRemainMessage()) {
             try {
                 Thread.sleep(500);
@@ -1118,41 +1829,110 @@ public class DefaultMessageStore implements MessageStore {
             } catch (InterruptedException e) {
             }
         }
-
-        this.recoverTopicQueueTable();
     }
 
 
     private void recoverTopicQueueTable() {
-        HashMap<String/* topic-queueid */, Long/* offset */> table = new HashMap<String, Long>(1024);
-        long minPhyOffset = this.commitLog.getMinOffset();
-        for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
-            for (ConsumeQueue logic : maps.values()) {
-                // 恢复写入消息时，记录的队列offset
-                String key = logic.getTopic() + "-" + logic.getQueueId();
-                table.put(key, logic.getMaxOffsetInQueue());
-                // 恢复每个队列的最小offset
-                logic.correctMinOffset(minPhyOffset);
+        // 每个分区只记录写入该分区的队列
+        for (CommitLog partition : this.commitLogPartitions) {
+            TopicQueueTable table = new TopicQueueTable(1024, this.messageStoreConfig.getMaxQueueNumsPerTopic());
+            long minPhyOffset = partition.getMinOffset();
+            for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+                for (ConsumeQueue logic : maps.values()) {
+                    if (this.getCommitLog(logic.getTopic(), logic.getQueueId()) != partition) {
+                        continue;
+                    }
+
+                    // 队列数上限调小后，超出的队列不能再写入
+                    if (!table.isQueueIdValid(logic.getQueueId())) {
+                        log.error("queueId of " + logic.getTopic() + "-" + logic.getQueueId()
+                                + " exceeds max queue nums per topic " + this.messageStoreConfig.getMaxQueueNumsPerTopic());
+                        logic.correctMinOffset(minPhyOffset);
+                        continue;
+                    }
+
+                    // 恢复写入消息时，记录的队列offset
+                    table.put(logic.getTopic(), logic.getQueueId(), logic.getMaxOffsetInQueue());
+                    // 恢复每个队列的最小offset
+                    logic.correctMinOffset(minPhyOffset);
+                }
             }
-        }
 
-        this.commitLog.setTopicQueueTable(table);
+            partition.setTopicQueueTable(table);
+        }
     }
 
 
     private void recoverConsumeQueue() {
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
         for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
-            for (ConsumeQueue logic : maps.values()) {
-                logic.recover();
+            for (final ConsumeQueue logic : maps.values()) {
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        logic.recover();
+                        return true;
+                    }
+                });
+            }
+        }
+        this.invokeRecoverTasks(tasks);
+    }
+
+
+    /**
+     * 执行恢复任务，开启并行恢复时在recoverPool中执行，否则在当前线程依次执行
+     */
+    <T> List<T> invokeRecoverTasks(final List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        final ForkJoinPool pool = this.recoverPool;
+        try {
+            if (pool != null && tasks.size() > 1) {
+                for (Future<T> future : pool.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            } else {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
             }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("recover task failed", e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("recover task failed", e);
         }
+
+        return results;
+    }
+
+
+    /**
+     * Slave分发物理队列到逻辑队列落后的字节数，Master上为0
+     */
+    public long getReputBehindBytes() {
+        return this.reputMessageService != null ? this.reputMessageService.behindBytes() : 0;
+    }
+
+
+    /**
+     * Slave分发物理队列到逻辑队列落后的时间（单位毫秒），Master上为0
+     */
+    public long getReputBehindMillis() {
+        return this.reputMessageService != null ? this.reputMessageService.behindMillis() : 0;
+    }
+
+
+    public StoreRecoverStats getStoreRecoverStats() {
+        return storeRecoverStats;
     }
 
 
     public void putMessagePositionInfo(String topic, int queueId, long offset, int size, long tagsCode,
-                                       long storeTimestamp, long logicOffset) {
+                                       long storeTimestamp, long logicOffset, Map<String, String> propertiesMap) {
         ConsumeQueue cq = this.findConsumeQueue(topic, queueId);
-        cq.putMessagePositionInfoWrapper(offset, size, tagsCode, storeTimestamp, logicOffset);
+        cq.putMessagePositionInfoWrapper(offset, size, tagsCode, storeTimestamp, logicOffset, propertiesMap);
     }
 
 
@@ -1171,6 +1951,11 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+
     public StoreStatsService getStoreStatsService() {
         return storeStatsService;
     }
@@ -1201,6 +1986,36 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public TimerMessageService getTimerMessageService() {
+        return timerMessageService;
+    }
+
+
+    public CompactionService getCompactionService() {
+        return compactionService;
+    }
+
+
+    public PageCacheResidencyTracker getPageCacheResidencyTracker() {
+        return pageCacheResidencyTracker;
+    }
+
+
+    public FileReclaimService getFileReclaimService() {
+        return fileReclaimService;
+    }
+
+
+    public ReadAheadService getReadAheadService() {
+        return readAheadService;
+    }
+
+
+    UnmapIdleConsumeQueueService getUnmapIdleConsumeQueueService() {
+        return unmapIdleConsumeQueueService;
+    }
+
+
     public RunningFlags getRunningFlags() {
         return runningFlags;
     }
@@ -1256,7 +2071,12 @@ public class DefaultMessageStore implements MessageStore {
                 int destroyMappedFileIntervalForcibly =
                         DefaultMessageStore.this.getMessageStoreConfig()
                                 .getDestroyMappedFileIntervalForcibly();
-                if (DefaultMessageStore.this.commitLog.retryDeleteFirstFile(destroyMappedFileIntervalForcibly)) {
+                boolean deleted = false;
+                for (CommitLog partition : DefaultMessageStore.this.commitLogPartitions) {
+                    deleted |= partition.retryDeleteFirstFile(destroyMappedFileIntervalForcibly);
+                }
+
+                if (deleted) {
                     return true;
                 }
             }
@@ -1299,9 +2119,10 @@ public class DefaultMessageStore implements MessageStore {
                 // 小时转化成毫秒
                 fileReservedTime *= 60 * 60 * 1000;
 
-                deleteCount =
-                        DefaultMessageStore.this.commitLog.deleteExpiredFile(fileReservedTime,
-                                deletePhysicFilesInterval, destroyMappedFileIntervalForcibly, cleanAtOnce);
+                for (CommitLog partition : DefaultMessageStore.this.commitLogPartitions) {
+                    deleteCount += partition.deleteExpiredFile(fileReservedTime, deletePhysicFilesInterval,
+                            destroyMappedFileIntervalForcibly, cleanAtOnce);
+                }
                 if (deleteCount > 0) {
                     return true;
                 }
@@ -1392,6 +2213,19 @@ public class DefaultMessageStore implements MessageStore {
          * 是否可以删除文件，时间是否满足
          */
         private boolean isTimeToDelete() {
+            // 增量删除不集中在deleteWhen，文件过期后即开始删除，删除分散在全天
+            if (DefaultMessageStore.this.fileReclaimService != null) {
+                long fileReservedTime =
+                        DefaultMessageStore.this.getMessageStoreConfig().getFileReservedTime() * 60L * 60 * 1000;
+                for (CommitLog partition : DefaultMessageStore.this.commitLogPartitions) {
+                    if (partition.hasExpiredFile(fileReservedTime)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
             String when = DefaultMessageStore.this.getMessageStoreConfig().getDeleteWhen();
             if (UtilAll.isItTimeToDo(when)) {
                 DefaultMessageStore.log.info("it's time to reclaim disk space, " + when);
@@ -1416,36 +2250,64 @@ public class DefaultMessageStore implements MessageStore {
      * 清理逻辑文件服务
      */
     class CleanConsumeQueueService {
-        private long lastPhysicalMinOffset = 0;
+        // 每个CommitLog分区上一次清理时的最小Offset
+        private final long[] lastPhysicalMinOffsets = new long[DefaultMessageStore.this.commitLogPartitions.length];
 
 
         private void deleteExpiredFiles() {
             int deleteLogicsFilesInterval =
                     DefaultMessageStore.this.getMessageStoreConfig().getDeleteConsumeQueueFilesInterval();
 
-            long minOffset = DefaultMessageStore.this.commitLog.getMinOffset();
-            if (minOffset > this.lastPhysicalMinOffset) {
-                this.lastPhysicalMinOffset = minOffset;
-
-                // 删除逻辑队列文件
-                ConcurrentHashMap<String, ConcurrentHashMap<Integer, ConsumeQueue>> tables =
-                        DefaultMessageStore.this.consumeQueueTable;
+            final CommitLog[] partitions = DefaultMessageStore.this.commitLogPartitions;
+            boolean partitionCleaned = false;
+            for (int i = 0; i < partitions.length; i++) {
+                long minOffset = partitions[i].getMinOffset();
+                if (minOffset > this.lastPhysicalMinOffsets[i]) {
+                    partitionCleaned = true;
+                    this.lastPhysicalMinOffsets[i] = minOffset;
+
+                    // 删除逻辑队列文件
+                    ConcurrentHashMap<String, ConcurrentHashMap<Integer, ConsumeQueue>> tables =
+                            DefaultMessageStore.this.consumeQueueTable;
+
+                    for (ConcurrentHashMap<Integer, ConsumeQueue> maps : tables.values()) {
+                        for (ConsumeQueue logic : maps.values()) {
+                            if (DefaultMessageStore.this.getCommitLog(logic.getTopic(), logic.getQueueId())
+                                    != partitions[i]) {
+                                continue;
+                            }
 
-                for (ConcurrentHashMap<Integer, ConsumeQueue> maps : tables.values()) {
-                    for (ConsumeQueue logic : maps.values()) {
-                        int deleteCount = logic.deleteExpiredFile(minOffset);
+                            int deleteCount = logic.deleteExpiredFile(minOffset);
 
-                        if (deleteCount > 0 && deleteLogicsFilesInterval > 0) {
-                            try {
-                                Thread.sleep(deleteLogicsFilesInterval);
-                            } catch (InterruptedException e) {
+                            if (deleteCount > 0 && deleteLogicsFilesInterval > 0) {
+                                try {
+                                    Thread.sleep(deleteLogicsFilesInterval);
+                                } catch (InterruptedException e) {
+                                }
                             }
                         }
                     }
+
+                    // 删除索引
+                    if (partitions.length == 1) {
+                        DefaultMessageStore.this.indexService.deleteExpiredFile(minOffset);
+                    }
+                }
+            }
+
+            // 多分区时索引文件混合了各分区的Offset，按所有分区中最早的消息时间删除
+            if (partitionCleaned && partitions.length > 1) {
+                long earliestTimestamp = -1;
+                for (CommitLog partition : partitions) {
+                    long timestamp = partition.getEarliestStoreTimestamp();
+                    if (timestamp > 0 && (earliestTimestamp < 0 || timestamp < earliestTimestamp)) {
+                        earliestTimestamp = timestamp;
+                    }
                 }
 
-                // 删除索引
-                DefaultMessageStore.this.indexService.deleteExpiredFile(minOffset);
+                if (earliestTimestamp > 0) {
+                    DefaultMessageStore.this.indexService.deleteExpiredFileByTime(earliestTimestamp);
+                }
             }
         }
 
@@ -1464,6 +2326,89 @@ public class DefaultMessageStore implements MessageStore {
         }
     }
 
+    /**
+     * 解除空闲逻辑文件映射服务，消费队列文件的映射内存超过上限时按最后访问时间从早到晚解除映射，直到回到上限以内<br>
+     * 被解除映射的文件在下次访问时重新映射
+     */
+    class UnmapIdleConsumeQueueService {
+        private final AtomicLong unmappedFiles = new AtomicLong(0);
+
+
+        /**
+         * @return 本次解除映射的文件个数
+         */
+        public int unmapIdleFiles(final long maxMappedVirtualMemory) {
+            // 只统计消费队列文件，CommitLog的映射无法解除，计入后会让上限永远无法满足
+            long mappedVirtualMemory = 0;
+            for (ConcurrentHashMap<Integer, ConsumeQueue> maps : DefaultMessageStore.this.consumeQueueTable.values()) {
+                for (ConsumeQueue logic : maps.values()) {
+                    mappedVirtualMemory += logic.getMappedVirtualMemory();
+                }
+            }
+
+            long overflow = mappedVirtualMemory - maxMappedVirtualMemory;
+            if (overflow <= 0) {
+                return 0;
+            }
+
+            List<MappedFile> candidates = new ArrayList<MappedFile>();
+            for (ConcurrentHashMap<Integer, ConsumeQueue> maps : DefaultMessageStore.this.consumeQueueTable.values()) {
+                for (ConsumeQueue logic : maps.values()) {
+                    logic.collectUnmapCandidates(candidates);
+                }
+            }
+
+            Collections.sort(candidates, new Comparator<MappedFile>() {
+                @Override
+                public int compare(MappedFile o1, MappedFile o2) {
+                    long t1 = o1.getLastAccessTimestamp();
+                    long t2 = o2.getLastAccessTimestamp();
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+
+            int count = 0;
+            for (MappedFile mappedFile : candidates) {
+                if (overflow <= 0) {
+                    break;
+                }
+
+                // 正在被读或者还有未刷盘数据的文件跳过
+                if (mappedFile.unmapIfIdle()) {
+                    overflow -= mappedFile.getFileSize();
+                    count++;
+                }
+            }
+
+            if (count > 0) {
+                this.unmappedFiles.addAndGet(count);
+                DefaultMessageStore.log.info("unmap {} idle consume queue files, consume queue mapped virtual memory {}",
+                    count, maxMappedVirtualMemory + overflow);
+            }
+
+            return count;
+        }
+
+
+        public void run() {
+            try {
+                this.unmapIdleFiles(DefaultMessageStore.this.messageStoreConfig.getMaxMappedVirtualMemory());
+            } catch (Exception e) {
+                DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+
+        public long getUnmappedFiles() {
+            return unmappedFiles.get();
+        }
+
+
+        public String getServiceName() {
+            return UnmapIdleConsumeQueueService.class.getSimpleName();
+        }
+    }
+
     /**
      * 逻辑队列刷盘服务
      */
@@ -1550,96 +2495,152 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     /**
-     * 分发消息索引服务
+     * 分发消息索引服务<br>
+     * CommitLog写入线程将请求放入无锁环形队列，本线程按写入顺序取出，整批交给索引服务，
+     * 并按Topic、QueueId哈希分发给多个DispatchWorker构建逻辑队列，同一队列的请求始终由同一个Worker顺序处理
      */
     class DispatchMessageService extends ServiceThread {
-        private volatile List<DispatchRequest> requestsWrite;
-        private volatile List<DispatchRequest> requestsRead;
+        // 每次从环形队列最多取出的请求数
+        private static final int DispatchBatchSize = 1024;
+        private final MPSCRingBuffer<DispatchRequest> requestRing;
+        private final DispatchWorker[] workers;
+        private final DispatchRequest[] batchRequests = new DispatchRequest[DispatchBatchSize];
+        // 已放入环形队列，尚未写入逻辑队列的请求数
+        private final AtomicLong remainRequests = new AtomicLong(0);
+        // 因队列满被反压的次数
+        private final AtomicLong backpressureTimes = new AtomicLong(0);
+        // 本线程是否正在等待新请求，生产者据此决定是否唤醒，避免每条消息都加锁通知
+        private volatile boolean waitingRequests = false;
+        // 最后一个分发给Worker的请求的存储时间
+        private volatile long lastRoutedTimestamp = 0;
 
 
         public DispatchMessageService(int putMsgIndexHighWater) {
-            putMsgIndexHighWater *= 1.5;
-            this.requestsWrite = new ArrayList<DispatchRequest>(putMsgIndexHighWater);
-            this.requestsRead = new ArrayList<DispatchRequest>(putMsgIndexHighWater);
+            this.requestRing = new MPSCRingBuffer<DispatchRequest>(putMsgIndexHighWater);
+            int workerNums = Math.max(1, DefaultMessageStore.this.getMessageStoreConfig().getDispatchThreadNums());
+            this.workers = new DispatchWorker[workerNums];
+            for (int i = 0; i < workerNums; i++) {
+                this.workers[i] = new DispatchWorker(i, Math.max(DispatchBatchSize, putMsgIndexHighWater / workerNums));
+            }
         }
 
 
         public boolean hasRemainMessage() {
-            List<DispatchRequest> reqs = this.requestsWrite;
-            if (reqs != null && !reqs.isEmpty()) {
-                return true;
-            }
-
-            reqs = this.requestsRead;
-            if (reqs != null && !reqs.isEmpty()) {
-                return true;
-            }
-
-            return false;
+            return this.remainRequests.get() > 0;
         }
 
 
         public void putRequest(final DispatchRequest dispatchRequest) {
-            int requestsWriteSize = 0;
-            int putMsgIndexHighWater = DefaultMessageStore.this.getMessageStoreConfig().getPutMsgIndexHighWater();
-            synchronized (this) {
-                this.requestsWrite.add(dispatchRequest);
-                requestsWriteSize = this.requestsWrite.size();
-                if (!this.hasNotified) {
-                    this.hasNotified = true;
-                    this.notify();
+            this.remainRequests.incrementAndGet();
+            try {
+                // 这里做流控，环形队列满时阻塞CommitLog写入，防止消费队列被冲垮
+                int waitTimes = this.requestRing.put(dispatchRequest);
+                if (waitTimes > 0) {
+                    this.backpressureTimes.incrementAndGet();
+                    if (log.isDebugEnabled()) {
+                        log.debug("Message index buffer is full, capacity " + this.requestRing.getCapacity()
+                                + ", wait times " + waitTimes);
+                    }
                 }
+            } catch (InterruptedException e) {
+                this.remainRequests.decrementAndGet();
+                log.error("putRequest dispatch request interrupted, " + dispatchRequest, e);
+                return;
             }
 
-            DefaultMessageStore.this.getStoreStatsService().setDispatchMaxBuffer(requestsWriteSize);
+            if (this.waitingRequests) {
+                this.wakeUp();
+            }
+        }
 
-            // 这里主动做流控，防止CommitLog写入太快，导致消费队列被冲垮
-            if (requestsWriteSize > putMsgIndexHighWater) {
-                try {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Message index buffer size " + requestsWriteSize + " > high water "
-                                + putMsgIndexHighWater);
-                    }
 
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                }
+        @Override
+        public void start() {
+            for (DispatchWorker worker : this.workers) {
+                worker.start();
             }
+            super.start();
         }
 
 
-        private void swapRequests() {
-            List<DispatchRequest> tmp = this.requestsWrite;
-            this.requestsWrite = this.requestsRead;
-            this.requestsRead = tmp;
+        @Override
+        public void shutdown() {
+            super.shutdown();
+            // 本线程退出前已分发完环形队列中的请求，Worker退出前会处理完各自的队列
+            for (DispatchWorker worker : this.workers) {
+                worker.shutdown();
+            }
         }
 
 
-        private void doDispatch() {
-            if (!this.requestsRead.isEmpty()) {
-                for (DispatchRequest req : this.requestsRead) {
+        public long getBackpressureTimes() {
+            return backpressureTimes.get();
+        }
 
-                    final int tranType = MessageSysFlag.getTransactionValue(req.getSysFlag());
-                    // 1、分发消息位置信息到ConsumeQueue
-                    switch (tranType) {
-                        case MessageSysFlag.TransactionNotType:
-                        case MessageSysFlag.TransactionCommitType:
-                            // 将请求发到具体的Consume Queue
-                            DefaultMessageStore.this.putMessagePositionInfo(req.getTopic(), req.getQueueId(),
-                                    req.getCommitLogOffset(), req.getMsgSize(), req.getTagsCode(),
-                                    req.getStoreTimestamp(), req.getConsumeQueueOffset());
-                            break;
-                        case MessageSysFlag.TransactionPreparedType:
-                        case MessageSysFlag.TransactionRollbackType:
-                            break;
-                    }
+
+        private int selectWorker(final DispatchRequest req) {
+            int hash = req.getTopic().hashCode() * 31 + req.getQueueId();
+            return (hash & Integer.MAX_VALUE) % this.workers.length;
+        }
+
+
+        /**
+         * @return 本次取出的请求数
+         */
+        private int doDispatch() {
+            DefaultMessageStore.this.getStoreStatsService().setDispatchMaxBuffer(this.requestRing.size());
+
+            int size = 0;
+            DispatchRequest req;
+            while (size < DispatchBatchSize && (req = this.requestRing.poll()) != null) {
+                this.batchRequests[size++] = req;
+
+                final int tranType = MessageSysFlag.getTransactionValue(req.getSysFlag());
+                // 1、分发消息位置信息到ConsumeQueue
+                switch (tranType) {
+                    case MessageSysFlag.TransactionNotType:
+                    case MessageSysFlag.TransactionCommitType:
+                        // 将请求发到具体的Consume Queue
+                        this.workers[this.selectWorker(req)].putRequest(req);
+                        this.lastRoutedTimestamp = req.getStoreTimestamp();
+                        break;
+                    case MessageSysFlag.TransactionPreparedType:
+                    case MessageSysFlag.TransactionRollbackType:
+                        this.remainRequests.decrementAndGet();
+                        break;
                 }
+            }
 
+            if (size > 0) {
+                // 2、按写入顺序整批分发到索引服务
                 if (DefaultMessageStore.this.getMessageStoreConfig().isMessageIndexEnable()) {
-                    DefaultMessageStore.this.indexService.putRequest(this.requestsRead.toArray());
+                    Object[] indexRequests = new Object[size];
+                    System.arraycopy(this.batchRequests, 0, indexRequests, 0, size);
+                    DefaultMessageStore.this.indexService.putRequest(indexRequests);
+                }
+
+                for (int i = 0; i < size; i++) {
+                    this.batchRequests[i] = null;
+                }
+            }
+
+            return size;
+        }
+
+
+        /**
+         * 多个Worker并行写逻辑队列，只有所有Worker都已处理完的存储时间才能记入checkpoint
+         */
+        private void updateLogicsMsgTimestamp() {
+            long timestamp = this.lastRoutedTimestamp;
+            for (DispatchWorker worker : this.workers) {
+                if (worker.hasRemainRequest()) {
+                    timestamp = Math.min(timestamp, worker.completedTimestamp);
                 }
+            }
 
-                this.requestsRead.clear();
+            if (timestamp > 0) {
+                DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(timestamp);
             }
         }
 
@@ -1649,8 +2650,13 @@ public class DefaultMessageStore implements MessageStore {
 
             while (!this.isStopped()) {
                 try {
-                    this.waitForRunning(0);
-                    this.doDispatch();
+                    if (0 == this.doDispatch()) {
+                        this.waitingRequests = true;
+                        if (this.requestRing.isEmpty()) {
+                            this.waitForRunning(10);
+                        }
+                        this.waitingRequests = false;
+                    }
                 } catch (Exception e) {
                     DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
                 }
@@ -1663,25 +2669,116 @@ public class DefaultMessageStore implements MessageStore {
                 DefaultMessageStore.log.warn("DispatchMessageService Exception, ", e);
             }
 
-            synchronized (this) {
-                this.swapRequests();
+            while (this.doDispatch() > 0) {
+                // 分发完环形队列中剩余的请求
             }
 
-            this.doDispatch();
-
             DefaultMessageStore.log.info(this.getServiceName() + " service end");
         }
 
 
         @Override
-        protected void onWaitEnd() {
-            this.swapRequests();
+        public String getServiceName() {
+            return DispatchMessageService.class.getSimpleName();
         }
 
+        /**
+         * 构建逻辑队列的工作线程，只处理分配给自己的Topic、QueueId
+         */
+        class DispatchWorker extends ServiceThread {
+            private final int index;
+            private final MPSCRingBuffer<DispatchRequest> requestRing;
+            private volatile boolean waitingRequests = false;
+            // 分配给本Worker的请求数，只有DispatchMessageService线程修改
+            private volatile long routedRequests = 0;
+            // 已处理的请求数及最后处理的请求的存储时间，只有本线程修改
+            private volatile long completedRequests = 0;
+            private volatile long completedTimestamp = 0;
+
+
+            public DispatchWorker(final int index, final int capacity) {
+                this.index = index;
+                this.requestRing = new MPSCRingBuffer<DispatchRequest>(capacity);
+                this.thread.setName(this.getServiceName());
+            }
 
-        @Override
-        public String getServiceName() {
-            return DispatchMessageService.class.getSimpleName();
+
+            public boolean hasRemainRequest() {
+                return this.completedRequests < this.routedRequests;
+            }
+
+
+            public void putRequest(final DispatchRequest req) {
+                this.routedRequests++;
+                try {
+                    // Worker处理不过来时阻塞分发线程，进而反压到CommitLog写入
+                    if (this.requestRing.put(req) > 0) {
+                        DispatchMessageService.this.backpressureTimes.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    this.routedRequests--;
+                    DispatchMessageService.this.remainRequests.decrementAndGet();
+                    log.error("putRequest to dispatch worker interrupted, " + req, e);
+                    return;
+                }
+
+                if (this.waitingRequests) {
+                    this.wakeUp();
+                }
+            }
+
+
+            private int doDispatch() {
+                int size = 0;
+                DispatchRequest req;
+                while (size < DispatchBatchSize && (req = this.requestRing.poll()) != null) {
+                    DefaultMessageStore.this.putMessagePositionInfo(req.getTopic(), req.getQueueId(),
+                            req.getCommitLogOffset(), req.getMsgSize(), req.getTagsCode(),
+                            req.getStoreTimestamp(), req.getConsumeQueueOffset(), req.getPropertiesMap());
+                    this.completedTimestamp = req.getStoreTimestamp();
+                    this.completedRequests++;
+                    DispatchMessageService.this.remainRequests.decrementAndGet();
+                    size++;
+                }
+
+                if (size > 0) {
+                    DispatchMessageService.this.updateLogicsMsgTimestamp();
+                }
+
+                return size;
+            }
+
+
+            public void run() {
+                DefaultMessageStore.log.info(this.getServiceName() + " service started");
+
+                while (!this.isStopped()) {
+                    try {
+                        if (0 == this.doDispatch()) {
+                            this.waitingRequests = true;
+                            if (this.requestRing.isEmpty()) {
+                                this.waitForRunning(10);
+                            }
+                            this.waitingRequests = false;
+                        }
+                    } catch (Exception e) {
+                        DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                    }
+                }
+
+                // 正常shutdown时，处理完队列中剩余的请求
+                while (this.doDispatch() > 0) {
+                    // 继续处理
+                }
+
+                DefaultMessageStore.log.info(this.getServiceName() + " service end");
+            }
+
+
+            @Override
+            public String getServiceName() {
+                return DispatchWorker.class.getSimpleName() + "_" + this.index;
+            }
         }
     }
 
@@ -1691,6 +2788,8 @@ public class DefaultMessageStore implements MessageStore {
     class ReputMessageService extends ServiceThread {
         // 从这里开始解析物理队列数据，并分发到逻辑队列
         private volatile long reputFromOffset = 0;
+        // 最近一次追平物理队列的时间
+        private volatile long lastCaughtUpTimestamp = System.currentTimeMillis();
 
 
         public long getReputFromOffset() {
@@ -1703,6 +2802,25 @@ public class DefaultMessageStore implements MessageStore {
         }
 
 
+        /**
+         * 落后物理队列的字节数
+         */
+        public long behindBytes() {
+            return Math.max(0, DefaultMessageStore.this.commitLog.getMaxOffset() - this.reputFromOffset);
+        }
+
+
+        /**
+         * 落后物理队列的时间，即从上次追平至今的时间，已追平时为0
+         */
+        public long behindMillis() {
+            if (this.behindBytes() > 0) {
+                return Math.max(0, System.currentTimeMillis() - this.lastCaughtUpTimestamp);
+            }
+
+            return 0;
+        }
+
         private void doReput() {
             for (boolean doNext = true; doNext; ) {
                 SelectMappedBufferResult result = DefaultMessageStore.this.commitLog.getData(reputFromOffset);
@@ -1745,6 +2863,10 @@ public class DefaultMessageStore implements MessageStore {
                     doNext = false;
                 }
             }
+
+            if (this.behindBytes() == 0) {
+                this.lastCaughtUpTimestamp = System.currentTimeMillis();
+            }
         }
 
 
@@ -1754,7 +2876,8 @@ public class DefaultMessageStore implements MessageStore {
 
             while (!this.isStopped()) {
                 try {
-                    this.waitForRunning(1000);
+                    // HA收到数据追加到物理队列后会立即唤醒，这里的超时只是兜底
+                    this.waitForRunning(DefaultMessageStore.this.messageStoreConfig.getReputMessageInterval());
                     this.doReput();
                 } catch (Exception e) {
                     DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
@@ -1791,9 +2914,20 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * 所有分区中最小的offset，没有文件的分区不参与计算
+     */
     @Override
     public long getMinPhyOffset() {
-        return this.commitLog.getMinOffset();
+        long min = -1;
+        for (CommitLog partition : this.commitLogPartitions) {
+            long offset = partition.getMinOffset();
+            if (offset >= 0 && (min < 0 || offset < min)) {
+                min = offset;
+            }
+        }
+
+        return min;
     }
 
 
@@ -1820,7 +2954,8 @@ public class DefaultMessageStore implements MessageStore {
                             cq.getQueueId() //
                     );
 
-                    this.commitLog.removeQueueFromTopicQueueTable(cq.getTopic(), cq.getQueueId());
+                    this.getCommitLog(cq.getTopic(), cq.getQueueId()).removeQueueFromTopicQueueTable(cq.getTopic(),
+                            cq.getQueueId());
                 }
                 it.remove();
 
@@ -1886,6 +3021,22 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * 有mincore采样数据时按实际页驻留情况判断，否则按内存比例估算
+     */
+    private boolean checkInDisk(final String topic, final CommitLog commitLog, final long offsetPy,
+            final int sizePy, final long maxOffsetPy) {
+        if (this.pageCacheResidencyTracker != null) {
+            int resident = this.pageCacheResidencyTracker.checkResident(topic, commitLog, offsetPy, sizePy);
+            if (resident >= 0) {
+                return 0 == resident;
+            }
+        }
+
+        return checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
+    }
+
+
     private boolean checkInDiskByCommitOffset(long offsetPy, long maxOffsetPy) {
         long memory = (long) (StoreUtil.TotalPhysicalMemorySize * (this.messageStoreConfig.getAccessMessageInMemoryMaxRatio() / 100.0));
         return maxOffsetPy - offsetPy > memory;
@@ -1896,7 +3047,7 @@ public class DefaultMessageStore implements MessageStore {
     public boolean checkInDiskByConsumeOffset(final String topic, final int queueId, long consumeOffset) {
 
         // 有个读写锁，所以只访问一次，避免锁开销影响性能
-        final long maxOffsetPy = this.commitLog.getMaxOffset();
+        final long maxOffsetPy = this.getCommitLog(topic, queueId).getMaxOffset();
 
         ConsumeQueue consumeQueue = findConsumeQueue(topic, queueId);
         if (consumeQueue != null) {
@@ -1926,6 +3077,12 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     public void reloadConfiguration() {
+        // 多分区模式下分区与存储目录一一对应，不支持运行时修改
+        if (this.commitLogPartitions.length > 1) {
+            log.warn("commit log partition enabled, ignore store path change");
+            return;
+        }
+
         commitLog.updateCommitLogStorePath();
     }
 
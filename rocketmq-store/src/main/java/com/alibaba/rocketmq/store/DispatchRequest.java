@@ -15,6 +15,8 @@
  */
 package com.alibaba.rocketmq.store;
 
+import java.util.Map;
+
 /**
  * 分发消息位置信息到逻辑队列和索引服务
  * 
@@ -35,6 +37,8 @@ public class DispatchRequest {
      */
     private final int sysFlag;
     private final long preparedTransactionOffset;
+    // 消息属性，写消费队列扩展文件时使用，可能为null
+    private Map<String, String> propertiesMap;
 
 
     public DispatchRequest(//
@@ -143,4 +147,14 @@ public class DispatchRequest {
     public long getPreparedTransactionOffset() {
         return preparedTransactionOffset;
     }
+
+
+    public Map<String, String> getPropertiesMap() {
+        return propertiesMap;
+    }
+
+
+    public void setPropertiesMap(Map<String, String> propertiesMap) {
+        this.propertiesMap = propertiesMap;
+    }
 }
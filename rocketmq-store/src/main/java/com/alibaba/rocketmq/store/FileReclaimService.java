@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * CommitLog文件回收服务，低优先级线程中解除映射，分块限速截断后再删除<br>
+ * 避免一次性unlink大文件和munmap引起的IO与TLB抖动影响写消息
+ */
+public class FileReclaimService extends ServiceThread {
+    // 截断前先改名，进程中途退出后留下的文件不会被当作CommitLog加载
+    public static final String ReclaimFileSuffix = ".reclaim";
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final MessageStoreConfig messageStoreConfig;
+    // 已从队列摘下、等待回收的文件
+    private final LinkedBlockingQueue<MappedFile> reclaimQueue = new LinkedBlockingQueue<MappedFile>();
+    private final AtomicLong reclaimedFiles = new AtomicLong(0);
+    private final AtomicLong truncatedBytes = new AtomicLong(0);
+
+
+    public FileReclaimService(final MessageStoreConfig messageStoreConfig) {
+        this.messageStoreConfig = messageStoreConfig;
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+
+    public void reclaim(final List<MappedFile> files) {
+        if (!files.isEmpty()) {
+            this.reclaimQueue.addAll(files);
+            this.wakeUp();
+        }
+    }
+
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(1000);
+                this.reclaimAll();
+            }
+            catch (Exception e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        // 停止前不再限速，处理完剩余文件，仍被引用的文件留到重启后重新删除
+        this.reclaimAll();
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    private void reclaimAll() {
+        MappedFile mappedFile;
+        while ((mappedFile = this.reclaimQueue.peek()) != null) {
+            if (!mappedFile.shutdownAndClose(this.messageStoreConfig.getDestroyMappedFileIntervalForcibly())) {
+                // 还有读者持有引用，下次重试
+                return;
+            }
+
+            this.reclaimQueue.poll();
+            this.truncateAndDelete(mappedFile);
+        }
+    }
+
+
+    private void truncateAndDelete(final MappedFile mappedFile) {
+        final long beginTime = System.currentTimeMillis();
+        File file = new File(mappedFile.getFileName());
+        final File reclaimFile = new File(mappedFile.getFileName() + ReclaimFileSuffix);
+        if (!file.renameTo(reclaimFile)) {
+            // 不能在原文件上截断，中途退出后会留下被截短的CommitLog，直接删除
+            boolean result = file.delete();
+            this.reclaimedFiles.incrementAndGet();
+            log.warn("rename " + file.getPath() + " for reclaim Failed, delete directly "
+                    + (result ? "OK" : "Failed"));
+            return;
+        }
+
+        final int chunkSize = this.messageStoreConfig.getDeleteTruncateChunkSize();
+        final long bytesPerSecond = this.messageStoreConfig.getDeleteTruncateBytesPerSecond();
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(reclaimFile, "rw");
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long size = fileChannel.size();
+            while (size > 0) {
+                long newSize = Math.max(0, size - chunkSize);
+                fileChannel.truncate(newSize);
+                this.truncatedBytes.addAndGet(size - newSize);
+                size = newSize;
+
+                if (size > 0 && bytesPerSecond > 0 && !this.isStopped()) {
+                    Thread.sleep(chunkSize * 1000L / bytesPerSecond);
+                }
+            }
+        }
+        catch (IOException e) {
+            log.warn("truncate " + reclaimFile.getPath() + " Failed. ", e);
+        }
+        catch (InterruptedException e) {
+            log.warn("truncate " + reclaimFile.getPath() + " interrupted. ", e);
+        }
+        finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                }
+                catch (IOException e) {
+                    log.warn("close " + reclaimFile.getPath() + " Failed. ", e);
+                }
+            }
+        }
+
+        boolean result = reclaimFile.delete();
+        this.reclaimedFiles.incrementAndGet();
+        log.info("reclaim file " + mappedFile.getFileName() + (result ? " OK, " : " Failed, ")
+                + UtilAll.computeEclipseTimeMilliseconds(beginTime));
+    }
+
+
+    public int getPendingFileNums() {
+        return this.reclaimQueue.size();
+    }
+
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("reclaimPendingFiles", String.valueOf(this.reclaimQueue.size()));
+        stats.put("reclaimedFiles", String.valueOf(this.reclaimedFiles.get()));
+        stats.put("reclaimTruncatedBytes", String.valueOf(this.truncatedBytes.get()));
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return FileReclaimService.class.getSimpleName();
+    }
+}
@@ -71,14 +71,31 @@ public class MappedFile extends ReferenceResource {
     private final int fileSize;
     // 映射的文件
     private final File file;
-    // 映射的内存对象，position永远不变
-    private final MappedByteBuffer mappedByteBuffer;
+    // 映射的内存对象，position永远不变，为null表示尚未映射或者空闲时已解除映射
+    private volatile MappedByteBuffer mappedByteBuffer;
+    // 最后一次访问映射内存的时间，用于按LRU解除映射
+    private volatile long lastAccessTimestamp = System.currentTimeMillis();
+    // 最近一次采样的页驻留情况，每页一个字节，最低位为1表示在Pagecache中，为null表示没有采样数据
+    private volatile ResidencySample residencySample;
+    // 预缺页时读到的数据，只为保留读操作
+    private byte prefaultTouched;
+    // 已通过sync_file_range发起回写的位置
+    private final AtomicInteger writebackPosition = new AtomicInteger(0);
+    // sync_file_range使用的文件描述符，第一次回写时打开，-1表示未打开
+    private int nativeFd = -1;
+    // 不支持sync_file_range的平台不再尝试
+    private static volatile boolean syncFileRangeAvailable = true;
     // 当前写到什么位置
     private final AtomicInteger wrotePosition = new AtomicInteger(0);
     // Flush到什么位置
     private final AtomicInteger committedPosition = new AtomicInteger(0);
-    // 映射的FileChannel对象
-    private FileChannel fileChannel;
+    // 写缓冲区数据已转移到FileChannel的位置，仅在启用TransientStorePool时有意义
+    private final AtomicInteger transferredPosition = new AtomicInteger(0);
+    // 写缓冲区，来自TransientStorePool，为null表示直接写MappedByteBuffer
+    private ByteBuffer writeBuffer = null;
+    private TransientStorePool transientStorePool = null;
+    // 映射的FileChannel对象，与映射同时打开和关闭
+    private volatile FileChannel fileChannel;
     // 最后一条消息存储时间
     private volatile long storeTimestamp = 0;
     private boolean firstCreateInQueue = false;
@@ -87,14 +104,30 @@ public class MappedFile extends ReferenceResource {
 
 
     public MappedFile(final String fileName, final int fileSize) throws IOException {
+        this(fileName, fileSize, false);
+    }
+
+
+    /**
+     * @param lazyMap
+     *            为true时只记录文件信息，第一次访问时才打开文件并映射
+     */
+    public MappedFile(final String fileName, final int fileSize, final boolean lazyMap) throws IOException {
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.file = new File(fileName);
         this.fileFromOffset = Long.parseLong(this.file.getName());
-        boolean ok = false;
 
         ensureDirOK(this.file.getParent());
 
+        if (!lazyMap) {
+            this.map();
+        }
+    }
+
+
+    private void map() throws IOException {
+        boolean ok = false;
         try {
             this.fileChannel = new RandomAccessFile(this.file, "rw").getChannel();
             this.mappedByteBuffer = this.fileChannel.map(MapMode.READ_WRITE, 0, fileSize);
@@ -113,11 +146,88 @@ public class MappedFile extends ReferenceResource {
         finally {
             if (!ok && this.fileChannel != null) {
                 this.fileChannel.close();
+                this.fileChannel = null;
             }
         }
     }
 
 
+    /**
+     * 返回映射的内存对象，延迟映射或者已被解除映射时重新映射
+     */
+    private MappedByteBuffer ensureMapped() {
+        this.lastAccessTimestamp = System.currentTimeMillis();
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (buffer != null) {
+            return buffer;
+        }
+
+        synchronized (this) {
+            if (null == this.mappedByteBuffer) {
+                if (this.isCleanupOver()) {
+                    throw new IllegalStateException("map file " + this.fileName + " after cleanup");
+                }
+
+                try {
+                    this.map();
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            return this.mappedByteBuffer;
+        }
+    }
+
+
+    /**
+     * 解除空闲文件的映射并关闭文件，文件对象保留，下次访问时重新映射<br>
+     * 调用方需保证该文件不再被写入（不是队列的最后一个文件），且没有未经hold的访问
+     *
+     * @return 是否解除了映射
+     */
+    public synchronized boolean unmapIfIdle() {
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        // hold同样在this上同步，引用计数为1表示当前没有读者
+        if (null == buffer || !this.isAvailable() || this.getRefCount() != 1 || this.writeBuffer != null
+                || this.committedPosition.get() != this.wrotePosition.get()) {
+            return false;
+        }
+
+        this.mappedByteBuffer = null;
+        clean(buffer);
+        try {
+            this.fileChannel.close();
+        }
+        catch (IOException e) {
+            LOGGER.warn("close file channel " + this.fileName + " Failed. ", e);
+        }
+        this.fileChannel = null;
+        TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
+        TOTAL_MAPPED_FILES.decrementAndGet();
+        return true;
+    }
+
+
+    public boolean isMapped() {
+        return this.mappedByteBuffer != null;
+    }
+
+
+    public long getLastAccessTimestamp() {
+        return lastAccessTimestamp;
+    }
+
+
+    public MappedFile(final String fileName, final int fileSize, final TransientStorePool transientStorePool)
+            throws IOException {
+        this(fileName, fileSize);
+        this.writeBuffer = transientStorePool.borrowBuffer();
+        this.transientStorePool = transientStorePool;
+    }
+
+
     public static void ensureDirOK(final String dirName) {
         if (dirName != null) {
             File f = new File(dirName);
@@ -212,6 +322,7 @@ public class MappedFile extends ReferenceResource {
 
 
     public FileChannel getFileChannel() {
+        this.ensureMapped();
         return fileChannel;
     }
 
@@ -233,7 +344,7 @@ public class MappedFile extends ReferenceResource {
 
         // 表示有空余空间
         if (currentPos < this.fileSize) {
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.ensureMapped().slice();
             byteBuffer.position(currentPos);
             AppendMessageResult result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos,
                     msg, encodedMsg);
@@ -267,7 +378,7 @@ public class MappedFile extends ReferenceResource {
 
         // 表示有空余空间
         if ((currentPos + data.length) <= this.fileSize) {
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.ensureMapped().slice();
             byteBuffer.position(currentPos);
             byteBuffer.put(data);
             this.wrotePosition.addAndGet(data.length);
@@ -288,14 +399,25 @@ public class MappedFile extends ReferenceResource {
     public int commit(final int flushLeastPages) {
         if (this.isAbleToFlush(flushLeastPages)) {
             if (this.hold()) {
-                int value = this.wrotePosition.get();
-                this.mappedByteBuffer.force();
+                int value = this.getReadPosition();
+                try {
+                    // 通过写缓冲区转移的数据经由FileChannel写入，需要通过FileChannel刷盘
+                    if (this.transientStorePool != null) {
+                        this.fileChannel.force(false);
+                    }
+                    else {
+                        this.ensureMapped().force();
+                    }
+                }
+                catch (IOException e) {
+                    LOGGER.error("Error occurred when force data to disk.", e);
+                }
                 this.committedPosition.set(value);
                 this.release();
             }
             else {
                 LOGGER.warn("in commit, hold failed, commit offset = " + this.committedPosition.get());
-                this.committedPosition.set(this.wrotePosition.get());
+                this.committedPosition.set(this.getReadPosition());
             }
         }
 
@@ -303,6 +425,145 @@ public class MappedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 通过sync_file_range(SYNC_FILE_RANGE_WRITE)对上次回写位置之后的数据发起异步回写<br>
+     * 不等待回写完成，也不推进刷盘位置，之后的fsync只需等待少量剩余的脏页
+     *
+     * @param writebackLeastPages
+     *            至少回写几个page
+     * @return 已发起回写的位置
+     */
+    public int writeback(final int writebackLeastPages) {
+        final int from = Math.max(this.writebackPosition.get(), this.committedPosition.get());
+        int to = this.getReadPosition();
+        // 最后一页还会被写入，文件写满前不回写
+        if (!this.isFull()) {
+            to -= to % OS_PAGE_SIZE;
+        }
+
+        if (!syncFileRangeAvailable || to <= from
+                || (!this.isFull() && (to - from) / OS_PAGE_SIZE < writebackLeastPages)) {
+            return this.writebackPosition.get();
+        }
+
+        if (this.hold()) {
+            try {
+                int fd = this.openNativeFd();
+                if (fd >= 0 && 0 == LibC.INSTANCE.sync_file_range(fd, from, to - from, LibC.SYNC_FILE_RANGE_WRITE)) {
+                    this.writebackPosition.set(to);
+                }
+            }
+            catch (Throwable e) {
+                syncFileRangeAvailable = false;
+                LOGGER.warn("sync_file_range " + this.fileName + " Failed, disable it. ", e);
+            }
+            finally {
+                this.release();
+            }
+        }
+
+        return this.writebackPosition.get();
+    }
+
+
+    private synchronized int openNativeFd() {
+        if (this.nativeFd < 0 && this.isAvailable()) {
+            this.nativeFd = LibC.INSTANCE.open(this.fileName, LibC.O_RDWR);
+        }
+
+        return this.nativeFd;
+    }
+
+
+    public static boolean isSyncFileRangeAvailable() {
+        return syncFileRangeAvailable;
+    }
+
+
+    public int getWritebackPosition() {
+        return writebackPosition.get();
+    }
+
+
+    /**
+     * 将写缓冲区中的数据转移到FileChannel，未启用TransientStorePool时直接返回写入位置
+     *
+     * @param transferLeastPages
+     *            至少转移几个page
+     * @return 已转移到FileChannel的位置
+     */
+    public int transfer(final int transferLeastPages) {
+        if (writeBuffer == null) {
+            return this.wrotePosition.get();
+        }
+
+        if (this.isAbleToTransfer(transferLeastPages)) {
+            if (this.hold()) {
+                int lastTransferredPosition = this.transferredPosition.get();
+                int writePos = this.wrotePosition.get();
+                try {
+                    ByteBuffer byteBuffer = writeBuffer.slice();
+                    byteBuffer.position(lastTransferredPosition);
+                    byteBuffer.limit(writePos);
+                    while (byteBuffer.hasRemaining()) {
+                        this.fileChannel.write(byteBuffer, byteBuffer.position());
+                    }
+                    this.transferredPosition.set(writePos);
+                }
+                catch (IOException e) {
+                    LOGGER.error("Error occurred when transfer data to FileChannel.", e);
+                }
+                this.release();
+            }
+            else {
+                LOGGER.warn("in transfer, hold failed, transfer offset = " + this.transferredPosition.get());
+            }
+        }
+
+        // 文件已写满并全部转移，归还写缓冲区
+        if (writeBuffer != null && this.transferredPosition.get() == this.fileSize) {
+            this.transientStorePool.returnBuffer(writeBuffer);
+            this.writeBuffer = null;
+        }
+
+        return this.transferredPosition.get();
+    }
+
+
+    private boolean isAbleToTransfer(final int transferLeastPages) {
+        int transferred = this.transferredPosition.get();
+        int write = this.wrotePosition.get();
+
+        if (this.isFull()) {
+            return write > transferred;
+        }
+
+        if (transferLeastPages > 0) {
+            return ((write / OS_PAGE_SIZE) - (transferred / OS_PAGE_SIZE)) >= transferLeastPages;
+        }
+
+        return write > transferred;
+    }
+
+
+    /**
+     * 可读取的位置：启用写缓冲区时，只有转移到FileChannel的数据才能通过MappedByteBuffer读到
+     */
+    public int getReadPosition() {
+        return this.writeBuffer == null ? this.wrotePosition.get() : this.transferredPosition.get();
+    }
+
+
+    public int getTransferredPosition() {
+        return transferredPosition.get();
+    }
+
+
+    public void setTransferredPosition(int pos) {
+        this.transferredPosition.set(pos);
+    }
+
+
     public int getCommittedPosition() {
         return committedPosition.get();
     }
@@ -315,7 +576,7 @@ public class MappedFile extends ReferenceResource {
 
     private boolean isAbleToFlush(final int flushLeastPages) {
         int flush = this.committedPosition.get();
-        int write = this.wrotePosition.get();
+        int write = this.getReadPosition();
 
         // 如果当前文件已经写满，应该立刻刷盘
         if (this.isFull()) {
@@ -338,10 +599,10 @@ public class MappedFile extends ReferenceResource {
 
     public SelectMappedBufferResult selectMappedBuffer(int pos, int size) {
         // 有消息
-        if ((pos + size) <= this.wrotePosition.get()) {
+        if ((pos + size) <= this.getReadPosition()) {
             // 从MappedBuffer读
             if (this.hold()) {
-                ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+                ByteBuffer byteBuffer = this.ensureMapped().slice();
                 byteBuffer.position(pos);
                 ByteBuffer byteBufferNew = byteBuffer.slice();
                 byteBufferNew.limit(size);
@@ -363,15 +624,50 @@ public class MappedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 通过FileChannel读取到堆内存，只在读取期间持有引用，返回结果不需要释放
+     */
+    public SelectMappedBufferResult readByFileChannel(int pos, int size) {
+        if ((pos + size) <= this.getReadPosition()) {
+            if (this.hold()) {
+                try {
+                    FileChannel channel = this.getFileChannel();
+                    ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+                    while (byteBuffer.hasRemaining()) {
+                        if (channel.read(byteBuffer, pos + byteBuffer.position()) < 0) {
+                            return null;
+                        }
+                    }
+                    byteBuffer.flip();
+                    return new SelectMappedBufferResult(this.fileFromOffset + pos, byteBuffer, size, null);
+                }
+                catch (IOException e) {
+                    LOGGER.error("read file " + this.fileName + " by file channel Failed. ", e);
+                }
+                finally {
+                    this.release();
+                }
+            }
+        }
+        else {
+            LOGGER.warn("readByFileChannel request pos invalid, request pos: " + pos + ", size: " + size
+                    + ", fileFromOffset: " + this.fileFromOffset);
+        }
+
+        return null;
+    }
+
+
     /**
      * 读逻辑分区
      */
     public SelectMappedBufferResult selectMappedBuffer(int pos) {
-        if (pos < this.wrotePosition.get() && pos >= 0) {
+        int readPosition = this.getReadPosition();
+        if (pos < readPosition && pos >= 0) {
             if (this.hold()) {
-                ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+                ByteBuffer byteBuffer = this.ensureMapped().slice();
                 byteBuffer.position(pos);
-                int size = this.wrotePosition.get() - pos;
+                int size = readPosition - pos;
                 ByteBuffer byteBufferNew = byteBuffer.slice();
                 byteBufferNew.limit(size);
                 return new SelectMappedBufferResult(this.fileFromOffset + pos, byteBufferNew, size, this);
@@ -400,14 +696,64 @@ public class MappedFile extends ReferenceResource {
             return true;
         }
 
-        clean(this.mappedByteBuffer);
-        TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
-        TOTAL_MAPPED_FILES.decrementAndGet();
+        // 延迟映射的文件可能从未映射或者已解除映射，release已在this上同步
+        if (this.mappedByteBuffer != null) {
+            clean(this.mappedByteBuffer);
+            this.mappedByteBuffer = null;
+            TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
+            TOTAL_MAPPED_FILES.decrementAndGet();
+        }
+        if (this.writeBuffer != null) {
+            this.transientStorePool.returnBuffer(this.writeBuffer);
+            this.writeBuffer = null;
+        }
+        if (this.nativeFd >= 0) {
+            LibC.INSTANCE.close(this.nativeFd);
+            this.nativeFd = -1;
+        }
         LOGGER.info("unmap file[REF:" + currentRef + "] " + this.fileName + " OK");
         return true;
     }
 
 
+    /**
+     * 不再写入的文件提前归还写缓冲区，与cleanup在this上同步，避免重复归还
+     */
+    public synchronized void returnWriteBuffer() {
+        if (this.writeBuffer != null) {
+            this.transientStorePool.returnBuffer(this.writeBuffer);
+            this.writeBuffer = null;
+        }
+    }
+
+
+    /**
+     * 与destroy相同，但不删除文件，由调用方分块截断后删除
+     *
+     * @return 是否已解除映射并关闭文件，还有未释放的引用时返回false，需要重试
+     */
+    public boolean shutdownAndClose(final long intervalForcibly) {
+        this.shutdown(intervalForcibly);
+
+        if (!this.isCleanupOver()) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (this.fileChannel != null) {
+                try {
+                    this.fileChannel.close();
+                }
+                catch (IOException e) {
+                    LOGGER.warn("close file channel " + this.fileName + " Failed. ", e);
+                }
+                this.fileChannel = null;
+            }
+        }
+        return true;
+    }
+
+
     /**
      * 清理资源，destroy与调用shutdown的线程必须是同一个
      * 
@@ -418,7 +764,12 @@ public class MappedFile extends ReferenceResource {
 
         if (this.isCleanupOver()) {
             try {
-                this.fileChannel.close();
+                synchronized (this) {
+                    if (this.fileChannel != null) {
+                        this.fileChannel.close();
+                        this.fileChannel = null;
+                    }
+                }
                 LOGGER.info("close file channel " + this.fileName + " OK");
 
                 long beginTime = System.currentTimeMillis();
@@ -454,7 +805,7 @@ public class MappedFile extends ReferenceResource {
 
 
     public MappedByteBuffer getMappedByteBuffer() {
-        return mappedByteBuffer;
+        return this.ensureMapped();
     }
 
 
@@ -462,7 +813,7 @@ public class MappedFile extends ReferenceResource {
      * 方法不能在运行时调用，不安全。只在启动时，reload已有数据时调用
      */
     public ByteBuffer sliceByteBuffer() {
-        return this.mappedByteBuffer.slice();
+        return this.ensureMapped().slice();
     }
 
 
@@ -482,7 +833,7 @@ public class MappedFile extends ReferenceResource {
 
     public void mlock() {
         final long beginTime = System.currentTimeMillis();
-        final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
+        final long address = ((DirectBuffer) (this.ensureMapped())).address();
         Pointer pointer = new Pointer(address);
         {
             int ret = LibC.INSTANCE.mlock(pointer, new NativeLong(this.fileSize));
@@ -495,9 +846,159 @@ public class MappedFile extends ReferenceResource {
         }
     }
 
+    /**
+     * 通过mincore采样文件各页是否在Pagecache中，未映射的文件不采样
+     *
+     * @return 在Pagecache中的页数，没有采样时返回-1
+     */
+    public int sampleResidency() {
+        if (!this.isMapped() || !this.hold()) {
+            this.residencySample = null;
+            return -1;
+        }
+
+        try {
+            // hold期间不会被解除映射
+            MappedByteBuffer buffer = this.mappedByteBuffer;
+            if (null == buffer) {
+                this.residencySample = null;
+                return -1;
+            }
+
+            // 先取写入位置再采样，采样时已写入的页一定反映在结果中
+            final int sampledPosition = this.getReadPosition();
+            ResidencySample sample = this.residencySample;
+            byte[] vec = null == sample ? new byte[(this.fileSize + OS_PAGE_SIZE - 1) / OS_PAGE_SIZE] : sample.pages;
+
+            Pointer pointer = new Pointer(((DirectBuffer) buffer).address());
+            if (LibC.INSTANCE.mincore(pointer, new NativeLong(this.fileSize), vec) != 0) {
+                this.residencySample = null;
+                return -1;
+            }
+
+            int resident = 0;
+            for (byte b : vec) {
+                resident += b & 1;
+            }
+            this.residencySample = new ResidencySample(vec, sampledPosition);
+            return resident;
+        }
+        finally {
+            this.release();
+        }
+    }
+
+
+    /**
+     * 采样之后写入的数据刚刚写进Pagecache，按在内存中处理
+     *
+     * @return 1表示[pos, pos + size)全部在Pagecache中，0表示至少一页不在，-1表示没有采样数据
+     */
+    public int checkResident(final int pos, final int size) {
+        final ResidencySample sample = this.residencySample;
+        if (null == sample || size <= 0) {
+            return -1;
+        }
+
+        final int end = Math.min(pos + size, sample.sampledPosition);
+        final int last = Math.min((end - 1) / OS_PAGE_SIZE, sample.pages.length - 1);
+        for (int i = pos / OS_PAGE_SIZE; i <= last && pos < end; i++) {
+            if ((sample.pages[i] & 1) == 0) {
+                return 0;
+            }
+        }
+
+        return 1;
+    }
+
+
+    /**
+     * 通过madvise(MADV_WILLNEED)通知内核异步预读[pos, pos + size)，不等待读完
+     */
+    public boolean willNeed(final int pos, final int size) {
+        if (!this.hold()) {
+            return false;
+        }
+
+        try {
+            final long address = ((DirectBuffer) (this.ensureMapped())).address() + pos;
+            // madvise要求起始地址按页对齐
+            final long alignedAddress = address - address % OS_PAGE_SIZE;
+            int ret = LibC.INSTANCE.madvise(new Pointer(alignedAddress),
+                new NativeLong(address + size - alignedAddress), LibC.MADV_WILLNEED);
+            return 0 == ret;
+        }
+        finally {
+            this.release();
+        }
+    }
+
+
+    /**
+     * 通过fallocate为整个文件分配磁盘块，写入时文件系统不再分配块、更新元数据
+     *
+     * @return 是否分配成功
+     */
+    public boolean fallocate() {
+        try {
+            int fd = LibC.INSTANCE.open(this.fileName, LibC.O_RDWR);
+            if (fd < 0) {
+                return false;
+            }
+
+            try {
+                return 0 == LibC.INSTANCE.posix_fallocate(fd, 0, this.fileSize);
+            }
+            finally {
+                LibC.INSTANCE.close(fd);
+            }
+        }
+        catch (Throwable e) {
+            // 例如不支持fallocate的平台
+            LOGGER.warn("fallocate " + this.fileName + " Failed. ", e);
+            return false;
+        }
+    }
+
+
+    /**
+     * 预缺页，先madvise(MADV_WILLNEED)读入Pagecache，再逐页读一次建立页表<br>
+     * 只读不写，不产生脏页，不增加刷盘负担<br>
+     * 只读缺页建立的是只读页表项，写消息时每页第一次写入仍会在写锁内触发一次写保护缺页，
+     * 这次缺页不需要读盘，但要标记脏页并更新页表，开销小于完整缺页但不为零
+     *
+     * @return 文件已被销毁时返回false
+     */
+    public boolean prefault(final int pos, final int size) {
+        if (!this.hold()) {
+            return false;
+        }
+
+        try {
+            this.willNeed(pos, size);
+            MappedByteBuffer buffer = this.ensureMapped();
+            byte touched = 0;
+            for (int i = pos; i < pos + size; i += OS_PAGE_SIZE) {
+                touched ^= buffer.get(i);
+            }
+            // 避免读操作被JIT消除
+            this.prefaultTouched = touched;
+            return true;
+        }
+        finally {
+            this.release();
+        }
+    }
+
+
+    public int getPageNums() {
+        return (this.fileSize + OS_PAGE_SIZE - 1) / OS_PAGE_SIZE;
+    }
+
+
     public void munlock() {
         final long beginTime = System.currentTimeMillis();
-        final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
+        final long address = ((DirectBuffer) (this.ensureMapped())).address();
         Pointer pointer = new Pointer(address);
         int ret = LibC.INSTANCE.munlock(pointer, new NativeLong(this.fileSize));
         LOGGER.info("munlock {} {} {} ret = {} time consuming = {}", address, this.fileName, this.fileSize, ret, System.currentTimeMillis() - beginTime);
@@ -510,7 +1011,8 @@ public class MappedFile extends ReferenceResource {
      */
     public void warmMappedFile(FlushDiskType type, int pages) {
         long beginTime = System.currentTimeMillis();
-        ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+        MappedByteBuffer mappedByteBuffer = this.ensureMapped();
+        ByteBuffer byteBuffer = mappedByteBuffer.slice();
         int flush = 0;
         long time = System.currentTimeMillis();
         for (int i = 0, j = 0; i < this.fileSize; i += MappedFile.OS_PAGE_SIZE, j++) {
@@ -546,4 +1048,18 @@ public class MappedFile extends ReferenceResource {
 
         this.mlock();
     }
+
+    /**
+     * 一次mincore采样结果，sampledPosition之后的数据是采样后写入的
+     */
+    private static class ResidencySample {
+        private final byte[] pages;
+        private final int sampledPosition;
+
+
+        private ResidencySample(final byte[] pages, final int sampledPosition) {
+            this.pages = pages;
+            this.sampledPosition = sampledPosition;
+        }
+    }
 }
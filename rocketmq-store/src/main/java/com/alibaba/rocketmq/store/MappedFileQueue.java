@@ -52,8 +52,12 @@ public class MappedFileQueue {
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     // 预分配MappedFile对象服务
     private final AllocateMappedFileService allocateMappedFileService;
+    // 队列为空时第一个文件的起始offset，CommitLog多分区时每个分区占用独立的offset区间
+    private final long baseOffset;
     // 刷盘刷到哪里
-    private long committedWhere = 0;
+    private long committedWhere;
+    // 写缓冲区转移到FileChannel到哪里
+    private long transferredWhere;
     // 最后一条消息存储时间
     private volatile long storeTimestamp = 0;
 
@@ -63,9 +67,18 @@ public class MappedFileQueue {
 
     public MappedFileQueue(final String storePath, int mappedFileSize,
                            AllocateMappedFileService allocateMappedFileService) {
+        this(storePath, mappedFileSize, allocateMappedFileService, 0);
+    }
+
+
+    public MappedFileQueue(final String storePath, int mappedFileSize,
+                           AllocateMappedFileService allocateMappedFileService, final long baseOffset) {
         this.storePath = storePath;
         this.mappedFileSize = mappedFileSize;
         this.allocateMappedFileService = allocateMappedFileService;
+        this.baseOffset = baseOffset;
+        this.committedWhere = baseOffset;
+        this.transferredWhere = baseOffset;
     }
 
 
@@ -86,7 +99,7 @@ public class MappedFileQueue {
     }
 
 
-    private Object[] copyMappedFiles(final int reservedMappedFiles) {
+    public Object[] copyMappedFiles(final int reservedMappedFiles) {
         Object[] mfs = null;
 
         try {
@@ -117,6 +130,7 @@ public class MappedFileQueue {
                 if (offset >= file.getFileFromOffset()) {
                     file.setWrotePosition((int) (offset % this.mappedFileSize));
                     file.setCommittedPosition((int) (offset % this.mappedFileSize));
+                    file.setTransferredPosition((int) (offset % this.mappedFileSize));
                 } else {
                     // 将文件删除掉
                     file.destroy(1000);
@@ -151,6 +165,15 @@ public class MappedFileQueue {
     }
 
     public boolean load() {
+        return this.load(false);
+    }
+
+
+    /**
+     * @param lazyMap
+     *            为true时文件在第一次访问时才映射，适用于文件数量多、大部分不会被访问的队列
+     */
+    public boolean load(final boolean lazyMap) {
         File[] dirs;
         if (!this.storePath.contains(",")) {
             dirs = new File[]{new File(this.storePath)};
@@ -158,12 +181,26 @@ public class MappedFileQueue {
             String[] storePaths = storePath.split(",");
             dirs = new File[storePaths.length];
             for (int i = 0; i < dirs.length; i++) {
-                dirs[i] = new File(storePaths[i]);
+                dirs[i] = new File(storePaths[i].trim());
             }
         }
 
         List<File> files = new ArrayList<File>();
         for (File dir : dirs) {
+            // 上次停止时未删完的文件
+            File[] reclaimFiles = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(FileReclaimService.ReclaimFileSuffix);
+                }
+            });
+            if (null != reclaimFiles) {
+                for (File file : reclaimFiles) {
+                    boolean result = file.delete();
+                    log.info("delete unfinished reclaim file " + file.getPath() + (result ? " OK" : " Failed"));
+                }
+            }
+
             File[] commitLogFiles = dir.listFiles(new FilenameFilter() {
                 @Override
                 public boolean accept(File dir, String name) {
@@ -218,9 +255,10 @@ public class MappedFileQueue {
 
                 // 恢复队列
                 try {
-                    MappedFile mappedFile = new MappedFile(file.getPath(), mappedFileSize);
+                    MappedFile mappedFile = new MappedFile(file.getPath(), mappedFileSize, lazyMap);
                     mappedFile.setWrotePosition(this.mappedFileSize);
                     mappedFile.setCommittedPosition(this.mappedFileSize);
+                    mappedFile.setTransferredPosition(this.mappedFileSize);
                     this.mappedFiles.add(mappedFile);
                     log.info("load " + file.getPath() + " OK");
                 } catch (IOException e) {
@@ -242,7 +280,7 @@ public class MappedFileQueue {
             return 0;
 
         long committed = this.committedWhere;
-        if (committed != 0) {
+        if (committed != this.baseOffset) {
             MappedFile mappedFile = this.getLastMappedFile();
             if (mappedFile != null) {
                 return (mappedFile.getFileFromOffset() + mappedFile.getWrotePosition()) - committed;
@@ -254,14 +292,14 @@ public class MappedFileQueue {
 
 
     public MappedFile getLastMappedFile() {
-        return this.getLastMappedFile(0);
+        return this.getLastMappedFile(this.baseOffset);
     }
 
     private String resolveMappedFilePath(final String selectedMappedFileStorePath, final long startOffset) {
         // The file might have been created previously.
         String[] paths = this.storePath.split(",");
         for (String path : paths) {
-            String filePath = path + File.separator + UtilAll.offset2FileName(startOffset);
+            String filePath = path.trim() + File.separator + UtilAll.offset2FileName(startOffset);
             File file = new File(filePath);
             if (file.exists()){
                 return filePath;
@@ -295,14 +333,22 @@ public class MappedFileQueue {
         }
 
         if (createOffset != -1) {
-            String selectedMappedFileStorePath = UtilAll.selectPath(this.storePath);
+            String selectedMappedFileStorePath = this.allocateMappedFileService != null ? //
+                    this.allocateMappedFileService.getStorePathStats().selectPath(this.storePath)
+                    : UtilAll.selectPath(this.storePath);
             String nextFilePath = resolveMappedFilePath(selectedMappedFileStorePath, createOffset);
-            String nextNextFilePath = resolveMappedFilePath(selectedMappedFileStorePath, createOffset + this.mappedFileSize);
             MappedFile mappedFile = null;
 
             if (this.allocateMappedFileService != null) {
-                mappedFile = this.allocateMappedFileService.putRequestAndReturnMappedFile(nextFilePath,
-                        nextNextFilePath, this.mappedFileSize);
+                // 除了马上要用的文件，同时预创建后面的文件
+                String[] filePaths = new String[this.allocateMappedFileService.getPreallocateFileNums()];
+                for (int i = 0; i < filePaths.length; i++) {
+                    filePaths[i] = resolveMappedFilePath(selectedMappedFileStorePath,
+                            createOffset + (long) i * this.mappedFileSize);
+                }
+                this.allocateMappedFileService.cancelRequestsOnOtherPaths(this.storePath, filePaths);
+                mappedFile = this.allocateMappedFileService.putRequestAndReturnMappedFile(filePaths,
+                        this.mappedFileSize);
             } else {
                 try {
                     mappedFile = new MappedFile(nextFilePath, this.mappedFileSize);
@@ -346,13 +392,16 @@ public class MappedFileQueue {
     }
 
 
+    /**
+     * 可读取的最大Offset，启用写缓冲区时不包含尚未转移到FileChannel的数据
+     */
     public long getMaxOffset() {
         try {
             this.readWriteLock.readLock().lock();
             if (!this.mappedFiles.isEmpty()) {
                 int lastIndex = this.mappedFiles.size() - 1;
                 MappedFile mappedFile = this.mappedFiles.get(lastIndex);
-                return mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+                return mappedFile.getFileFromOffset() + mappedFile.getReadPosition();
             }
         } catch (Exception e) {
             log.error("getMinOffset has exception.", e);
@@ -360,7 +409,28 @@ public class MappedFileQueue {
             this.readWriteLock.readLock().unlock();
         }
 
-        return 0;
+        return this.baseOffset;
+    }
+
+
+    /**
+     * 已写入的最大Offset，包含尚在写缓冲区中的数据
+     */
+    public long getMaxWrotePosition() {
+        try {
+            this.readWriteLock.readLock().lock();
+            if (!this.mappedFiles.isEmpty()) {
+                int lastIndex = this.mappedFiles.size() - 1;
+                MappedFile mappedFile = this.mappedFiles.get(lastIndex);
+                return mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+            }
+        } catch (Exception e) {
+            log.error("getMaxWrotePosition has exception.", e);
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        return this.baseOffset;
     }
 
 
@@ -426,6 +496,45 @@ public class MappedFileQueue {
         return deleteCount;
     }
 
+    /**
+     * 从队列头部摘下过期文件，不销毁，由调用方异步删除
+     *
+     * @return 摘下的文件，按Offset升序
+     */
+    public List<MappedFile> removeExpiredFileByTime(final long expiredTime, final boolean cleanImmediately,
+                                                    final int maxFiles) {
+        List<MappedFile> files = new ArrayList<MappedFile>();
+        Object[] mfs = this.copyMappedFiles(0);
+        if (null == mfs)
+            return files;
+
+        // 最后一个文件处于写状态，不能删除
+        for (int i = 0; i < mfs.length - 1 && files.size() < maxFiles; i++) {
+            MappedFile mappedFile = (MappedFile) mfs[i];
+            if (System.currentTimeMillis() < mappedFile.getLastModifiedTimestamp() + expiredTime
+                    && !cleanImmediately) {
+                break;
+            }
+            files.add(mappedFile);
+        }
+
+        deleteExpiredFile(files);
+
+        return files;
+    }
+
+
+    /**
+     * @return 队列头部是否有过期文件，最后一个文件不算
+     */
+    public boolean hasExpiredFile(final long expiredTime) {
+        Object[] mfs = this.copyMappedFiles(1);
+        if (null == mfs)
+            return false;
+
+        return System.currentTimeMillis() >= ((MappedFile) mfs[0]).getLastModifiedTimestamp() + expiredTime;
+    }
+
     /**
      * 根据物理队列最小offset来删除commit log队列文件.
      * @param offset physical offset
@@ -522,6 +631,44 @@ public class MappedFileQueue {
     }
 
 
+    /**
+     * @return 当前已映射文件的虚拟内存总量
+     */
+    public long getMappedVirtualMemory() {
+        Object[] mfs = this.copyMappedFiles(0);
+        if (null == mfs) {
+            return 0;
+        }
+
+        long total = 0;
+        for (Object mf : mfs) {
+            MappedFile mappedFile = (MappedFile) mf;
+            if (mappedFile.isMapped()) {
+                total += mappedFile.getFileSize();
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     * 收集可以解除映射的文件，最后一个文件处于写状态，不参与
+     */
+    public void collectUnmapCandidates(final List<MappedFile> candidates) {
+        Object[] mfs = this.copyMappedFiles(0);
+        if (null == mfs) {
+            return;
+        }
+
+        for (int i = 0; i < mfs.length - 1; i++) {
+            MappedFile mappedFile = (MappedFile) mfs[i];
+            if (mappedFile.isMapped()) {
+                candidates.add(mappedFile);
+            }
+        }
+    }
+
+
     /**
      * 返回值表示是否全部刷盘完成
      *
@@ -532,9 +679,15 @@ public class MappedFileQueue {
         MappedFile mappedFile = this.findMappedFileByOffset(this.committedWhere, true);
         if (mappedFile != null) {
             long tmpTimeStamp = mappedFile.getStoreTimestamp();
+            long beginNanos = System.nanoTime();
             int offset = mappedFile.commit(flushLeastPages);
             long where = mappedFile.getFileFromOffset() + offset;
             result = (where == this.committedWhere);
+            // 只统计真正刷过盘的
+            if (!result && this.allocateMappedFileService != null) {
+                this.allocateMappedFileService.getStorePathStats().recordFlush(mappedFile.getFileName(),
+                        (System.nanoTime() - beginNanos) / 1000);
+            }
             this.committedWhere = where;
             if (0 == flushLeastPages) {
                 this.storeTimestamp = tmpTimeStamp;
@@ -545,6 +698,40 @@ public class MappedFileQueue {
     }
 
 
+    /**
+     * 对正在刷盘的文件发起异步回写，不推进刷盘位置
+     */
+    public void writeback(final int writebackLeastPages) {
+        MappedFile mappedFile = this.findMappedFileByOffset(this.committedWhere, true);
+        if (mappedFile != null) {
+            mappedFile.writeback(writebackLeastPages);
+        }
+    }
+
+
+    /**
+     * 将写缓冲区中的数据转移到FileChannel，返回值表示是否全部转移完成
+     */
+    public boolean transfer(final int transferLeastPages) {
+        boolean result = true;
+        MappedFile mappedFile =
+                this.findMappedFileByOffset(this.transferredWhere, this.transferredWhere == this.baseOffset);
+        if (mappedFile != null) {
+            long beginNanos = System.nanoTime();
+            int offset = mappedFile.transfer(transferLeastPages);
+            long where = mappedFile.getFileFromOffset() + offset;
+            result = (where == this.transferredWhere);
+            if (!result && this.allocateMappedFileService != null) {
+                this.allocateMappedFileService.getStorePathStats().recordWrite(mappedFile.getFileName(),
+                        (System.nanoTime() - beginNanos) / 1000);
+            }
+            this.transferredWhere = where;
+        }
+
+        return result;
+    }
+
+
     public MappedFile findMappedFileByOffset(final long offset, final boolean returnFirstOnNotFound) {
         try {
             this.readWriteLock.readLock().lock();
@@ -672,7 +859,8 @@ public class MappedFileQueue {
             mf.destroy(1000 * 3);
         }
         this.mappedFiles.clear();
-        this.committedWhere = 0;
+        this.committedWhere = this.baseOffset;
+        this.transferredWhere = this.baseOffset;
 
         // delete parent directory
         File file = new File(storePath);
@@ -683,6 +871,11 @@ public class MappedFileQueue {
     }
 
 
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+
     public long getCommittedWhere() {
         return committedWhere;
     }
@@ -693,6 +886,16 @@ public class MappedFileQueue {
     }
 
 
+    public long getTransferredWhere() {
+        return transferredWhere;
+    }
+
+
+    public void setTransferredWhere(long transferredWhere) {
+        this.transferredWhere = transferredWhere;
+    }
+
+
     public long getStoreTimestamp() {
         return storeTimestamp;
     }
@@ -17,6 +17,8 @@ package com.alibaba.rocketmq.store;
 
 import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
 
+import java.util.Map;
+
 
 /**
  * 消息过滤接口
@@ -26,4 +28,24 @@ import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
  */
 public interface MessageFilter {
     public boolean isMessageMatched(final SubscriptionData subscriptionData, final long tagsCode);
+
+
+    /**
+     * 同时按消费队列扩展单元中的属性过滤，扩展单元只记录属性值的哈希，只能排除一定不匹配的消息
+     *
+     * @param cqExtUnit
+     *            消息的扩展单元，没有扩展单元时为null
+     * @return true表示可能匹配，订阅了属性时还需调用isPropertiesMatched按消息中的属性值确认
+     */
+    public boolean isMessageMatched(final SubscriptionData subscriptionData, final long tagsCode,
+            final ConsumeQueueExt.CqExtUnit cqExtUnit);
+
+
+    /**
+     * 按消息中的属性值判断是否匹配订阅的属性
+     *
+     * @param properties
+     *            从CommitLog解析出的消息属性，解析失败时为null
+     */
+    public boolean isPropertiesMatched(final SubscriptionData subscriptionData, final Map<String, String> properties);
 }
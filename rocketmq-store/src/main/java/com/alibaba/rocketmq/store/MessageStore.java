@@ -20,6 +20,7 @@ import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
 
 import java.net.SocketAddress;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -62,6 +63,18 @@ public interface MessageStore {
     public PutMessageResult putMessage(final MessageExtBrokerInner msg);
 
 
+    /**
+     * 异步存储消息，同步刷盘或同步双写时不阻塞调用线程，确认后完成返回的Future
+     */
+    public PutMessageFuture putMessageAsync(final MessageExtBrokerInner msg);
+
+
+    /**
+     * 批量存储消息，整批一次加锁写入，返回结果中offset为第一条消息，msgId以逗号分隔
+     */
+    public PutMessageResult putMessages(final List<MessageExtBrokerInner> msgs);
+
+
     /**
      * 读取消息，如果types为null，则不做过滤
      */
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Pagecache驻留跟踪服务，后台定期通过mincore采样CommitLog各文件的页驻留情况<br>
+ * 拉消息时按采样结果判断消息是否在内存中，取代按物理内存比例的估算，同时统计各Topic的Pagecache命中率
+ */
+public class PageCacheResidencyTracker extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final DefaultMessageStore defaultMessageStore;
+    // topic -> 命中统计
+    private final ConcurrentHashMap<String, HitStat> topicHitTable = new ConcurrentHashMap<String, HitStat>();
+    // 最近一轮采样的CommitLog驻留页数与总页数
+    private volatile long residentPages = 0;
+    private volatile long sampledPages = 0;
+    // mincore不可用时停止采样，退回按比例估算
+    private volatile boolean available = true;
+
+
+    public PageCacheResidencyTracker(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped() && this.available) {
+            try {
+                this.sample();
+                this.waitForRunning(this.defaultMessageStore.getMessageStoreConfig()
+                    .getPageCacheResidencySampleInterval());
+            }
+            catch (Throwable e) {
+                // 例如不支持mincore的平台
+                this.available = false;
+                log.warn(this.getServiceName() + " service has exception, stop sampling. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    /**
+     * 采样所有CommitLog分区的文件，未映射的文件不采样
+     */
+    public void sample() {
+        long resident = 0;
+        long total = 0;
+        for (CommitLog commitLog : this.defaultMessageStore.getCommitLogPartitions()) {
+            Object[] mfs = commitLog.getMappedFileQueue().copyMappedFiles(0);
+            if (null == mfs) {
+                continue;
+            }
+
+            for (Object mf : mfs) {
+                MappedFile mappedFile = (MappedFile) mf;
+                int pages = mappedFile.sampleResidency();
+                if (pages >= 0) {
+                    resident += pages;
+                    total += mappedFile.getPageNums();
+                }
+            }
+        }
+
+        this.residentPages = resident;
+        this.sampledPages = total;
+    }
+
+
+    /**
+     * @param topic
+     *            不为null时计入该Topic的命中统计
+     * @return 1表示消息在Pagecache中，0表示不在，-1表示没有采样数据
+     */
+    public int checkResident(final String topic, final CommitLog commitLog, final long offsetPy, final int sizePy) {
+        if (!this.available) {
+            return -1;
+        }
+
+        int resident = commitLog.checkResident(offsetPy, sizePy);
+        if (resident >= 0 && topic != null) {
+            HitStat hitStat = this.topicHitTable.get(topic);
+            if (null == hitStat) {
+                hitStat = new HitStat();
+                HitStat prev = this.topicHitTable.putIfAbsent(topic, hitStat);
+                if (prev != null) {
+                    hitStat = prev;
+                }
+            }
+
+            hitStat.total.incrementAndGet();
+            if (resident > 0) {
+                hitStat.hit.incrementAndGet();
+            }
+        }
+
+        return resident;
+    }
+
+
+    /**
+     * @return topic的Pagecache命中率，没有统计数据时返回-1
+     */
+    public double getHitRatio(final String topic) {
+        HitStat hitStat = this.topicHitTable.get(topic);
+        if (null == hitStat || 0 == hitStat.total.get()) {
+            return -1;
+        }
+
+        return hitStat.hit.get() / (double) hitStat.total.get();
+    }
+
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        long total = this.sampledPages;
+        stats.put("commitLogPageCacheResidentRatio",
+            String.valueOf(0 == total ? -1 : this.residentPages / (double) total));
+
+        // 格式 topic1:ratio1,topic2:ratio2
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, HitStat> entry : this.topicHitTable.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(entry.getKey()).append(':').append(String.format("%.4f", this.getHitRatio(entry.getKey())));
+        }
+        stats.put("pageCacheHitRatio", sb.toString());
+    }
+
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return PageCacheResidencyTracker.class.getSimpleName();
+    }
+
+    static class HitStat {
+        private final AtomicLong hit = new AtomicLong(0);
+        private final AtomicLong total = new AtomicLong(0);
+    }
+}
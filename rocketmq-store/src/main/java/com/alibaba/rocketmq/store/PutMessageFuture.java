@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 异步存储消息结果。同步刷盘或同步双写时，结果在GroupCommitService或GroupTransferService确认后才完成，
+ * 调用方无需阻塞等待
+ */
+public class PutMessageFuture {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+
+    private final CountDownLatch countDownLatch = new CountDownLatch(1);
+    private volatile PutMessageResult putMessageResult;
+    // 完成前注册的回调由完成线程执行，完成后注册的由注册线程立即执行
+    private final List<PutMessageCallback> callbacks = new ArrayList<PutMessageCallback>(2);
+
+
+    public PutMessageFuture() {
+    }
+
+
+    public PutMessageFuture(final PutMessageResult putMessageResult) {
+        this.complete(putMessageResult);
+    }
+
+
+    /**
+     * 设置结果并按注册顺序执行回调，只有第一次调用生效
+     */
+    public void complete(final PutMessageResult putMessageResult) {
+        synchronized (this) {
+            if (this.putMessageResult != null) {
+                return;
+            }
+
+            this.putMessageResult = putMessageResult;
+        }
+
+        this.countDownLatch.countDown();
+        for (PutMessageCallback callback : this.callbacks) {
+            this.executeCallback(callback);
+        }
+    }
+
+
+    public void addCallback(final PutMessageCallback callback) {
+        synchronized (this) {
+            if (null == this.putMessageResult) {
+                this.callbacks.add(callback);
+                return;
+            }
+        }
+
+        this.executeCallback(callback);
+    }
+
+
+    /**
+     * 回调通常在刷盘线程中执行，异常不能影响其他请求
+     */
+    private void executeCallback(final PutMessageCallback callback) {
+        try {
+            callback.operationComplete(this.putMessageResult);
+        } catch (Throwable e) {
+            log.warn("execute put message callback exception", e);
+        }
+    }
+
+
+    /**
+     * 等待结果，超时返回null
+     */
+    public PutMessageResult waitForResult(final long timeoutMillis) throws InterruptedException {
+        this.countDownLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return this.putMessageResult;
+    }
+
+
+    public boolean isDone() {
+        return this.putMessageResult != null;
+    }
+
+
+    public PutMessageResult getPutMessageResult() {
+        return putMessageResult;
+    }
+}
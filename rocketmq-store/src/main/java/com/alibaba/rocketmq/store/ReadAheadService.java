@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 消费落后时的CommitLog预读服务<br>
+ * 拉消息读到磁盘中的数据时记录该队列的消费位置，后台线程对消费位置之后的一段CommitLog发起madvise(MADV_WILLNEED)，
+ * 由内核顺序预读，拉消息线程不再逐页同步缺页
+ */
+public class ReadAheadService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 超过该时间没有拉消息的游标不再预读
+    private static final long CursorExpireTime = 1000 * 60;
+    private final DefaultMessageStore defaultMessageStore;
+    // group@topic@queueId -> 游标
+    private final ConcurrentHashMap<String, Cursor> cursorTable = new ConcurrentHashMap<String, Cursor>();
+    // 累计通知预读的字节数
+    private final AtomicLong readAheadBytes = new AtomicLong(0);
+    // 保证同一时刻只有一个线程预读，不使用this，避免拉消息线程wakeUp时等待
+    private final Object readAheadLock = new Object();
+    // madvise不可用时停止预读
+    private volatile boolean available = true;
+
+
+    public ReadAheadService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+
+    /**
+     * 拉消息线程调用，记录本次拉取结束时的CommitLog位置
+     */
+    public void updateCursor(final String group, final String topic, final int queueId, final CommitLog commitLog,
+            final long nextPhyOffset) {
+        if (!this.available) {
+            return;
+        }
+
+        final String key = group + "@" + topic + "@" + queueId;
+        Cursor cursor = this.cursorTable.get(key);
+        if (null == cursor) {
+            cursor = new Cursor(commitLog);
+            Cursor prev = this.cursorTable.putIfAbsent(key, cursor);
+            if (prev != null) {
+                cursor = prev;
+            }
+        }
+
+        // 消费位置回退（例如重置消费进度），已预读的范围作废
+        if (nextPhyOffset < cursor.pullOffset) {
+            cursor.advisedOffset = nextPhyOffset;
+        }
+        cursor.pullOffset = nextPhyOffset;
+        cursor.lastPullTimestamp = System.currentTimeMillis();
+
+        // 已预读的范围消耗过半时唤醒预读线程
+        final int window = this.defaultMessageStore.getMessageStoreConfig().getReadAheadBytesOnMessageInDisk();
+        if (nextPhyOffset + window / 2 > cursor.advisedOffset) {
+            this.wakeUp();
+        }
+    }
+
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped() && this.available) {
+            try {
+                this.waitForRunning(1000);
+                this.readAhead();
+            }
+            catch (Throwable e) {
+                // 例如不支持madvise的平台，JNA抛出的是Error
+                this.available = false;
+                this.cursorTable.clear();
+                log.warn(this.getServiceName() + " service has exception, stop read ahead. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    /**
+     * 对所有活跃游标预读到消费位置之后window字节
+     *
+     * @return 本次通知预读的字节数
+     */
+    public long readAhead() {
+        final int window = this.defaultMessageStore.getMessageStoreConfig().getReadAheadBytesOnMessageInDisk();
+        final long now = System.currentTimeMillis();
+        long total = 0;
+        synchronized (this.readAheadLock) {
+            for (Iterator<Map.Entry<String, Cursor>> it = this.cursorTable.entrySet().iterator(); it.hasNext();) {
+                Cursor cursor = it.next().getValue();
+                if (now - cursor.lastPullTimestamp > CursorExpireTime) {
+                    it.remove();
+                    continue;
+                }
+
+                final long begin = Math.max(cursor.pullOffset, cursor.advisedOffset);
+                final long end = cursor.pullOffset + window;
+                if (begin >= end) {
+                    continue;
+                }
+
+                long advised = cursor.commitLog.willNeed(begin, end - begin);
+                cursor.advisedOffset = begin + advised;
+                total += advised;
+            }
+        }
+
+        this.readAheadBytes.addAndGet(total);
+        return total;
+    }
+
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("readAheadCursorNums", String.valueOf(this.cursorTable.size()));
+        stats.put("readAheadBytes", String.valueOf(this.readAheadBytes.get()));
+    }
+
+
+    public long getReadAheadBytes() {
+        return readAheadBytes.get();
+    }
+
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return ReadAheadService.class.getSimpleName();
+    }
+
+    static class Cursor {
+        private final CommitLog commitLog;
+        // 消费者下次拉取的CommitLog位置
+        private volatile long pullOffset = 0;
+        // 已经通知预读到的位置
+        private volatile long advisedOffset = 0;
+        private volatile long lastPullTimestamp = 0;
+
+
+        Cursor(final CommitLog commitLog) {
+            this.commitLog = commitLog;
+        }
+    }
+}
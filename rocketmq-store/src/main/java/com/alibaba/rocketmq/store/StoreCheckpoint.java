@@ -37,12 +37,15 @@ import com.alibaba.rocketmq.common.constant.LoggerName;
  */
 public class StoreCheckpoint {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final int PhysicVerifiedOffsetPosition = 24;
     private final RandomAccessFile randomAccessFile;
     private final FileChannel fileChannel;
     private final MappedByteBuffer mappedByteBuffer;
     private volatile long physicMsgTimestamp = 0;
     private volatile long logicsMsgTimestamp = 0;
     private volatile long indexMsgTimestamp = 0;
+    // 每个CommitLog分区已刷盘完整的文件边界，此位置之前的文件在异常恢复时无需再做CRC校验
+    private final long[] physicVerifiedOffsets = new long[CommitLog.MaxPartitionNums];
 
 
     public StoreCheckpoint(final String scpPath) throws IOException {
@@ -59,6 +62,9 @@ public class StoreCheckpoint {
             this.physicMsgTimestamp = this.mappedByteBuffer.getLong(0);
             this.logicsMsgTimestamp = this.mappedByteBuffer.getLong(8);
             this.indexMsgTimestamp = this.mappedByteBuffer.getLong(16);
+            for (int i = 0; i < this.physicVerifiedOffsets.length; i++) {
+                this.physicVerifiedOffsets[i] = this.mappedByteBuffer.getLong(PhysicVerifiedOffsetPosition + i * 8);
+            }
 
             log.info("store checkpoint file physicMsgTimestamp " + this.physicMsgTimestamp + ", "
                     + UtilAll.timeMillisToHumanString(this.physicMsgTimestamp));
@@ -92,6 +98,9 @@ public class StoreCheckpoint {
         this.mappedByteBuffer.putLong(0, this.physicMsgTimestamp);
         this.mappedByteBuffer.putLong(8, this.logicsMsgTimestamp);
         this.mappedByteBuffer.putLong(16, this.indexMsgTimestamp);
+        for (int i = 0; i < this.physicVerifiedOffsets.length; i++) {
+            this.mappedByteBuffer.putLong(PhysicVerifiedOffsetPosition + i * 8, this.physicVerifiedOffsets[i]);
+        }
         this.mappedByteBuffer.force();
     }
 
@@ -116,6 +125,16 @@ public class StoreCheckpoint {
     }
 
 
+    public long getPhysicVerifiedOffset(final int partitionId) {
+        return physicVerifiedOffsets[partitionId];
+    }
+
+
+    public void setPhysicVerifiedOffset(final int partitionId, final long physicVerifiedOffset) {
+        this.physicVerifiedOffsets[partitionId] = physicVerifiedOffset;
+    }
+
+
     public long getMinTimestampIndex() {
         return Math.min(this.getMinTimestamp(), this.indexMsgTimestamp);
     }
@@ -134,6 +153,21 @@ public class StoreCheckpoint {
     }
 
 
+    /**
+     * 消费队列（以及索引）的刷盘进度，不含CommitLog，CommitLog的进度由各分区的检查点offset判断
+     */
+    public long getMinLogicsTimestamp(final boolean includeIndex) {
+        long min = includeIndex ? Math.min(this.logicsMsgTimestamp, this.indexMsgTimestamp) : this.logicsMsgTimestamp;
+
+        // 与getMinTimestamp一样向前倒退3s
+        min -= 1000 * 3;
+        if (min < 0)
+            min = 0;
+
+        return min;
+    }
+
+
     public long getIndexMsgTimestamp() {
         return indexMsgTimestamp;
     }
@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * CommitLog多存储路径的IO统计<br>
+ * 记录各路径写入与刷盘的延迟，创建新文件时避开明显变慢的磁盘，其余路径中选择可用空间最大的<br>
+ * 写入延迟：启用TransientStorePool时为写缓冲区数据转移到FileChannel的耗时；未启用时消息直接写入内存映射，
+ * 不经过磁盘，记录的是创建文件（打开、设置长度并映射）的耗时，只反映元数据操作的快慢，数据落盘的耗时看刷盘延迟
+ */
+public class StorePathStats {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 延迟超过最快路径的该倍数，并且超过SlowLatencyFloor时，认为路径变慢
+    private static final int SlowLatencyFactor = 3;
+    private static final long SlowLatencyFloor = 1000 * 5;
+    // 超过该时间没有新的采样，路径不再因为旧的延迟被避开，重新创建文件时得到新的采样；
+    // 旧的延迟仍作为最快路径的参考，否则空闲路径没有采样时只能和变慢的路径自己比较
+    private static final long SampleExpireTime = 1000 * 60;
+    private final MessageStoreConfig messageStoreConfig;
+    // 目录 -> 统计
+    private final ConcurrentHashMap<String, PathStat> pathStatTable = new ConcurrentHashMap<String, PathStat>();
+
+
+    public StorePathStats(final MessageStoreConfig messageStoreConfig) {
+        this.messageStoreConfig = messageStoreConfig;
+    }
+
+
+    /**
+     * @param fileName
+     *            文件全路径，按所在目录统计
+     * @param latency
+     *            转移写缓冲区或者创建文件的耗时，单位微秒
+     */
+    public void recordWrite(final String fileName, final long latency) {
+        this.findPathStat(new File(fileName).getParent()).recordWrite(latency, System.currentTimeMillis());
+    }
+
+
+    /**
+     * @param latency
+     *            单位微秒
+     */
+    public void recordFlush(final String fileName, final long latency) {
+        this.recordFlush(fileName, latency, System.currentTimeMillis());
+    }
+
+
+    void recordFlush(final String fileName, final long latency, final long timestamp) {
+        this.findPathStat(new File(fileName).getParent()).recordFlush(latency, timestamp);
+    }
+
+
+    private PathStat findPathStat(final String dir) {
+        PathStat pathStat = this.pathStatTable.get(dir);
+        if (null == pathStat) {
+            pathStat = new PathStat();
+            PathStat prev = this.pathStatTable.putIfAbsent(dir, pathStat);
+            if (prev != null) {
+                pathStat = prev;
+            }
+        }
+
+        return pathStat;
+    }
+
+
+    /**
+     * 选择新文件的存储路径：先排除延迟明显高于最快路径的，再排除超过磁盘使用率上限的，最后选择可用空间最大的
+     */
+    public String selectPath(final String pathCSV) {
+        return this.selectPath(pathCSV, System.currentTimeMillis());
+    }
+
+
+    String selectPath(final String pathCSV, final long now) {
+        if (!pathCSV.contains(",") || !this.messageStoreConfig.isStorePathLatencyAwareEnable()) {
+            return UtilAll.selectPath(pathCSV);
+        }
+
+        String[] paths = pathCSV.split(",");
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = paths[i].trim();
+        }
+        long[] latencies = new long[paths.length];
+        boolean[] expired = new boolean[paths.length];
+        long minLatency = -1;
+        for (int i = 0; i < paths.length; i++) {
+            PathStat pathStat = this.pathStatTable.get(new File(paths[i]).getPath());
+            latencies[i] = null == pathStat ? -1 : pathStat.getLatency();
+            expired[i] = null == pathStat || pathStat.isExpired(now);
+            if (latencies[i] >= 0 && (minLatency < 0 || latencies[i] < minLatency)) {
+                minLatency = latencies[i];
+            }
+        }
+
+        final long slowLatency = Math.max(minLatency * SlowLatencyFactor, SlowLatencyFloor);
+        final double maxUsedRatio = this.messageStoreConfig.getDiskMaxUsedSpaceRatio() / 100.0;
+        String selectedPath = null;
+        long selectedUsableSpace = -1;
+        boolean selectedFull = true;
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i].length() == 0) {
+                continue;
+            }
+
+            if (!expired[i] && latencies[i] > slowLatency) {
+                log.warn("store path " + paths[i] + " is slow, latency(us) " + latencies[i] + ", skip it");
+                continue;
+            }
+
+            File file = new File(paths[i]);
+            long usableSpace = file.getUsableSpace();
+            boolean full = UtilAll.getDiskPartitionSpaceUsedPercent(paths[i]) >= maxUsedRatio;
+            // 未超过使用率上限的路径优先
+            if (null == selectedPath || (selectedFull && !full)
+                    || (selectedFull == full && usableSpace > selectedUsableSpace)) {
+                selectedPath = paths[i];
+                selectedUsableSpace = usableSpace;
+                selectedFull = full;
+            }
+        }
+
+        return selectedPath != null ? selectedPath : UtilAll.selectPath(pathCSV);
+    }
+
+
+    /**
+     * 格式 path1:write=平均写入延迟(us),flush=平均刷盘延迟(us),maxFlush=最大刷盘延迟(us),used=磁盘使用率;path2:...<br>
+     * 写入延迟的含义见类注释
+     */
+    public void buildRunningStats(HashMap<String, String> stats, final String pathCSV) {
+        StringBuilder sb = new StringBuilder();
+        for (String path : pathCSV.split(",")) {
+            path = path.trim();
+            if (path.length() == 0) {
+                continue;
+            }
+
+            PathStat pathStat = this.pathStatTable.get(new File(path).getPath());
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(path).append(':');
+            sb.append("write=").append(null == pathStat ? -1 : pathStat.writeLatency);
+            sb.append(",flush=").append(null == pathStat ? -1 : pathStat.flushLatency);
+            sb.append(",maxFlush=").append(null == pathStat ? -1 : pathStat.maxFlushLatency);
+            sb.append(",used=").append(String.format("%.4f", UtilAll.getDiskPartitionSpaceUsedPercent(path)));
+        }
+        stats.put("commitLogStorePathStats", sb.toString());
+    }
+
+
+    /**
+     * @return 路径最后一次统计的写入与刷盘延迟中较大的，单位微秒，没有采样时返回-1
+     */
+    public long getLatency(final String path) {
+        PathStat pathStat = this.pathStatTable.get(new File(path).getPath());
+        return null == pathStat ? -1 : pathStat.getLatency();
+    }
+
+    static class PathStat {
+        // 指数加权平均延迟，单位微秒
+        private volatile long writeLatency = 0;
+        private volatile long flushLatency = 0;
+        private volatile long maxFlushLatency = 0;
+        private volatile long lastSampleTimestamp = 0;
+        private final AtomicLong writeTimes = new AtomicLong(0);
+        private final AtomicLong flushTimes = new AtomicLong(0);
+
+
+        synchronized void recordWrite(final long latency, final long timestamp) {
+            this.writeLatency = 0 == this.writeTimes.getAndIncrement() ? latency : (this.writeLatency * 7 + latency) / 8;
+            this.lastSampleTimestamp = Math.max(this.lastSampleTimestamp, timestamp);
+        }
+
+
+        synchronized void recordFlush(final long latency, final long timestamp) {
+            this.flushLatency = 0 == this.flushTimes.getAndIncrement() ? latency : (this.flushLatency * 7 + latency) / 8;
+            this.maxFlushLatency = Math.max(this.maxFlushLatency, latency);
+            this.lastSampleTimestamp = Math.max(this.lastSampleTimestamp, timestamp);
+        }
+
+
+        long getLatency() {
+            return Math.max(this.writeLatency, this.flushLatency);
+        }
+
+
+        boolean isExpired(final long now) {
+            return now - this.lastSampleTimestamp > SampleExpireTime;
+        }
+    }
+}
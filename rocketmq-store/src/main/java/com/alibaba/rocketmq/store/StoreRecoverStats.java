@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * 记录Broker启动时各加载、恢复阶段的耗时
+ */
+public class StoreRecoverStats {
+    // 阶段名 -> 耗时（单位毫秒），按执行顺序排列
+    private final LinkedHashMap<String, Long> phaseCostTable = new LinkedHashMap<String, Long>();
+    private long beginTimestamp = System.currentTimeMillis();
+    private long phaseBeginTimestamp = beginTimestamp;
+    private long totalCost = 0;
+
+
+    public synchronized void begin() {
+        this.phaseCostTable.clear();
+        this.beginTimestamp = System.currentTimeMillis();
+        this.phaseBeginTimestamp = this.beginTimestamp;
+        this.totalCost = 0;
+    }
+
+
+    /**
+     * 结束当前阶段，并开始下一阶段计时
+     */
+    public synchronized void phaseEnd(final String phase) {
+        final long now = System.currentTimeMillis();
+        this.phaseCostTable.put(phase, now - this.phaseBeginTimestamp);
+        this.phaseBeginTimestamp = now;
+        this.totalCost = now - this.beginTimestamp;
+    }
+
+
+    public synchronized long getPhaseCost(final String phase) {
+        Long cost = this.phaseCostTable.get(phase);
+        return cost != null ? cost : -1;
+    }
+
+
+    public synchronized long getTotalCost() {
+        return totalCost;
+    }
+
+
+    public synchronized void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("recoverTotalCost", String.valueOf(this.totalCost));
+        for (Map.Entry<String, Long> entry : this.phaseCostTable.entrySet()) {
+            stats.put("recoverCost_" + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "StoreRecoverStats [totalCost=" + totalCost + "ms, phaseCost=" + phaseCostTable + "]";
+    }
+}
@@ -53,6 +53,10 @@ public class StoreStatsService extends ServiceThread {
     private final AtomicLong getMessageTimesTotalFound = new AtomicLong(0);
     private final AtomicLong getMessageTransferredMsgCount = new AtomicLong(0);
     private final AtomicLong getMessageTimesTotalMiss = new AtomicLong(0);
+    // getMessage，被Tag过滤器整块跳过的消息条数
+    private final AtomicLong getMessageSkippedByTagFilter = new AtomicLong(0);
+    // getMessage，通过FileChannel读取的冷数据消息条数
+    private final AtomicLong getMessageColdReadCount = new AtomicLong(0);
     // putMessage，耗时分布
     private final AtomicLong[] putMessageDistributeTime = new AtomicLong[7];
     // put最近10分钟采样
@@ -444,6 +448,8 @@ public class StoreStatsService extends ServiceThread {
         result.put("getMissTps", String.valueOf(this.getGetMissTps()));
         result.put("getTotalTps", String.valueOf(this.getGetTotalTps()));
         result.put("getTransferredTps", String.valueOf(this.getGetTransferredTps()));
+        result.put("getMessageSkippedByTagFilter", String.valueOf(this.getMessageSkippedByTagFilter.get()));
+        result.put("getMessageColdReadCount", String.valueOf(this.getMessageColdReadCount.get()));
 
         return result;
     }
@@ -541,6 +547,16 @@ public class StoreStatsService extends ServiceThread {
     }
 
 
+    public AtomicLong getGetMessageSkippedByTagFilter() {
+        return getMessageSkippedByTagFilter;
+    }
+
+
+    public AtomicLong getGetMessageColdReadCount() {
+        return getMessageColdReadCount;
+    }
+
+
     public AtomicLong getPutMessageFailedTimes() {
         return putMessageFailedTimes;
     }
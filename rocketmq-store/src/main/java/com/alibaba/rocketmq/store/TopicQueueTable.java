@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.util.HashMap;
+
+
+/**
+ * 写消息时记录各队列下一条消息的逻辑offset<br>
+ * 先按topic查找，再以queueId为下标取offset，写消息时不拼接key，也不装箱<br>
+ * 非线程安全，由调用方加锁
+ */
+public class TopicQueueTable {
+    private static final int MinQueueNums = 8;
+    private final HashMap<String/* topic */, long[]/* queueId -> offset */> table;
+    // 每个Topic最多的队列数，queueId不能超出
+    private final int maxQueueNums;
+
+
+    public TopicQueueTable(final int initialCapacity, final int maxQueueNums) {
+        this.table = new HashMap<String, long[]>(initialCapacity);
+        this.maxQueueNums = maxQueueNums;
+    }
+
+
+    /**
+     * @return 队列不存在时返回0
+     */
+    public long get(final String topic, final int queueId) {
+        long[] offsets = this.table.get(topic);
+        if (null == offsets || queueId < 0 || queueId >= offsets.length) {
+            return 0;
+        }
+
+        return offsets[queueId];
+    }
+
+
+    /**
+     * 写锁内调用，queueId超出范围的消息在写入前已被拒绝
+     */
+    public void put(final String topic, final int queueId, final long offset) {
+        if (!this.isQueueIdValid(queueId)) {
+            throw new IllegalArgumentException("illegal queueId " + queueId + " of topic " + topic);
+        }
+
+        long[] offsets = this.table.get(topic);
+        if (null == offsets || queueId >= offsets.length) {
+            int length = null == offsets ? MinQueueNums : offsets.length * 2;
+            long[] newOffsets = new long[Math.min(Math.max(queueId + 1, length), this.maxQueueNums)];
+            if (offsets != null) {
+                System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+            }
+            offsets = newOffsets;
+            this.table.put(topic, offsets);
+        }
+
+        offsets[queueId] = offset;
+    }
+
+
+    public boolean isQueueIdValid(final int queueId) {
+        return queueId >= 0 && queueId < this.maxQueueNums;
+    }
+
+
+    /**
+     * 队列删除后重新从0开始
+     */
+    public void remove(final String topic, final int queueId) {
+        long[] offsets = this.table.get(topic);
+        if (offsets != null && queueId >= 0 && queueId < offsets.length) {
+            offsets[queueId] = 0;
+        }
+    }
+
+
+    /**
+     * @return topic个数
+     */
+    public int size() {
+        return this.table.size();
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.util.LibC;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.nio.ch.DirectBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+
+/**
+ * 预先分配并锁定内存的堆外缓冲区池，启用后CommitLog消息先写入缓冲区而不是MappedFile，
+ * 再由后台服务成批转移到FileChannel
+ */
+public class TransientStorePool {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+
+    // 缓冲区个数
+    private final int poolSize;
+    // 每个缓冲区的大小，与CommitLog文件大小相同
+    private final int fileSize;
+    // 可借用的缓冲区
+    private final Deque<ByteBuffer> availableBuffers;
+
+
+    public TransientStorePool(final MessageStoreConfig storeConfig) {
+        this.poolSize = storeConfig.getTransientStorePoolSize();
+        this.fileSize = storeConfig.getMappedFileSizeCommitLog();
+        this.availableBuffers = new ConcurrentLinkedDeque<ByteBuffer>();
+    }
+
+
+    /**
+     * 启动时分配并锁定所有缓冲区，写消息时不会发生首次访问内存页的缺页
+     */
+    public void init() {
+        for (int i = 0; i < poolSize; i++) {
+            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(fileSize);
+
+            final long address = ((DirectBuffer) byteBuffer).address();
+            Pointer pointer = new Pointer(address);
+            int ret = LibC.INSTANCE.mlock(pointer, new NativeLong(fileSize));
+            if (ret != 0) {
+                log.warn("mlock transient store buffer {} failed, ret = {}", i, ret);
+            }
+
+            availableBuffers.offer(byteBuffer);
+        }
+
+        log.info("transient store pool init OK, pool size: {}, buffer size: {}", poolSize, fileSize);
+    }
+
+
+    public void destroy() {
+        for (ByteBuffer byteBuffer : availableBuffers) {
+            final long address = ((DirectBuffer) byteBuffer).address();
+            Pointer pointer = new Pointer(address);
+            LibC.INSTANCE.munlock(pointer, new NativeLong(fileSize));
+        }
+    }
+
+
+    public void returnBuffer(ByteBuffer byteBuffer) {
+        byteBuffer.position(0);
+        byteBuffer.limit(fileSize);
+        this.availableBuffers.offerFirst(byteBuffer);
+    }
+
+
+    /**
+     * @return 空闲的缓冲区，池已耗尽时返回null，调用方退化为直接写MappedFile
+     */
+    public ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = availableBuffers.pollFirst();
+        if (availableBuffers.size() < poolSize * 0.4) {
+            log.warn("TransientStorePool only remain {} sheets.", availableBuffers.size());
+        }
+        return buffer;
+    }
+
+
+    public int remainBufferNumbs() {
+        return availableBuffers.size();
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.compaction;
+
+import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.store.ConsumeQueue;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.GetMessageResult;
+import com.alibaba.rocketmq.store.GetMessageStatus;
+import com.alibaba.rocketmq.store.MessageFilter;
+import com.alibaba.rocketmq.store.SelectMappedBufferResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * 单个队列的压缩视图，每个KEYS只保留最新的一条消息，没有KEYS的消息原样保留<br>
+ * 每次压缩只把新增消息中每个KEYS的最新值追加到当前一代，写完后记录checkpoint再推进压缩位置；
+ * 之前写入的旧值仍可能被读到，被覆盖的条数超过比例后才重写成新的一代
+ */
+public class CompactedQueue {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 一次拉取最多扫描的压缩单元个数
+    private static final int MaxScanEntryCount = 1024;
+    private final DefaultMessageStore defaultMessageStore;
+    private final String topic;
+    private final int queueId;
+    private final String queueDir;
+    private final String checkpointFile;
+    // 当前对外提供读取的一代
+    private volatile CompactedSegment segment;
+    // 上一代，可能还有拉消息线程在读，下次重写时再删除
+    private CompactedSegment retiredSegment;
+    // 每个KEYS在压缩视图中最新一条消息的逻辑Offset，按完整KEYS比较，只有压缩线程访问，启动后第一次压缩时重建
+    private Map<String, Long> keyOffsets;
+    // 压缩视图中已被覆盖的消息条数
+    private long staleCount;
+
+
+    public CompactedQueue(final DefaultMessageStore defaultMessageStore, final String storePath,
+            final String topic, final int queueId) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.topic = topic;
+        this.queueId = queueId;
+        this.queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+        this.checkpointFile = this.queueDir + File.separator + "checkpoint";
+    }
+
+
+    public boolean load() {
+        String content = MixAll.file2String(this.checkpointFile);
+        if (null == content) {
+            // 写checkpoint中途退出时，备份文件指向的上一代还未删除
+            content = MixAll.file2String(this.checkpointFile + ".bak");
+        }
+        if (content != null) {
+            Properties properties = MixAll.string2Properties(content);
+            if (properties != null) {
+                long generation = Long.parseLong(properties.getProperty("generation"));
+                CompactedSegment loaded = this.newSegment(generation);
+                if (loaded.load(Long.parseLong(properties.getProperty("dataSize")),
+                    Long.parseLong(properties.getProperty("indexSize")))) {
+                    loaded.setCompactedOffset(Long.parseLong(properties.getProperty("compactedOffset")));
+                    this.segment = loaded;
+                }
+                else {
+                    return false;
+                }
+            }
+        }
+
+        // 删除压缩中途异常退出留下的数据
+        File[] dirs = new File(this.queueDir).listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory() && dir.getName().matches("\\d+")
+                        && (null == this.segment || !dir.getName().equals(String.valueOf(this.segment.getGeneration())))) {
+                    log.info("delete unfinished compacted segment " + dir.getPath());
+                    CompactedSegment stale = this.newSegment(Long.parseLong(dir.getName()));
+                    stale.load(0, 0);
+                    stale.destroy();
+                }
+            }
+        }
+
+        log.info("load compacted queue " + this.topic + "-" + this.queueId + " OK, compacted offset "
+                + this.getCompactedOffset());
+        return true;
+    }
+
+
+    private CompactedSegment newSegment(final long generation) {
+        return new CompactedSegment(this.queueDir, generation, this.defaultMessageStore.getMessageStoreConfig()
+            .getMappedFileSizeCompaction());
+    }
+
+
+    /**
+     * 把消费队列中尚未压缩的消息合并进压缩视图，只有压缩线程调用
+     *
+     * @return 本次压缩的消息条数
+     */
+    public long compact(final ConsumeQueue consumeQueue) {
+        if (null == this.keyOffsets && !this.buildKeyOffsets()) {
+            return 0;
+        }
+
+        final long beginOffset = Math.max(this.getCompactedOffset(), consumeQueue.getMinOffsetInQueue());
+        final long endOffset =
+                Math.min(consumeQueue.getMaxOffsetInQueue(), beginOffset
+                        + this.defaultMessageStore.getMessageStoreConfig().getCompactionMaxMessagesPerRound());
+        long compacted = 0;
+        if (endOffset > beginOffset) {
+            compacted = this.appendNewMessages(consumeQueue, beginOffset, endOffset);
+        }
+
+        final CompactedSegment current = this.segment;
+        if (current != null && this.staleCount > 0 && this.staleCount * 100 >= current.getEntryCount()
+                * this.defaultMessageStore.getMessageStoreConfig().getCompactionDirtyRatio()) {
+            this.rewrite(current);
+        }
+
+        return compacted;
+    }
+
+
+    private long appendNewMessages(final ConsumeQueue consumeQueue, final long beginOffset, final long endOffset) {
+        // 第一遍读取新增消息的KEYS，记录本批中每个KEYS最新的逻辑Offset
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        final Map<String, Long> latestOffsets = new HashMap<String, Long>();
+        long offset = beginOffset;
+        SCAN:
+        while (offset < endOffset) {
+            SelectMappedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
+            if (null == bufferConsumeQueue) {
+                break;
+            }
+
+            try {
+                for (int i = 0; i < bufferConsumeQueue.getSize() && offset < endOffset; i +=
+                        ConsumeQueue.CQStoreUnitSize) {
+                    long offsetPy = bufferConsumeQueue.getByteBuffer().getLong();
+                    int sizePy = bufferConsumeQueue.getByteBuffer().getInt();
+                    long tagsCode = bufferConsumeQueue.getByteBuffer().getLong();
+
+                    String keys = readKeys(this.defaultMessageStore.selectOneMessageByOffset(offsetPy, sizePy));
+                    if (null == keys) {
+                        // 消息尚不可读
+                        break SCAN;
+                    }
+
+                    candidates.add(new Candidate(offset, offsetPy, sizePy, tagsCode, keys));
+                    if (keys.length() > 0) {
+                        latestOffsets.put(keys, offset);
+                    }
+                    offset++;
+                }
+            }
+            finally {
+                bufferConsumeQueue.release();
+            }
+        }
+
+        if (offset == beginOffset) {
+            return 0;
+        }
+
+        // 第二遍把本批的存活消息追加到当前一代，没有KEYS的消息无法压缩，全部保留
+        final boolean created = null == this.segment;
+        final CompactedSegment current = created ? this.newSegment(0) : this.segment;
+        final long dataSize = current.getDataSize();
+        final long indexSize = current.getIndexSize();
+        boolean ok = true;
+        for (int i = 0; i < candidates.size() && ok; i++) {
+            Candidate candidate = candidates.get(i);
+            if (candidate.keys.length() == 0 || latestOffsets.get(candidate.keys) == candidate.cqOffset) {
+                SelectMappedBufferResult result =
+                        this.defaultMessageStore.selectOneMessageByOffset(candidate.offsetPy, candidate.sizePy);
+                ok = result != null && this.append(current, candidate.cqOffset, candidate.tagsCode, result);
+            }
+        }
+
+        if (!ok || !this.writeCheckpoint(current, offset)) {
+            log.warn("compact " + this.topic + "-" + this.queueId + " failed, retry next time");
+            if (created) {
+                current.destroy();
+            }
+            else {
+                current.truncate(dataSize, indexSize);
+            }
+            return 0;
+        }
+
+        for (Map.Entry<String, Long> entry : latestOffsets.entrySet()) {
+            if (this.keyOffsets.put(entry.getKey(), entry.getValue()) != null) {
+                this.staleCount++;
+            }
+        }
+
+        current.setCompactedOffset(offset);
+        this.segment = current;
+
+        log.info("compact " + this.topic + "-" + this.queueId + " [" + beginOffset + ", " + offset + ") OK, "
+                + current.getEntryCount() + " messages in compacted view, " + this.staleCount + " stale");
+        return offset - beginOffset;
+    }
+
+
+    /**
+     * 被覆盖的消息超过比例后重写成新的一代，只保留每个KEYS的最新值和没有KEYS的消息
+     */
+    private void rewrite(final CompactedSegment current) {
+        final CompactedSegment next = this.newSegment(current.getGeneration() + 1);
+        final CompactedSegment.Entry entry = new CompactedSegment.Entry();
+        boolean ok = true;
+        for (long i = 0; i < current.getEntryCount() && ok; i++) {
+            ok = current.getEntry(i, entry);
+            if (ok) {
+                SelectMappedBufferResult result = current.getMessage(entry.getDataPos(), entry.getSize());
+                ok = result != null;
+                if (ok) {
+                    Long latest = this.keyOffsets.get(parseKeys(result.getByteBuffer()));
+                    if (latest != null && latest != entry.getCqOffset()) {
+                        result.release();
+                    }
+                    else {
+                        ok = this.append(next, entry.getCqOffset(), entry.getTagsCode(), result);
+                    }
+                }
+            }
+        }
+
+        if (!ok || !this.writeCheckpoint(next, current.getCompactedOffset())) {
+            log.warn("rewrite compacted queue " + this.topic + "-" + this.queueId + " failed, retry next time");
+            next.destroy();
+            return;
+        }
+
+        next.setCompactedOffset(current.getCompactedOffset());
+        if (this.retiredSegment != null) {
+            this.retiredSegment.destroy();
+        }
+        this.retiredSegment = current;
+        this.segment = next;
+        this.staleCount = 0;
+
+        log.info("rewrite compacted queue " + this.topic + "-" + this.queueId + " OK, " + current.getEntryCount()
+                + " -> " + next.getEntryCount() + " messages");
+    }
+
+
+    /**
+     * 启动后第一次压缩前，读取压缩视图中每条消息的KEYS重建KEYS表
+     */
+    private boolean buildKeyOffsets() {
+        final Map<String, Long> offsets = new HashMap<String, Long>();
+        long stale = 0;
+        final CompactedSegment current = this.segment;
+        if (current != null) {
+            final CompactedSegment.Entry entry = new CompactedSegment.Entry();
+            for (long i = 0; i < current.getEntryCount(); i++) {
+                String keys =
+                        current.getEntry(i, entry) ? readKeys(current.getMessage(entry.getDataPos(), entry.getSize()))
+                                : null;
+                if (null == keys) {
+                    log.error("read keys from compacted queue " + this.topic + "-" + this.queueId + " failed, index "
+                            + i);
+                    return false;
+                }
+
+                if (keys.length() > 0 && offsets.put(keys, entry.getCqOffset()) != null) {
+                    stale++;
+                }
+            }
+        }
+
+        this.keyOffsets = offsets;
+        this.staleCount = stale;
+        return true;
+    }
+
+
+    private boolean writeCheckpoint(final CompactedSegment segment, final long compactedOffset) {
+        segment.flush();
+        try {
+            Properties properties = new Properties();
+            properties.setProperty("generation", String.valueOf(segment.getGeneration()));
+            properties.setProperty("compactedOffset", String.valueOf(compactedOffset));
+            properties.setProperty("dataSize", String.valueOf(segment.getDataSize()));
+            properties.setProperty("indexSize", String.valueOf(segment.getIndexSize()));
+            MixAll.string2File(MixAll.properties2String(properties), this.checkpointFile);
+            return true;
+        }
+        catch (IOException e) {
+            log.error("write compaction checkpoint exception, " + this.checkpointFile, e);
+            return false;
+        }
+    }
+
+
+    /**
+     * @return 消息的KEYS，没有时返回空串，消息读不到时返回null
+     */
+    private static String readKeys(final SelectMappedBufferResult result) {
+        if (null == result) {
+            return null;
+        }
+
+        try {
+            return parseKeys(result.getByteBuffer());
+        }
+        finally {
+            result.release();
+        }
+    }
+
+
+    /**
+     * 只解析属性区，不解码整条消息
+     */
+    private static String parseKeys(final ByteBuffer byteBuffer) {
+        Map<String, String> properties = MessageDecoder.decodeProperties(byteBuffer);
+        if (null == properties) {
+            return null;
+        }
+
+        String keys = properties.get(MessageConst.PROPERTY_KEYS);
+        return keys != null ? keys : "";
+    }
+
+
+    private boolean append(final CompactedSegment segment, final long cqOffset, final long tagsCode,
+            final SelectMappedBufferResult result) {
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            byte[] msg = new byte[result.getSize()];
+            byteBuffer.get(msg);
+            return segment.append(cqOffset, tagsCode, msg);
+        }
+        finally {
+            result.release();
+        }
+    }
+
+
+    /**
+     * 从压缩视图读取消息
+     *
+     * @return offset已超出压缩范围时返回null，由调用方从消费队列读取
+     */
+    public GetMessageResult getMessage(final long offset, final int maxMsgNums,
+            final SubscriptionData subscriptionData, final MessageFilter messageFilter) {
+        final CompactedSegment current = this.segment;
+        // 压缩线程可能正在追加，只读取已记录checkpoint的部分
+        final long compactedOffset = null == current ? 0 : current.getCompactedOffset();
+        if (null == current || offset >= compactedOffset) {
+            return null;
+        }
+
+        GetMessageResult getResult = new GetMessageResult();
+        GetMessageStatus status = GetMessageStatus.NO_MATCHED_MESSAGE;
+        final int maxTransferBytes = this.defaultMessageStore.getMessageStoreConfig().getMaxTransferBytesOnMessageInDisk();
+        final long entryCount = current.getEntryCount();
+        long index = current.findEntry(offset);
+        CompactedSegment.Entry entry = new CompactedSegment.Entry();
+        final boolean filterByProperty = subscriptionData != null && subscriptionData.getPropertyFilter() != null
+                && !subscriptionData.getPropertyFilter().isEmpty();
+        for (int scanned = 0; index < entryCount && scanned < MaxScanEntryCount; scanned++) {
+            if (!current.getEntry(index, entry) || entry.getCqOffset() >= compactedOffset) {
+                break;
+            }
+
+            if (getResult.getMessageCount() >= maxMsgNums
+                    || (getResult.getMessageCount() > 0 && getResult.getBufferTotalSize() + entry.getSize() > maxTransferBytes)) {
+                break;
+            }
+
+            if (messageFilter.isMessageMatched(subscriptionData, entry.getTagsCode())) {
+                SelectMappedBufferResult selectResult = current.getMessage(entry.getDataPos(), entry.getSize());
+                if (null == selectResult) {
+                    break;
+                }
+
+                if (filterByProperty && !messageFilter.isPropertiesMatched(subscriptionData,
+                    MessageDecoder.decodeProperties(selectResult.getByteBuffer()))) {
+                    selectResult.release();
+                } else {
+                    getResult.addMessage(selectResult);
+                    status = GetMessageStatus.FOUND;
+                }
+            }
+            index++;
+        }
+
+        long nextBeginOffset = compactedOffset;
+        if (index < entryCount && current.getEntry(index, entry) && entry.getCqOffset() < compactedOffset) {
+            nextBeginOffset = entry.getCqOffset();
+        }
+
+        getResult.setStatus(status);
+        getResult.setNextBeginOffset(nextBeginOffset);
+        return getResult;
+    }
+
+
+    /**
+     * @return 压缩视图中第一条消息的逻辑Offset，没有压缩视图时返回-1
+     */
+    public long getMinOffset() {
+        final CompactedSegment current = this.segment;
+        if (current != null) {
+            final long compactedOffset = current.getCompactedOffset();
+            CompactedSegment.Entry entry = new CompactedSegment.Entry();
+            if (current.getEntryCount() > 0 && current.getEntry(0, entry) && entry.getCqOffset() < compactedOffset) {
+                return entry.getCqOffset();
+            }
+            return compactedOffset;
+        }
+
+        return -1;
+    }
+
+
+    public long getCompactedOffset() {
+        final CompactedSegment current = this.segment;
+        return null == current ? 0 : current.getCompactedOffset();
+    }
+
+
+    public long getMessageCount() {
+        final CompactedSegment current = this.segment;
+        return null == current ? 0 : current.getEntryCount();
+    }
+
+
+    public void destroy() {
+        if (this.retiredSegment != null) {
+            this.retiredSegment.destroy();
+            this.retiredSegment = null;
+        }
+        if (this.segment != null) {
+            this.segment.destroy();
+            this.segment = null;
+        }
+        new File(this.checkpointFile).delete();
+        new File(this.checkpointFile + ".bak").delete();
+    }
+
+    private static class Candidate {
+        private final long cqOffset;
+        private final long offsetPy;
+        private final int sizePy;
+        private final long tagsCode;
+        private final String keys;
+
+
+        private Candidate(final long cqOffset, final long offsetPy, final int sizePy, final long tagsCode,
+                final String keys) {
+            this.cqOffset = cqOffset;
+            this.offsetPy = offsetPy;
+            this.sizePy = sizePy;
+            this.tagsCode = tagsCode;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.compaction;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MappedFile;
+import com.alibaba.rocketmq.store.MappedFileQueue;
+import com.alibaba.rocketmq.store.SelectMappedBufferResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+
+/**
+ * 一代压缩数据，每次压缩在末尾追加，只有重写时才生成新的一代<br>
+ * data中顺序存放消息原始内容，index中每条消息一个定长单元，按原始逻辑Offset升序排列
+ */
+public class CompactedSegment {
+    // 存储单元大小, consume queue offset(long, 8) + data position(long, 8) + message size(int, 4)
+    // + tags code(long, 8)
+    public static final int IndexUnitSize = 28;
+    private static final int IndexUnitsPerFile = 300000;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final String segmentDir;
+    private final long generation;
+    // 原始逻辑Offset小于该值的消息都已压缩进本段，追加的数据记录checkpoint后才推进
+    private volatile long compactedOffset;
+    private final MappedFileQueue dataQueue;
+    private final MappedFileQueue indexQueue;
+    // 写索引单元时用到的ByteBuffer
+    private final ByteBuffer byteBufferIndex = ByteBuffer.allocate(IndexUnitSize);
+
+
+    public CompactedSegment(final String queueDir, final long generation, final int dataFileSize) {
+        this.generation = generation;
+        this.segmentDir = queueDir + File.separator + generation;
+        this.dataQueue = new MappedFileQueue(this.segmentDir + File.separator + "data", dataFileSize, null);
+        this.indexQueue =
+                new MappedFileQueue(this.segmentDir + File.separator + "index", IndexUnitSize * IndexUnitsPerFile,
+                    null);
+    }
+
+
+    /**
+     * 压缩数据写完才记录checkpoint，加载时按checkpoint中的长度截断
+     */
+    public boolean load(final long dataSize, final long indexSize) {
+        boolean result = this.dataQueue.load() && this.indexQueue.load();
+        if (result) {
+            this.dataQueue.truncateDirtyFiles(dataSize);
+            this.indexQueue.truncateDirtyFiles(indexSize);
+            result = this.dataQueue.getMaxOffset() == dataSize && this.indexQueue.getMaxOffset() == indexSize;
+        }
+
+        log.info("load compacted segment " + this.segmentDir + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 追加失败时回退到上次checkpoint的长度，只有压缩线程调用
+     */
+    public void truncate(final long dataSize, final long indexSize) {
+        this.dataQueue.truncateDirtyFiles(dataSize);
+        this.indexQueue.truncateDirtyFiles(indexSize);
+    }
+
+
+    /**
+     * 追加一条消息，只有压缩线程调用
+     */
+    public boolean append(final long cqOffset, final long tagsCode, final byte[] msg) {
+        MappedFile dataFile = this.dataQueue.getLastMappedFile(0);
+        if (null == dataFile) {
+            return false;
+        }
+
+        // 消息不跨文件，剩余空间不足时切换到下一个文件
+        if (dataFile.getWrotePosition() + msg.length > dataFile.getFileSize()) {
+            dataFile.setWrotePosition(dataFile.getFileSize());
+            dataFile = this.dataQueue.getLastMappedFile(0);
+            if (null == dataFile) {
+                return false;
+            }
+        }
+
+        final long dataPos = dataFile.getFileFromOffset() + dataFile.getWrotePosition();
+        if (!dataFile.appendMessage(msg)) {
+            log.error("message too large for compacted segment, size " + msg.length);
+            return false;
+        }
+
+        MappedFile indexFile = this.indexQueue.getLastMappedFile(0);
+        if (null == indexFile) {
+            return false;
+        }
+
+        this.byteBufferIndex.clear();
+        this.byteBufferIndex.putLong(cqOffset);
+        this.byteBufferIndex.putLong(dataPos);
+        this.byteBufferIndex.putInt(msg.length);
+        this.byteBufferIndex.putLong(tagsCode);
+        return indexFile.appendMessage(this.byteBufferIndex.array());
+    }
+
+
+    public long getEntryCount() {
+        return this.indexQueue.getMaxOffset() / IndexUnitSize;
+    }
+
+
+    /**
+     * 读取第index个索引单元
+     */
+    public boolean getEntry(final long index, final Entry entry) {
+        final long offset = index * IndexUnitSize;
+        MappedFile mappedFile = this.indexQueue.findMappedFileByOffset(offset);
+        if (null == mappedFile) {
+            return false;
+        }
+
+        SelectMappedBufferResult result =
+                mappedFile.selectMappedBuffer((int) (offset % this.indexQueue.getMappedFileSize()), IndexUnitSize);
+        if (null == result) {
+            return false;
+        }
+
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            entry.cqOffset = byteBuffer.getLong();
+            entry.dataPos = byteBuffer.getLong();
+            entry.size = byteBuffer.getInt();
+            entry.tagsCode = byteBuffer.getLong();
+            return true;
+        }
+        finally {
+            result.release();
+        }
+    }
+
+
+    /**
+     * @return 第一个原始逻辑Offset不小于cqOffset的索引单元序号，都小于时返回单元总数
+     */
+    public long findEntry(final long cqOffset) {
+        final Entry entry = new Entry();
+        long low = 0;
+        long high = this.getEntryCount();
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (!this.getEntry(mid, entry)) {
+                return this.getEntryCount();
+            }
+
+            if (entry.cqOffset < cqOffset) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+
+    public SelectMappedBufferResult getMessage(final long dataPos, final int size) {
+        MappedFile mappedFile = this.dataQueue.findMappedFileByOffset(dataPos);
+        if (mappedFile != null) {
+            return mappedFile.selectMappedBuffer((int) (dataPos % this.dataQueue.getMappedFileSize()), size);
+        }
+
+        return null;
+    }
+
+
+    public void flush() {
+        this.dataQueue.commit(0);
+        this.indexQueue.commit(0);
+    }
+
+
+    public long getDataSize() {
+        return this.dataQueue.getMaxOffset();
+    }
+
+
+    public long getIndexSize() {
+        return this.indexQueue.getMaxOffset();
+    }
+
+
+    public long getGeneration() {
+        return generation;
+    }
+
+
+    public long getCompactedOffset() {
+        return compactedOffset;
+    }
+
+
+    public void setCompactedOffset(long compactedOffset) {
+        this.compactedOffset = compactedOffset;
+    }
+
+
+    public void destroy() {
+        this.dataQueue.destroy();
+        this.indexQueue.destroy();
+        // 文件已删除，删除空目录
+        new File(this.segmentDir + File.separator + "data").delete();
+        new File(this.segmentDir + File.separator + "index").delete();
+        boolean result = new File(this.segmentDir).delete();
+        log.info("destroy compacted segment " + this.segmentDir + (result ? " OK" : " Failed"));
+    }
+
+    public static class Entry {
+        private long cqOffset;
+        private long dataPos;
+        private int size;
+        private long tagsCode;
+
+
+        public long getCqOffset() {
+            return cqOffset;
+        }
+
+
+        public long getDataPos() {
+            return dataPos;
+        }
+
+
+        public int getSize() {
+            return size;
+        }
+
+
+        public long getTagsCode() {
+            return tagsCode;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.compaction;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.store.ConsumeQueue;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.GetMessageResult;
+import com.alibaba.rocketmq.store.MessageFilter;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * 压缩Topic服务，后台定期把配置的Topic按KEYS压缩，每个KEYS只保留最新的一条消息<br>
+ * 拉消息的Offset落在已压缩范围内时从压缩视图读取，CommitLog过期删除后压缩视图仍然保留
+ */
+public class CompactionService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final String storePath;
+    private final Set<String> compactedTopics = new HashSet<String>();
+    // topic@queueId -> 压缩视图
+    private final ConcurrentHashMap<String, CompactedQueue> compactedQueueTable =
+            new ConcurrentHashMap<String, CompactedQueue>();
+
+
+    public CompactionService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        this.storePath = StorePathConfigHelper.getStorePathCompaction(this.messageStoreConfig.getStorePathRootDir());
+        for (String topic : this.messageStoreConfig.getCompactedTopics().split(",")) {
+            topic = topic.trim();
+            if (topic.length() > 0) {
+                this.compactedTopics.add(topic);
+            }
+        }
+    }
+
+
+    public boolean load() {
+        File[] topicDirs = new File(this.storePath).listFiles();
+        if (topicDirs != null) {
+            for (File topicDir : topicDirs) {
+                File[] queueIdDirs = topicDir.listFiles();
+                if (!topicDir.isDirectory() || null == queueIdDirs) {
+                    continue;
+                }
+
+                for (File queueIdDir : queueIdDirs) {
+                    if (!queueIdDir.isDirectory() || !queueIdDir.getName().matches("\\d+")) {
+                        continue;
+                    }
+
+                    CompactedQueue compactedQueue =
+                            new CompactedQueue(this.defaultMessageStore, this.storePath, topicDir.getName(),
+                                Integer.parseInt(queueIdDir.getName()));
+                    if (!compactedQueue.load()) {
+                        return false;
+                    }
+                    this.compactedQueueTable.put(buildKey(topicDir.getName(), Integer.parseInt(queueIdDir.getName())),
+                        compactedQueue);
+                }
+            }
+        }
+
+        log.info("load compacted queues OK, compacted topics " + this.compactedTopics);
+        return true;
+    }
+
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(this.messageStoreConfig.getCompactionInterval());
+                this.compact();
+            }
+            catch (Exception e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    /**
+     * 压缩所有压缩Topic的队列，同一时刻只有一个线程执行
+     *
+     * @return 本次压缩的消息条数
+     */
+    public synchronized long compact() {
+        long total = 0;
+        for (String topic : this.compactedTopics) {
+            ConcurrentHashMap<Integer, ConsumeQueue> queues =
+                    this.defaultMessageStore.getConsumeQueueTable().get(topic);
+            if (null == queues) {
+                continue;
+            }
+
+            for (Map.Entry<Integer, ConsumeQueue> entry : queues.entrySet()) {
+                if (this.isStopped()) {
+                    return total;
+                }
+
+                String key = buildKey(topic, entry.getKey());
+                CompactedQueue compactedQueue = this.compactedQueueTable.get(key);
+                if (null == compactedQueue) {
+                    compactedQueue = new CompactedQueue(this.defaultMessageStore, this.storePath, topic, entry.getKey());
+                    CompactedQueue prev = this.compactedQueueTable.putIfAbsent(key, compactedQueue);
+                    if (prev != null) {
+                        compactedQueue = prev;
+                    }
+                }
+
+                total += compactedQueue.compact(entry.getValue());
+            }
+        }
+
+        return total;
+    }
+
+
+    public boolean isCompactedTopic(final String topic) {
+        return this.compactedTopics.contains(topic);
+    }
+
+
+    /**
+     * @return offset已超出压缩范围或者没有压缩视图时返回null
+     */
+    public GetMessageResult getMessage(final String topic, final int queueId, final long offset,
+            final int maxMsgNums, final SubscriptionData subscriptionData, final MessageFilter messageFilter) {
+        CompactedQueue compactedQueue = this.compactedQueueTable.get(buildKey(topic, queueId));
+        if (null == compactedQueue) {
+            return null;
+        }
+
+        return compactedQueue.getMessage(offset, maxMsgNums, subscriptionData, messageFilter);
+    }
+
+
+    /**
+     * @return 压缩视图中第一条消息的逻辑Offset，没有压缩视图时返回-1
+     */
+    public long getMinOffset(final String topic, final int queueId) {
+        CompactedQueue compactedQueue = this.compactedQueueTable.get(buildKey(topic, queueId));
+        return null == compactedQueue ? -1 : compactedQueue.getMinOffset();
+    }
+
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        long compactedMessages = 0;
+        for (CompactedQueue compactedQueue : this.compactedQueueTable.values()) {
+            compactedMessages += compactedQueue.getMessageCount();
+        }
+        stats.put("compactedQueueNums", String.valueOf(this.compactedQueueTable.size()));
+        stats.put("compactedMessageNums", String.valueOf(compactedMessages));
+    }
+
+
+    public void destroy() {
+        for (CompactedQueue compactedQueue : this.compactedQueueTable.values()) {
+            compactedQueue.destroy();
+        }
+        this.compactedQueueTable.clear();
+    }
+
+
+    private static String buildKey(final String topic, final int queueId) {
+        return topic + "@" + queueId;
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return CompactionService.class.getSimpleName();
+    }
+}
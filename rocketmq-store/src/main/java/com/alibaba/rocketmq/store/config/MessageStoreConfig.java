@@ -49,6 +49,8 @@ public class MessageStoreConfig {
     private boolean flushCommitLogTimed = false;
     // ConsumeQueue刷盘间隔时间（单位毫秒）
     private int flushIntervalConsumeQueue = 1000;
+    // 分发消息兜底的轮询间隔（单位毫秒），写入消息及HA追加数据后会立即唤醒分发
+    private int reputMessageInterval = 1000;
     // 清理资源间隔时间（单位毫秒）
     private int cleanResourceInterval = 10000;
     // 删除多个CommitLog文件的间隔时间（单位毫秒）
@@ -59,6 +61,8 @@ public class MessageStoreConfig {
     private int destroyMappedFileIntervalForcibly = 1000 * 120;
     // 定期检查Hanged文件间隔时间（单位毫秒）
     private int redeleteHangedFileInterval = 1000 * 120;
+    // CommitLog配置多个存储路径时，新文件避开写入与刷盘延迟明显变高的路径
+    private boolean storePathLatencyAwareEnable = false;
     // 何时触发删除文件, 默认凌晨4点删除文件
     @ImportantField
     private String deleteWhen = "04";
@@ -69,12 +73,28 @@ public class MessageStoreConfig {
     private int fileReservedTime = 72;
     // 写消息索引到ConsumeQueue，缓冲区高水位，超过则开始流控
     private int putMsgIndexHighWater = 600000;
+    // 并行写ConsumeQueue的线程数，同一队列始终由同一线程写入
+    private int dispatchThreadNums = 4;
+    // 消费队列时间索引的采样间隔（消息条数），0表示不建时间索引
+    private int consumeQueueTimeIndexInterval = 256;
+    // 消费队列Tag过滤块大小（消息条数），0表示不建Tag过滤器
+    private int consumeQueueTagFilterBlockSize = 1024;
+    // 记录在消费队列扩展文件中的消息属性，逗号分隔，最多4个，为空表示不建扩展文件
+    private String consumeQueueExtProperties = "";
     // 最大消息大小，默认512K
     private int maxMessageSize = 1024 * 512;
+    // 每个Topic最多的队列数，queueId超出的消息被拒绝，写消息时按queueId分配的队列Offset表不会无限增长
+    private int maxQueueNumsPerTopic = 1024;
     // 重启时，是否校验CRC
     private boolean checkCRCOnRecover = true;
     // 刷CommitLog，至少刷几个PAGE
     private int flushCommitLogLeastPages = 4;
+    // 刷CommitLog时通过sync_file_range持续发起异步回写，只在彻底刷盘或文件写满时fsync
+    // 代价：刷盘位置与checkpoint只在fsync时推进，即最长每flushCommitLogThoroughInterval推进一次，
+    // 异常宕机后需要从更早的位置恢复，依赖刷盘位置的统计与主备判断也相应滞后
+    private boolean flushCommitLogSyncFileRangeEnable = false;
+    // 异步回写CommitLog，至少回写几个PAGE
+    private int writebackCommitLogLeastPages = 64;
 
     // Flush page size when the disk in warming state
     private int flushLeastPagesWhenWarmMappedFile = 1024 / 4 * 16;
@@ -105,6 +125,13 @@ public class MessageStoreConfig {
     private boolean messageIndexEnable = true;
     private int maxHashSlotNum = 5000000;
     private int maxIndexNum = 5000000 * 4;
+    // 索引分片数，每个分片一个写线程，槽位及索引个数在分片间均分
+    private int indexShardNums = 1;
+    // 索引文件布隆过滤器每个Key占用的位数，0表示不使用
+    // 每个已加载的索引文件常驻堆内存 maxIndexNum * bitsPerKey / 8 字节，默认maxIndexNum下每个文件约 bitsPerKey * 2.5M，需按文件数评估后开启
+    private int indexBloomFilterBitsPerKey = 0;
+    // 按Key查询时并行读取多个索引文件的线程数
+    private int indexQueryThreadNums = 4;
     private int maxMsgsNumBatch = 64;
     // 是否使用安全的消息索引功能，即可靠模式。
     // 可靠模式下，异常宕机恢复慢
@@ -116,11 +143,19 @@ public class MessageStoreConfig {
     private int haSendHeartbeatInterval = 1000 * 5;
     private int haHousekeepingInterval = 1000 * 20;
     private int haTransferBatchSize = 1024 * 32;
+    // Slave落后较多时，单次传输批量逐步翻倍，最大不超过此值（Slave接收缓冲区为4M）
+    private int haTransferBatchSizeMax = 1024 * 1024;
+    // 使用FileChannel.transferTo直接从CommitLog文件发送数据，不计算校验和，Slave需先升级到识别无校验和数据块的版本
+    private boolean haTransferZeroCopyEnable = false;
+    // 对传输的数据块做压缩，开启后优先于零拷贝，Slave需先升级到支持解压的版本
+    private boolean haTransferCompressEnable = false;
     // 如果不设置，则从NameServer获取Master HA服务地址
     @ImportantField
     private String haMasterAddress = null;
     // Slave落后Master超过此值，则认为存在异常
     private int haSlaveFallBehindMax = 1024 * 1024 * 256;
+    // 同步双写时，需要多少个Slave确认后才算写入成功
+    private int haSyncReplicaQuorum = 1;
     @ImportantField
     private BrokerRole brokerRole = BrokerRole.ASYNC_MASTER;
     @ImportantField
@@ -130,14 +165,79 @@ public class MessageStoreConfig {
     // 定时消息相关
     private String messageDelayLevel = "1s 5s 10s 30s 1m 2m 3m 4m 5m 6m 7m 8m 9m 10m 20m 30m 1h 2h";
     private long flushDelayOffsetInterval = 1000 * 10;
+    // 是否开启任意投递时间的定时消息
+    private boolean timerWheelEnable = false;
+    // 时间轮槽位数，每秒一个槽位，默认7天，超出范围的消息到期后转存
+    private int timerWheelSlots = 60 * 60 * 24 * 7;
+    // TimerLog每个文件大小
+    private int mappedFileSizeTimerLog = 1024 * 1024 * 64;
+    // 到期消息每批投递条数
+    private int timerDeliverBatchSize = 32;
+    // 按KEYS压缩的Topic，逗号分隔，为空表示不启动压缩服务
+    private String compactedTopics = "";
+    // 压缩间隔
+    private long compactionInterval = 1000 * 60;
+    // 每个队列每次最多压缩的消息条数
+    private int compactionMaxMessagesPerRound = 1000000;
+    // 压缩视图中被覆盖的消息占比（百分比）达到该值后重写压缩视图，之前只追加新的存活消息
+    private int compactionDirtyRatio = 50;
+    // 压缩数据每个文件大小，需大于最大消息大小
+    private int mappedFileSizeCompaction = 1024 * 1024 * 64;
+    // 消费队列文件在第一次访问时才映射，避免启动时映射所有队列的全部文件
+    private boolean consumeQueueLazyMapEnable = true;
+    // 消费队列文件映射的虚拟内存上限，超过后按LRU解除空闲消费队列文件的映射，0表示不限制
+    // CommitLog等文件的映射无法解除，不计入该上限
+    private long maxMappedVirtualMemory = 0;
+    // 检查映射内存上限的间隔
+    private int unmapIdleConsumeQueueInterval = 1000 * 10;
+    // 判定不在内存中的消息通过FileChannel读取，缺页发生在系统调用中，拉消息结果不持有文件引用
+    private boolean coldReadByFileChannelEnable = false;
+    // 通过mincore采样CommitLog页驻留情况的间隔，拉消息时据此判断消息是否在内存中，0表示不采样，按内存比例估算
+    private int pageCacheResidencySampleInterval = 0;
+    // 拉取磁盘中的消息时，从消费位置开始向后预读的CommitLog字节数，0表示不预读
+    private int readAheadBytesOnMessageInDisk = 0;
+    // CommitLog增量删除，文件过期后即交给低优先级线程分块截断再删除，不再集中在deleteWhen删除
+    private boolean commitLogIncrementalDeleteEnable = false;
+    // 增量删除时每次截断的字节数
+    private int deleteTruncateChunkSize = 1024 * 1024 * 64;
+    // 增量删除时每秒最多截断的字节数，0表示不限速
+    private long deleteTruncateBytesPerSecond = 1024 * 1024 * 256;
     // 磁盘空间超过90%警戒水位，自动开始删除文件
     @ImportantField
     private boolean cleanFileForciblyEnable = true;
 
     private boolean warmMappedFileEnable = false;
+    // 预先创建的CommitLog文件数，文件通过fallocate分配磁盘块，并在低优先级线程中预缺页，小于2时只预创建后两个文件
+    // 预缺页只读，每页第一次写入仍有一次写保护缺页发生在写锁内
+    private int mappedFilePoolSize = 0;
+    // 预缺页每秒最多处理的字节数，避免与刷盘争抢IO，0表示不限速
+    private long prefaultMappedFileBytesPerSecond = 1024 * 1024 * 64;
 
     private boolean useReentrantLockWhenPutMessage = false;
 
+    // 消息先写入池化的堆外缓冲区，再由后台服务转移到FileChannel，只对异步刷盘的Master生效
+    @ImportantField
+    private boolean transientStorePoolEnable = false;
+    // 池中堆外缓冲区的个数，每个与CommitLog文件大小相同
+    private int transientStorePoolSize = 5;
+    // 缓冲区数据转移到FileChannel的间隔时间（单位毫秒）
+    private int transferIntervalCommitLog = 200;
+    // 每次转移至少积累的页数
+    private int transferCommitLogLeastPages = 4;
+    // 不论积累多少页都进行转移的间隔时间（单位毫秒）
+    private int transferCommitLogThoroughInterval = 200;
+
+    // storePathCommitLog中每个目录一个独立的CommitLog分区，各自有写锁、刷盘服务和文件，队列固定写入一个分区
+    // 只对ASYNC_MASTER生效，HA只能同步一个offset空间，多分区时Master拒绝Slave接入
+    // 分区数及目录列表记录在config/commitLogPartitions中，写入数据后修改会拒绝启动
+    @ImportantField
+    private boolean commitLogPartitionEnable = false;
+
+    // 重启时并行校验已写满的CommitLog文件，并行加载及恢复ConsumeQueue
+    private boolean recoverConcurrently = true;
+    // 并行恢复使用的线程数
+    private int recoverThreadPoolNums = Runtime.getRuntime().availableProcessors();
+
 
     public int getMappedFileSizeCommitLog() {
         return mappedFileSizeCommitLog;
@@ -181,6 +281,16 @@ public class MessageStoreConfig {
     }
 
 
+    public int getReputMessageInterval() {
+        return reputMessageInterval;
+    }
+
+
+    public void setReputMessageInterval(int reputMessageInterval) {
+        this.reputMessageInterval = reputMessageInterval;
+    }
+
+
     public int getPutMsgIndexHighWater() {
         return putMsgIndexHighWater;
     }
@@ -191,6 +301,46 @@ public class MessageStoreConfig {
     }
 
 
+    public int getConsumeQueueTimeIndexInterval() {
+        return consumeQueueTimeIndexInterval;
+    }
+
+
+    public void setConsumeQueueTimeIndexInterval(int consumeQueueTimeIndexInterval) {
+        this.consumeQueueTimeIndexInterval = consumeQueueTimeIndexInterval;
+    }
+
+
+    public int getConsumeQueueTagFilterBlockSize() {
+        return consumeQueueTagFilterBlockSize;
+    }
+
+
+    public void setConsumeQueueTagFilterBlockSize(int consumeQueueTagFilterBlockSize) {
+        this.consumeQueueTagFilterBlockSize = consumeQueueTagFilterBlockSize;
+    }
+
+
+    public String getConsumeQueueExtProperties() {
+        return consumeQueueExtProperties;
+    }
+
+
+    public void setConsumeQueueExtProperties(String consumeQueueExtProperties) {
+        this.consumeQueueExtProperties = consumeQueueExtProperties;
+    }
+
+
+    public int getDispatchThreadNums() {
+        return dispatchThreadNums;
+    }
+
+
+    public void setDispatchThreadNums(int dispatchThreadNums) {
+        this.dispatchThreadNums = dispatchThreadNums;
+    }
+
+
     public int getCleanResourceInterval() {
         return cleanResourceInterval;
     }
@@ -211,6 +361,16 @@ public class MessageStoreConfig {
     }
 
 
+    public int getMaxQueueNumsPerTopic() {
+        return maxQueueNumsPerTopic;
+    }
+
+
+    public void setMaxQueueNumsPerTopic(int maxQueueNumsPerTopic) {
+        this.maxQueueNumsPerTopic = maxQueueNumsPerTopic;
+    }
+
+
     public boolean isCheckCRCOnRecover() {
         return checkCRCOnRecover;
     }
@@ -246,6 +406,16 @@ public class MessageStoreConfig {
     }
 
 
+    public boolean isStorePathLatencyAwareEnable() {
+        return storePathLatencyAwareEnable;
+    }
+
+
+    public void setStorePathLatencyAwareEnable(boolean storePathLatencyAwareEnable) {
+        this.storePathLatencyAwareEnable = storePathLatencyAwareEnable;
+    }
+
+
     public int getDiskMaxUsedSpaceRatio() {
         if (this.diskMaxUsedSpaceRatio < 10)
             return 10;
@@ -342,6 +512,26 @@ public class MessageStoreConfig {
     }
 
 
+    public boolean isFlushCommitLogSyncFileRangeEnable() {
+        return flushCommitLogSyncFileRangeEnable;
+    }
+
+
+    public void setFlushCommitLogSyncFileRangeEnable(boolean flushCommitLogSyncFileRangeEnable) {
+        this.flushCommitLogSyncFileRangeEnable = flushCommitLogSyncFileRangeEnable;
+    }
+
+
+    public int getWritebackCommitLogLeastPages() {
+        return writebackCommitLogLeastPages;
+    }
+
+
+    public void setWritebackCommitLogLeastPages(int writebackCommitLogLeastPages) {
+        this.writebackCommitLogLeastPages = writebackCommitLogLeastPages;
+    }
+
+
     public int getFlushCommitLogThoroughInterval() {
         return flushCommitLogThoroughInterval;
     }
@@ -412,6 +602,36 @@ public class MessageStoreConfig {
     }
 
 
+    public int getIndexShardNums() {
+        return indexShardNums;
+    }
+
+
+    public void setIndexShardNums(int indexShardNums) {
+        this.indexShardNums = indexShardNums;
+    }
+
+
+    public int getIndexBloomFilterBitsPerKey() {
+        return indexBloomFilterBitsPerKey;
+    }
+
+
+    public void setIndexBloomFilterBitsPerKey(int indexBloomFilterBitsPerKey) {
+        this.indexBloomFilterBitsPerKey = indexBloomFilterBitsPerKey;
+    }
+
+
+    public int getIndexQueryThreadNums() {
+        return indexQueryThreadNums;
+    }
+
+
+    public void setIndexQueryThreadNums(int indexQueryThreadNums) {
+        this.indexQueryThreadNums = indexQueryThreadNums;
+    }
+
+
     public int getMaxHashSlotNum() {
         return maxHashSlotNum;
     }
@@ -500,6 +720,36 @@ public class MessageStoreConfig {
     }
 
 
+    public int getHaTransferBatchSizeMax() {
+        return haTransferBatchSizeMax;
+    }
+
+
+    public void setHaTransferBatchSizeMax(int haTransferBatchSizeMax) {
+        this.haTransferBatchSizeMax = haTransferBatchSizeMax;
+    }
+
+
+    public boolean isHaTransferZeroCopyEnable() {
+        return haTransferZeroCopyEnable;
+    }
+
+
+    public void setHaTransferZeroCopyEnable(boolean haTransferZeroCopyEnable) {
+        this.haTransferZeroCopyEnable = haTransferZeroCopyEnable;
+    }
+
+
+    public boolean isHaTransferCompressEnable() {
+        return haTransferCompressEnable;
+    }
+
+
+    public void setHaTransferCompressEnable(boolean haTransferCompressEnable) {
+        this.haTransferCompressEnable = haTransferCompressEnable;
+    }
+
+
     public int getHaSlaveFallBehindMax() {
         return haSlaveFallBehindMax;
     }
@@ -510,6 +760,16 @@ public class MessageStoreConfig {
     }
 
 
+    public int getHaSyncReplicaQuorum() {
+        return haSyncReplicaQuorum;
+    }
+
+
+    public void setHaSyncReplicaQuorum(int haSyncReplicaQuorum) {
+        this.haSyncReplicaQuorum = haSyncReplicaQuorum;
+    }
+
+
     public FlushDiskType getFlushDiskType() {
         return flushDiskType;
     }
@@ -565,6 +825,186 @@ public class MessageStoreConfig {
     }
 
 
+    public boolean isTimerWheelEnable() {
+        return timerWheelEnable;
+    }
+
+
+    public void setTimerWheelEnable(boolean timerWheelEnable) {
+        this.timerWheelEnable = timerWheelEnable;
+    }
+
+
+    public int getTimerWheelSlots() {
+        return timerWheelSlots;
+    }
+
+
+    public void setTimerWheelSlots(int timerWheelSlots) {
+        this.timerWheelSlots = timerWheelSlots;
+    }
+
+
+    public int getMappedFileSizeTimerLog() {
+        return mappedFileSizeTimerLog;
+    }
+
+
+    public void setMappedFileSizeTimerLog(int mappedFileSizeTimerLog) {
+        this.mappedFileSizeTimerLog = mappedFileSizeTimerLog;
+    }
+
+
+    public int getTimerDeliverBatchSize() {
+        return timerDeliverBatchSize;
+    }
+
+
+    public void setTimerDeliverBatchSize(int timerDeliverBatchSize) {
+        this.timerDeliverBatchSize = timerDeliverBatchSize;
+    }
+
+
+    public String getCompactedTopics() {
+        return compactedTopics;
+    }
+
+
+    public void setCompactedTopics(String compactedTopics) {
+        this.compactedTopics = compactedTopics;
+    }
+
+
+    public long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+
+    public int getCompactionMaxMessagesPerRound() {
+        return compactionMaxMessagesPerRound;
+    }
+
+
+    public void setCompactionMaxMessagesPerRound(int compactionMaxMessagesPerRound) {
+        this.compactionMaxMessagesPerRound = compactionMaxMessagesPerRound;
+    }
+
+
+    public int getCompactionDirtyRatio() {
+        return compactionDirtyRatio;
+    }
+
+
+    public void setCompactionDirtyRatio(int compactionDirtyRatio) {
+        this.compactionDirtyRatio = compactionDirtyRatio;
+    }
+
+
+    public int getMappedFileSizeCompaction() {
+        return mappedFileSizeCompaction;
+    }
+
+
+    public void setMappedFileSizeCompaction(int mappedFileSizeCompaction) {
+        this.mappedFileSizeCompaction = mappedFileSizeCompaction;
+    }
+
+
+    public boolean isConsumeQueueLazyMapEnable() {
+        return consumeQueueLazyMapEnable;
+    }
+
+
+    public void setConsumeQueueLazyMapEnable(boolean consumeQueueLazyMapEnable) {
+        this.consumeQueueLazyMapEnable = consumeQueueLazyMapEnable;
+    }
+
+
+    public long getMaxMappedVirtualMemory() {
+        return maxMappedVirtualMemory;
+    }
+
+
+    public void setMaxMappedVirtualMemory(long maxMappedVirtualMemory) {
+        this.maxMappedVirtualMemory = maxMappedVirtualMemory;
+    }
+
+
+    public int getUnmapIdleConsumeQueueInterval() {
+        return unmapIdleConsumeQueueInterval;
+    }
+
+
+    public void setUnmapIdleConsumeQueueInterval(int unmapIdleConsumeQueueInterval) {
+        this.unmapIdleConsumeQueueInterval = unmapIdleConsumeQueueInterval;
+    }
+
+
+    public boolean isColdReadByFileChannelEnable() {
+        return coldReadByFileChannelEnable;
+    }
+
+
+    public void setColdReadByFileChannelEnable(boolean coldReadByFileChannelEnable) {
+        this.coldReadByFileChannelEnable = coldReadByFileChannelEnable;
+    }
+
+
+    public int getPageCacheResidencySampleInterval() {
+        return pageCacheResidencySampleInterval;
+    }
+
+
+    public void setPageCacheResidencySampleInterval(int pageCacheResidencySampleInterval) {
+        this.pageCacheResidencySampleInterval = pageCacheResidencySampleInterval;
+    }
+
+
+    public int getReadAheadBytesOnMessageInDisk() {
+        return readAheadBytesOnMessageInDisk;
+    }
+
+
+    public void setReadAheadBytesOnMessageInDisk(int readAheadBytesOnMessageInDisk) {
+        this.readAheadBytesOnMessageInDisk = readAheadBytesOnMessageInDisk;
+    }
+
+
+    public boolean isCommitLogIncrementalDeleteEnable() {
+        return commitLogIncrementalDeleteEnable;
+    }
+
+
+    public void setCommitLogIncrementalDeleteEnable(boolean commitLogIncrementalDeleteEnable) {
+        this.commitLogIncrementalDeleteEnable = commitLogIncrementalDeleteEnable;
+    }
+
+
+    public int getDeleteTruncateChunkSize() {
+        return deleteTruncateChunkSize;
+    }
+
+
+    public void setDeleteTruncateChunkSize(int deleteTruncateChunkSize) {
+        this.deleteTruncateChunkSize = deleteTruncateChunkSize;
+    }
+
+
+    public long getDeleteTruncateBytesPerSecond() {
+        return deleteTruncateBytesPerSecond;
+    }
+
+
+    public void setDeleteTruncateBytesPerSecond(long deleteTruncateBytesPerSecond) {
+        this.deleteTruncateBytesPerSecond = deleteTruncateBytesPerSecond;
+    }
+
+
     public boolean isCleanFileForciblyEnable() {
         return cleanFileForciblyEnable;
     }
@@ -622,6 +1062,26 @@ public class MessageStoreConfig {
         this.flushLeastPagesWhenWarmMappedFile = flushLeastPagesWhenWarmMappedFile;
     }
 
+
+    public int getMappedFilePoolSize() {
+        return mappedFilePoolSize;
+    }
+
+
+    public void setMappedFilePoolSize(int mappedFilePoolSize) {
+        this.mappedFilePoolSize = mappedFilePoolSize;
+    }
+
+
+    public long getPrefaultMappedFileBytesPerSecond() {
+        return prefaultMappedFileBytesPerSecond;
+    }
+
+
+    public void setPrefaultMappedFileBytesPerSecond(long prefaultMappedFileBytesPerSecond) {
+        this.prefaultMappedFileBytesPerSecond = prefaultMappedFileBytesPerSecond;
+    }
+
     public boolean isUseReentrantLockWhenPutMessage() {
         return useReentrantLockWhenPutMessage;
     }
@@ -629,4 +1089,73 @@ public class MessageStoreConfig {
     public void setUseReentrantLockWhenPutMessage(boolean useReentrantLockWhenPutMessage) {
         this.useReentrantLockWhenPutMessage = useReentrantLockWhenPutMessage;
     }
+
+    /**
+     * The pool only makes sense when flushing asynchronously on a master: sync flush would wait for the transfer
+     * anyway, and slaves append replicated data directly.
+     */
+    public boolean isTransientStorePoolEnable() {
+        return transientStorePoolEnable && FlushDiskType.ASYNC_FLUSH == getFlushDiskType()
+                && BrokerRole.SLAVE != getBrokerRole();
+    }
+
+    public void setTransientStorePoolEnable(boolean transientStorePoolEnable) {
+        this.transientStorePoolEnable = transientStorePoolEnable;
+    }
+
+    public int getTransientStorePoolSize() {
+        return transientStorePoolSize;
+    }
+
+    public void setTransientStorePoolSize(int transientStorePoolSize) {
+        this.transientStorePoolSize = transientStorePoolSize;
+    }
+
+    public int getTransferIntervalCommitLog() {
+        return transferIntervalCommitLog;
+    }
+
+    public void setTransferIntervalCommitLog(int transferIntervalCommitLog) {
+        this.transferIntervalCommitLog = transferIntervalCommitLog;
+    }
+
+    public int getTransferCommitLogLeastPages() {
+        return transferCommitLogLeastPages;
+    }
+
+    public void setTransferCommitLogLeastPages(int transferCommitLogLeastPages) {
+        this.transferCommitLogLeastPages = transferCommitLogLeastPages;
+    }
+
+    public int getTransferCommitLogThoroughInterval() {
+        return transferCommitLogThoroughInterval;
+    }
+
+    public void setTransferCommitLogThoroughInterval(int transferCommitLogThoroughInterval) {
+        this.transferCommitLogThoroughInterval = transferCommitLogThoroughInterval;
+    }
+
+    public boolean isCommitLogPartitionEnable() {
+        return commitLogPartitionEnable && BrokerRole.ASYNC_MASTER == getBrokerRole();
+    }
+
+    public void setCommitLogPartitionEnable(boolean commitLogPartitionEnable) {
+        this.commitLogPartitionEnable = commitLogPartitionEnable;
+    }
+
+    public boolean isRecoverConcurrently() {
+        return recoverConcurrently;
+    }
+
+    public void setRecoverConcurrently(boolean recoverConcurrently) {
+        this.recoverConcurrently = recoverConcurrently;
+    }
+
+    public int getRecoverThreadPoolNums() {
+        return recoverThreadPoolNums;
+    }
+
+    public void setRecoverThreadPoolNums(int recoverThreadPoolNums) {
+        this.recoverThreadPoolNums = recoverThreadPoolNums;
+    }
 }
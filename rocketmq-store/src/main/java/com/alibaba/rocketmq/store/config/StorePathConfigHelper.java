@@ -25,11 +25,36 @@ public class StorePathConfigHelper {
     }
 
 
+    public static String getStorePathConsumeQueueTimeIndex(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_time";
+    }
+
+
+    public static String getStorePathConsumeQueueExt(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_ext";
+    }
+
+
+    public static String getStorePathCompaction(final String rootDir) {
+        return rootDir + File.separator + "compaction";
+    }
+
+
     public static String getStorePathIndex(final String rootDir) {
         return rootDir + File.separator + "index";
     }
 
 
+    public static String getIndexShardNumsPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "indexShardNums";
+    }
+
+
+    public static String getCommitLogPartitionsPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "commitLogPartitions";
+    }
+
+
     public static String getStoreCheckpoint(final String rootDir) {
         return rootDir + File.separator + "checkpoint";
     }
@@ -45,6 +70,16 @@ public class StorePathConfigHelper {
     }
 
 
+    public static String getStorePathTimerLog(final String rootDir) {
+        return rootDir + File.separator + "timerlog";
+    }
+
+
+    public static String getTimerWheelPath(final String rootDir) {
+        return rootDir + File.separator + "timerwheel";
+    }
+
+
     public static String getTranStateTableStorePath(final String rootDir) {
         return rootDir + File.separator + "transaction" + File.separator + "statetable";
     }
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.ha;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * HA传输数据块的压缩与解压，压缩后的数据块格式 <Raw Size> <Deflate Data><br>
+ * 非线程安全，每个连接各自持有一个实例
+ */
+public class HABlockCodec {
+    // 数据块长度字段的最高位，表示数据块已压缩
+    public static final int CompressedFlag = 0x80000000;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    // 压缩输出缓冲区，按需扩容后复用；返回的数据块发送完成前不能再次调用compress
+    private byte[] output = new byte[0];
+
+
+    public static boolean isCompressed(final int bodySize) {
+        return (bodySize & CompressedFlag) != 0;
+    }
+
+
+    public static int bodyLength(final int bodySize) {
+        return bodySize & ~CompressedFlag;
+    }
+
+
+    /**
+     * @return 压缩后的数据块，压缩后不比原数据小时返回null，由调用方发送原数据；返回的数据块复用内部缓冲区
+     */
+    public ByteBuffer compress(final byte[] raw, final int length) {
+        this.deflater.reset();
+        this.deflater.setInput(raw, 0, length);
+        this.deflater.finish();
+
+        if (this.output.length < 4 + length) {
+            this.output = new byte[4 + length];
+        }
+        // 压缩结果不小于原数据时放弃压缩，因此输出上限为原数据长度
+        final byte[] output = this.output;
+        final int limit = 4 + length;
+        int pos = 4;
+        while (!this.deflater.finished()) {
+            if (pos >= limit) {
+                return null;
+            }
+            pos += this.deflater.deflate(output, pos, limit - pos);
+        }
+
+        if (pos >= length) {
+            return null;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(output, 0, pos);
+        byteBuffer.putInt(0, length);
+        return byteBuffer;
+    }
+
+
+    public byte[] decompress(final byte[] data) throws DataFormatException {
+        final int rawSize = ByteBuffer.wrap(data).getInt();
+        byte[] raw = new byte[rawSize];
+
+        this.inflater.reset();
+        this.inflater.setInput(data, 4, data.length - 4);
+        int pos = 0;
+        while (pos < rawSize) {
+            int size = this.inflater.inflate(raw, pos, rawSize - pos);
+            if (0 == size && (this.inflater.finished() || this.inflater.needsInput())) {
+                break;
+            }
+            pos += size;
+        }
+
+        if (pos != rawSize) {
+            throw new DataFormatException("decompress ha block failed, expect " + rawSize + " but " + pos);
+        }
+
+        return raw;
+    }
+
+
+    public void end() {
+        this.deflater.end();
+        this.inflater.end();
+    }
+}
@@ -18,12 +18,15 @@ package com.alibaba.rocketmq.store.ha;
 import com.alibaba.rocketmq.common.ServiceThread;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.remoting.common.RemotingUtil;
+import com.alibaba.rocketmq.store.MappedFile;
 import com.alibaba.rocketmq.store.SelectMappedBufferResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -47,7 +50,16 @@ public class HAConnection {
     private volatile long slaveRequestOffset = -1;
     // Slave收到数据后，应答Offset
     private volatile long slaveAckOffset = -1;
+    // 采样统计Slave应答耗时：记录一次发送的结束Offset及发送时间，Slave应答到该Offset后计算耗时
+    private volatile long sampleAckOffset = -1;
+    private volatile long sampleSendTimestamp = 0;
+    private volatile long ackLatencyLast = 0;
+    private volatile long ackLatencyMax = 0;
+    private volatile long ackLatencyTotal = 0;
+    private volatile long ackLatencyTimes = 0;
     private CRC32 checksum = new CRC32();
+    // 计算校验和及压缩时复用的数据拷贝
+    private byte[] rawData = new byte[0];
 
 
     public HAConnection(final HAService haService, final SocketChannel socketChannel) throws IOException {
@@ -98,26 +110,86 @@ public class HAConnection {
         return socketChannel;
     }
 
+
+    public String getClientAddr() {
+        return clientAddr;
+    }
+
+
+    public long getSlaveAckOffset() {
+        return slaveAckOffset;
+    }
+
+
+    public long getAckLatencyLast() {
+        return ackLatencyLast;
+    }
+
+
+    public long getAckLatencyMax() {
+        return ackLatencyMax;
+    }
+
+
+    public long getAckLatencyAvg() {
+        long times = this.ackLatencyTimes;
+        return times > 0 ? this.ackLatencyTotal / times : 0;
+    }
+
+
     /**
-     * Calculate CRC32 checksum of given buffer.
-     *
-     * <p>
-     *     <strong>Warn: <code>buffer</code> is assumed to has position = 0, limit = capacity = data-size.</strong>
-     * </p>
+     * 发送数据后调用，如果当前没有在采样，则开始一次采样
+     */
+    private void sampleSend(final long endOffset) {
+        if (this.sampleSendTimestamp == 0) {
+            this.sampleAckOffset = endOffset;
+            this.sampleSendTimestamp = System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * 收到Slave应答后调用，只在读线程中执行
+     */
+    private void sampleAck(final long ackOffset) {
+        long sendTimestamp = this.sampleSendTimestamp;
+        if (sendTimestamp > 0 && ackOffset >= this.sampleAckOffset) {
+            long latency = System.currentTimeMillis() - sendTimestamp;
+            this.ackLatencyLast = latency;
+            if (latency > this.ackLatencyMax) {
+                this.ackLatencyMax = latency;
+            }
+            this.ackLatencyTotal += latency;
+            this.ackLatencyTimes++;
+            this.sampleSendTimestamp = 0;
+        }
+    }
+
+    /**
+     * 将buffer的前size个字节复制到复用的数组中，不改变buffer的position
      *
-     * @param buffer ByteBuffer instance.
-     * @return CRC32 checksum of <code>buffer</code>.
+     * @param buffer
+     *            待复制的数据
+     * @param size
+     *            复制的字节数
+     * @return 复用的数组，只有前size个字节有效
      */
-    private long getChecksum(ByteBuffer buffer) {
-        checksum.reset();
-        if (buffer.hasArray()) {
-            checksum.update(buffer.array());
-        } else {
-            byte[] data = new byte[buffer.limit()];
-            buffer.get(data);
-            checksum.update(data);
-            buffer.rewind();
+    private byte[] copyRawData(ByteBuffer buffer, int size) {
+        if (this.rawData.length < size) {
+            this.rawData = new byte[size];
         }
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0);
+        duplicate.get(this.rawData, 0, size);
+        return this.rawData;
+    }
+
+    /**
+     * Calculate CRC32 checksum of the first <code>size</code> bytes of given array.
+     */
+    private long getChecksum(byte[] data, int size) {
+        checksum.reset();
+        checksum.update(data, 0, size);
         return checksum.getValue();
     }
 
@@ -222,6 +294,7 @@ public class HAConnection {
 
                             // 处理Slave的请求
                             HAConnection.this.slaveAckOffset = readOffset;
+                            HAConnection.this.sampleAck(readOffset);
                             if (HAConnection.this.slaveRequestOffset < 0) {
                                 HAConnection.this.slaveRequestOffset = readOffset;
                                 log.info("slave[" + HAConnection.this.clientAddr + "] request offset "
@@ -271,6 +344,14 @@ public class HAConnection {
         private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(HEADER_SIZE);
         private long nextTransferFromWhere = -1;
         private SelectMappedBufferResult selectMappedBufferResult;
+        // 待发送的数据体，零拷贝模式下为null
+        private ByteBuffer byteBufferBody;
+        // 零拷贝模式下，待发送数据在CommitLog文件中的位置及剩余长度
+        private long transferFilePosition;
+        private int transferFileRemain;
+        // 当前传输批量，Slave落后较多时逐步翻倍
+        private int transferBatchSize = 0;
+        private final HABlockCodec blockCodec = new HABlockCodec();
         private boolean lastWriteOver = true;
         private long lastWriteTimestamp = System.currentTimeMillis();
 
@@ -353,12 +434,7 @@ public class HAConnection {
                             HAConnection.this.haService.getDefaultMessageStore().getCommitLogData(
                                 this.nextTransferFromWhere);
                     if (selectResult != null) {
-                        int size = selectResult.getSize();
-                        if (size > HAConnection.this.haService.getDefaultMessageStore()
-                            .getMessageStoreConfig().getHaTransferBatchSize()) {
-                            size = HAConnection.this.haService.getDefaultMessageStore()
-                                    .getMessageStoreConfig().getHaTransferBatchSize();
-                        }
+                        int size = this.nextTransferBatchSize(selectResult.getSize());
 
                         long thisOffset = this.nextTransferFromWhere;
                         this.nextTransferFromWhere += size;
@@ -366,12 +442,8 @@ public class HAConnection {
                         selectResult.getByteBuffer().limit(size);
                         this.selectMappedBufferResult = selectResult;
 
-                        // Build Header
-                        this.byteBufferHeader.clear();
-                        this.byteBufferHeader.putLong(thisOffset);
-                        this.byteBufferHeader.putInt(size);
-                        this.byteBufferHeader.putLong(getChecksum(selectMappedBufferResult.getByteBuffer()));
-                        this.byteBufferHeader.flip();
+                        this.buildTransferRequest(thisOffset, size);
+                        HAConnection.this.sampleSend(thisOffset + size);
 
                         this.lastWriteOver = this.transferData();
                     }
@@ -391,6 +463,7 @@ public class HAConnection {
             if (this.selectMappedBufferResult != null) {
                 this.selectMappedBufferResult.release();
             }
+            this.blockCodec.end();
 
             this.makeStop();
 
@@ -414,6 +487,68 @@ public class HAConnection {
         }
 
 
+        /**
+         * 可发送的数据超过当前批量时，说明Slave落后较多，下次批量翻倍直到上限；追平后恢复默认批量
+         */
+        private int nextTransferBatchSize(final int availableSize) {
+            final MessageStoreConfig config = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig();
+            final int batchSizeMin = config.getHaTransferBatchSize();
+            // 整个数据块必须能放入Slave的接收缓冲区
+            final int batchSizeMax = Math.max(batchSizeMin,
+                    Math.min(config.getHaTransferBatchSizeMax(), HAService.HAClient.ReadMaxBufferSize - HEADER_SIZE));
+            if (this.transferBatchSize < batchSizeMin) {
+                this.transferBatchSize = batchSizeMin;
+            }
+
+            final int size = Math.min(availableSize, this.transferBatchSize);
+            if (availableSize > this.transferBatchSize) {
+                this.transferBatchSize = Math.min(this.transferBatchSize * 2, batchSizeMax);
+            } else {
+                this.transferBatchSize = batchSizeMin;
+            }
+
+            return size;
+        }
+
+
+        /**
+         * 根据配置选择普通、零拷贝或压缩方式发送数据，并构造请求头
+         */
+        private void buildTransferRequest(final long thisOffset, final int size) {
+            final MessageStoreConfig config = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig();
+            final ByteBuffer data = this.selectMappedBufferResult.getByteBuffer();
+            long checksum = HAService.NoChecksum;
+            int bodySize = size;
+
+            this.byteBufferBody = data;
+            this.transferFileRemain = 0;
+            if (config.isHaTransferCompressEnable()) {
+                final byte[] raw = HAConnection.this.copyRawData(data, size);
+                checksum = HAConnection.this.getChecksum(raw, size);
+                ByteBuffer compressed = this.blockCodec.compress(raw, size);
+                if (compressed != null) {
+                    this.byteBufferBody = compressed;
+                    bodySize = compressed.remaining() | HABlockCodec.CompressedFlag;
+                }
+            } else if (config.isHaTransferZeroCopyEnable()) {
+                // 零拷贝模式不计算校验和，否则仍需把数据拷贝到堆内，由TCP校验保证传输正确
+                MappedFile mappedFile = this.selectMappedBufferResult.getMappedFile();
+                this.byteBufferBody = null;
+                this.transferFilePosition = thisOffset - mappedFile.getFileFromOffset();
+                this.transferFileRemain = size;
+            } else {
+                checksum = HAConnection.this.getChecksum(HAConnection.this.copyRawData(data, size), size);
+            }
+
+            // Build Header
+            this.byteBufferHeader.clear();
+            this.byteBufferHeader.putLong(thisOffset);
+            this.byteBufferHeader.putInt(bodySize);
+            this.byteBufferHeader.putLong(checksum);
+            this.byteBufferHeader.flip();
+        }
+
+
         /**
          * 表示是否传输完成
          */
@@ -444,9 +579,32 @@ public class HAConnection {
             writeSizeZeroTimes = 0;
 
             // Write Body
-            if (!this.byteBufferHeader.hasRemaining()) {
-                while (this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
-                    int writeSize = this.socketChannel.write(this.selectMappedBufferResult.getByteBuffer());
+            if (!this.byteBufferHeader.hasRemaining() && null == this.byteBufferBody) {
+                // 零拷贝，直接从文件发送到Socket
+                FileChannel fileChannel = this.selectMappedBufferResult.getMappedFile().getFileChannel();
+                while (this.transferFileRemain > 0) {
+                    long writeSize =
+                            fileChannel.transferTo(this.transferFilePosition, this.transferFileRemain, this.socketChannel);
+                    if (writeSize > 0) {
+                        writeSizeZeroTimes = 0;
+                        this.transferFilePosition += writeSize;
+                        this.transferFileRemain -= writeSize;
+                        this.lastWriteTimestamp =
+                                HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
+                    }
+                    else if (writeSize == 0) {
+                        if (++writeSizeZeroTimes >= 3) {
+                            break;
+                        }
+                    }
+                    else {
+                        throw new Exception("ha master transfer body error < 0");
+                    }
+                }
+            }
+            else if (!this.byteBufferHeader.hasRemaining()) {
+                while (this.byteBufferBody.hasRemaining()) {
+                    int writeSize = this.socketChannel.write(this.byteBufferBody);
                     if (writeSize > 0) {
                         writeSizeZeroTimes = 0;
                         this.lastWriteTimestamp =
@@ -463,13 +621,14 @@ public class HAConnection {
                 }
             }
 
-            boolean result =
-                    !this.byteBufferHeader.hasRemaining()
-                            && !this.selectMappedBufferResult.getByteBuffer().hasRemaining();
+            boolean bodyWriteOver = null == this.byteBufferBody ? this.transferFileRemain <= 0
+                    : !this.byteBufferBody.hasRemaining();
+            boolean result = !this.byteBufferHeader.hasRemaining() && bodyWriteOver;
 
-            if (!this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
+            if (bodyWriteOver) {
                 this.selectMappedBufferResult.release();
                 this.selectMappedBufferResult = null;
+                this.byteBufferBody = null;
             }
 
             return result;
@@ -33,6 +33,8 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -40,6 +42,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
 
 
 /**
@@ -68,6 +71,8 @@ public class HAService {
     private final HAClient haClient;
 
     private CRC32 checksum = new CRC32();
+    // 请求头中的校验和为此值时表示数据块未计算校验和，CRC32的取值不会为负数
+    public static final long NoChecksum = -1L;
 
 
     public HAService(final DefaultMessageStore defaultMessageStore) throws IOException {
@@ -91,20 +96,55 @@ public class HAService {
 
 
     /**
-     * 判断主从之间数据传输是否正常
+     * 判断主从之间数据传输是否正常，需要至少有haSyncReplicaQuorum个Slave在线且落后不多
      * 
      * @return
      */
     public boolean isSlaveOK(final long masterPutWhere) {
-        boolean result = this.connectionCount.get() > 0;
+        boolean result = this.connectionCount.get() >= this.getSyncReplicaQuorum();
         result =
                 result
-                        && ((masterPutWhere - this.push2SlaveMaxOffset.get()) < this.defaultMessageStore
+                        && ((masterPutWhere - this.getQuorumAckOffset()) < this.defaultMessageStore
                             .getMessageStoreConfig().getHaSlaveFallBehindMax());
         return result;
     }
 
 
+    private int getSyncReplicaQuorum() {
+        return Math.max(1, this.defaultMessageStore.getMessageStoreConfig().getHaSyncReplicaQuorum());
+    }
+
+
+    /**
+     * 已被quorum个Slave确认的最大Offset，即各Slave应答Offset中第quorum大的值
+     * 
+     * @return 在线Slave不足quorum个时返回-1
+     */
+    public long getQuorumAckOffset() {
+        final int quorum = this.getSyncReplicaQuorum();
+        if (1 == quorum) {
+            // 单副本确认，沿用最大应答Offset，避免遍历连接
+            return this.connectionCount.get() > 0 ? this.push2SlaveMaxOffset.get() : -1;
+        }
+
+        long[] ackOffsets;
+        synchronized (this.connectionList) {
+            if (this.connectionList.size() < quorum) {
+                return -1;
+            }
+
+            ackOffsets = new long[this.connectionList.size()];
+            int i = 0;
+            for (HAConnection c : this.connectionList) {
+                ackOffsets[i++] = c.getSlaveAckOffset();
+            }
+        }
+
+        Arrays.sort(ackOffsets);
+        return ackOffsets[ackOffsets.length - quorum];
+    }
+
+
     /**
      * 通知复制了部分数据
      */
@@ -113,12 +153,34 @@ public class HAService {
             boolean ok = this.push2SlaveMaxOffset.compareAndSet(value, offset);
             if (ok) {
                 this.groupTransferService.notifyTransferSome();
-                break;
+                return;
             }
             else {
                 value = this.push2SlaveMaxOffset.get();
             }
         }
+
+        // 多副本确认时，较慢的Slave追上来同样可能满足quorum
+        if (this.getSyncReplicaQuorum() > 1) {
+            this.groupTransferService.notifyTransferSome();
+        }
+    }
+
+
+    /**
+     * 各Slave的应答进度及应答耗时（毫秒）
+     */
+    public void buildRunningStats(final HashMap<String, String> stats) {
+        synchronized (this.connectionList) {
+            for (HAConnection c : this.connectionList) {
+                String addr = c.getClientAddr();
+                stats.put("haSlaveAckOffset_" + addr, String.valueOf(c.getSlaveAckOffset()));
+                stats.put("haSlaveAckLatencyLast_" + addr, String.valueOf(c.getAckLatencyLast()));
+                stats.put("haSlaveAckLatencyAvg_" + addr, String.valueOf(c.getAckLatencyAvg()));
+                stats.put("haSlaveAckLatencyMax_" + addr, String.valueOf(c.getAckLatencyMax()));
+            }
+        }
+        stats.put("haQuorumAckOffset", String.valueOf(this.getQuorumAckOffset()));
     }
 
 
@@ -207,6 +269,24 @@ public class HAService {
         }
 
 
+        @Override
+        public void shutdown(final boolean interrupt) {
+            super.shutdown(interrupt);
+            try {
+                // 释放监听端口，否则同一进程内重新启动Master无法再次bind
+                if (this.serverSocketChannel != null) {
+                    this.serverSocketChannel.close();
+                }
+                if (this.selector != null) {
+                    this.selector.close();
+                }
+            }
+            catch (IOException e) {
+                log.error("AcceptSocketService shutdown exception", e);
+            }
+        }
+
+
         @Override
         public void run() {
             log.info(this.getServiceName() + " service started");
@@ -223,6 +303,14 @@ public class HAService {
                                     HAService.log.info("HAService receive new connection, "
                                             + sc.socket().getRemoteSocketAddress());
 
+                                    // 同步协议只有一个offset空间，多个CommitLog分区时Slave只能收到分区0，拒绝Slave接入
+                                    if (HAService.this.defaultMessageStore.getCommitLogPartitions().length > 1) {
+                                        log.error("commit log partition enabled, HA is not supported, reject slave "
+                                                + sc.socket().getRemoteSocketAddress());
+                                        sc.close();
+                                        continue;
+                                    }
+
                                     try {
                                         HAConnection conn = new HAConnection(HAService.this, sc);
                                         conn.start();
@@ -299,10 +387,10 @@ public class HAService {
             if (!this.requestsRead.isEmpty()) {
                 synchronized (this.requestsRead) {
                     for (GroupCommitRequest req : this.requestsRead) {
-                        boolean transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
+                        boolean transferOK = HAService.this.getQuorumAckOffset() >= req.getNextOffset();
                         for (int i = 0; !transferOK && i < 5; i++) {
                             this.notifyTransferObject.waitForRunning(1000);
-                            transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
+                            transferOK = HAService.this.getQuorumAckOffset() >= req.getNextOffset();
                         }
 
                         if (!transferOK) {
@@ -347,7 +435,7 @@ public class HAService {
     }
 
     class HAClient extends ServiceThread {
-        private static final int ReadMaxBufferSize = 1024 * 1024 * 4;
+        static final int ReadMaxBufferSize = 1024 * 1024 * 4;
         // 主节点IP:PORT
         private final AtomicReference<String> masterAddress = new AtomicReference<String>();
         // 向Master汇报Slave最大Offset
@@ -361,6 +449,8 @@ public class HAService {
         // 从Master接收数据Buffer
         private ByteBuffer byteBufferRead = ByteBuffer.allocate(ReadMaxBufferSize);
         private ByteBuffer byteBufferBackup = ByteBuffer.allocate(ReadMaxBufferSize);
+        // 解压Master发送的压缩数据块
+        private final HABlockCodec blockCodec = new HABlockCodec();
 
 
         public HAClient() throws IOException {
@@ -480,6 +570,9 @@ public class HAService {
                     long masterPhyOffset = this.byteBufferRead.getLong(this.dispatchPosition);
                     int bodySize = this.byteBufferRead.getInt(this.dispatchPosition + 8);
                     long checksum = this.byteBufferRead.getLong(this.dispatchPosition + 8 + 4);
+                    // 最高位标识数据块是否被压缩，校验和针对解压后的数据
+                    boolean compressed = HABlockCodec.isCompressed(bodySize);
+                    bodySize = HABlockCodec.bodyLength(bodySize);
 
                     long slavePhyOffset = HAService.this.defaultMessageStore.getMaxPhyOffset();
 
@@ -497,9 +590,26 @@ public class HAService {
                         byte[] bodyData = new byte[bodySize];
                         this.byteBufferRead.position(this.dispatchPosition + MSG_HEADER_SIZE);
                         this.byteBufferRead.get(bodyData);
-                        HAService.this.checksum.reset();
-                        HAService.this.checksum.update(bodyData);
-                        if (checksum == HAService.this.checksum.getValue()) {
+                        if (compressed) {
+                            try {
+                                bodyData = this.blockCodec.decompress(bodyData);
+                            }
+                            catch (DataFormatException e) {
+                                log.error("Decompress replication data failed!", e);
+                                reportSlaveMaxOffset(this.currentReportedOffset);
+                                //clear the dirty data.
+                                byteBufferRead.clear();
+                                return false;
+                            }
+                        }
+                        // 零拷贝传输的数据块不带校验和
+                        boolean checksumMatched = NoChecksum == checksum;
+                        if (!checksumMatched) {
+                            HAService.this.checksum.reset();
+                            HAService.this.checksum.update(bodyData);
+                            checksumMatched = checksum == HAService.this.checksum.getValue();
+                        }
+                        if (checksumMatched) {
                             // TODO 结果是否需要处理，暂时不处理
                             boolean appendResult = HAService.this.defaultMessageStore
                                     .appendToCommitLog(masterPhyOffset, bodyData);
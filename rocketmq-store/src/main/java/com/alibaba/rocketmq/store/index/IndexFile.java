@@ -17,6 +17,7 @@ package com.alibaba.rocketmq.store.index;
 
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.store.MappedFile;
+import com.alibaba.rocketmq.store.util.BloomFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,10 +46,24 @@ public class IndexFile {
     private final FileChannel fileChannel;
     private final MappedByteBuffer mappedByteBuffer;
     private final IndexHeader indexHeader;
+    // 文件中所有Key哈希值的布隆过滤器，常驻内存，查询时跳过不可能包含该Key的文件
+    private final BloomFilter bloomFilter;
+    // 文件写满后布隆过滤器才完整，之后才能用来排除文件
+    private volatile boolean bloomFilterReady = false;
 
 
     public IndexFile(final String fileName, final int hashSlotNum, final int indexNum,
                      final long endPhyOffset, final long endTimestamp) throws IOException {
+        this(fileName, hashSlotNum, indexNum, endPhyOffset, endTimestamp, 0);
+    }
+
+
+    /**
+     * @param bloomFilterBitsPerKey 布隆过滤器每个Key占用的位数，0表示不使用布隆过滤器
+     */
+    public IndexFile(final String fileName, final int hashSlotNum, final int indexNum,
+                     final long endPhyOffset, final long endTimestamp, final int bloomFilterBitsPerKey)
+            throws IOException {
         int fileTotalSize =
                 IndexHeader.INDEX_HEADER_SIZE + (hashSlotNum * HASH_SLOT_SIZE) + (indexNum * INDEX_SIZE);
         this.mappedFile = new MappedFile(fileName, fileTotalSize);
@@ -59,6 +74,7 @@ public class IndexFile {
 
         ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
         this.indexHeader = new IndexHeader(byteBuffer);
+        this.bloomFilter = bloomFilterBitsPerKey > 0 ? new BloomFilter(indexNum, bloomFilterBitsPerKey) : null;
 
         if (endPhyOffset > 0) {
             this.indexHeader.setBeginPhyOffset(endPhyOffset);
@@ -79,6 +95,29 @@ public class IndexFile {
 
     public void load() {
         this.indexHeader.load();
+
+        // 顺序扫描所有索引项，重建布隆过滤器
+        if (this.bloomFilter != null) {
+            int indexCount = this.indexHeader.getIndexCount();
+            for (int i = 1; i < indexCount; i++) {
+                int absIndexPos = IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * HASH_SLOT_SIZE + i * INDEX_SIZE;
+                this.bloomFilter.put(this.mappedByteBuffer.getInt(absIndexPos));
+            }
+
+            this.bloomFilterReady = this.isWriteFull();
+        }
+    }
+
+
+    /**
+     * @return false表示文件中一定没有该Key，文件未写满时总是返回true
+     */
+    public boolean mightContain(final String key) {
+        if (!this.bloomFilterReady) {
+            return true;
+        }
+
+        return this.bloomFilter.mightContain(indexKeyHashMethod(key));
     }
 
 
@@ -161,6 +200,13 @@ public class IndexFile {
                 this.indexHeader.setEndPhyOffset(phyOffset);
                 this.indexHeader.setEndTimestamp(storeTimestamp);
 
+                if (this.bloomFilter != null) {
+                    this.bloomFilter.put(keyHash);
+                    if (this.isWriteFull()) {
+                        this.bloomFilterReady = true;
+                    }
+                }
+
                 return true;
             } catch (Exception e) {
                 log.error("putKey exception, Key: " + key + " KeyHashCode: " + key.hashCode(), e);
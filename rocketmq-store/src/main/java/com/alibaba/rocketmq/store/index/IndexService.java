@@ -15,11 +15,10 @@
  */
 package com.alibaba.rocketmq.store.index;
 
-import com.alibaba.rocketmq.common.ServiceThread;
-import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.message.MessageConst;
-import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
 import com.alibaba.rocketmq.store.DefaultMessageStore;
 import com.alibaba.rocketmq.store.DispatchRequest;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
@@ -29,66 +28,62 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
- * 消息索引服务
+ * 消息索引服务<br>
+ * Key按哈希分布到多个索引分片，每个分片独占索引文件链及写线程，索引构建可随分片数并行扩展
  *
  * @author shijia.wxr<vintage.wang@gmail.com>
  * @since 2013-7-21
  */
-public class IndexService extends ServiceThread {
+public class IndexService {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
     private final DefaultMessageStore defaultMessageStore;
-    // 索引配置
-    private final int hashSlotNum;
-    private final int indexNum;
     private final String storePath;
-    // 索引文件集合
-    private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
-    // 读写锁（针对indexFileList）
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private LinkedBlockingQueue<Object[]> requestQueue = new LinkedBlockingQueue<Object[]>(300000);
+    // 记录分片数的文件
+    private final String shardNumsPath;
+    private final IndexShard[] indexShards;
+    // 并行查询多个索引文件的线程池
+    private final ExecutorService queryExecutor;
 
 
     public IndexService(final DefaultMessageStore store) {
         this.defaultMessageStore = store;
-        this.hashSlotNum = store.getMessageStoreConfig().getMaxHashSlotNum();
-        this.indexNum = store.getMessageStoreConfig().getMaxIndexNum();
         this.storePath = StorePathConfigHelper.getStorePathIndex(store.getMessageStoreConfig().getStorePathRootDir());
+        this.shardNumsPath =
+                StorePathConfigHelper.getIndexShardNumsPath(store.getMessageStoreConfig().getStorePathRootDir());
+
+        // 只有一个分片时沿用原目录，多个分片时每个分片一个子目录，总的槽位及索引个数不变
+        int shardNums = Math.max(1, store.getMessageStoreConfig().getIndexShardNums());
+        int hashSlotNum = Math.max(1, store.getMessageStoreConfig().getMaxHashSlotNum() / shardNums);
+        int indexNum = Math.max(1, store.getMessageStoreConfig().getMaxIndexNum() / shardNums);
+        this.indexShards = new IndexShard[shardNums];
+        for (int i = 0; i < shardNums; i++) {
+            String shardPath = 1 == shardNums ? this.storePath : this.storePath + File.separator + i;
+            this.indexShards[i] = new IndexShard(this, store, i, shardPath, hashSlotNum, indexNum);
+        }
+
+        int queryThreadNums = store.getMessageStoreConfig().getIndexQueryThreadNums();
+        this.queryExecutor = queryThreadNums > 1 ? Executors.newFixedThreadPool(queryThreadNums,
+            new ThreadFactoryImpl("IndexQueryThread_")) : null;
+
+        log.info("index shard nums " + shardNums + ", hash slot num " + hashSlotNum + ", index num " + indexNum
+                + " per shard");
     }
 
 
     public boolean load(final boolean lastExitOK) {
-        File dir = new File(this.storePath);
-        File[] files = dir.listFiles();
-        if (files != null) {
-            // ascending order
-            Arrays.sort(files);
-            for (File file : files) {
-                try {
-                    IndexFile f = new IndexFile(file.getPath(), this.hashSlotNum, this.indexNum, 0, 0);
-                    f.load();
-
-                    if (!lastExitOK) {
-                        if (f.getEndTimestamp() > this.defaultMessageStore.getStoreCheckpoint().getIndexMsgTimestamp()) {
-                            f.destroy(0);
-                            continue;
-                        }
-                    }
+        if (!this.checkShardNums()) {
+            return false;
+        }
 
-                    log.info("load index file OK, " + f.getFileName());
-                    this.indexFileList.add(f);
-                } catch (IOException e) {
-                    log.error("load file " + file + " error", e);
-                    return false;
-                }
+        for (IndexShard shard : this.indexShards) {
+            if (!shard.load(lastExitOK)) {
+                return false;
             }
         }
 
@@ -97,334 +92,187 @@ public class IndexService extends ServiceThread {
 
 
     /**
-     * 删除索引文件
+     * 分片数决定Key归属的分片及每个索引文件的槽位数，修改后已有索引文件无法正确加载及查询，拒绝启动
      */
-    public void deleteExpiredFile(long offset) {
-        Object[] files = null;
-        try {
-            this.readWriteLock.readLock().lock();
-            if (this.indexFileList.isEmpty()) {
-                return;
+    private boolean checkShardNums() {
+        String content = MixAll.file2String(this.shardNumsPath);
+        if (content != null && content.trim().length() > 0) {
+            int storedShardNums;
+            try {
+                storedShardNums = Integer.parseInt(content.trim());
             }
-
-            long endPhyOffset = this.indexFileList.get(0).getEndPhyOffset();
-            if (endPhyOffset < offset) {
-                files = this.indexFileList.toArray();
+            catch (NumberFormatException e) {
+                log.error("invalid index shard nums file " + this.shardNumsPath + ", content: " + content);
+                return false;
             }
-        } catch (Exception e) {
-            log.error("destroy exception", e);
-        } finally {
-            this.readWriteLock.readLock().unlock();
-        }
 
-        if (files != null) {
-            List<IndexFile> fileList = new ArrayList<IndexFile>();
-            for (int i = 0; i < (files.length - 1); i++) {
-                IndexFile f = (IndexFile) files[i];
-                if (f.getEndPhyOffset() < offset) {
-                    fileList.add(f);
-                } else {
-                    break;
-                }
+            if (storedShardNums != this.indexShards.length) {
+                log.error("index shard nums changed from " + storedShardNums + " to " + this.indexShards.length
+                        + ", delete index directory " + this.storePath + " to rebuild or restore the config");
+                return false;
             }
 
-            this.deleteExpiredFile(fileList);
+            return true;
         }
-    }
-
 
-    /**
-     * 删除文件只能从头开始删
-     */
-    private void deleteExpiredFile(List<IndexFile> files) {
-        if (!files.isEmpty()) {
-            try {
-                this.readWriteLock.writeLock().lock();
-                for (IndexFile file : files) {
-                    boolean destroyed = file.destroy(3000);
-                    destroyed = destroyed && this.indexFileList.remove(file);
-                    if (!destroyed) {
-                        log.error("deleteExpiredFile remove failed.");
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                log.error("deleteExpiredFile has exception.", e);
-            } finally {
-                this.readWriteLock.writeLock().unlock();
-            }
+        // 没有记录分片数，索引目录下已有文件时是单分片的目录结构
+        String[] files = new File(this.storePath).list();
+        if (files != null && files.length > 0 && this.indexShards.length != 1) {
+            log.error("index directory " + this.storePath + " was written by a single shard, but index shard nums is "
+                    + this.indexShards.length);
+            return false;
         }
-    }
 
-
-    public void destroy() {
         try {
-            this.readWriteLock.writeLock().lock();
-            for (IndexFile f : this.indexFileList) {
-                f.destroy(1000 * 3);
-            }
-            this.indexFileList.clear();
-
-            File indexDirectory = new File(storePath);
-            if (indexDirectory.exists() && indexDirectory.isDirectory()) {
-                indexDirectory.delete();
-            }
-
-        } catch (Exception e) {
-            log.error("destroy exception", e);
-        } finally {
-            this.readWriteLock.writeLock().unlock();
+            MixAll.string2File(String.valueOf(this.indexShards.length), this.shardNumsPath);
+        }
+        catch (IOException e) {
+            log.error("write index shard nums file exception", e);
+            return false;
         }
+
+        return true;
     }
 
 
-    public QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
-        List<Long> phyOffsets = new ArrayList<Long>(maxNum);
-        // TODO 可能需要返回给最终用户
-        long indexLastUpdateTimestamp = 0;
-        long indexLastUpdatePhyOffset = 0;
-        maxNum = Math.min(maxNum, this.defaultMessageStore.getMessageStoreConfig().getMaxMsgsNumBatch());
-        try {
-            this.readWriteLock.readLock().lock();
-            if (!this.indexFileList.isEmpty()) {
-                for (int i = this.indexFileList.size(); i > 0; i--) {
-                    IndexFile f = this.indexFileList.get(i - 1);
-                    boolean lastFile = (i == this.indexFileList.size());
-                    if (lastFile) {
-                        indexLastUpdateTimestamp = f.getEndTimestamp();
-                        indexLastUpdatePhyOffset = f.getEndPhyOffset();
-                    }
-
-                    if (f.isTimeMatched(begin, end)) {
-                        // 最后一个文件需要加锁
-                        f.selectPhyOffset(phyOffsets, this.buildKey(topic, key), maxNum, begin, end, lastFile);
-                    }
+    public void start() {
+        for (IndexShard shard : this.indexShards) {
+            shard.start();
+        }
+    }
 
-                    // 再往前遍历时间更不符合
-                    if (f.getBeginTimestamp() < begin) {
-                        break;
-                    }
 
-                    if (phyOffsets.size() >= maxNum) {
-                        break;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            log.error("queryMsg exception", e);
-        } finally {
-            this.readWriteLock.readLock().unlock();
+    public void shutdown() {
+        for (IndexShard shard : this.indexShards) {
+            shard.shutdown();
         }
 
-        return new QueryOffsetResult(phyOffsets, indexLastUpdateTimestamp, indexLastUpdatePhyOffset);
+        if (this.queryExecutor != null) {
+            this.queryExecutor.shutdown();
+        }
     }
 
 
-    private String buildKey(final String topic, final String key) {
-        return topic + "#" + key;
+    public ExecutorService getQueryExecutor() {
+        return queryExecutor;
     }
 
 
     /**
-     * 向队列中添加请求，队列满情况下，丢弃请求
+     * 删除索引文件
      */
-    public void putRequest(final Object[] requests) {
-        boolean offer = this.requestQueue.offer(requests);
-        if (!offer) {
-            if (log.isDebugEnabled()) {
-                log.debug("putRequest index failed, {}", requests);
-            }
+    public void deleteExpiredFile(long offset) {
+        for (IndexShard shard : this.indexShards) {
+            shard.deleteExpiredFile(offset);
         }
     }
 
 
-    @Override
-    public void run() {
-        log.info(this.getServiceName() + " service started");
-
-        while (!this.isStopped()) {
-            try {
-                Object[] req = this.requestQueue.poll(3000, TimeUnit.MILLISECONDS);
-
-                if (req != null) {
-                    this.buildIndex(req);
-                }
-            } catch (Exception e) {
-                log.warn(this.getServiceName() + " service has exception. ", e);
-            }
+    /**
+     * 删除最后一条索引早于timestamp的文件，CommitLog多分区时索引中的物理Offset不再单调，只能按时间删除
+     */
+    public void deleteExpiredFileByTime(long timestamp) {
+        for (IndexShard shard : this.indexShards) {
+            shard.deleteExpiredFileByTime(timestamp);
         }
-
-        log.info(this.getServiceName() + " service end");
     }
 
 
-    public void buildIndex(Object[] req) {
-        boolean breakdown = false;
-        IndexFile indexFile = retryGetAndCreateIndexFile();
-        if (indexFile != null) {
-            long endPhyOffset = indexFile.getEndPhyOffset();
-            MSG_WHILE:
-            for (Object o : req) {
-                DispatchRequest msg = (DispatchRequest) o;
-                String topic = msg.getTopic();
-                String keys = msg.getKeys();
-                if (msg.getCommitLogOffset() < endPhyOffset) {
-                    continue;
-                }
-
-                final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
-                switch (tranType) {
-                    case MessageSysFlag.TransactionNotType:
-                    case MessageSysFlag.TransactionPreparedType:
-                        break;
-                    case MessageSysFlag.TransactionCommitType:
-                    case MessageSysFlag.TransactionRollbackType:
-                        continue;
-                }
-
-                if (keys != null && keys.length() > 0) {
-                    String[] keySet = keys.split(MessageConst.KEY_SEPARATOR);
-                    for (String key : keySet) {
-                        // TODO 是否需要TRIM
-                        if (key.length() > 0) {
-                            for (boolean ok =
-                                         indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
-                                                 msg.getStoreTimestamp()); !ok; ) {
-                                log.warn("index file full, so create another one, " + indexFile.getFileName());
-                                indexFile = retryGetAndCreateIndexFile();
-                                if (null == indexFile) {
-                                    breakdown = true;
-                                    break MSG_WHILE;
-                                }
-
-                                ok =
-                                        indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
-                                                msg.getStoreTimestamp());
-                            }
-                        }
-                    }
-                }
-            }
+    public void destroy() {
+        for (IndexShard shard : this.indexShards) {
+            shard.destroy();
         }
-        // IO发生故障，build索引过程中断，需要人工参与处理
-        else {
-            breakdown = true;
+
+        File indexDirectory = new File(storePath);
+        if (indexDirectory.exists() && indexDirectory.isDirectory()) {
+            indexDirectory.delete();
         }
 
-        if (breakdown) {
-            log.error("build index error, stop building index");
+        File shardNumsFile = new File(this.shardNumsPath);
+        if (shardNumsFile.exists()) {
+            shardNumsFile.delete();
         }
     }
 
 
-    public IndexFile retryGetAndCreateIndexFile() {
-        IndexFile indexFile = null;
+    /**
+     * 同一个Key只会写入一个分片，直接查询该分片
+     */
+    public QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
+        maxNum = Math.min(maxNum, this.defaultMessageStore.getMessageStoreConfig().getMaxMsgsNumBatch());
+        String idxKey = this.buildKey(topic, key);
+        return this.indexShards[this.selectShard(idxKey)].queryOffset(idxKey, maxNum, begin, end);
+    }
 
-        // 如果创建失败，尝试重建3次
-        for (int times = 0; times < 3; times++) {
-            indexFile = this.getAndCreateLastIndexFile();
-            if (null != indexFile)
-                break;
 
-            try {
-                log.error("try to create index file, " + times + " times");
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    String buildKey(final String topic, final String key) {
+        return topic + "#" + key;
+    }
+
 
-        // 重试多次，仍然无法创建索引文件
-        if (null == indexFile) {
-            this.defaultMessageStore.getAccessRights().makeIndexFileError();
-            log.error("mark index file can not build flag");
+    /**
+     * IndexFile按hashCode取模选择槽位，这里先打散hashCode，避免同一分片内的Key集中在少数槽位
+     */
+    int selectShard(final String idxKey) {
+        if (1 == this.indexShards.length) {
+            return 0;
         }
 
-        return indexFile;
+        long mixed = (idxKey.hashCode() * 0x9E3779B9) & 0xFFFFFFFFL;
+        return (int) ((mixed * this.indexShards.length) >>> 32);
     }
 
 
     /**
-     * 获取最后一个索引文件，如果集合为空或者最后一个文件写满了，则新建一个文件<br>
-     * 只有一个线程调用，所以不存在写竟争问题
+     * 向队列中添加请求，队列满情况下，丢弃请求<br>
+     * 单分片时整批交给分片线程拆分Key；多分片时在这里拆分一次Key并按归属分组，每个分片内请求仍按写入顺序
      */
-    public IndexFile getAndCreateLastIndexFile() {
-        IndexFile indexFile = null;
-        IndexFile prevIndexFile = null;
-        long lastUpdateEndPhyOffset = 0;
-        long lastUpdateIndexTimestamp = 0;
-        // 先尝试使用读锁
-        {
-            this.readWriteLock.readLock().lock();
-            if (!this.indexFileList.isEmpty()) {
-                IndexFile tmp = this.indexFileList.get(this.indexFileList.size() - 1);
-                if (!tmp.isWriteFull()) {
-                    indexFile = tmp;
-                } else {
-                    lastUpdateEndPhyOffset = tmp.getEndPhyOffset();
-                    lastUpdateIndexTimestamp = tmp.getEndTimestamp();
-                    prevIndexFile = tmp;
-                }
-            }
-
-            this.readWriteLock.readLock().unlock();
+    public void putRequest(final Object[] requests) {
+        if (1 == this.indexShards.length) {
+            this.indexShards[0].putRequest(requests);
+            return;
         }
 
-        // 如果没找到，使用写锁创建文件
-        if (indexFile == null) {
-            try {
-                String fileName = this.storePath + File.separator
-                        + UtilAll.timeMillisToHumanString(System.currentTimeMillis());
-                indexFile = new IndexFile(fileName, this.hashSlotNum, this.indexNum, lastUpdateEndPhyOffset,
-                        lastUpdateIndexTimestamp);
-                this.readWriteLock.writeLock().lock();
-                this.indexFileList.add(indexFile);
-            } catch (Exception e) {
-                log.error("getLastIndexFile exception ", e);
-            } finally {
-                this.readWriteLock.writeLock().unlock();
-            }
+        List<List<Object>> shardRequests = new ArrayList<List<Object>>(this.indexShards.length);
+        for (int i = 0; i < this.indexShards.length; i++) {
+            shardRequests.add(new ArrayList<Object>());
+        }
 
-            // 每创建一个新文件，之前文件要刷盘
-            if (indexFile != null) {
-                final IndexFile flushThisFile = prevIndexFile;
-                Thread flushThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        IndexService.this.flush(flushThisFile);
+        for (Object o : requests) {
+            DispatchRequest msg = (DispatchRequest) o;
+            String keys = msg.getKeys();
+            if (keys != null && keys.length() > 0 && IndexShard.needIndex(msg)) {
+                String[] keySet = keys.split(MessageConst.KEY_SEPARATOR);
+                for (String key : keySet) {
+                    if (key.length() > 0) {
+                        String idxKey = this.buildKey(msg.getTopic(), key);
+                        shardRequests.get(this.selectShard(idxKey)).add(
+                            new IndexShard.KeyRequest(idxKey, msg.getCommitLogOffset(), msg.getStoreTimestamp()));
                     }
-                }, "FlushIndexFileThread");
-
-                flushThread.setDaemon(true);
-                flushThread.start();
+                }
             }
         }
 
-        return indexFile;
+        for (int i = 0; i < this.indexShards.length; i++) {
+            if (!shardRequests.get(i).isEmpty()) {
+                this.indexShards[i].putRequest(shardRequests.get(i).toArray());
+            }
+        }
     }
 
 
-    public void flush(final IndexFile f) {
-        if (null == f)
-            return;
-
-        long indexMsgTimestamp = 0;
-
-        if (f.isWriteFull()) {
-            indexMsgTimestamp = f.getEndTimestamp();
+    /**
+     * 所有分片都已刷盘的索引时间才能记入checkpoint
+     */
+    void updateIndexMsgTimestamp() {
+        long indexMsgTimestamp = Long.MAX_VALUE;
+        for (IndexShard shard : this.indexShards) {
+            indexMsgTimestamp = Math.min(indexMsgTimestamp, shard.getFlushedIndexTimestamp());
         }
 
-        f.flush();
-
         if (indexMsgTimestamp > 0) {
             this.defaultMessageStore.getStoreCheckpoint().setIndexMsgTimestamp(indexMsgTimestamp);
             this.defaultMessageStore.getStoreCheckpoint().flush();
         }
     }
-
-
-    @Override
-    public String getServiceName() {
-        return IndexService.class.getSimpleName();
-    }
 }
@@ -0,0 +1,616 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.index;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
+import com.alibaba.rocketmq.store.CommitLog;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.DispatchRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * 索引分片，独占一个目录下的索引文件链，由独立线程写入，只索引按Key哈希归属本分片的Key
+ */
+public class IndexShard extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final IndexService indexService;
+    private final DefaultMessageStore defaultMessageStore;
+    private final int shardId;
+    // 索引配置
+    private final int hashSlotNum;
+    private final int indexNum;
+    private final String storePath;
+    private final int bloomFilterBitsPerKey;
+    // 索引文件集合
+    private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
+    // 读写锁（针对indexFileList）
+    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private LinkedBlockingQueue<Object[]> requestQueue = new LinkedBlockingQueue<Object[]>(300000);
+    // 最后一个已写满并刷盘的索引文件的结束时间，此前的索引不会因异常退出丢失
+    private volatile long flushedIndexTimestamp = 0;
+    // 每个CommitLog分区已建索引的最大物理Offset，各分区的Offset独立递增，不能用一个位置判断是否已建过索引
+    private final long[] indexedPhyOffsets;
+    // 每个分区的物理Offset区间大小，不分区时只有一个分区
+    private final long partitionOffsetSpan;
+
+
+    public IndexShard(final IndexService indexService, final DefaultMessageStore store, final int shardId,
+            final String storePath, final int hashSlotNum, final int indexNum) {
+        this.indexService = indexService;
+        this.defaultMessageStore = store;
+        this.shardId = shardId;
+        this.storePath = storePath;
+        this.hashSlotNum = hashSlotNum;
+        this.indexNum = indexNum;
+        this.bloomFilterBitsPerKey = store.getMessageStoreConfig().getIndexBloomFilterBitsPerKey();
+        if (store.getMessageStoreConfig().isCommitLogPartitionEnable()) {
+            this.partitionOffsetSpan =
+                    CommitLog.partitionOffsetSpan(store.getMessageStoreConfig().getMappedFileSizeCommitLog());
+            this.indexedPhyOffsets = new long[CommitLog.MaxPartitionNums];
+        }
+        else {
+            this.partitionOffsetSpan = Long.MAX_VALUE;
+            this.indexedPhyOffsets = new long[1];
+        }
+        this.thread.setName(this.getServiceName());
+    }
+
+
+    public boolean load(final boolean lastExitOK) {
+        File dir = new File(this.storePath);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            // ascending order
+            Arrays.sort(files);
+            for (File file : files) {
+                // 其他分片的目录
+                if (file.isDirectory()) {
+                    continue;
+                }
+
+                try {
+                    IndexFile f = new IndexFile(file.getPath(), this.hashSlotNum, this.indexNum, 0, 0,
+                            this.bloomFilterBitsPerKey);
+                    f.load();
+
+                    if (!lastExitOK) {
+                        if (f.getEndTimestamp() > this.defaultMessageStore.getStoreCheckpoint().getIndexMsgTimestamp()) {
+                            f.destroy(0);
+                            continue;
+                        }
+                    }
+
+                    if (f.isWriteFull()) {
+                        this.flushedIndexTimestamp = f.getEndTimestamp();
+                    }
+
+                    log.info("load index file OK, " + f.getFileName());
+                    this.indexFileList.add(f);
+                } catch (IOException e) {
+                    log.error("load file " + file + " error", e);
+                    return false;
+                }
+            }
+        }
+
+        // 索引文件只记录最后一条消息的位置，其他分区重启后重新从头判断，恢复时可能重复建少量索引
+        if (!this.indexFileList.isEmpty()) {
+            long endPhyOffset = this.indexFileList.get(this.indexFileList.size() - 1).getEndPhyOffset();
+            this.indexedPhyOffsets[(int) (endPhyOffset / this.partitionOffsetSpan)] = endPhyOffset;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 恢复时会重复分发消息，Offset小于所在分区已建索引位置的消息跳过
+     */
+    private boolean isIndexed(final long commitLogOffset) {
+        final int partition = (int) (commitLogOffset / this.partitionOffsetSpan);
+        if (commitLogOffset < this.indexedPhyOffsets[partition]) {
+            return true;
+        }
+
+        this.indexedPhyOffsets[partition] = commitLogOffset;
+        return false;
+    }
+
+
+    /**
+     * 删除索引文件
+     */
+    public void deleteExpiredFile(long offset) {
+        Object[] files = null;
+        try {
+            this.readWriteLock.readLock().lock();
+            if (this.indexFileList.isEmpty()) {
+                return;
+            }
+
+            long endPhyOffset = this.indexFileList.get(0).getEndPhyOffset();
+            if (endPhyOffset < offset) {
+                files = this.indexFileList.toArray();
+            }
+        } catch (Exception e) {
+            log.error("destroy exception", e);
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        if (files != null) {
+            List<IndexFile> fileList = new ArrayList<IndexFile>();
+            for (int i = 0; i < (files.length - 1); i++) {
+                IndexFile f = (IndexFile) files[i];
+                if (f.getEndPhyOffset() < offset) {
+                    fileList.add(f);
+                } else {
+                    break;
+                }
+            }
+
+            this.deleteExpiredFile(fileList);
+        }
+    }
+
+
+    /**
+     * 删除最后一条索引早于timestamp的文件，CommitLog多分区时索引中的物理Offset不再单调，只能按时间删除
+     */
+    public void deleteExpiredFileByTime(long timestamp) {
+        Object[] files = null;
+        try {
+            this.readWriteLock.readLock().lock();
+            if (this.indexFileList.isEmpty()) {
+                return;
+            }
+
+            long endTimestamp = this.indexFileList.get(0).getEndTimestamp();
+            if (endTimestamp < timestamp) {
+                files = this.indexFileList.toArray();
+            }
+        } catch (Exception e) {
+            log.error("destroy exception", e);
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        if (files != null) {
+            List<IndexFile> fileList = new ArrayList<IndexFile>();
+            for (int i = 0; i < (files.length - 1); i++) {
+                IndexFile f = (IndexFile) files[i];
+                if (f.getEndTimestamp() < timestamp) {
+                    fileList.add(f);
+                } else {
+                    break;
+                }
+            }
+
+            this.deleteExpiredFile(fileList);
+        }
+    }
+
+
+    /**
+     * 删除文件只能从头开始删
+     */
+    private void deleteExpiredFile(List<IndexFile> files) {
+        if (!files.isEmpty()) {
+            try {
+                this.readWriteLock.writeLock().lock();
+                for (IndexFile file : files) {
+                    boolean destroyed = file.destroy(3000);
+                    destroyed = destroyed && this.indexFileList.remove(file);
+                    if (!destroyed) {
+                        log.error("deleteExpiredFile remove failed.");
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                log.error("deleteExpiredFile has exception.", e);
+            } finally {
+                this.readWriteLock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    public void destroy() {
+        try {
+            this.readWriteLock.writeLock().lock();
+            for (IndexFile f : this.indexFileList) {
+                f.destroy(1000 * 3);
+            }
+            this.indexFileList.clear();
+
+            File indexDirectory = new File(storePath);
+            if (indexDirectory.exists() && indexDirectory.isDirectory()) {
+                indexDirectory.delete();
+            }
+
+        } catch (Exception e) {
+            log.error("destroy exception", e);
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * 按时间及布隆过滤器筛选出候选文件，多个候选文件时并行查询，结果仍按文件从新到旧排列
+     */
+    public QueryOffsetResult queryOffset(final String key, final int maxNum, final long begin, final long end) {
+        List<Long> phyOffsets = new ArrayList<Long>(maxNum);
+        // TODO 可能需要返回给最终用户
+        long indexLastUpdateTimestamp = 0;
+        long indexLastUpdatePhyOffset = 0;
+        try {
+            this.readWriteLock.readLock().lock();
+            if (!this.indexFileList.isEmpty()) {
+                List<IndexFile> candidates = new ArrayList<IndexFile>();
+                IndexFile lastFile = this.indexFileList.get(this.indexFileList.size() - 1);
+                indexLastUpdateTimestamp = lastFile.getEndTimestamp();
+                indexLastUpdatePhyOffset = lastFile.getEndPhyOffset();
+                for (int i = this.indexFileList.size(); i > 0; i--) {
+                    IndexFile f = this.indexFileList.get(i - 1);
+                    if (f.isTimeMatched(begin, end) && f.mightContain(key)) {
+                        candidates.add(f);
+                    }
+
+                    // 再往前遍历时间更不符合
+                    if (f.getBeginTimestamp() < begin) {
+                        break;
+                    }
+                }
+
+                ExecutorService executor = this.indexService.getQueryExecutor();
+                if (candidates.size() <= 1 || null == executor) {
+                    for (IndexFile f : candidates) {
+                        // 最后一个文件需要加锁
+                        f.selectPhyOffset(phyOffsets, key, maxNum, begin, end, f == lastFile);
+                        if (phyOffsets.size() >= maxNum) {
+                            break;
+                        }
+                    }
+                } else {
+                    this.parallelSelectPhyOffset(executor, candidates, lastFile, phyOffsets, key, maxNum, begin, end);
+                }
+            }
+        } catch (Exception e) {
+            log.error("queryMsg exception", e);
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        return new QueryOffsetResult(phyOffsets, indexLastUpdateTimestamp, indexLastUpdatePhyOffset);
+    }
+
+
+    /**
+     * 调用方持有读锁，等待所有文件查询完成后才返回，期间文件不会被删除
+     */
+    private void parallelSelectPhyOffset(final ExecutorService executor, final List<IndexFile> candidates,
+            final IndexFile lastFile, final List<Long> phyOffsets, final String key, final int maxNum,
+            final long begin, final long end) throws InterruptedException {
+        List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>(candidates.size());
+        for (final IndexFile f : candidates) {
+            futures.add(executor.submit(new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() throws Exception {
+                    List<Long> result = new ArrayList<Long>();
+                    f.selectPhyOffset(result, key, maxNum, begin, end, f == lastFile);
+                    return result;
+                }
+            }));
+        }
+
+        for (Future<List<Long>> future : futures) {
+            try {
+                List<Long> result = future.get();
+                for (int i = 0; i < result.size() && phyOffsets.size() < maxNum; i++) {
+                    phyOffsets.add(result.get(i));
+                }
+            } catch (ExecutionException e) {
+                log.error("selectPhyOffset in parallel exception", e);
+            }
+        }
+    }
+
+
+    /**
+     * 向队列中添加请求，队列满情况下，丢弃请求
+     */
+    public void putRequest(final Object[] requests) {
+        boolean offer = this.requestQueue.offer(requests);
+        if (!offer) {
+            if (log.isDebugEnabled()) {
+                log.debug("putRequest index failed, {}", requests);
+            }
+        }
+    }
+
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                Object[] req = this.requestQueue.poll(3000, TimeUnit.MILLISECONDS);
+
+                if (req != null) {
+                    this.buildIndex(req);
+                }
+            } catch (Exception e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    /**
+     * 请求为DispatchRequest（单分片）或IndexService拆分好的KeyRequest（多分片）
+     */
+    public void buildIndex(Object[] req) {
+        boolean breakdown = false;
+        IndexFile indexFile = retryGetAndCreateIndexFile();
+        if (indexFile != null) {
+            MSG_WHILE:
+            for (Object o : req) {
+                if (o instanceof KeyRequest) {
+                    KeyRequest keyRequest = (KeyRequest) o;
+                    if (this.isIndexed(keyRequest.commitLogOffset)) {
+                        continue;
+                    }
+
+                    indexFile = this.putKey(indexFile, keyRequest.idxKey, keyRequest.commitLogOffset,
+                        keyRequest.storeTimestamp);
+                    if (null == indexFile) {
+                        breakdown = true;
+                        break;
+                    }
+                    continue;
+                }
+
+                DispatchRequest msg = (DispatchRequest) o;
+                String topic = msg.getTopic();
+                String keys = msg.getKeys();
+                if (!needIndex(msg) || this.isIndexed(msg.getCommitLogOffset())) {
+                    continue;
+                }
+
+                if (keys != null && keys.length() > 0) {
+                    String[] keySet = keys.split(MessageConst.KEY_SEPARATOR);
+                    for (String key : keySet) {
+                        // TODO 是否需要TRIM
+                        if (key.length() > 0) {
+                            indexFile = this.putKey(indexFile, this.indexService.buildKey(topic, key),
+                                msg.getCommitLogOffset(), msg.getStoreTimestamp());
+                            if (null == indexFile) {
+                                breakdown = true;
+                                break MSG_WHILE;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        // IO发生故障，build索引过程中断，需要人工参与处理
+        else {
+            breakdown = true;
+        }
+
+        if (breakdown) {
+            log.error("build index error, stop building index");
+        }
+    }
+
+
+    /**
+     * 当前文件写满时创建新文件继续写入
+     *
+     * @return 写入后的当前文件，无法创建文件时返回null
+     */
+    private IndexFile putKey(IndexFile indexFile, final String idxKey, final long phyOffset,
+            final long storeTimestamp) {
+        for (boolean ok = indexFile.putKey(idxKey, phyOffset, storeTimestamp); !ok; ) {
+            log.warn("index file full, so create another one, " + indexFile.getFileName());
+            indexFile = retryGetAndCreateIndexFile();
+            if (null == indexFile) {
+                return null;
+            }
+
+            ok = indexFile.putKey(idxKey, phyOffset, storeTimestamp);
+        }
+
+        return indexFile;
+    }
+
+
+    /**
+     * 事务提交、回滚消息不建索引
+     */
+    static boolean needIndex(final DispatchRequest msg) {
+        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+        switch (tranType) {
+            case MessageSysFlag.TransactionCommitType:
+            case MessageSysFlag.TransactionRollbackType:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+
+    public IndexFile retryGetAndCreateIndexFile() {
+        IndexFile indexFile = null;
+
+        // 如果创建失败，尝试重建3次
+        for (int times = 0; times < 3; times++) {
+            indexFile = this.getAndCreateLastIndexFile();
+            if (null != indexFile)
+                break;
+
+            try {
+                log.error("try to create index file, " + times + " times");
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // 重试多次，仍然无法创建索引文件
+        if (null == indexFile) {
+            this.defaultMessageStore.getAccessRights().makeIndexFileError();
+            log.error("mark index file can not build flag");
+        }
+
+        return indexFile;
+    }
+
+
+    /**
+     * 获取最后一个索引文件，如果集合为空或者最后一个文件写满了，则新建一个文件<br>
+     * 只有本分片线程调用，所以不存在写竟争问题
+     */
+    public IndexFile getAndCreateLastIndexFile() {
+        IndexFile indexFile = null;
+        IndexFile prevIndexFile = null;
+        long lastUpdateEndPhyOffset = 0;
+        long lastUpdateIndexTimestamp = 0;
+        // 先尝试使用读锁
+        {
+            this.readWriteLock.readLock().lock();
+            if (!this.indexFileList.isEmpty()) {
+                IndexFile tmp = this.indexFileList.get(this.indexFileList.size() - 1);
+                if (!tmp.isWriteFull()) {
+                    indexFile = tmp;
+                } else {
+                    lastUpdateEndPhyOffset = tmp.getEndPhyOffset();
+                    lastUpdateIndexTimestamp = tmp.getEndTimestamp();
+                    prevIndexFile = tmp;
+                }
+            }
+
+            this.readWriteLock.readLock().unlock();
+        }
+
+        // 如果没找到，使用写锁创建文件
+        if (indexFile == null) {
+            try {
+                String fileName = this.storePath + File.separator
+                        + UtilAll.timeMillisToHumanString(System.currentTimeMillis());
+                indexFile = new IndexFile(fileName, this.hashSlotNum, this.indexNum, lastUpdateEndPhyOffset,
+                        lastUpdateIndexTimestamp, this.bloomFilterBitsPerKey);
+                this.readWriteLock.writeLock().lock();
+                this.indexFileList.add(indexFile);
+            } catch (Exception e) {
+                log.error("getLastIndexFile exception ", e);
+            } finally {
+                this.readWriteLock.writeLock().unlock();
+            }
+
+            // 每创建一个新文件，之前文件要刷盘
+            if (indexFile != null) {
+                final IndexFile flushThisFile = prevIndexFile;
+                Thread flushThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        IndexShard.this.flush(flushThisFile);
+                    }
+                }, "FlushIndexFileThread");
+
+                flushThread.setDaemon(true);
+                flushThread.start();
+            }
+        }
+
+        return indexFile;
+    }
+
+
+    public void flush(final IndexFile f) {
+        if (null == f)
+            return;
+
+        long indexMsgTimestamp = 0;
+
+        if (f.isWriteFull()) {
+            indexMsgTimestamp = f.getEndTimestamp();
+        }
+
+        f.flush();
+
+        if (indexMsgTimestamp > 0) {
+            this.flushedIndexTimestamp = indexMsgTimestamp;
+            this.indexService.updateIndexMsgTimestamp();
+        }
+    }
+
+
+    public long getFlushedIndexTimestamp() {
+        return flushedIndexTimestamp;
+    }
+
+
+    public int getShardId() {
+        return shardId;
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return IndexShard.class.getSimpleName() + "_" + this.shardId;
+    }
+
+    /**
+     * 多分片时由IndexService拆分好的单个Key，分片线程不必再拆分Key及计算归属分片
+     */
+    static class KeyRequest {
+        private final String idxKey;
+        private final long commitLogOffset;
+        private final long storeTimestamp;
+
+
+        KeyRequest(final String idxKey, final long commitLogOffset, final long storeTimestamp) {
+            this.idxKey = idxKey;
+            this.commitLogOffset = commitLogOffset;
+            this.storeTimestamp = storeTimestamp;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MappedFile;
+import com.alibaba.rocketmq.store.MappedFileQueue;
+import com.alibaba.rocketmq.store.SelectMappedBufferResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * 定时消息索引，定长记录顺序追加，同一秒到期的记录通过prevPos串成链表，表头记录在TimerWheel槽位中
+ */
+public class TimerLog {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 存储单元大小, magic(int, 4) + prev position(long, 8) + slot second(long, 8) + deliver timestamp(long, 8)
+    // + physical offset(long, 8) + message size(int, 4)
+    public static final int UnitSize = 40;
+    private static final int UnitMagicCode = 0xAABBCCDD ^ 1880681586 + 40;
+
+    private final MappedFileQueue mappedFileQueue;
+    private final int mappedFileSize;
+    // 写记录时用到的ByteBuffer
+    private final ByteBuffer byteBufferUnit = ByteBuffer.allocate(UnitSize);
+
+
+    public TimerLog(final String storePath, final int mappedFileSize) {
+        // 文件大小取整为存储单元的整数倍，记录不会跨文件
+        this.mappedFileSize = mappedFileSize / UnitSize * UnitSize;
+        this.mappedFileQueue = new MappedFileQueue(storePath, this.mappedFileSize, null);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mappedFileQueue.load();
+        log.info("load timer log " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 从倒数第三个文件开始，找到最后一条有效记录
+     */
+    public void recover() {
+        final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        if (mappedFiles.isEmpty()) {
+            return;
+        }
+
+        int index = mappedFiles.size() - 3;
+        if (index < 0)
+            index = 0;
+
+        long processOffset = mappedFiles.get(index).getFileFromOffset();
+        for (; index < mappedFiles.size(); index++) {
+            MappedFile mappedFile = mappedFiles.get(index);
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            int mappedFileOffset = 0;
+            while (mappedFileOffset < this.mappedFileSize
+                    && byteBuffer.getInt(mappedFileOffset) == UnitMagicCode) {
+                mappedFileOffset += UnitSize;
+            }
+
+            processOffset = mappedFile.getFileFromOffset() + mappedFileOffset;
+            if (mappedFileOffset < this.mappedFileSize) {
+                break;
+            }
+        }
+
+        log.info("recover timer log over, max offset " + processOffset);
+        this.mappedFileQueue.truncateDirtyFiles(processOffset);
+    }
+
+
+    /**
+     * 追加一条记录，只在持有TimerMessageService锁时调用
+     *
+     * @return 记录位置，写入失败返回-1
+     */
+    public long append(final long prevPos, final long slotSecond, final long deliverTimestamp, final long offsetPy,
+            final int sizePy) {
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+        if (null == mappedFile) {
+            log.error("create timer log mapped file failed");
+            return -1;
+        }
+
+        this.byteBufferUnit.clear();
+        this.byteBufferUnit.putInt(UnitMagicCode);
+        this.byteBufferUnit.putLong(prevPos);
+        this.byteBufferUnit.putLong(slotSecond);
+        this.byteBufferUnit.putLong(deliverTimestamp);
+        this.byteBufferUnit.putLong(offsetPy);
+        this.byteBufferUnit.putInt(sizePy);
+
+        long pos = mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+        if (mappedFile.appendMessage(this.byteBufferUnit.array())) {
+            return pos;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * @return 记录所在的Buffer，position指向prevPos，调用方负责release；记录已被删除时返回null
+     */
+    public SelectMappedBufferResult getUnit(final long pos) {
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(pos);
+        if (mappedFile != null) {
+            SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (pos % this.mappedFileSize));
+            if (result != null) {
+                if (result.getSize() >= UnitSize && result.getByteBuffer().getInt() == UnitMagicCode) {
+                    return result;
+                }
+                result.release();
+            }
+        }
+
+        return null;
+    }
+
+
+    public void flush() {
+        this.mappedFileQueue.commit(0);
+    }
+
+
+    /**
+     * 文件最后写入时间超过expiredTime后删除，此时文件中的记录均已投递或已转存到更晚的槽位
+     */
+    public int deleteExpiredFile(final long expiredTime) {
+        return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, 0, 1000 * 60, false);
+    }
+
+
+    public long getMinOffset() {
+        return this.mappedFileQueue.getMinOffset();
+    }
+
+
+    public long getMaxOffset() {
+        return this.mappedFileQueue.getMaxOffset();
+    }
+
+
+    public void shutdown() {
+        this.mappedFileQueue.shutdown(1000 * 3);
+    }
+
+
+    public void destroy() {
+        this.mappedFileQueue.destroy();
+    }
+}
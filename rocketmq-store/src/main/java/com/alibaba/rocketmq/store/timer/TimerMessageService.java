@@ -0,0 +1,649 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.TopicFilterType;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageAccessor;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.store.ConsumeQueue;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageResult;
+import com.alibaba.rocketmq.store.PutMessageStatus;
+import com.alibaba.rocketmq.store.SelectMappedBufferResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * 任意投递时间的定时消息服务<br>
+ * 1、消息先写入TIMER_TOPIC，入队线程按消费队列顺序读取，以到期秒为槽位写入时间轮及TimerLog<br>
+ * 2、出队线程逐秒推进，读取该秒槽位的链表，整批投递到真实Topic<br>
+ * 3、超出时间轮范围的消息先挂在最远的槽位，到期后转存到更晚的槽位，相当于更高一层的时间轮
+ */
+public class TimerMessageService {
+    public static final String TIMER_TOPIC = "TIMER_TOPIC_XXXX";
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final long DELAY_FOR_A_WHILE = 100L;
+    private static final long DELAY_FOR_A_PERIOD = 1000L;
+    // TimerLog文件在超出时间轮范围后再保留一段时间才删除
+    private static final long TIMER_LOG_RESERVED_TIME = 1000L * 60 * 60;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final TimerLog timerLog;
+    private final EnqueueService enqueueService;
+    private final DequeueService dequeueService;
+    private TimerWheel timerWheel;
+    // TimerLog恢复时截断了槽位引用的记录，启动后需要把物理位点大于lostOffsetPy的定时消息重新写入时间轮
+    private volatile boolean timerLogTruncated = false;
+    private long lostOffsetPy = -1;
+
+
+    public TimerMessageService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        this.timerLog =
+                new TimerLog(StorePathConfigHelper.getStorePathTimerLog(this.messageStoreConfig.getStorePathRootDir()),
+                    this.messageStoreConfig.getMappedFileSizeTimerLog());
+        this.enqueueService = new EnqueueService();
+        this.dequeueService = new DequeueService();
+    }
+
+
+    /**
+     * @return 消息指定的投递时间，未指定返回-1
+     */
+    public static long getDeliverTimestamp(final Message msg) {
+        return getDeliverTimestamp(msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS));
+    }
+
+
+    /**
+     * @return 属性值对应的投递时间，属性不存在或格式错误返回-1
+     */
+    public static long getDeliverTimestamp(final String t) {
+        if (t != null) {
+            try {
+                return Long.parseLong(t);
+            }
+            catch (NumberFormatException e) {
+                log.warn("invalid timer deliver timestamp " + t);
+            }
+        }
+
+        return -1;
+    }
+
+
+    public boolean load() {
+        try {
+            this.timerWheel =
+                    new TimerWheel(StorePathConfigHelper.getTimerWheelPath(this.messageStoreConfig
+                        .getStorePathRootDir()), this.messageStoreConfig.getTimerWheelSlots());
+        }
+        catch (IOException e) {
+            log.error("load timer wheel exception", e);
+            return false;
+        }
+
+        boolean result = this.timerLog.load();
+        if (result) {
+            this.timerLog.recover();
+            this.reviseSlots();
+        }
+
+        return result;
+    }
+
+
+    /**
+     * TimerLog异常恢复时可能截断了尾部记录，槽位却已指向被截断的位置，链表中剩余的记录将无法投递<br>
+     * 此时按TimerLog中的有效记录重建未出队的槽位，被截断的记录由入队线程启动后从消费队列重新写入
+     */
+    private void reviseSlots() {
+        final long dequeueSecond = this.timerWheel.getDequeueSecond();
+        if (0 == dequeueSecond) {
+            return;
+        }
+
+        final long maxOffset = this.timerLog.getMaxOffset();
+        final long endSecond = dequeueSecond + this.timerWheel.getSlotsTotal();
+        boolean truncated = false;
+        for (long second = dequeueSecond; second < endSecond && !truncated; second++) {
+            truncated = this.timerWheel.getSlot(second).getLastPos() >= maxOffset;
+        }
+        if (!truncated) {
+            return;
+        }
+
+        log.warn("timer wheel slots point beyond timer log max offset " + maxOffset + ", rebuild slots");
+        for (long second = dequeueSecond; second < endSecond; second++) {
+            this.timerWheel.putSlot(second, -1, 0);
+        }
+
+        // 记录不跨文件，按存储单元顺序扫描，同一槽位最后一条有效记录即为表头
+        long maxOffsetPy = -1;
+        for (long pos = this.timerLog.getMinOffset(); pos < maxOffset; pos += TimerLog.UnitSize) {
+            SelectMappedBufferResult unit = this.timerLog.getUnit(pos);
+            if (null == unit) {
+                continue;
+            }
+
+            try {
+                unit.getByteBuffer().getLong();
+                long slotSecond = unit.getByteBuffer().getLong();
+                unit.getByteBuffer().getLong();
+                maxOffsetPy = Math.max(maxOffsetPy, unit.getByteBuffer().getLong());
+                if (slotSecond >= dequeueSecond && slotSecond < endSecond) {
+                    this.timerWheel.putSlot(slotSecond, pos, this.timerWheel.getSlot(slotSecond).getNum() + 1);
+                }
+            }
+            finally {
+                unit.release();
+            }
+        }
+
+        this.lostOffsetPy = maxOffsetPy;
+        this.timerLogTruncated = true;
+    }
+
+
+    /**
+     * 入队按消费队列顺序写入TimerLog，物理位点大于有效记录最大物理位点的消息，其记录可能已被截断，
+     * 重新写入时间轮；已出队秒内到期的消息已经投递过，跳过
+     */
+    private void reputLostTimers(final ServiceThread caller) {
+        ConsumeQueue cq = this.defaultMessageStore.findConsumeQueue(TIMER_TOPIC, 0);
+        if (null == cq) {
+            return;
+        }
+
+        final long dequeueSecond = this.timerWheel.getDequeueSecond();
+        long offset = Math.min(this.timerWheel.getEnqueueOffset(), cq.getMaxOffsetInQueue());
+        int reputCount = 0;
+        while (--offset >= cq.getMinOffsetInQueue() && !caller.isStopped()) {
+            SelectMappedBufferResult bufferCQ = cq.getIndexBuffer(offset);
+            if (null == bufferCQ) {
+                break;
+            }
+
+            long offsetPy;
+            int sizePy;
+            long deliverTimestamp;
+            try {
+                offsetPy = bufferCQ.getByteBuffer().getLong();
+                sizePy = bufferCQ.getByteBuffer().getInt();
+                deliverTimestamp = bufferCQ.getByteBuffer().getLong();
+            }
+            finally {
+                bufferCQ.release();
+            }
+
+            if (offsetPy <= this.lostOffsetPy) {
+                break;
+            }
+
+            if (deliverTimestamp / 1000 >= dequeueSecond) {
+                reputCount++;
+                if (!this.putTimer(deliverTimestamp, offsetPy, sizePy)) {
+                    MessageExtBrokerInner msgInner = this.lookTimeupMessage(offsetPy, sizePy);
+                    if (msgInner != null && !this.deliver(msgInner, caller)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        log.warn("reput timer messages lost by timer log truncation, count: " + reputCount);
+        this.timerLogTruncated = false;
+    }
+
+
+    public void start() {
+        synchronized (this) {
+            if (0 == this.timerWheel.getDequeueSecond()) {
+                this.timerWheel.setDequeueSecond(System.currentTimeMillis() / 1000);
+            }
+        }
+
+        this.enqueueService.start();
+        this.dequeueService.start();
+    }
+
+
+    public void shutdown() {
+        // slave未启动入队、出队线程，shutdown直接返回
+        this.enqueueService.shutdown();
+        this.dequeueService.shutdown();
+
+        this.flush();
+        if (this.timerWheel != null) {
+            this.timerWheel.shutdown();
+        }
+        this.timerLog.shutdown();
+    }
+
+
+    public void destroy() {
+        this.timerLog.destroy();
+        File file = new File(StorePathConfigHelper.getTimerWheelPath(this.messageStoreConfig.getStorePathRootDir()));
+        boolean result = file.delete();
+        log.info(file.getPath() + (result ? " delete OK" : " delete Failed"));
+    }
+
+
+    /**
+     * 先刷TimerLog再刷时间轮，保证槽位引用的记录已落盘
+     */
+    public void flush() {
+        this.timerLog.flush();
+        if (this.timerWheel != null) {
+            this.timerWheel.flush();
+        }
+    }
+
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("timerEnqueueOffset", String.valueOf(this.timerWheel.getEnqueueOffset()));
+        stats.put("timerMaxOffset", String.valueOf(this.defaultMessageStore.getMaxOffsetInQueue(TIMER_TOPIC, 0)));
+        stats.put("timerDequeueSecond", String.valueOf(this.timerWheel.getDequeueSecond()));
+        stats.put("timerLogMaxOffset", String.valueOf(this.timerLog.getMaxOffset()));
+    }
+
+
+    /**
+     * 写入时间轮，超出时间轮范围时写入最远的槽位
+     *
+     * @return false表示该消息已到期或写入失败，需要调用方立即投递
+     */
+    private synchronized boolean putTimer(final long deliverTimestamp, final long offsetPy, final int sizePy) {
+        final long dequeueSecond = this.timerWheel.getDequeueSecond();
+        final long deliverSecond = deliverTimestamp / 1000;
+        // 未到期的消息所在秒尚未过去，其槽位一定还未出队，见pollSlot
+        if (deliverSecond < dequeueSecond || deliverTimestamp <= System.currentTimeMillis()) {
+            return false;
+        }
+
+        long slotSecond = Math.min(deliverSecond, dequeueSecond + this.timerWheel.getSlotsTotal() - 1);
+        TimerWheel.Slot slot = this.timerWheel.getSlot(slotSecond);
+        long pos = this.timerLog.append(slot.getLastPos(), slotSecond, deliverTimestamp, offsetPy, sizePy);
+        if (pos < 0) {
+            // 宁可提前投递，也不丢失消息
+            log.error("append timer log failed, deliver it now, offsetPy: " + offsetPy);
+            return false;
+        }
+
+        this.timerWheel.putSlot(slotSecond, pos, slot.getNum() + 1);
+        return true;
+    }
+
+
+    /**
+     * 槽位中消息的投递时间都在该秒之内，整秒过去后才出队，不会提前投递<br>
+     * 与putTimer互斥，出队之后该秒到期的消息均已到期，由putTimer返回false直接投递，槽位内容不会再变化
+     *
+     * @return 该秒还未过去时返回null
+     */
+    private synchronized TimerWheel.Slot pollSlot(final long second) {
+        if ((second + 1) * 1000 > System.currentTimeMillis()) {
+            return null;
+        }
+
+        return this.timerWheel.getSlot(second);
+    }
+
+
+    private synchronized void advanceDequeueSecond(final long nextSecond) {
+        this.timerWheel.setDequeueSecond(nextSecond);
+    }
+
+
+    /**
+     * 还原真实的Topic及QueueId
+     */
+    private MessageExtBrokerInner messageTimeup(final MessageExt msgExt) {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setBody(msgExt.getBody());
+        msgInner.setFlag(msgExt.getFlag());
+        MessageAccessor.setProperties(msgInner, msgExt.getProperties());
+
+        TopicFilterType topicFilterType = MessageExt.parseTopicFilterType(msgInner.getSysFlag());
+        long tagsCodeValue = MessageExtBrokerInner.tagsString2tagsCode(topicFilterType, msgInner.getTags());
+        msgInner.setTagsCode(tagsCodeValue);
+
+        msgInner.setSysFlag(msgExt.getSysFlag());
+        msgInner.setBornTimestamp(msgExt.getBornTimestamp());
+        msgInner.setBornHost(msgExt.getBornHost());
+        msgInner.setStoreHost(msgExt.getStoreHost());
+        msgInner.setReconsumeTimes(msgExt.getReconsumeTimes());
+
+        msgInner.setWaitStoreMsgOK(false);
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+
+        // 恢复Topic
+        msgInner.setTopic(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
+
+        // 恢复QueueId
+        String queueIdStr = msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID);
+        int queueId = Integer.parseInt(queueIdStr);
+        msgInner.setQueueId(queueId);
+
+        return msgInner;
+    }
+
+
+    /**
+     * 从CommitLog读出消息并还原
+     *
+     * @return 消息已被删除或内容不完整时返回null
+     */
+    private MessageExtBrokerInner lookTimeupMessage(final long offsetPy, final int sizePy) {
+        MessageExt msgExt = this.defaultMessageStore.lookMessageByOffset(offsetPy, sizePy);
+        if (null == msgExt) {
+            log.error("timer message not found, offsetPy: " + offsetPy + ", sizePy: " + sizePy);
+            return null;
+        }
+
+        try {
+            return this.messageTimeup(msgExt);
+        }
+        catch (Exception e) {
+            // msgExt里面的内容不完整，如没有REAL_QID,REAL_TOPIC之类的，无法投递，直接跳过
+            log.error("timer message timeup error, drop it. msgExt=" + msgExt + ", offsetPy=" + offsetPy, e);
+            return null;
+        }
+    }
+
+
+    /**
+     * 投递一条消息，失败时一直重试直到成功或服务停止
+     *
+     * @return 服务停止时返回false
+     */
+    private boolean deliver(final MessageExtBrokerInner msgInner, final ServiceThread caller) {
+        while (!caller.isStopped()) {
+            PutMessageResult putMessageResult = this.defaultMessageStore.putMessage(msgInner);
+            if (putMessageResult != null) {
+                // 已写入CommitLog，包括刷盘或同步Slave超时，不再重试，否则会重复投递
+                if (putMessageResult.isOk()) {
+                    return true;
+                }
+
+                if (PutMessageStatus.MESSAGE_ILLEGAL == putMessageResult.getPutMessageStatus()) {
+                    log.error("timer message illegal, drop it. topic: {}", msgInner.getTopic());
+                    return true;
+                }
+            }
+
+            log.error("timer message time up, but reput it failed, topic: {}, result: {}", msgInner.getTopic(),
+                putMessageResult);
+            try {
+                Thread.sleep(DELAY_FOR_A_PERIOD);
+            }
+            catch (InterruptedException e) {
+                log.warn("deliver timer message interrupted", e);
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 整批投递，批量写入失败时逐条投递<br>
+     * 批量写入要么全部写入，要么一条都不写入，写入失败时逐条投递不会重复
+     */
+    private boolean deliver(final List<MessageExtBrokerInner> batch, final ServiceThread caller) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+
+        if (batch.size() > 1) {
+            PutMessageResult putMessageResult = this.defaultMessageStore.putMessages(batch);
+            if (putMessageResult != null && putMessageResult.isOk()) {
+                batch.clear();
+                return true;
+            }
+        }
+
+        for (MessageExtBrokerInner msgInner : batch) {
+            if (!this.deliver(msgInner, caller)) {
+                return false;
+            }
+        }
+
+        batch.clear();
+        return true;
+    }
+
+    /**
+     * 读取TIMER_TOPIC消费队列，写入时间轮
+     */
+    class EnqueueService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    if (TimerMessageService.this.timerLogTruncated) {
+                        TimerMessageService.this.reputLostTimers(this);
+                    }
+
+                    if (!this.doEnqueue()) {
+                        this.waitForRunning(DELAY_FOR_A_WHILE);
+                    }
+                }
+                catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(DELAY_FOR_A_PERIOD);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        /**
+         * @return 是否处理了消息
+         */
+        private boolean doEnqueue() {
+            ConsumeQueue cq = TimerMessageService.this.defaultMessageStore.findConsumeQueue(TIMER_TOPIC, 0);
+            if (null == cq) {
+                return false;
+            }
+
+            TimerWheel timerWheel = TimerMessageService.this.timerWheel;
+            long offset = timerWheel.getEnqueueOffset();
+            long cqMinOffset = cq.getMinOffsetInQueue();
+            if (offset < cqMinOffset) {
+                log.error("timer enqueue offset invalid. offset=" + offset + ", cqMinOffset=" + cqMinOffset);
+                offset = cqMinOffset;
+                timerWheel.setEnqueueOffset(offset);
+            }
+
+            SelectMappedBufferResult bufferCQ = cq.getIndexBuffer(offset);
+            if (null == bufferCQ) {
+                return false;
+            }
+
+            try {
+                int i = 0;
+                for (; i < bufferCQ.getSize() && !this.isStopped(); i += ConsumeQueue.CQStoreUnitSize) {
+                    long offsetPy = bufferCQ.getByteBuffer().getLong();
+                    int sizePy = bufferCQ.getByteBuffer().getInt();
+                    // 队列里存储的tagsCode实际是投递时间
+                    long deliverTimestamp = bufferCQ.getByteBuffer().getLong();
+
+                    if (!TimerMessageService.this.putTimer(deliverTimestamp, offsetPy, sizePy)) {
+                        MessageExtBrokerInner msgInner =
+                                TimerMessageService.this.lookTimeupMessage(offsetPy, sizePy);
+                        if (msgInner != null && !TimerMessageService.this.deliver(msgInner, this)) {
+                            break;
+                        }
+                    }
+
+                    timerWheel.setEnqueueOffset(offset + (i / ConsumeQueue.CQStoreUnitSize) + 1);
+                }
+
+                return i > 0;
+            }
+            finally {
+                bufferCQ.release();
+            }
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return EnqueueService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 逐秒推进时间轮，投递到期槽位中的消息，并定时刷盘、清理TimerLog
+     */
+    class DequeueService extends ServiceThread {
+        private long lastFlushTimestamp = System.currentTimeMillis();
+
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    if (!this.doDequeue()) {
+                        this.waitForRunning(DELAY_FOR_A_WHILE);
+                    }
+                    this.flushAndClean();
+                }
+                catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(DELAY_FOR_A_PERIOD);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        /**
+         * @return 是否推进了一秒
+         */
+        private boolean doDequeue() {
+            TimerWheel timerWheel = TimerMessageService.this.timerWheel;
+            final long currSecond = timerWheel.getDequeueSecond();
+            TimerWheel.Slot slot = TimerMessageService.this.pollSlot(currSecond);
+            if (null == slot) {
+                return false;
+            }
+
+            final int batchSize = TimerMessageService.this.messageStoreConfig.getTimerDeliverBatchSize();
+            List<MessageExtBrokerInner> batch = new ArrayList<MessageExtBrokerInner>(batchSize);
+            long pos = slot.getLastPos();
+            while (pos >= 0) {
+                SelectMappedBufferResult unit = TimerMessageService.this.timerLog.getUnit(pos);
+                if (null == unit) {
+                    log.error("timer log unit not found, pos: " + pos + ", second: " + currSecond);
+                    break;
+                }
+
+                long prevPos;
+                long deliverTimestamp;
+                long offsetPy;
+                int sizePy;
+                try {
+                    prevPos = unit.getByteBuffer().getLong();
+                    unit.getByteBuffer().getLong();
+                    deliverTimestamp = unit.getByteBuffer().getLong();
+                    offsetPy = unit.getByteBuffer().getLong();
+                    sizePy = unit.getByteBuffer().getInt();
+                }
+                finally {
+                    unit.release();
+                }
+
+                // 超出时间轮范围挂在此槽位的消息，转存到更晚的槽位
+                if (deliverTimestamp / 1000 > currSecond
+                        && TimerMessageService.this.putTimer(deliverTimestamp, offsetPy, sizePy)) {
+                    pos = prevPos;
+                    continue;
+                }
+
+                MessageExtBrokerInner msgInner = TimerMessageService.this.lookTimeupMessage(offsetPy, sizePy);
+                if (msgInner != null) {
+                    batch.add(msgInner);
+                    if (batch.size() >= batchSize && !TimerMessageService.this.deliver(batch, this)) {
+                        return false;
+                    }
+                }
+
+                pos = prevPos;
+            }
+
+            if (!TimerMessageService.this.deliver(batch, this)) {
+                return false;
+            }
+
+            TimerMessageService.this.advanceDequeueSecond(currSecond + 1);
+            return true;
+        }
+
+
+        private void flushAndClean() {
+            long now = System.currentTimeMillis();
+            if (now - this.lastFlushTimestamp < TimerMessageService.this.messageStoreConfig
+                .getFlushDelayOffsetInterval()) {
+                return;
+            }
+            this.lastFlushTimestamp = now;
+
+            TimerMessageService.this.flush();
+
+            // 出队追上当前时间后，超出时间轮范围的TimerLog文件中的记录均已投递或转存
+            TimerWheel timerWheel = TimerMessageService.this.timerWheel;
+            if (timerWheel.getDequeueSecond() * 1000 >= now - DELAY_FOR_A_PERIOD * 60) {
+                long expiredTime = timerWheel.getSlotsTotal() * 1000L + TIMER_LOG_RESERVED_TIME;
+                int deleteCount = TimerMessageService.this.timerLog.deleteExpiredFile(expiredTime);
+                if (deleteCount > 0) {
+                    log.info("delete expired timer log files, count: " + deleteCount);
+                }
+            }
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return DequeueService.class.getSimpleName();
+        }
+    }
+}
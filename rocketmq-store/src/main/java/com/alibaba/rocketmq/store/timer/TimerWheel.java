@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MappedFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+
+/**
+ * 时间轮，每秒一个槽位，槽位记录该秒到期消息在TimerLog中链表的表头<br>
+ * 文件头部记录定时消息的入队及出队进度，槽位大小固定，内存占用与待投递消息数量无关
+ */
+public class TimerWheel {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 槽位大小, time second(long, 8) + last record position(long, 8) + record num(int, 4)
+    public static final int SlotUnitSize = 20;
+    // 文件头部, enqueue offset(long, 8) + dequeue second(long, 8) + slots total(int, 4)，预留一个page
+    private static final int HeaderSize = MappedFile.OS_PAGE_SIZE;
+    private static final int EnqueueOffsetPosition = 0;
+    private static final int DequeueSecondPosition = 8;
+    private static final int SlotsTotalPosition = 16;
+
+    private final int slotsTotal;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer mappedByteBuffer;
+
+
+    public TimerWheel(final String fileName, final int slotsTotal) throws IOException {
+        this.slotsTotal = slotsTotal;
+
+        File file = new File(fileName);
+        MappedFile.ensureDirOK(file.getParent());
+        boolean fileExists = file.exists();
+
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        // 槽位数决定秒到槽位的映射，修改后已有的槽位全部错位，拒绝启动
+        if (fileExists && this.randomAccessFile.length() >= SlotsTotalPosition + 4) {
+            this.randomAccessFile.seek(SlotsTotalPosition);
+            int storedSlotsTotal = this.randomAccessFile.readInt();
+            if (storedSlotsTotal != 0 && storedSlotsTotal != slotsTotal) {
+                this.randomAccessFile.close();
+                throw new IOException("timer wheel slots total mismatch, stored " + storedSlotsTotal + ", config "
+                        + slotsTotal);
+            }
+        }
+        this.fileChannel = this.randomAccessFile.getChannel();
+        this.mappedByteBuffer =
+                this.fileChannel.map(MapMode.READ_WRITE, 0, HeaderSize + (long) slotsTotal * SlotUnitSize);
+        this.mappedByteBuffer.putInt(SlotsTotalPosition, slotsTotal);
+
+        log.info("timer wheel file " + fileName + (fileExists ? " exists" : " not exists") + ", slots total "
+                + slotsTotal);
+    }
+
+
+    /**
+     * @return 该秒对应槽位，槽位已被其他轮次使用时返回空槽位
+     */
+    public Slot getSlot(final long timeSecond) {
+        int position = this.slotPosition(timeSecond);
+        long slotTimeSecond = this.mappedByteBuffer.getLong(position);
+        if (slotTimeSecond != timeSecond) {
+            return new Slot(timeSecond, -1, 0);
+        }
+
+        return new Slot(timeSecond, this.mappedByteBuffer.getLong(position + 8),
+            this.mappedByteBuffer.getInt(position + 16));
+    }
+
+
+    public void putSlot(final long timeSecond, final long lastPos, final int num) {
+        int position = this.slotPosition(timeSecond);
+        this.mappedByteBuffer.putLong(position, timeSecond);
+        this.mappedByteBuffer.putLong(position + 8, lastPos);
+        this.mappedByteBuffer.putInt(position + 16, num);
+    }
+
+
+    private int slotPosition(final long timeSecond) {
+        return HeaderSize + (int) (timeSecond % this.slotsTotal) * SlotUnitSize;
+    }
+
+
+    public long getEnqueueOffset() {
+        return this.mappedByteBuffer.getLong(EnqueueOffsetPosition);
+    }
+
+
+    public void setEnqueueOffset(final long enqueueOffset) {
+        this.mappedByteBuffer.putLong(EnqueueOffsetPosition, enqueueOffset);
+    }
+
+
+    public long getDequeueSecond() {
+        return this.mappedByteBuffer.getLong(DequeueSecondPosition);
+    }
+
+
+    public void setDequeueSecond(final long dequeueSecond) {
+        this.mappedByteBuffer.putLong(DequeueSecondPosition, dequeueSecond);
+    }
+
+
+    public int getSlotsTotal() {
+        return slotsTotal;
+    }
+
+
+    public void flush() {
+        this.mappedByteBuffer.force();
+    }
+
+
+    public void shutdown() {
+        this.flush();
+
+        // unmap mappedByteBuffer
+        MappedFile.clean(this.mappedByteBuffer);
+
+        try {
+            this.fileChannel.close();
+        }
+        catch (IOException e) {
+            log.error("timer wheel shutdown exception", e);
+        }
+    }
+
+    public static class Slot {
+        private final long timeSecond;
+        // 链表表头，即最后写入的记录位置，-1表示没有记录
+        private final long lastPos;
+        private final int num;
+
+
+        public Slot(long timeSecond, long lastPos, int num) {
+            this.timeSecond = timeSecond;
+            this.lastPos = lastPos;
+            this.num = num;
+        }
+
+
+        public long getTimeSecond() {
+            return timeSecond;
+        }
+
+
+        public long getLastPos() {
+            return lastPos;
+        }
+
+
+        public int getNum() {
+            return num;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.util;
+
+/**
+ * 以int哈希值为输入的布隆过滤器，由调用方保证写入与读取之间的可见性<br>
+ * 通过对哈希值再次打散得到两个哈希，组合出多个探测位置
+ */
+public class BloomFilter {
+    private final long[] bits;
+    private final long bitNums;
+    private final int hashNums;
+
+
+    /**
+     * @param expectedInsertions 预计写入个数
+     * @param bitsPerKey         每个元素占用的位数，决定误判率，8位约为2%
+     */
+    public BloomFilter(final int expectedInsertions, final int bitsPerKey) {
+        long bitNums = Math.max(64, (long) expectedInsertions * bitsPerKey);
+        this.bits = new long[(int) ((bitNums + 63) >>> 6)];
+        this.bitNums = (long) this.bits.length << 6;
+        // 最优哈希次数为 bitsPerKey * ln2
+        this.hashNums = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+    }
+
+
+    public void put(final int hash) {
+        long combined = mix(hash);
+        int h1 = (int) combined;
+        int h2 = (int) (combined >>> 32);
+        for (int i = 0; i < this.hashNums; i++) {
+            long index = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bitNums;
+            this.bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+
+    /**
+     * @return false表示一定不存在
+     */
+    public boolean mightContain(final int hash) {
+        long combined = mix(hash);
+        int h1 = (int) combined;
+        int h2 = (int) (combined >>> 32);
+        for (int i = 0; i < this.hashNums; i++) {
+            long index = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bitNums;
+            if ((this.bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 占用内存字节数
+     */
+    public long getSizeInBytes() {
+        return (long) this.bits.length * 8;
+    }
+
+
+    private static long mix(final int hash) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        return h;
+    }
+}
@@ -53,6 +53,16 @@ public interface LibC extends Library {
 
     int MADV_DONTNEED = 4;
 
+    /**
+     * Open for reading and writing.
+     */
+    int O_RDWR = 2;
+
+    /**
+     * Initiate write-out of all dirty pages in the specified range which are not presently under write-out.
+     */
+    int SYNC_FILE_RANGE_WRITE = 2;
+
     /**
      * locks pages in the address range starting at addr and continuing for len bytes. All pages that contain a part of
      * the specified address range are guaranteed to be resident in RAM when the call returns successfully; the pages
@@ -89,4 +99,51 @@ public interface LibC extends Library {
      * @return On success, madvise() returns zero.  On error, it returns -1 and errno is set appropriately.
      */
     int madvise(Pointer var1, NativeLong var2, int var3);
+
+    /**
+     * mincore() returns a vector that indicates whether pages of the calling process's virtual memory are resident
+     * in core (RAM), and so will not cause a disk access (page fault) if referenced.
+     * @param addr Memory address, must be a multiple of the page size.
+     * @param length Length of the memory range.
+     * @param vec One byte per page, the least significant bit is set if the page is resident.
+     * @return On success, mincore() returns zero. On error, -1 is returned, and errno is set appropriately.
+     */
+    int mincore(Pointer addr, NativeLong length, byte[] vec);
+
+    /**
+     * Opens the file specified by pathname.
+     * @param path Path of the file.
+     * @param flags Access mode, e.g. O_RDWR.
+     * @return The new file descriptor, or -1 if an error occurred.
+     */
+    int open(String path, int flags);
+
+    /**
+     * Closes a file descriptor.
+     * @param fd File descriptor to close.
+     * @return Zero on success, -1 on error.
+     */
+    int close(int fd);
+
+    /**
+     * Ensures that disk space is allocated for the file referred to by fd for the bytes in the range starting at
+     * offset and continuing for len bytes. Subsequent writes into the range will not fail because of lack of disk
+     * space, and the file system does not need to allocate blocks while writing.
+     * @param fd File descriptor.
+     * @param offset Start of the range.
+     * @param len Length of the range.
+     * @return Zero on success, or an error number on failure. Note that errno is not set.
+     */
+    int posix_fallocate(int fd, long offset, long len);
+
+    /**
+     * Permits fine control when synchronizing the open file referred to by fd with disk. With SYNC_FILE_RANGE_WRITE
+     * it only starts write-out of the dirty pages in the range and does not wait for it, nor does it flush metadata.
+     * @param fd File descriptor.
+     * @param offset Start of the range.
+     * @param nbytes Length of the range.
+     * @param flags Combination of SYNC_FILE_RANGE_WAIT_BEFORE, SYNC_FILE_RANGE_WRITE and SYNC_FILE_RANGE_WAIT_AFTER.
+     * @return Zero on success, -1 on error.
+     */
+    int sync_file_range(int fd, long offset, long nbytes, int flags);
 }
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * 有界环形队列，多生产者单消费者，入队出队均无锁<br>
+ * 队列满时put阻塞生产者，直到消费者腾出空间，以此向上游施加反压
+ */
+public class MPSCRingBuffer<E> {
+    // 队列满时，生产者等待消费者唤醒的最长时间，防止丢失唤醒
+    private static final long NotFullWaitMillis = 10;
+    private final AtomicReferenceArray<E> buffer;
+    private final int capacity;
+    private final int mask;
+    // 生产者申请到的下一个位置
+    private final AtomicLong tail = new AtomicLong(0);
+    // 消费者下一个读取位置，只有消费者修改
+    private volatile long head = 0;
+    // 因队列满而等待的生产者数
+    private final AtomicInteger waitingProducers = new AtomicInteger(0);
+    private final Object notFullLock = new Object();
+
+
+    /**
+     * @param capacity 向上取整为2的幂
+     */
+    public MPSCRingBuffer(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<E>(size);
+    }
+
+
+    /**
+     * @return 队列已满返回false
+     */
+    public boolean offer(final E e) {
+        for (;;) {
+            long currentTail = this.tail.get();
+            if (currentTail - this.head >= this.capacity) {
+                return false;
+            }
+
+            if (this.tail.compareAndSet(currentTail, currentTail + 1)) {
+                this.buffer.lazySet((int) (currentTail & this.mask), e);
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * 入队，队列满时阻塞直到消费者腾出空间
+     *
+     * @return 等待的次数，0表示未被反压
+     */
+    public int put(final E e) throws InterruptedException {
+        if (this.offer(e)) {
+            return 0;
+        }
+
+        int waitTimes = 0;
+        this.waitingProducers.incrementAndGet();
+        try {
+            synchronized (this.notFullLock) {
+                while (!this.offer(e)) {
+                    waitTimes++;
+                    this.notFullLock.wait(NotFullWaitMillis);
+                }
+            }
+        }
+        finally {
+            this.waitingProducers.decrementAndGet();
+        }
+
+        return waitTimes;
+    }
+
+
+    /**
+     * 只能由消费者线程调用
+     *
+     * @return 队列为空，或者队头元素尚未写入完成时返回null
+     */
+    public E poll() {
+        final long currentHead = this.head;
+        final int index = (int) (currentHead & this.mask);
+        E e = this.buffer.get(index);
+        if (null == e) {
+            return null;
+        }
+
+        this.buffer.lazySet(index, null);
+        this.head = currentHead + 1;
+
+        if (this.waitingProducers.get() > 0) {
+            synchronized (this.notFullLock) {
+                this.notFullLock.notifyAll();
+            }
+        }
+
+        return e;
+    }
+
+
+    /**
+     * 包含已申请位置但尚未写入完成的元素
+     */
+    public boolean isEmpty() {
+        return this.tail.get() == this.head;
+    }
+
+
+    public int size() {
+        long size = this.tail.get() - this.head;
+        return (int) Math.max(0, Math.min(size, this.capacity));
+    }
+
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.config.FlushDiskType;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 写消息路径的JMH基准，配合GC profiler观察每条消息的内存分配（gc.alloc.rate.norm）<br>
+ * 不属于单元测试，手动运行：main方法或 java -jar benchmarks.jar CommitLogEncodeBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommitLogEncodeBenchmark {
+    private static final int QueueNums = 16;
+    private DefaultMessageStore messageStore;
+    private CommitLog commitLog;
+    private TopicQueueTable topicQueueTable;
+    private SocketAddress bornHost;
+    private SocketAddress storeHost;
+    private byte[] body;
+    private int queueId = 0;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        String rootDir = System.getProperty("java.io.tmpdir") + File.separator + "jmh_store_" + System.nanoTime();
+        messageStoreConfig.setStorePathRootDir(rootDir);
+        messageStoreConfig.setStorePathCommitLog(rootDir + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024 * 256);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(ConsumeQueue.CQStoreUnitSize * 1024 * 1024);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.ASYNC_FLUSH);
+
+        this.messageStore = new DefaultMessageStore(messageStoreConfig, null);
+        if (!this.messageStore.load()) {
+            throw new IllegalStateException("load message store failed");
+        }
+        this.messageStore.start();
+
+        this.commitLog = this.messageStore.getCommitLog("BenchmarkTopic", 0);
+        this.topicQueueTable = new TopicQueueTable(1024, messageStoreConfig.getMaxQueueNumsPerTopic());
+        this.bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        this.storeHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 10911);
+        this.body = new byte[128];
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.messageStore.shutdown();
+        this.messageStore.destroy();
+    }
+
+
+    private MessageExtBrokerInner buildMessage() {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("BenchmarkTopic");
+        msg.setTags("TagA");
+        msg.setKeys("OrderID001");
+        msg.setBody(this.body);
+        msg.setQueueId(this.queueId++ % QueueNums);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setBornHost(this.bornHost);
+        msg.setStoreHost(this.storeHost);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        msg.setTagsCode(MessageExtBrokerInner.tagsString2tagsCode(null, msg.getTags()));
+        return msg;
+    }
+
+
+    /**
+     * 消息编码，结果包含构造消息对象本身的分配
+     */
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        blackhole.consume(this.commitLog.encode(this.buildMessage()));
+    }
+
+
+    @Benchmark
+    public long topicQueueTable() {
+        int id = this.queueId++ % QueueNums;
+        long offset = this.topicQueueTable.get("BenchmarkTopic", id);
+        this.topicQueueTable.put("BenchmarkTopic", id, offset + 1);
+        return offset;
+    }
+
+
+    /**
+     * 异步刷盘下完整的写消息路径
+     */
+    @Benchmark
+    public void putMessage(Blackhole blackhole) {
+        blackhole.consume(this.messageStore.putMessage(this.buildMessage()));
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()//
+            .include(CommitLogEncodeBenchmark.class.getSimpleName())//
+            .addProfiler(GCProfiler.class)//
+            .forks(1)//
+            .build();
+        new Runner(options).run();
+    }
+}
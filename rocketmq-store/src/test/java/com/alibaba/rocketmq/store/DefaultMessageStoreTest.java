@@ -1,62 +1,34 @@
 package com.alibaba.rocketmq.store;
 
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
 import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import org.junit.AfterClass;
-import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 
 /**
  * @author shijia.wxr<vintage.wang@gmail.com>
  */
-public class DefaultMessageStoreTest {
-    // 队列个数
-    private static int QUEUE_TOTAL = 100;
-    // 发往哪个队列
-    private static AtomicInteger QueueId = new AtomicInteger(0);
-    // 发送主机地址
-    private static SocketAddress BornHost;
-    // 存储主机地址
-    private static SocketAddress StoreHost;
-    // 消息体
-    private static byte[] MessageBody;
-
-    private static final String StoreMessage = "Once, there was a chance for me!";
-
-
-    public MessageExtBrokerInner buildMessage() {
-        MessageExtBrokerInner msg = new MessageExtBrokerInner();
-        msg.setTopic("AAA");
-        msg.setTags("TAG1");
-        msg.setKeys("Hello");
-        msg.setBody(MessageBody);
-        msg.setKeys(String.valueOf(System.currentTimeMillis()));
-        msg.setQueueId(Math.abs(QueueId.getAndIncrement()) % QUEUE_TOTAL);
-        msg.setSysFlag(4);
-        msg.setBornTimestamp(System.currentTimeMillis());
-        msg.setStoreHost(StoreHost);
-        msg.setBornHost(BornHost);
-
-        return msg;
-    }
-
-
-    @BeforeClass
-    public static void setUpBeforeClass() throws Exception {
-        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
-        BornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
-
-    }
-
-
+public class DefaultMessageStoreTest extends StoreTestBase {
     @AfterClass
     public static void tearDownAfterClass() throws Exception {
     }
@@ -170,4 +142,1107 @@ public class DefaultMessageStoreTest {
         master.destroy();
         System.out.println("================================================================");
     }
+
+
+    @Test
+    public void test_write_read_with_transient_store_pool() throws Exception {
+        long totalMsgs = 1000;
+        // 每个物理映射文件 8K
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 8, 1024 * 4);
+        // 开启写缓冲区
+        messageStoreConfig.setTransientStorePoolEnable(true);
+        messageStoreConfig.setTransientStorePoolSize(8);
+
+        MessageStore master = startStore(messageStoreConfig);
+        long maxPhyOffset = 0;
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            // 非事务消息，才会进入消费队列
+            msg.setSysFlag(0);
+            PutMessageResult result = master.putMessage(msg);
+            assertTrue(result.isOk());
+            maxPhyOffset = result.getAppendMessageResult().getWroteOffset()
+                    + result.getAppendMessageResult().getWroteBytes();
+        }
+
+        // 等待写缓冲区转移到文件并分发到消费队列
+        for (int i = 0; i < 100 && (master.getMaxPhyOffset() < maxPhyOffset
+                || master.getMaxOffsetInQueue(Topic, 0) < totalMsgs); i++) {
+            Thread.sleep(100);
+        }
+
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, i, 1, null);
+            assertTrue(result != null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            result.release();
+        }
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_put_messages_batch() throws Exception {
+        final int batchSize = 32;
+        final int batchTotal = 100;
+        // 每个物理映射文件 8K，当前文件放不下时整批写入下一个文件
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 8, 1024 * 4);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+
+        MessageStore master = startStore(messageStoreConfig);
+        for (int i = 0; i < batchTotal; i++) {
+            List<MessageExtBrokerInner> msgs = new ArrayList<MessageExtBrokerInner>(batchSize);
+            for (int j = 0; j < batchSize; j++) {
+                MessageExtBrokerInner msg = buildMessage();
+                // 非事务消息，才会进入消费队列
+                msg.setSysFlag(0);
+                msgs.add(msg);
+            }
+
+            PutMessageResult result = master.putMessages(msgs);
+            assertTrue(result.isOk());
+            assertTrue(result.getAppendMessageResult().getMsgNum() == batchSize);
+            // 同一队列内逻辑offset连续
+            assertTrue(result.getAppendMessageResult().getLogicOffset() == (long) i * batchSize);
+        }
+
+        final long totalMsgs = (long) batchSize * batchTotal;
+        waitForConsumeQueue(master, 0, totalMsgs);
+
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, i, 1, null);
+            assertTrue(result != null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            result.release();
+        }
+
+        // 整批超过一个文件，一条都不写入
+        List<MessageExtBrokerInner> msgs = new ArrayList<MessageExtBrokerInner>();
+        for (int j = 0; j < batchSize * 4; j++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            msgs.add(msg);
+        }
+        final long maxPhyOffset = master.getMaxPhyOffset();
+        PutMessageResult result = master.putMessages(msgs);
+        assertTrue(result.getPutMessageStatus() == PutMessageStatus.MESSAGE_ILLEGAL);
+        assertTrue(master.getMaxPhyOffset() == maxPhyOffset);
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_write_read_with_commit_log_partition() throws Exception {
+        final int queueTotal = 8;
+        final long msgsPerQueue = 200;
+
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 8, 1024 * 4);
+        // 每个目录一个CommitLog分区
+        String storePath = messageStoreConfig.getStorePathRootDir() + File.separator;
+        messageStoreConfig.setStorePathCommitLog(storePath + "commitlog0," + storePath + "commitlog1,"
+                + storePath + "commitlog2");
+        messageStoreConfig.setCommitLogPartitionEnable(true);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+        assertTrue(master.getCommitLogPartitions().length == 3);
+        for (long i = 0; i < msgsPerQueue * queueTotal; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            // 非事务消息，才会进入消费队列
+            msg.setSysFlag(0);
+            msg.setQueueId((int) (i % queueTotal));
+            msg.setKeys("KEY_" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            PutMessageResult result = master.putMessage(msg);
+            assertTrue(result.isOk());
+            // 消息写入队列固定的分区
+            long wroteOffset = result.getAppendMessageResult().getWroteOffset();
+            assertTrue(master.getCommitLog(wroteOffset) == master.getCommitLog("AAA", msg.getQueueId()));
+        }
+
+        waitForConsumeQueue(master, queueTotal - 1, msgsPerQueue);
+        master.shutdown();
+
+        // 重启后各分区独立恢复，消息仍然可读
+        master = startStore(messageStoreConfig);
+        for (int queueId = 0; queueId < queueTotal; queueId++) {
+            assertTrue(master.getMaxOffsetInQueue("AAA", queueId) == msgsPerQueue);
+            for (long i = 0; i < msgsPerQueue; i++) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", queueId, i, 1, null);
+                assertTrue(result != null);
+                assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+                result.release();
+            }
+        }
+
+        // 各分区的Offset区间不同，后写入的低分区消息也要建索引
+        for (long i = 0; i < msgsPerQueue * queueTotal; i++) {
+            QueryMessageResult queryResult = master.queryMessage("AAA", "KEY_" + i, 1, 0, Long.MAX_VALUE);
+            for (int j = 0; j < 50 && queryResult.getMessageBufferList().isEmpty(); j++) {
+                Thread.sleep(100);
+                queryResult = master.queryMessage("AAA", "KEY_" + i, 1, 0, Long.MAX_VALUE);
+            }
+            assertTrue(queryResult.getMessageBufferList().size() == 1);
+            queryResult.release();
+        }
+
+        // 最大最小offset按所有分区计算，不属于任何分区的offset找不到CommitLog
+        long maxPhyOffset = 0;
+        for (CommitLog partition : master.getCommitLogPartitions()) {
+            maxPhyOffset = Math.max(maxPhyOffset, partition.getMaxOffset());
+        }
+        assertTrue(master.getMaxPhyOffset() == maxPhyOffset);
+        assertTrue(master.getMinPhyOffset() == 0);
+        long span = CommitLog.partitionOffsetSpan(messageStoreConfig.getMappedFileSizeCommitLog());
+        assertTrue(master.getCommitLog(span * 3) == null);
+        assertTrue(master.lookMessageByOffset(span * 3) == null);
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 修改分区目录后已有消息无法正确定位，拒绝启动
+        messageStoreConfig.setStorePathCommitLog(storePath + "commitlog0," + storePath + "commitlog1");
+        assertFalse(new DefaultMessageStore(messageStoreConfig, null).load());
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_put_message_async() throws Exception {
+        final int totalMsgs = 1000;
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 8, 1024 * 4);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+
+        MessageStore master = startStore(messageStoreConfig);
+
+        // 先全部发出，再统一等待刷盘确认
+        final AtomicInteger callbackOK = new AtomicInteger(0);
+        List<PutMessageFuture> futures = new ArrayList<PutMessageFuture>(totalMsgs);
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            PutMessageFuture future = master.putMessageAsync(msg);
+            future.addCallback(new PutMessageCallback() {
+                @Override
+                public void operationComplete(PutMessageResult putMessageResult) {
+                    if (putMessageResult.isOk()) {
+                        callbackOK.incrementAndGet();
+                    }
+                }
+            });
+            futures.add(future);
+        }
+
+        for (PutMessageFuture future : futures) {
+            PutMessageResult result = future.waitForResult(5000);
+            assertTrue(result != null);
+            assertTrue(result.isOk());
+        }
+        assertTrue(callbackOK.get() == totalMsgs);
+
+        waitForConsumeQueue(master, 0, totalMsgs);
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, i, 1, null);
+            assertTrue(result != null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            result.release();
+        }
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_recover_abnormally_concurrently() throws Exception {
+        final int queueTotal = 4;
+        final long msgsPerQueue = 200;
+
+        // 每个物理映射文件 8K，产生多个已封闭的文件
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 8, 1024 * 4);
+        messageStoreConfig.setRecoverConcurrently(true);
+        messageStoreConfig.setRecoverThreadPoolNums(4);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+        for (long i = 0; i < msgsPerQueue * queueTotal; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            // 非事务消息，才会进入消费队列
+            msg.setSysFlag(0);
+            msg.setQueueId((int) (i % queueTotal));
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        waitForConsumeQueue(master, queueTotal - 1, msgsPerQueue);
+        master.shutdown();
+
+        // 模拟异常退出
+        File abortFile = new File(StorePathConfigHelper.getAbortFile(messageStoreConfig.getStorePathRootDir()));
+        assertTrue(abortFile.createNewFile());
+
+        master = startStore(messageStoreConfig);
+        for (int queueId = 0; queueId < queueTotal; queueId++) {
+            assertTrue(master.getMaxOffsetInQueue("AAA", queueId) == msgsPerQueue);
+            for (long i = 0; i < msgsPerQueue; i++) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", queueId, i, 1, null);
+                assertTrue(result != null);
+                assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+                result.release();
+            }
+        }
+
+        // 各阶段恢复耗时
+        assertTrue(master.getStoreRecoverStats().getPhaseCost("recoverCommitLogAbnormally") >= 0);
+        HashMap<String, String> runningStats = new HashMap<String, String>();
+        master.getStoreRecoverStats().buildRunningStats(runningStats);
+        assertTrue(runningStats.containsKey("recoverTotalCost"));
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_slave_reput_wakeup() throws Exception {
+        final long totalMsgs = 100;
+        MessageStoreConfig masterConfig = buildStoreConfig(1024 * 64, 1024 * 4);
+
+        MessageStoreConfig slaveConfig = buildStoreConfig(1024 * 64, 1024 * 4);
+        slaveConfig.setBrokerRole(BrokerRole.SLAVE);
+        // 兜底轮询间隔远大于等待上限，追平只能来自追加数据后的唤醒
+        slaveConfig.setReputMessageInterval(1000 * 60);
+        String slaveRootDir = masterConfig.getStorePathRootDir() + "_slave";
+        slaveConfig.setStorePathRootDir(slaveRootDir);
+        slaveConfig.setStorePathCommitLog(slaveRootDir + File.separator + "commitlog");
+
+        DefaultMessageStore master = startStore(masterConfig);
+        DefaultMessageStore slave = startStore(slaveConfig);
+
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            // 非事务消息，才会进入消费队列
+            msg.setSysFlag(0);
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        // 模拟HA复制，数据追加到Slave后立即唤醒分发，不必等待兜底的轮询间隔
+        SelectMappedBufferResult data = master.getCommitLogData(0);
+        assertTrue(data != null);
+        byte[] bytes = new byte[data.getSize()];
+        data.getByteBuffer().get(bytes);
+        data.release();
+        // 等待上限远小于兜底轮询间隔，又足够宽松，避免机器负载高时误报
+        final long beginTime = System.currentTimeMillis();
+        assertTrue(slave.appendToCommitLog(0, bytes));
+        while ((slave.getMaxOffsetInQueue("AAA", 0) < totalMsgs || slave.getReputBehindBytes() > 0)
+                && System.currentTimeMillis() - beginTime < 10000) {
+            Thread.sleep(1);
+        }
+        assertTrue(slave.getMaxOffsetInQueue("AAA", 0) == totalMsgs);
+        assertTrue(slave.getReputBehindBytes() == 0);
+        assertTrue(slave.getReputBehindMillis() == 0);
+        assertTrue(master.getReputBehindBytes() == 0);
+
+        slave.shutdown();
+        slave.destroy();
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_dispatch_sharded() throws Exception {
+        final int queueTotal = 16;
+        final long msgsPerQueue = 500;
+
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, 1024 * 16);
+        messageStoreConfig.setMaxHashSlotNum(1000);
+        messageStoreConfig.setMaxIndexNum(1000 * 10);
+        // 缓冲区很小，写入时会被反压
+        messageStoreConfig.setPutMsgIndexHighWater(64);
+        messageStoreConfig.setDispatchThreadNums(4);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+        for (long i = 0; i < msgsPerQueue * queueTotal; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            // 非事务消息，才会进入消费队列
+            msg.setSysFlag(0);
+            msg.setQueueId((int) (i % queueTotal));
+            msg.setKeys("KEY_" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msg.setStoreTimestamp(System.currentTimeMillis());
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        for (int i = 0; i < 100 && master.getDispatchMessageService().hasRemainMessage(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(!master.getDispatchMessageService().hasRemainMessage());
+        assertTrue(master.getStoreCheckpoint().getLogicsMsgTimestamp() > 0);
+
+        for (int queueId = 0; queueId < queueTotal; queueId++) {
+            assertTrue(master.getMaxOffsetInQueue("AAA", queueId) == msgsPerQueue);
+            for (long i = 0; i < msgsPerQueue; i++) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", queueId, i, 1, null);
+                assertTrue(result != null);
+                assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+                result.release();
+            }
+        }
+
+        // 索引仍按写入顺序构建
+        for (int i = 0; i < 50 && master.queryMessage("AAA", "KEY_" + (msgsPerQueue * queueTotal - 1), 1, 0,
+            Long.MAX_VALUE).getMessageBufferList().isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        QueryMessageResult queryResult = master.queryMessage("AAA", "KEY_0", 1, 0, Long.MAX_VALUE);
+        assertTrue(queryResult.getMessageBufferList().size() == 1);
+        queryResult.release();
+        queryResult = master.queryMessage("AAA", "KEY_" + (msgsPerQueue * queueTotal - 1), 1, 0, Long.MAX_VALUE);
+        assertTrue(queryResult.getMessageBufferList().size() == 1);
+        queryResult.release();
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_offset_by_time_with_time_index() throws Exception {
+        final int totalMsgs = 3000;
+        // 每个逻辑文件存100条，产生多个文件
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        messageStoreConfig.setConsumeQueueTimeIndexInterval(16);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        long[] storeTimestamps = new long[totalMsgs];
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            PutMessageResult result = master.putMessage(msg);
+            assertTrue(result.isOk());
+            storeTimestamps[i] = result.getAppendMessageResult().getStoreTimestamp();
+            // 让消息的存储时间分散开
+            if (i % 20 == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        waitForConsumeQueue(master, 0, totalMsgs);
+        assertTrue(master.getMaxOffsetInQueue("AAA", 0) == totalMsgs);
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < totalMsgs; i += 37) {
+                long offset = master.getOffsetInQueueByTime("AAA", 0, storeTimestamps[i]);
+                assertTrue(offset >= 0 && offset < totalMsgs);
+                assertTrue(storeTimestamps[(int) offset] == storeTimestamps[i]);
+            }
+            assertTrue(master.getOffsetInQueueByTime("AAA", 0, storeTimestamps[0] - 1000) == 0);
+            assertTrue(master.getOffsetInQueueByTime("AAA", 0, Long.MAX_VALUE) == totalMsgs - 1);
+
+            // 重启后从时间索引文件恢复
+            if (0 == round) {
+                master.shutdown();
+                master = startStore(messageStoreConfig);
+            }
+        }
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_get_message_skip_by_tag_filter() throws Exception {
+        final int totalMsgs = 3000;
+        // 每个逻辑文件存100条，过滤块跨越多个文件
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        messageStoreConfig.setConsumeQueueTagFilterBlockSize(64);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        int rareMsgs = 0;
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            // 只有少量消息带有订阅的Tag
+            if (i % 1000 == 500) {
+                msg.setTags("RARE");
+                rareMsgs++;
+            }
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msg.setTagsCode(MessageExtBrokerInner.tagsString2tagsCode(null, msg.getTags()));
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        waitForConsumeQueue(master, 0, totalMsgs);
+        assertTrue(master.getMaxOffsetInQueue("AAA", 0) == totalMsgs);
+
+        SubscriptionData subscriptionData = new SubscriptionData("AAA", "RARE");
+        subscriptionData.getTagsSet().add("RARE");
+        subscriptionData.getCodeSet().add("RARE".hashCode());
+
+        for (int round = 0; round < 2; round++) {
+            long skippedBefore = master.getStoreStatsService().getGetMessageSkippedByTagFilter().get();
+            int found = 0;
+            int pullTimes = 0;
+            long offset = 0;
+            while (offset < totalMsgs) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, subscriptionData);
+                assertTrue(result.getNextBeginOffset() > offset);
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msgExt = MessageDecoder.decode(byteBuffer);
+                    assertTrue("RARE".equals(msgExt.getTags()));
+                    found++;
+                }
+                result.release();
+                offset = result.getNextBeginOffset();
+                pullTimes++;
+            }
+
+            assertTrue(found == rareMsgs);
+            // 不跳过时每次拉取最多读到逻辑文件末尾，需要拉取 totalMsgs / 100 次
+            assertTrue(pullTimes < totalMsgs / 100);
+            assertTrue(master.getStoreStatsService().getGetMessageSkippedByTagFilter().get() > skippedBefore);
+
+            // 重启后过滤器在拉消息时重建
+            if (0 == round) {
+                master.shutdown();
+                master = startStore(messageStoreConfig);
+            }
+        }
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_get_message_filter_by_consume_queue_ext() throws Exception {
+        final int totalMsgs = 500;
+        // 每个逻辑文件存100条，扩展文件随之切分
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        messageStoreConfig.setConsumeQueueExtProperties("region, env");
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        int matchedMsgs = 0;
+        int zoneMatchedMsgs = 0;
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            msg.putUserProperty("region", i % 3 == 0 ? "hz" : "sh");
+            if (i % 2 == 0) {
+                msg.putUserProperty("env", "prod");
+            }
+            // zone没有记录在扩展文件中
+            msg.putUserProperty("zone", i % 5 == 0 ? "z1" : "z2");
+            if (i % 3 == 0 && i % 2 == 0) {
+                matchedMsgs++;
+            }
+            if (i % 3 == 0 && i % 5 == 0) {
+                zoneMatchedMsgs++;
+            }
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        waitForConsumeQueue(master, 0, totalMsgs);
+        assertTrue(master.getMaxOffsetInQueue("AAA", 0) == totalMsgs);
+
+        SubscriptionData subscriptionData = new SubscriptionData("AAA", SubscriptionData.SUB_ALL);
+        subscriptionData.getPropertyFilter().put("region", "hz");
+        subscriptionData.getPropertyFilter().put("env", "prod");
+
+        for (int round = 0; round < 2; round++) {
+            int found = 0;
+            long offset = 0;
+            while (offset < totalMsgs) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, subscriptionData);
+                assertTrue(result.getNextBeginOffset() > offset);
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msgExt = MessageDecoder.decode(byteBuffer);
+                    assertTrue("hz".equals(msgExt.getUserProperty("region")));
+                    assertTrue("prod".equals(msgExt.getUserProperty("env")));
+                    found++;
+                }
+                result.release();
+                offset = result.getNextBeginOffset();
+            }
+            assertTrue(found == matchedMsgs);
+
+            // 扩展文件无法判断的属性，按CommitLog中的属性值过滤
+            SubscriptionData zoneSubscription = new SubscriptionData("AAA", SubscriptionData.SUB_ALL);
+            zoneSubscription.getPropertyFilter().put("region", "hz");
+            zoneSubscription.getPropertyFilter().put("zone", "z1");
+            found = 0;
+            offset = 0;
+            while (offset < totalMsgs) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, zoneSubscription);
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msgExt = MessageDecoder.decode(byteBuffer);
+                    assertTrue("z1".equals(msgExt.getUserProperty("zone")));
+                    found++;
+                }
+                result.release();
+                offset = result.getNextBeginOffset();
+            }
+            assertTrue(found == zoneMatchedMsgs);
+
+            // 重启后从扩展文件恢复
+            if (0 == round) {
+                master.shutdown();
+                master = startStore(messageStoreConfig);
+            }
+        }
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_compacted_topic() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        messageStoreConfig.setCompactedTopics("AAA");
+        // 测试中手动触发压缩
+        messageStoreConfig.setCompactionInterval(1000 * 3600);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        // 第一批200条，10个KEYS；第二批50条，覆盖其中5个KEYS；第三批20条没有KEYS
+        this.putKeyedMessages(master, 0, 200, 10);
+        assertTrue(master.getCompactionService().compact() == 200);
+        this.putKeyedMessages(master, 200, 50, 5);
+        assertTrue(master.getCompactionService().compact() == 50);
+        assertTrue(master.getMinOffsetInQueue("AAA", 0) == 190);
+        this.putKeyedMessages(master, 250, 20, 0);
+        assertTrue(master.getCompactionService().compact() == 20);
+
+        // 被覆盖的5条未达到重写比例，新的存活消息只追加在后面
+        HashMap<String, String> stats = new HashMap<String, String>();
+        master.getCompactionService().buildRunningStats(stats);
+        assertTrue(stats.get("compactedMessageNums").equals("35"));
+
+        messageStoreConfig.setCompactionDirtyRatio(10);
+        assertTrue(master.getCompactionService().compact() == 0);
+        stats.clear();
+        master.getCompactionService().buildRunningStats(stats);
+        assertTrue(stats.get("compactedMessageNums").equals("30"));
+        assertTrue(master.getMinOffsetInQueue("AAA", 0) == 195);
+
+        for (int round = 0; round < 2; round++) {
+            HashMap<String, Long> latest = new HashMap<String, Long>();
+            int keyless = 0;
+            long offset = master.getMinOffsetInQueue("AAA", 0);
+            while (offset < 270) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 4, null);
+                assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msgExt = MessageDecoder.decode(byteBuffer);
+                    if (null == msgExt.getKeys()) {
+                        assertTrue(msgExt.getQueueOffset() == 250 + keyless++);
+                    }
+                    else {
+                        assertTrue(latest.put(msgExt.getKeys(), msgExt.getQueueOffset()) == null);
+                    }
+                }
+                result.release();
+                offset = result.getNextBeginOffset();
+            }
+
+            // 每个KEYS只剩最新的一条，没有KEYS的消息全部保留
+            assertTrue(latest.size() == 10);
+            for (int i = 0; i < 10; i++) {
+                assertTrue(latest.get("key" + i) == (i < 5 ? 245 + i : 190 + i));
+            }
+            assertTrue(keyless == 20);
+
+            // 重启后从checkpoint加载压缩视图
+            if (0 == round) {
+                master.shutdown();
+                master = startStore(messageStoreConfig);
+            }
+        }
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_consume_queue_lazy_map_and_unmap() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        // 1000条消息，消费队列共10个文件
+        this.putKeyedMessages(master, 0, 1000, 10);
+        master.shutdown();
+
+        // 重启后只有恢复过程访问到的文件被映射
+        master = startStore(messageStoreConfig);
+        List<MappedFile> candidates = new ArrayList<MappedFile>();
+        master.findConsumeQueue("AAA", 0).collectUnmapCandidates(candidates);
+        assertTrue(candidates.size() < 9);
+
+        for (int round = 0; round < 2; round++) {
+            // 读取全部消息，所有文件都被映射
+            long offset = 0;
+            while (offset < 1000) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, null);
+                assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    assertTrue(MessageDecoder.decode(byteBuffer).getQueueOffset() == offset++);
+                }
+                result.release();
+            }
+
+            candidates.clear();
+            master.findConsumeQueue("AAA", 0).collectUnmapCandidates(candidates);
+            assertTrue(candidates.size() == 9);
+
+            // 上限只针对消费队列文件，CommitLog的映射不计入
+            long mappedVirtualMemory = master.findConsumeQueue("AAA", 0).getMappedVirtualMemory();
+            assertTrue(mappedVirtualMemory == ConsumeQueue.CQStoreUnitSize * 100 * 10);
+            assertTrue(MappedFile.getTotalMappedVirtualMemory() > mappedVirtualMemory);
+            assertTrue(master.getUnmapIdleConsumeQueueService().unmapIdleFiles(mappedVirtualMemory) == 0);
+
+            // 上限为0时解除所有空闲文件的映射，正在写入的最后一个文件保留
+            assertTrue(master.getUnmapIdleConsumeQueueService().unmapIdleFiles(0) >= 9);
+            candidates.clear();
+            master.findConsumeQueue("AAA", 0).collectUnmapCandidates(candidates);
+            assertTrue(candidates.isEmpty());
+        }
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_get_message_cold_read() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        // 所有消息都按冷数据处理
+        messageStoreConfig.setAccessMessageInMemoryMaxRatio(0);
+        messageStoreConfig.setColdReadByFileChannelEnable(true);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        this.putKeyedMessages(master, 0, 200, 10);
+
+        long offset = 0;
+        while (offset < 200) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            for (SelectMappedBufferResult selectResult : result.getMessageMappedList()) {
+                // 读到堆内存，不持有文件引用
+                assertTrue(selectResult.getMappedFile() == null);
+                assertTrue(!selectResult.getByteBuffer().isDirect());
+            }
+            for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                MessageExt msgExt = MessageDecoder.decode(byteBuffer);
+                assertTrue(msgExt.getQueueOffset() == offset++);
+                assertTrue(msgExt.getKeys().equals("key" + (msgExt.getQueueOffset() % 10)));
+            }
+            result.release();
+        }
+
+        assertTrue(master.getStoreStatsService().getGetMessageColdReadCount().get() == 200);
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_page_cache_residency_tracker() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        messageStoreConfig.setPageCacheResidencySampleInterval(1000 * 3600);
+        // 按内存比例估算时所有消息都在内存中，不在内存中的消息每次最多拉4条
+        messageStoreConfig.setAccessMessageInMemoryMaxRatio(100);
+        messageStoreConfig.setMaxTransferCountOnMessageInDisk(4);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        this.putKeyedMessages(master, 0, 100, 10);
+        PageCacheResidencyTracker tracker = master.getPageCacheResidencyTracker();
+        assertTrue(tracker.isAvailable());
+        tracker.sample();
+        // 采样之后写入的消息刚进入Pagecache，同样按在内存中处理
+        this.putKeyedMessages(master, 100, 100, 10);
+
+        // 采样之后写入的消息不会被当作不在内存中，每批按在内存中的上限拉取，一次拉取不跨消费队列文件
+        CommitLog commitLog = master.getCommitLog("AAA", 0);
+        final long unitsPerCqFile = messageStoreConfig.getMappedFileSizeConsumeQueue() / ConsumeQueue.CQStoreUnitSize;
+        long offset = 100;
+        while (offset < 200) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            for (SelectMappedBufferResult selectResult : result.getMessageMappedList()) {
+                assertTrue(commitLog.checkResident(selectResult.getStartOffset(), selectResult.getSize()) == 1);
+            }
+            assertTrue(result.getMessageCount()
+                    == Math.min(Math.min(32, 200 - offset), unitsPerCqFile - offset % unitsPerCqFile));
+            offset = result.getNextBeginOffset();
+            result.release();
+        }
+        assertTrue(tracker.getHitRatio("AAA") == 1);
+
+        // 采样之前写入的消息按采样结果判断，从不在内存中的页开始的批次最多拉取4条
+        offset = 0;
+        while (offset < 100) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            SelectMappedBufferResult first = result.getMessageMappedList().get(0);
+            if (commitLog.checkResident(first.getStartOffset(), first.getSize()) == 0) {
+                assertTrue(result.getMessageCount() <= messageStoreConfig.getMaxTransferCountOnMessageInDisk());
+            }
+            assertTrue(result.getMessageCount()
+                    <= Math.min(32, unitsPerCqFile - offset % unitsPerCqFile));
+            offset = result.getNextBeginOffset();
+            result.release();
+        }
+        HashMap<String, String> stats = new HashMap<String, String>();
+        tracker.buildRunningStats(stats);
+        assertTrue(stats.get("pageCacheHitRatio").startsWith("AAA:"));
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_read_ahead_for_message_in_disk() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        // 所有消息都按在磁盘中处理
+        messageStoreConfig.setAccessMessageInMemoryMaxRatio(0);
+        messageStoreConfig.setMaxTransferCountOnMessageInDisk(8);
+        messageStoreConfig.setReadAheadBytesOnMessageInDisk(1024 * 64);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        this.putKeyedMessages(master, 0, 100, 10);
+
+        GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, 0, 32, null);
+        assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+        assertTrue(result.getMessageCount() == 8);
+        result.release();
+
+        // 预读到消费位置之后，不超过CommitLog末尾
+        ReadAheadService readAheadService = master.getReadAheadService();
+        readAheadService.readAhead();
+        long readAheadBytes = readAheadService.getReadAheadBytes();
+        assertTrue(readAheadBytes > 0 && readAheadBytes <= 1024 * 64);
+        assertTrue(readAheadBytes < master.getCommitLog("AAA", 0).getMaxOffset());
+
+        // 消费位置没有前进，不重复预读
+        assertTrue(readAheadService.readAhead() == 0);
+
+        HashMap<String, String> stats = new HashMap<String, String>();
+        readAheadService.buildRunningStats(stats);
+        assertTrue(stats.get("readAheadCursorNums").equals("1"));
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_commit_log_incremental_delete() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 64, ConsumeQueue.CQStoreUnitSize * 100);
+        messageStoreConfig.setCommitLogIncrementalDeleteEnable(true);
+        messageStoreConfig.setDeleteTruncateChunkSize(1024 * 16);
+        messageStoreConfig.setDeleteTruncateBytesPerSecond(1024 * 1024);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        this.putKeyedMessages(master, 0, 1000, 10);
+
+        CommitLog commitLog = master.getCommitLog("AAA", 0);
+        int fileNums = commitLog.getMappedFileQueue().getMappedFiles().size();
+        assertTrue(fileNums >= 3);
+        String firstFileName = commitLog.getMappedFileQueue().getMappedFiles().get(0).getFileName();
+        String lastExpiredFileName = commitLog.getMappedFileQueue().getMappedFiles().get(fileNums - 2).getFileName();
+
+        // 每次只摘下一个文件，最后一个文件不删除
+        assertTrue(commitLog.hasExpiredFile(0));
+        assertTrue(commitLog.deleteExpiredFile(0, 0, 1000, false) == 1);
+        assertTrue(commitLog.deleteExpiredFile(0, 0, 1000, true) == fileNums - 2);
+        assertTrue(commitLog.deleteExpiredFile(0, 0, 1000, true) == 0);
+        assertTrue(commitLog.getMinOffset() == (long) (fileNums - 1) * 1024 * 64);
+
+        FileReclaimService fileReclaimService = master.getFileReclaimService();
+        File lastExpiredFile = new File(lastExpiredFileName);
+        File lastReclaimFile = new File(lastExpiredFileName + FileReclaimService.ReclaimFileSuffix);
+        for (int i = 0; i < 100 && (lastExpiredFile.exists() || lastReclaimFile.exists()); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(fileReclaimService.getPendingFileNums() == 0);
+        assertTrue(!new File(firstFileName).exists());
+        assertTrue(!lastExpiredFile.exists());
+        assertTrue(!lastReclaimFile.exists());
+
+        HashMap<String, String> stats = new HashMap<String, String>();
+        fileReclaimService.buildRunningStats(stats);
+        assertTrue(stats.get("reclaimedFiles").equals(String.valueOf(fileNums - 1)));
+        assertTrue(stats.get("reclaimTruncatedBytes").equals(String.valueOf((long) (fileNums - 1) * 1024 * 64)));
+
+        master.shutdown();
+
+        // 上次未删完的文件在加载时删除
+        File reclaimFile = new File(firstFileName + FileReclaimService.ReclaimFileSuffix);
+        assertTrue(reclaimFile.createNewFile());
+        master = new DefaultMessageStore(messageStoreConfig, null);
+        assertTrue(master.load());
+        assertTrue(!reclaimFile.exists());
+        assertTrue(master.getCommitLog("AAA", 0).getMinOffset() == (long) (fileNums - 1) * 1024 * 64);
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_mapped_file_pool() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 64, ConsumeQueue.CQStoreUnitSize * 100);
+        messageStoreConfig.setMappedFilePoolSize(4);
+        messageStoreConfig.setPrefaultMappedFileBytesPerSecond(0);
+        // 每个预创建的文件占用一块写缓冲区
+        messageStoreConfig.setTransientStorePoolEnable(true);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        this.putKeyedMessages(master, 0, 100, 10);
+
+        // 正在写的文件之后还有3个预创建的文件
+        CommitLog commitLog = master.getCommitLog("AAA", 0);
+        List<MappedFile> mappedFiles = commitLog.getMappedFileQueue().getMappedFiles();
+        MappedFile lastMappedFile = mappedFiles.get(mappedFiles.size() - 1);
+        File commitLogDir = new File(messageStoreConfig.getStorePathCommitLog());
+        for (int i = 1; i < 4; i++) {
+            String fileName = UtilAll.offset2FileName(lastMappedFile.getFileFromOffset() + i * 1024 * 64);
+            File file = new File(commitLogDir, fileName);
+            for (int j = 0; j < 50 && !file.exists(); j++) {
+                Thread.sleep(100);
+            }
+            assertTrue(file.exists());
+        }
+
+        // 预创建的文件在后台预缺页
+        AllocateMappedFileService allocateMappedFileService = master.getAllocateMappedFileService();
+        for (int i = 0; i < 50 && allocateMappedFileService.getPrefaultBytes() < 3 * 1024 * 64; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(allocateMappedFileService.getPrefaultBytes() >= 3 * 1024 * 64);
+
+        HashMap<String, String> stats = new HashMap<String, String>();
+        allocateMappedFileService.buildRunningStats(stats);
+        assertTrue(Integer.parseInt(stats.get("preallocatedMappedFiles")) >= 3);
+
+        // 之后切换文件时选择了其他存储路径，原路径下同名的预创建文件被删除，避免同一Offset出现两个文件
+        String otherDir = messageStoreConfig.getStorePathCommitLog() + "_other";
+        String[] filePaths = new String[2];
+        for (int i = 0; i < filePaths.length; i++) {
+            filePaths[i] = otherDir + File.separator
+                    + UtilAll.offset2FileName(lastMappedFile.getFileFromOffset() + (i + 1) * 1024 * 64);
+        }
+        int remainBuffers = master.getTransientStorePool().remainBufferNumbs();
+        allocateMappedFileService.cancelRequestsOnOtherPaths(messageStoreConfig.getStorePathCommitLog() + ","
+                + otherDir, filePaths);
+        for (int i = 1; i < 4; i++) {
+            String fileName = UtilAll.offset2FileName(lastMappedFile.getFileFromOffset() + i * 1024 * 64);
+            assertTrue(new File(commitLogDir, fileName).exists() == (i == 3));
+        }
+        // 取消的文件归还写缓冲区
+        assertTrue(master.getTransientStorePool().remainBufferNumbs() >= remainBuffers + 2);
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_flush_commit_log_by_sync_file_range() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        messageStoreConfig.setFlushIntervalCommitLog(100);
+        messageStoreConfig.setFlushCommitLogThoroughInterval(1000 * 60);
+        messageStoreConfig.setFlushCommitLogSyncFileRangeEnable(true);
+        messageStoreConfig.setWritebackCommitLogLeastPages(1);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        // 等待启动后的第一次彻底刷盘
+        Thread.sleep(500);
+        this.putKeyedMessages(master, 0, 100, 10);
+
+        // 新写入的数据只发起回写，彻底刷盘时间未到，不fsync
+        MappedFile mappedFile = master.getCommitLog("AAA", 0).getMappedFileQueue().getMappedFiles().get(0);
+        int alignedPosition = mappedFile.getWrotePosition() - mappedFile.getWrotePosition() % MappedFile.OS_PAGE_SIZE;
+        assertTrue(alignedPosition > 0);
+        for (int i = 0; i < 50 && mappedFile.getWritebackPosition() < alignedPosition; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(mappedFile.getWritebackPosition() == alignedPosition);
+        assertTrue(mappedFile.getCommittedPosition() < alignedPosition);
+
+        // 关闭存储服务，退出前全部刷盘
+        master.shutdown();
+        assertTrue(mappedFile.getCommittedPosition() == mappedFile.getWrotePosition());
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_store_path_latency_aware_select() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+        String pathA = messageStoreConfig.getStorePathRootDir() + File.separator + "commitlog_a";
+        String pathB = messageStoreConfig.getStorePathRootDir() + File.separator + "commitlog_b";
+        // 逗号后的空格不属于路径
+        messageStoreConfig.setStorePathCommitLog(pathA + ", " + pathB);
+        messageStoreConfig.setStorePathLatencyAwareEnable(true);
+
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig, null);
+        assertTrue(master.load());
+
+        // 路径A刷盘明显变慢
+        StorePathStats storePathStats = master.getAllocateMappedFileService().getStorePathStats();
+        for (int i = 0; i < 8; i++) {
+            storePathStats.recordFlush(pathA + File.separator + "00000000000000000000", 1000 * 100);
+            storePathStats.recordFlush(pathB + File.separator + "00000000000000000000", 100);
+        }
+        assertTrue(storePathStats.getLatency(pathA) > storePathStats.getLatency(pathB));
+        assertTrue(storePathStats.selectPath(pathA + "," + pathB).equals(pathB));
+        assertTrue(storePathStats.selectPath(pathA + ", " + pathB).equals(pathB));
+
+        // 路径B空闲超过采样有效期，仍以它最后的延迟为参考，持续变慢的路径A依然被避开
+        long later = System.currentTimeMillis() + 1000 * 120;
+        storePathStats.recordFlush(pathA + File.separator + "00000000000000000000", 1000 * 100, later);
+        assertTrue(storePathStats.selectPath(pathA + "," + pathB, later).equals(pathB));
+
+        // 新文件创建在路径B
+        master.start();
+        this.putKeyedMessages(master, 0, 10, 10);
+        MappedFile mappedFile = master.getCommitLog("AAA", 0).getMappedFileQueue().getMappedFiles().get(0);
+        assertTrue(new File(mappedFile.getFileName()).getParent().equals(new File(pathB).getPath()));
+
+        HashMap<String, String> stats = new HashMap<String, String>();
+        storePathStats.buildRunningStats(stats, messageStoreConfig.getStorePathCommitLog());
+        assertTrue(stats.get("commitLogStorePathStats").contains(pathA + ":"));
+        assertTrue(stats.get("commitLogStorePathStats").contains(";" + pathB + ":"));
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_encode_without_intermediate_bytes() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, ConsumeQueue.CQStoreUnitSize * 100);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+
+        // 包含多字节字符、增补字符以及不成对的代理字符，编码结果与String.getBytes(UTF-8)一致
+        final String keys = "订单é😀\ud800";
+        final String expectedKeys = new String(keys.getBytes("UTF-8"), "UTF-8");
+        SocketAddress storeHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 10911);
+        SocketAddress[] bornHosts = new SocketAddress[] { BornHost,
+            new InetSocketAddress(InetAddress.getByName("127.0.0.2"), 12345) };
+        for (int i = 0; i < 4; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            msg.setQueueId(i % 2);
+            msg.setKeys(keys);
+            // 多个生产者交替发送，存储主机地址变化后按新地址转换
+            msg.setBornHost(bornHosts[i % 2]);
+            if (i >= 2) {
+                msg.setStoreHost(storeHost);
+            }
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            PutMessageResult result = master.putMessage(msg);
+            assertTrue(result.isOk());
+            assertTrue(result.getAppendMessageResult().getLogicOffset() == i / 2);
+
+            MessageExt msgExt = master.lookMessageByOffset(result.getAppendMessageResult().getWroteOffset());
+            assertTrue(msgExt.getKeys().equals(expectedKeys));
+            assertTrue(msgExt.getStoreHost().equals(msg.getStoreHost()));
+            assertTrue(msgExt.getBornHost().equals(msg.getBornHost()));
+            assertTrue(result.getAppendMessageResult().getMsgId().equals(MessageDecoder.createMessageId(
+                ByteBuffer.allocate(MessageDecoder.MSG_ID_LENGTH), msg.getStoreHostBytes(), msgExt.getCommitLogOffset())));
+        }
+
+        // queueId非法的消息在写入前被拒绝
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setQueueId(-1);
+        assertTrue(master.putMessage(msg).getPutMessageStatus() == PutMessageStatus.MESSAGE_ILLEGAL);
+        msg = buildMessage();
+        msg.setQueueId(messageStoreConfig.getMaxQueueNumsPerTopic());
+        assertTrue(master.putMessage(msg).getPutMessageStatus() == PutMessageStatus.MESSAGE_ILLEGAL);
+
+        // 消息中的主机地址只有8个字节，IPv6地址的消息被拒绝
+        msg = buildMessage();
+        msg.setBornHost(new InetSocketAddress(InetAddress.getByName("::1"), 0));
+        assertTrue(master.putMessage(msg).getPutMessageStatus() == PutMessageStatus.MESSAGE_ILLEGAL);
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 删除文件
+        master.destroy();
+    }
 }
@@ -48,4 +48,26 @@ public class StoreCheckpointTest {
         }
 
     }
+
+
+    @Test
+    public void test_write_read_verified_offset() {
+        try {
+            StoreCheckpoint storeCheckpoint = new StoreCheckpoint("./a/b/0001");
+            storeCheckpoint.setPhysicVerifiedOffset(0, 1024 * 8);
+            storeCheckpoint.setPhysicVerifiedOffset(CommitLog.MaxPartitionNums - 1, 1024 * 16);
+            storeCheckpoint.shutdown();
+
+            // 各分区已校验位置重启后保持
+            storeCheckpoint = new StoreCheckpoint("./a/b/0001");
+            assertTrue(storeCheckpoint.getPhysicVerifiedOffset(0) == 1024 * 8);
+            assertTrue(storeCheckpoint.getPhysicVerifiedOffset(1) == 0);
+            assertTrue(storeCheckpoint.getPhysicVerifiedOffset(CommitLog.MaxPartitionNums - 1) == 1024 * 16);
+            storeCheckpoint.shutdown();
+        }
+        catch (Throwable e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+    }
 }
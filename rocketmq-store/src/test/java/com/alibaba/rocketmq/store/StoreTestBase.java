@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * 存储测试公共部分，构造消息、存储配置，启动存储服务，等待分发
+ */
+public abstract class StoreTestBase {
+    // 消息所属Topic
+    protected static final String Topic = "AAA";
+    // 队列个数
+    protected static int QUEUE_TOTAL = 100;
+    // 发往哪个队列
+    protected static AtomicInteger QueueId = new AtomicInteger(0);
+    // 发送主机地址
+    protected static SocketAddress BornHost;
+    // 存储主机地址
+    protected static SocketAddress StoreHost;
+    // 消息体
+    protected static byte[] MessageBody;
+
+    protected static final String StoreMessage = "Once, there was a chance for me!";
+
+
+    public MessageExtBrokerInner buildMessage() {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(Topic);
+        msg.setTags("TAG1");
+        msg.setKeys("Hello");
+        msg.setBody(MessageBody);
+        msg.setKeys(String.valueOf(System.currentTimeMillis()));
+        msg.setQueueId(Math.abs(QueueId.getAndIncrement()) % QUEUE_TOTAL);
+        msg.setSysFlag(4);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(StoreHost);
+        msg.setBornHost(BornHost);
+
+        return msg;
+    }
+
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        BornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+
+    }
+
+
+    @Before
+    public void setUp() throws Exception {
+        // 默认全部发往一个队列
+        QUEUE_TOTAL = 1;
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+    }
+
+
+    /**
+     * 构造测试用的存储配置，索引文件很小
+     */
+    protected static MessageStoreConfig buildStoreConfig(final int mappedFileSizeCommitLog,
+            final int mappedFileSizeConsumeQueue) {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(mappedFileSizeCommitLog);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(mappedFileSizeConsumeQueue);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        return messageStoreConfig;
+    }
+
+
+    /**
+     * load已有数据并启动服务
+     */
+    protected static DefaultMessageStore startStore(final MessageStoreConfig messageStoreConfig)
+            throws Exception {
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, null);
+        assertTrue(store.load());
+        store.start();
+        return store;
+    }
+
+
+    /**
+     * 等待消息分发到消费队列，最多等待10秒，调用方自行检查结果
+     */
+    protected static void waitForConsumeQueue(final MessageStore store, final int queueId, final long maxOffset)
+            throws InterruptedException {
+        for (int i = 0; i < 100 && store.getMaxOffsetInQueue(Topic, queueId) < maxOffset; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+
+    /**
+     * 写入count条非事务消息，KEYS按keyNums取模，keyNums为0时不带KEYS，然后等待分发完成
+     */
+    protected void putKeyedMessages(final DefaultMessageStore master, final int begin, final int count,
+            final int keyNums) throws Exception {
+        for (int i = 0; i < count; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            if (keyNums > 0) {
+                msg.setKeys("key" + (i % keyNums));
+            }
+            else {
+                msg.getProperties().remove(MessageConst.PROPERTY_KEYS);
+            }
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        waitForConsumeQueue(master, 0, begin + count);
+        assertTrue(master.getMaxOffsetInQueue(Topic, 0) == begin + count);
+    }
+}
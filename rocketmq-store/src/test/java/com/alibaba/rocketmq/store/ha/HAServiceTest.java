@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.ha;
+
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.GetMessageResult;
+import com.alibaba.rocketmq.store.GetMessageStatus;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageStatus;
+import com.alibaba.rocketmq.store.StoreTestBase;
+import com.alibaba.rocketmq.store.config.BrokerRole;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Master与Slave之间的复制
+ */
+public class HAServiceTest extends StoreTestBase {
+    @Test
+    public void test_ha_replicate_zero_copy() throws Exception {
+        this.replicateToSlave(true, false);
+    }
+
+
+    @Test
+    public void test_ha_replicate_compress() throws Exception {
+        this.replicateToSlave(false, true);
+    }
+
+
+    @Test
+    public void test_ha_sync_quorum() throws Exception {
+        MessageStoreConfig masterConfig = buildStoreConfig(1024 * 1024 * 4, 1024 * 64);
+        masterConfig.setHaListenPort(10972);
+        masterConfig.setBrokerRole(BrokerRole.SYNC_MASTER);
+        masterConfig.setHaSyncReplicaQuorum(2);
+
+        DefaultMessageStore master = startStore(masterConfig);
+
+        // 没有Slave
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setSysFlag(0);
+        assertTrue(master.putMessage(msg).getPutMessageStatus() == PutMessageStatus.SLAVE_NOT_AVAILABLE);
+
+        // 只有一个Slave，不满足quorum
+        DefaultMessageStore slave1 = this.startQuorumSlave(masterConfig, 10982, "_quorum_slave1");
+        for (int i = 0; i < 50 && master.getHaService().getConnectionCount().get() < 1; i++) {
+            Thread.sleep(100);
+        }
+        msg = buildMessage();
+        msg.setSysFlag(0);
+        assertTrue(master.putMessage(msg).getPutMessageStatus() == PutMessageStatus.SLAVE_NOT_AVAILABLE);
+
+        DefaultMessageStore slave2 = this.startQuorumSlave(masterConfig, 10992, "_quorum_slave2");
+        for (int i = 0; i < 50 && master.getHaService().getConnectionCount().get() < 2; i++) {
+            Thread.sleep(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            msg = buildMessage();
+            msg.setSysFlag(0);
+            assertTrue(master.putMessage(msg).getPutMessageStatus() == PutMessageStatus.PUT_OK);
+        }
+        assertTrue(master.getHaService().getQuorumAckOffset() >= master.getMaxPhyOffset());
+
+        HashMap<String, String> stats = new HashMap<String, String>();
+        master.getHaService().buildRunningStats(stats);
+        int latencyStats = 0;
+        for (String key : stats.keySet()) {
+            if (key.startsWith("haSlaveAckLatencyAvg_")) {
+                latencyStats++;
+            }
+        }
+        assertTrue(latencyStats == 2);
+
+        slave1.shutdown();
+        slave1.destroy();
+        slave2.shutdown();
+        slave2.destroy();
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    private DefaultMessageStore startQuorumSlave(final MessageStoreConfig masterConfig, final int haListenPort,
+            final String rootDirSuffix) throws Exception {
+        MessageStoreConfig slaveConfig = buildStoreConfig(1024 * 1024 * 4, 1024 * 64);
+        slaveConfig.setHaListenPort(haListenPort);
+        slaveConfig.setHaSendHeartbeatInterval(500);
+        slaveConfig.setHaMasterAddress("127.0.0.1:" + masterConfig.getHaListenPort());
+        slaveConfig.setBrokerRole(BrokerRole.SLAVE);
+        String slaveRootDir = masterConfig.getStorePathRootDir() + rootDirSuffix;
+        slaveConfig.setStorePathRootDir(slaveRootDir);
+        slaveConfig.setStorePathCommitLog(slaveRootDir + File.separator + "commitlog");
+
+        DefaultMessageStore slave = new DefaultMessageStore(slaveConfig, null);
+        assertTrue(slave.load());
+        slave.updateHaMasterAddress(slaveConfig.getHaMasterAddress());
+        slave.start();
+        return slave;
+    }
+
+
+    private void replicateToSlave(final boolean zeroCopy, final boolean compress) throws Exception {
+        final long totalMsgs = 5000;
+        // 全部数据在一个文件内，Slave从0开始同步
+        MessageStoreConfig masterConfig = buildStoreConfig(1024 * 1024 * 4, 1024 * 64);
+        masterConfig.setHaListenPort(10932);
+        masterConfig.setHaTransferZeroCopyEnable(zeroCopy);
+        masterConfig.setHaTransferCompressEnable(compress);
+
+        MessageStoreConfig slaveConfig = buildStoreConfig(1024 * 1024 * 4, 1024 * 64);
+        slaveConfig.setHaListenPort(10942);
+        slaveConfig.setHaSendHeartbeatInterval(500);
+        slaveConfig.setHaMasterAddress("127.0.0.1:10932");
+        slaveConfig.setBrokerRole(BrokerRole.SLAVE);
+        String slaveRootDir = masterConfig.getStorePathRootDir() + "_ha_slave";
+        slaveConfig.setStorePathRootDir(slaveRootDir);
+        slaveConfig.setStorePathCommitLog(slaveRootDir + File.separator + "commitlog");
+
+        DefaultMessageStore master = startStore(masterConfig);
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            // 非事务消息，才会进入消费队列
+            msg.setSysFlag(0);
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        DefaultMessageStore slave = new DefaultMessageStore(slaveConfig, null);
+        assertTrue(slave.load());
+        slave.updateHaMasterAddress(slaveConfig.getHaMasterAddress());
+        slave.start();
+
+        waitForConsumeQueue(slave, 0, totalMsgs);
+        assertTrue(slave.getMaxPhyOffset() == master.getMaxPhyOffset());
+        assertTrue(slave.getMaxOffsetInQueue(Topic, 0) == totalMsgs);
+        for (long i = 0; i < totalMsgs; i += 100) {
+            GetMessageResult result = slave.getMessage("GROUP_A", Topic, 0, i, 1, null);
+            assertTrue(result != null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            result.release();
+        }
+
+        slave.shutdown();
+        slave.destroy();
+        master.shutdown();
+        master.destroy();
+    }
+}
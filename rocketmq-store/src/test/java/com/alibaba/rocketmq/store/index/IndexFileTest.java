@@ -74,4 +74,47 @@ public class IndexFileTest {
             assertTrue(false);
         }
     }
+
+
+    @Test
+    public void test_bloom_filter() {
+        try {
+            IndexFile indexFile = new IndexFile("300", hashSlotNum, indexNum, 0, 0, 8);
+
+            // 写入索引
+            for (long i = 0; i < (indexNum - 1); i++) {
+                // 未写满时不能排除任何Key
+                assertTrue(indexFile.mightContain("NOT_EXIST_" + i));
+                boolean putResult = indexFile.putKey(Long.toString(i), i, System.currentTimeMillis());
+                assertTrue(putResult);
+            }
+            indexFile.flush();
+
+            // 写满后，写入过的Key一定命中，没写入过的Key绝大部分被排除
+            int falsePositive = 0;
+            for (long i = 0; i < (indexNum - 1); i++) {
+                assertTrue(indexFile.mightContain(Long.toString(i)));
+                if (indexFile.mightContain("NOT_EXIST_" + i)) {
+                    falsePositive++;
+                }
+            }
+            assertTrue(falsePositive < indexNum / 10);
+
+            // 重新加载后重建布隆过滤器
+            IndexFile reloadFile = new IndexFile("300", hashSlotNum, indexNum, 0, 0, 8);
+            reloadFile.load();
+            for (long i = 0; i < (indexNum - 1); i++) {
+                assertTrue(reloadFile.mightContain(Long.toString(i)));
+            }
+            assertTrue(reloadFile.mightContain("NOT_EXIST_0") == indexFile.mightContain("NOT_EXIST_0"));
+
+            // 删除文件
+            reloadFile.destroy(0);
+            indexFile.destroy(0);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+    }
 }
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.index;
+
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.QueryMessageResult;
+import com.alibaba.rocketmq.store.StoreTestBase;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * 通过存储服务写入并查询消息索引
+ */
+public class IndexServiceTest extends StoreTestBase {
+    @Test
+    public void test_index_sharded() throws Exception {
+        final long totalMsgs = 4000;
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(1024 * 1024 * 4, 1024 * 64);
+        // 每个分片的索引文件只能存250条，产生多个文件
+        messageStoreConfig.setMaxHashSlotNum(400);
+        messageStoreConfig.setMaxIndexNum(1000);
+        messageStoreConfig.setIndexShardNums(4);
+        messageStoreConfig.setIndexBloomFilterBitsPerKey(8);
+
+        DefaultMessageStore master = startStore(messageStoreConfig);
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            // 每100条带一个公共Key，分布在同一分片的多个索引文件中
+            msg.setKeys(0 == i % 100 ? "KEY_" + i + MessageConst.KEY_SEPARATOR + "SHARED_KEY" : "KEY_" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msg.setStoreTimestamp(System.currentTimeMillis());
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        final String lastKey = "KEY_" + (totalMsgs - 1);
+        for (int i = 0; i < 50 && master.queryMessage(Topic, lastKey, 1, 0, Long.MAX_VALUE).getMessageBufferList()
+            .isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+
+        File shardDir = new File(StorePathConfigHelper.getStorePathIndex(messageStoreConfig.getStorePathRootDir())
+                + File.separator + 3);
+        assertTrue(shardDir.isDirectory() && shardDir.list().length > 1);
+
+        for (long i = 0; i < totalMsgs; i += 7) {
+            QueryMessageResult queryResult = master.queryMessage(Topic, "KEY_" + i, 1, 0, Long.MAX_VALUE);
+            assertTrue(queryResult.getMessageBufferList().size() == 1);
+            queryResult.release();
+        }
+
+        // 多个候选文件时并行查询，结果不丢失也不重复
+        QueryMessageResult sharedResult = master.queryMessage(Topic, "SHARED_KEY", 64, 0, Long.MAX_VALUE);
+        assertTrue(sharedResult.getMessageBufferList().size() == totalMsgs / 100);
+        HashMap<String, Boolean> sharedKeys = new HashMap<String, Boolean>();
+        for (ByteBuffer byteBuffer : sharedResult.getMessageBufferList()) {
+            sharedKeys.put(MessageDecoder.decode(byteBuffer).getKeys(), true);
+        }
+        assertTrue(sharedKeys.size() == totalMsgs / 100);
+        sharedResult.release();
+
+        // 重启后从各分片目录加载
+        master.shutdown();
+        master = startStore(messageStoreConfig);
+        for (long i = 0; i < totalMsgs; i += 7) {
+            QueryMessageResult queryResult = master.queryMessage(Topic, "KEY_" + i, 1, 0, Long.MAX_VALUE);
+            assertTrue(queryResult.getMessageBufferList().size() == 1);
+            queryResult.release();
+        }
+
+        // 关闭存储服务
+        master.shutdown();
+
+        // 修改分片数后已有索引无法正确查询，拒绝启动
+        messageStoreConfig.setIndexShardNums(2);
+        assertFalse(new DefaultMessageStore(messageStoreConfig, null).load());
+
+        // 删除文件
+        master.destroy();
+    }
+}
@@ -0,0 +1,211 @@
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.store.*;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TimerMessageTest {
+    // 队列个数
+    private static final int QUEUE_TOTAL = 4;
+    // 发送主机地址
+    private static SocketAddress BornHost;
+    // 存储主机地址
+    private static SocketAddress StoreHost;
+
+    private static final String StoreMessage = "Once, there was a chance for me!";
+
+
+    public MessageExtBrokerInner buildMessage(final int queueId, final long deliverTimeMs) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("AAA");
+        msg.setTags("TAG1");
+        msg.setKeys("Hello");
+        msg.setBody(StoreMessage.getBytes());
+        msg.setQueueId(queueId);
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(StoreHost);
+        msg.setBornHost(BornHost);
+        msg.setDeliverTimeMs(deliverTimeMs);
+        msg.putUserProperty("EXPECT_DELIVER_MS", String.valueOf(deliverTimeMs));
+
+        return msg;
+    }
+
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        BornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+
+    private static MessageStoreConfig buildConfig() {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024 * 4);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 16);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(1000 * 10);
+        messageStoreConfig.setTimerWheelEnable(true);
+        // 时间轮只有4秒，超出范围的消息需要转存
+        messageStoreConfig.setTimerWheelSlots(4);
+        messageStoreConfig.setMappedFileSizeTimerLog(TimerLog.UnitSize * 64);
+        messageStoreConfig.setTimerDeliverBatchSize(8);
+        return messageStoreConfig;
+    }
+
+
+    private static long totalMessagesInQueues(final MessageStore store) {
+        long total = 0;
+        for (int i = 0; i < QUEUE_TOTAL; i++) {
+            total += store.getMaxOffsetInQueue("AAA", i);
+        }
+        return total;
+    }
+
+
+    private static long timerEnqueueOffset(final DefaultMessageStore store) {
+        HashMap<String, String> stats = new HashMap<String, String>();
+        store.getTimerMessageService().buildRunningStats(stats);
+        return Long.parseLong(stats.get("timerEnqueueOffset"));
+    }
+
+
+    @Test
+    public void test_timer_message() throws Exception {
+        System.out.println("================================================================");
+        final int dueMsgs = 10;
+        final int timerMsgs = 400;
+
+        MessageStore master = new DefaultMessageStore(buildConfig(), null);
+        assertTrue(master.load());
+        master.start();
+
+        final long now = System.currentTimeMillis();
+        // 已到期的立即投递
+        for (int i = 0; i < dueMsgs; i++) {
+            PutMessageResult result = master.putMessage(buildMessage(i % QUEUE_TOTAL, now - 1000));
+            assertTrue(result.isOk());
+        }
+        // 6 ~ 11秒后投递，大部分超出时间轮范围
+        for (int i = 0; i < timerMsgs; i++) {
+            long deliverTimeMs = now + 6000 + (i % 6) * 1000;
+            PutMessageResult result = master.putMessage(buildMessage(i % QUEUE_TOTAL, deliverTimeMs));
+            assertTrue(result.isOk());
+        }
+
+        for (int i = 0; i < 30 && totalMessagesInQueues(master) < dueMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(totalMessagesInQueues(master) == dueMsgs);
+
+        // 重启，时间轮及TimerLog恢复后继续投递
+        master.shutdown();
+        master = new DefaultMessageStore(buildConfig(), null);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < 150 && totalMessagesInQueues(master) < dueMsgs + timerMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(totalMessagesInQueues(master) == dueMsgs + timerMsgs);
+
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            long maxOffset = master.getMaxOffsetInQueue("AAA", queueId);
+            for (long offset = 0; offset < maxOffset; offset++) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", queueId, offset, 1, null);
+                assertTrue(result != null && result.getStatus() == GetMessageStatus.FOUND);
+                try {
+                    ByteBuffer byteBuffer = result.getMessageBufferList().get(0);
+                    MessageExt msgExt = MessageDecoder.decode(byteBuffer);
+                    assertTrue(msgExt.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS) == null);
+                    assertTrue(msgExt.getQueueId() == queueId);
+                    // 不会提前投递，槽位整秒过去后才出队
+                    long expectDeliverMs = Long.parseLong(msgExt.getUserProperty("EXPECT_DELIVER_MS"));
+                    assertTrue(msgExt.getStoreTimestamp() >= expectDeliverMs);
+                }
+                finally {
+                    result.release();
+                }
+            }
+        }
+
+        master.shutdown();
+        master.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_timer_log_truncated() throws Exception {
+        System.out.println("================================================================");
+        final int timerMsgs = 100;
+
+        MessageStoreConfig config = buildConfig();
+        DefaultMessageStore master = new DefaultMessageStore(config, null);
+        assertTrue(master.load());
+        master.start();
+
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < timerMsgs; i++) {
+            long deliverTimeMs = now + 6000 + (i % 3) * 1000;
+            assertTrue(master.putMessage(buildMessage(i % QUEUE_TOTAL, deliverTimeMs)).isOk());
+        }
+
+        // 全部写入时间轮后立即停止，此时还没有转存
+        for (int i = 0; i < 30 && timerEnqueueOffset(master) < timerMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(timerEnqueueOffset(master) == timerMsgs);
+        master.shutdown();
+
+        // 模拟异常宕机，TimerLog最后一个文件的记录丢失，时间轮槽位仍指向这些记录
+        File[] files = new File(StorePathConfigHelper.getStorePathTimerLog(config.getStorePathRootDir())).listFiles();
+        File lastFile = files[0];
+        for (File file : files) {
+            if (file.getName().compareTo(lastFile.getName()) > 0) {
+                lastFile = file;
+            }
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(lastFile, "rw");
+        randomAccessFile.writeInt(0);
+        randomAccessFile.close();
+
+        // 修改槽位数拒绝启动
+        MessageStoreConfig mismatchConfig = buildConfig();
+        mismatchConfig.setTimerWheelSlots(8);
+        assertFalse(new DefaultMessageStore(mismatchConfig, null).load());
+
+        master = new DefaultMessageStore(buildConfig(), null);
+        assertTrue(master.load());
+        master.start();
+
+        // 槽位重建，被截断的记录重新入队，不丢失也不重复
+        for (int i = 0; i < 150 && totalMessagesInQueues(master) < timerMsgs; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(1000);
+        assertTrue(totalMessagesInQueues(master) == timerMsgs);
+
+        master.shutdown();
+        master.destroy();
+        System.out.println("================================================================");
+    }
+}